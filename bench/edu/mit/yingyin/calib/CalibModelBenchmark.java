@@ -0,0 +1,79 @@
+package edu.mit.yingyin.calib;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.vecmath.Point2f;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.yingyin.tabletop.models.DepthFrames;
+
+/**
+ * Benchmarks converting image coordinates to display coordinates, which is 
+ * done for every fingertip event, with the native matrix operations and with
+ * the remap table.
+ * 
+ * @author yingyin
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CalibModelBenchmark {
+  private static final int BATCH_SIZE = 16;
+
+  private CalibModel calibModel, remapModel;
+  private int i = 0;
+  private float[] imageCoords = new float[BATCH_SIZE * 2],
+      displayCoords = new float[BATCH_SIZE * 2];
+
+  @Setup
+  public void setUp() {
+    calibModel = new CalibModel(DepthFrames.CALIB_FILE);
+    remapModel = new CalibModel(DepthFrames.CALIB_FILE);
+    remapModel.buildRemapTable(DepthFrames.WIDTH, DepthFrames.HEIGHT);
+    for (int j = 0; j < BATCH_SIZE; j++) {
+      imageCoords[j * 2] = (j * 37.3f) % (DepthFrames.WIDTH - 1);
+      imageCoords[j * 2 + 1] = (j * 23.7f) % (DepthFrames.HEIGHT - 1);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    calibModel.release();
+    remapModel.release();
+  }
+
+  @Benchmark
+  public Point2f imageToDisplayCoords() {
+    i = (i + 1) % (DepthFrames.WIDTH * DepthFrames.HEIGHT);
+    return calibModel.imageToDisplayCoords(i % DepthFrames.WIDTH, 
+                                           i / DepthFrames.WIDTH);
+  }
+
+  @Benchmark
+  public Point2f imageToDisplayCoordsRemap() {
+    i = (i + 1) % (DepthFrames.WIDTH * DepthFrames.HEIGHT);
+    return remapModel.imageToDisplayCoords(i % (DepthFrames.WIDTH - 1) + 0.5f,
+                                           i / DepthFrames.WIDTH);
+  }
+
+  @Benchmark
+  public float[] imageToDisplayCoordsRemapBatch() {
+    remapModel.imageToDisplayCoords(imageCoords, displayCoords, BATCH_SIZE);
+    return displayCoords;
+  }
+}
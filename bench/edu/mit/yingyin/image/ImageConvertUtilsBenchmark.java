@@ -0,0 +1,55 @@
+package edu.mit.yingyin.image;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.yingyin.tabletop.models.DepthFrames;
+import edu.mit.yingyin.tabletop.models.EnvConstant;
+
+/**
+ * Benchmarks the cumulative depth histogram used by the debug views.
+ * 
+ * @author yingyin
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ImageConvertUtilsBenchmark {
+  private short[] depthShort;
+  private int[] depthInt;
+  private float[] histogram = new float[EnvConstant.MAX_DEPTH + 1];
+
+  @Setup
+  public void setUp() throws IOException {
+    DepthFrames frames = new DepthFrames();
+    depthShort = frames.hand;
+    depthInt = DepthFrames.toIntArray(frames.hand);
+  }
+
+  @Benchmark
+  public float[] arrayToHistogramInt() {
+    ImageConvertUtils.arrayToHistogram(depthInt, histogram);
+    return histogram;
+  }
+
+  @Benchmark
+  public float[] arrayToHistogramShort() {
+    ImageConvertUtils.arrayToHistogram(depthShort, histogram);
+    return histogram;
+  }
+}
@@ -0,0 +1,127 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_16U;
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_32F;
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+import edu.mit.yingyin.util.BitMask;
+
+/**
+ * Benchmarks learning the background and segmenting a frame with it.
+ * 
+ * @author yingyin
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BackgroundBenchmark {
+  private static final int BG_FRAMES = 40;
+
+  /**
+   * Compares the serial loops with the row-striped ones.
+   */
+  @Param({"false", "true"})
+  public boolean parallelRows;
+
+  private Background background;
+  private IplImage backgroundImage, handImage, mask, foreground8U, 
+      depthRaw32F, depthScaled32F;
+  private BitMask maskBits, nonzeroBits;
+  private int[] backgroundArray;
+
+  @Setup
+  public void setUp() throws IOException {
+    DepthFrames frames = new DepthFrames();
+    int w = DepthFrames.WIDTH, h = DepthFrames.HEIGHT;
+    backgroundImage = IplImage.create(w, h, IPL_DEPTH_16U, 1);
+    handImage = IplImage.create(w, h, IPL_DEPTH_16U, 1);
+    mask = IplImage.create(w, h, IPL_DEPTH_8U, 1);
+    maskBits = new BitMask(w, h);
+    nonzeroBits = new BitMask(w, h);
+    foreground8U = IplImage.create(w, h, IPL_DEPTH_8U, 1);
+    depthRaw32F = IplImage.create(w, h, IPL_DEPTH_32F, 1);
+    depthScaled32F = IplImage.create(w, h, IPL_DEPTH_32F, 1);
+    DepthFrames.toImage(frames.background, backgroundImage);
+    DepthFrames.toImage(frames.hand, handImage);
+    backgroundArray = DepthFrames.toIntArray(frames.background);
+
+    background = new Background(w, h);
+    background.setParallelRows(parallelRows);
+    for (int i = 0; i < BG_FRAMES; i++)
+      background.accumulateBackground(backgroundImage);
+    background.createModelsFromStats(5, 6);
+  }
+
+  @TearDown
+  public void tearDown() {
+    background.release();
+    backgroundImage.release();
+    handImage.release();
+    mask.release();
+    foreground8U.release();
+    depthRaw32F.release();
+    depthScaled32F.release();
+  }
+
+  @Benchmark
+  public void accumulateBackground() {
+    background.accumulateBackground(backgroundImage);
+  }
+
+  /**
+   * The legacy path from an integer array.
+   */
+  @Benchmark
+  public void accumulateBackgroundArray() {
+    background.accumulateBackground(backgroundArray);
+  }
+
+  /**
+   * The update with the bit-packed mask, which skips the foreground pixels.
+   */
+  @Benchmark
+  public BitMask updateBackgroundBits() {
+    background.segment(backgroundImage, null, null, depthScaled32F, maskBits, 
+                       foreground8U, null);
+    background.updateBackground(backgroundImage, maskBits, 0.01f);
+    return maskBits;
+  }
+
+  @Benchmark
+  public IplImage backgroundDiff() {
+    background.backgroundDiff(handImage, mask);
+    return mask;
+  }
+
+  /**
+   * The fused conversion and segmentation pass.
+   */
+  @Benchmark
+  public IplImage segment() {
+    background.segment(handImage, null, depthRaw32F, depthScaled32F, maskBits,
+                       foreground8U, nonzeroBits);
+    return foreground8U;
+  }
+}
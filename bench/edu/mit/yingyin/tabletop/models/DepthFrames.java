@@ -0,0 +1,148 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+
+import org.OpenNI.GeneralException;
+import org.OpenNI.StatusException;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * Recorded and synthetic depth frames for the benchmarks.
+ *
+ * The background frame is read from a raw 16-bit little-endian depth file. The
+ * hand frame is the background frame with a synthetic forelimb entering from
+ * the bottom of the image: an arm, a palm and four fingers raised above the
+ * table.
+ *
+ * @author yingyin
+ *
+ */
+public class DepthFrames {
+  public static final String DEPTH_RAW_FILE = "test_data/Depth_0.raw";
+  /**
+   * Recording only used for the conversion between projective and real world
+   * coordinates.
+   */
+  public static final String RECORDING_FILE = "test_data/Captured.oni";
+  public static final String CALIB_FILE = "test_data/calibration.txt";
+  public static final int WIDTH = 640, HEIGHT = 480;
+  /**
+   * Height of the synthetic hand above the table in mm.
+   */
+  public static final int HAND_HEIGHT = 60;
+
+  public final short[] background, hand;
+
+  public DepthFrames() throws IOException {
+    background = readRaw(DEPTH_RAW_FILE, WIDTH * HEIGHT);
+    hand = background.clone();
+    addForelimb(hand);
+  }
+
+  /**
+   * Copies a depth frame into a 16-bit image.
+   */
+  public static void toImage(short[] frame, IplImage image) {
+    ShortBuffer sb = image.getShortBuffer();
+    int widthStep = image.widthStep() / 2;
+    for (int h = 0; h < HEIGHT; h++) {
+      sb.position(h * widthStep);
+      sb.put(frame, h * WIDTH, WIDTH);
+    }
+    sb.rewind();
+  }
+
+  /**
+   * Copies a depth frame into the packet as a new frame.
+   */
+  public static void toPacket(short[] frame, ProcessPacket packet,
+                              int frameID) {
+    toImage(frame, packet.depthImage16U);
+    packet.depthUpdated();
+    packet.depthFrameID = frameID;
+  }
+
+  public static int[] toIntArray(short[] frame) {
+    int[] res = new int[frame.length];
+    for (int i = 0; i < frame.length; i++)
+      res[i] = frame[i] & 0xffff;
+    return res;
+  }
+
+  /**
+   * Creates a <code>ForelimbFeatureDetector</code> whose background is learned
+   * from the background frame, and a packet containing the hand frame that
+   * has gone through preprocessing.
+   *
+   * @author yingyin
+   *
+   */
+  public static class Pipeline {
+    public final DepthFrames frames;
+    public final OpenNIDevice openni;
+    public final ForelimbFeatureDetector detector;
+    public final ProcessPacket packet;
+
+    public Pipeline() throws IOException, GeneralException {
+      frames = new DepthFrames();
+      openni = new OpenNIDevice(RECORDING_FILE);
+      detector = new ForelimbFeatureDetector(WIDTH, HEIGHT, openni);
+      packet = new ProcessPacket(WIDTH, HEIGHT, new OpenNIFrameSource(openni));
+      for (int i = 0; i <= ForelimbFeatureDetector.BG_INIT_FRAMES; i++) {
+        toPacket(frames.background, packet, i);
+        detector.preprocess(packet);
+      }
+      toPacket(frames.hand, packet, ForelimbFeatureDetector.BG_INIT_FRAMES + 1);
+      preprocess();
+    }
+
+    public final void preprocess() throws StatusException {
+      detector.preprocess(packet);
+    }
+
+    public void release() {
+      packet.release();
+      detector.release();
+      openni.release();
+    }
+  }
+
+  private static short[] readRaw(String file, int size) throws IOException {
+    short[] frame = new short[size];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      for (int i = 0; i < size; i++)
+        frame[i] = Short.reverseBytes(in.readShort());
+    } finally {
+      in.close();
+    }
+    return frame;
+  }
+
+  private static void addForelimb(short[] frame) {
+    int cx = WIDTH / 2;
+    // Arm.
+    raise(frame, cx - 35, 300, cx + 35, HEIGHT);
+    // Palm.
+    raise(frame, cx - 50, 220, cx + 50, 300);
+    // Fingers.
+    for (int i = 0; i < 4; i++) {
+      int x = cx - 45 + i * 26;
+      raise(frame, x, 150 + (i == 0 || i == 3 ? 30 : 0), x + 14, 220);
+    }
+  }
+
+  private static void raise(short[] frame, int x0, int y0, int x1, int y1) {
+    for (int y = y0; y < y1; y++)
+      for (int x = x0; x < x1; x++) {
+        int i = y * WIDTH + x;
+        int d = frame[i] & 0xffff;
+        if (d > HAND_HEIGHT)
+          frame[i] = (short) (d - HAND_HEIGHT);
+      }
+  }
+}
@@ -0,0 +1,95 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.OpenNI.GeneralException;
+import org.OpenNI.StatusException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.yingyin.tabletop.models.BlobLabeler.Blob;
+
+/**
+ * Benchmarks the stages of <code>ForelimbFeatureDetector</code> on a frame 
+ * with a synthetic forelimb.
+ * 
+ * @author yingyin
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ForelimbFeatureDetectorBenchmark {
+  private DepthFrames.Pipeline pipeline;
+
+  @Setup
+  public void setUp() throws IOException, GeneralException {
+    pipeline = new DepthFrames.Pipeline();
+  }
+
+  @TearDown
+  public void tearDown() {
+    pipeline.release();
+  }
+
+  /**
+   * Depth conversion, blur, Sobel, background subtraction and morphology.
+   */
+  @Benchmark
+  public boolean preprocess() throws StatusException {
+    return pipeline.detector.preprocess(pipeline.packet);
+  }
+
+  @Benchmark
+  public ProcessPacket subtractBackground() {
+    pipeline.detector.subtractBackground(pipeline.packet);
+    return pipeline.packet;
+  }
+
+  /**
+   * Opening of the bit-packed foreground.
+   */
+  @Benchmark
+  public ProcessPacket cleanUpBackground() {
+    pipeline.detector.cleanUpBackground(pipeline.packet);
+    return pipeline.packet;
+  }
+
+  /**
+   * Connected component labeling with the blob moments.
+   */
+  @Benchmark
+  public int findBlobs() {
+    return pipeline.detector.findBlobs(pipeline.packet, 
+        ForelimbFeatureDetector.HAND_PERIM_SCALE).size();
+  }
+
+  /**
+   * Blob labeling followed by contour finding with polygon approximation, 
+   * convex hull and convexity defects on the remaining blobs.
+   */
+  @Benchmark
+  public int findConnectedComponents() {
+    ProcessPacket packet = pipeline.packet;
+    packet.clear();
+    List<Blob> blobs = pipeline.detector.findBlobs(packet, 
+        ForelimbFeatureDetector.HAND_PERIM_SCALE);
+    pipeline.detector.findConnectedComponents(packet, blobs,
+        ForelimbFeatureDetector.HAND_PERIM_SCALE);
+    return packet.forelimbFeatures.size();
+  }
+}
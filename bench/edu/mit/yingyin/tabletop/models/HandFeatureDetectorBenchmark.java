@@ -0,0 +1,71 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.OpenNI.GeneralException;
+import org.OpenNI.StatusException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the hand feature detection (point cloud, PCA and camshift) and 
+ * the forelimb model estimation on a frame with a synthetic forelimb.
+ * 
+ * @author yingyin
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandFeatureDetectorBenchmark {
+  private DepthFrames.Pipeline pipeline;
+  private HandFeatureDetector handFeatureDetector;
+  private ForelimbModelEstimator modelEstimator;
+
+  @Setup
+  public void setUp() throws IOException, GeneralException {
+    pipeline = new DepthFrames.Pipeline();
+    pipeline.detector.extractFeatures(pipeline.packet);
+    if (pipeline.packet.forelimbFeatures.isEmpty())
+      throw new IllegalStateException("No forelimb is detected.");
+    handFeatureDetector = new HandFeatureDetector(DepthFrames.WIDTH, 
+        DepthFrames.HEIGHT, pipeline.openni.projection());
+    modelEstimator = new ForelimbModelEstimator(DepthFrames.WIDTH, 
+        DepthFrames.HEIGHT, pipeline.openni.projection());
+  }
+
+  @TearDown
+  public void tearDown() {
+    handFeatureDetector.release();
+    pipeline.release();
+  }
+
+  @Benchmark
+  public ProcessPacket detect() throws StatusException {
+    handFeatureDetector.detect(pipeline.packet);
+    return pipeline.packet;
+  }
+
+  @Benchmark
+  public int updateModel() throws StatusException {
+    ProcessPacket packet = pipeline.packet;
+    packet.forelimbs.clear();
+    for (ProcessPacket.ForelimbFeatures ff : packet.forelimbFeatures)
+      ff.fingertips.clear();
+    modelEstimator.updateModel(packet);
+    return packet.forelimbs.size();
+  }
+}
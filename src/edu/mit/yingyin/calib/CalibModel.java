@@ -5,17 +5,19 @@ import static com.googlecode.javacv.cpp.opencv_core.CV_32FC2;
 import static com.googlecode.javacv.cpp.opencv_calib3d.cvFindExtrinsicCameraParams2;
 import static com.googlecode.javacv.cpp.opencv_calib3d.cvFindHomography;
 import static com.googlecode.javacv.cpp.opencv_calib3d.cvRodrigues2;
-import static com.googlecode.javacv.cpp.opencv_core.cvGEMM;
-import static com.googlecode.javacv.cpp.opencv_core.cvTranspose;
 import static com.googlecode.javacv.cpp.opencv_imgproc.cvUndistortPoints;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
 import java.util.List;
 import java.util.Scanner;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 import javax.vecmath.Point2f;
 
@@ -23,6 +25,11 @@ import com.googlecode.javacv.cpp.opencv_core.CvMat;
 
 /**
  * Computes extrinsic camera parameters.
+ * 
+ * The model can precompute the display coordinates of every image pixel in a
+ * remap table, so that converting a point is a table lookup instead of native
+ * matrix operations. When it is loaded from a calibration file, the table is
+ * saved next to the file and reused while the calibration does not change.
  * @author yingyin
  *
  */
@@ -39,11 +46,24 @@ public class CalibModel {
     public void release();
     public void save(PrintStream ps);
     public String toString();
-    public Point2f imageToDisplayCoords(float x, float y);
+    /**
+     * Converts points in the image coordinate to the display coordinate.
+     * 
+     * @param imageCoords x and y of the image points.
+     * @param displayCoords receives x and y of the display points. Can be
+     *    <code>imageCoords</code>.
+     * @param n number of points.
+     */
+    public void imageToDisplayCoords(float[] imageCoords, 
+        float[] displayCoords, int n);
   }
 
   private class HomographyMethod implements CalibrationMethod {
     private CvMat homographyMat = CvMat.create(3, 3, CV_32FC1);
+    /**
+     * Copy of the homography matrix in row-major order.
+     */
+    private double[] homography = new double[9];
 
     /**
      * Given the correspondence of points in two planes, finds the projective 
@@ -73,6 +93,7 @@ public class CalibModel {
         cvUndistortPoints(imagePointsMat, imagePointsMat, intrinsicMatrixMat, 
             distortionCoeffsMat, null, null);
       cvFindHomography(imagePointsMat, objectPointsMat, homographyMat);
+      copyMat(homographyMat, homography);
       
       objectPointsMat.release();
       imagePointsMat.release();
@@ -82,6 +103,7 @@ public class CalibModel {
       for (int i = 0; i < 3; i++)
         for (int j = 0; j < 3; j++)
           homographyMat.put(i, j, scanner.nextFloat());
+      copyMat(homographyMat, homography);
     }
     
     public void release() {
@@ -106,39 +128,36 @@ public class CalibModel {
     }
     
     /**
-     * Converts a point in the image coordinate to the display coordinate.
+     * Converts points in the image coordinate to the display coordinate.
      */
-    public Point2f imageToDisplayCoords(float x, float y) {
-      CvMat imageCoords = null;
+    public void imageToDisplayCoords(float[] imageCoords, 
+        float[] displayCoords, int n) {
+      float[] src = imageCoords;
       if (methodName == CalibMethodName.UNDISTORT) {
-        imageCoords = CvMat.create(1, 1, CV_32FC2);
-        imageCoords.put(0, x);
-        imageCoords.put(1, y);
-        cvUndistortPoints(imageCoords, imageCoords, intrinsicMatrixMat, 
-            distortionCoeffsMat, null, null);
-      } else {
-        imageCoords = CvMat.create(2, 1, CV_32FC1);
-        imageCoords.put(0, x);
-        imageCoords.put(1, y);
+        undistortPoints(imageCoords, displayCoords, n);
+        src = displayCoords;
+      }
+      double[] h = homography;
+      for (int i = 0; i < n * 2; i += 2) {
+        double x = src[i], y = src[i + 1];
+        double w = h[6] * x + h[7] * y + h[8];
+        displayCoords[i] = (float)((h[0] * x + h[1] * y + h[2]) / w);
+        displayCoords[i + 1] = (float)((h[3] * x + h[4] * y + h[5]) / w);
       }
-      CvMat src = CvMat.create(3, 1, CV_32FC1);
-      CvMat dst = CvMat.create(3, 1, CV_32FC1);
-      src.put(0, imageCoords.get(0));
-      src.put(1, imageCoords.get(1));
-      src.put(2, 1);
-      cvGEMM(homographyMat, src, 1, null, 0, dst, 0);
-      Point2f displayPoint = new Point2f((float)(dst.get(0) / dst.get(2)), 
-                                         (float)(dst.get(1) / dst.get(2)));
-      src.release();
-      dst.release();
-      imageCoords.release();
-      return displayPoint;
     }
   }
   
   private class ExtrinsicMethod implements CalibrationMethod {
     private CvMat rotationMat = CvMat.create(3, 3, CV_32FC1);
     private CvMat translationMat = CvMat.create(3, 1, CV_32FC1);
+    /**
+     * R^-1 in row-major order.
+     */
+    private double[] rotationInverse = new double[9];
+    /**
+     * R^-1 * T.
+     */
+    private double[] rotatedTranslation = new double[3];
     
     /**
      * Requires objectPoints.size = imagePoints.size
@@ -164,6 +183,7 @@ public class CalibModel {
       cvFindExtrinsicCameraParams2(objectPointsMat, imagePointsMat, 
           intrinsicMatrixMat, distortionCoeffsMat, rodrigues, translationMat);
       cvRodrigues2(rodrigues, rotationMat, null);
+      initInverse();
       objectPointsMat.release();
       imagePointsMat.release();
       rodrigues.release();
@@ -175,6 +195,7 @@ public class CalibModel {
           rotationMat.put(i, j, scanner.nextFloat());
       for (int i = 0; i < 3; i++)
         translationMat.put(i, scanner.nextFloat());
+      initInverse();
     }
     
     public void release() {
@@ -209,49 +230,40 @@ public class CalibModel {
     
     /**
      * Transforms image coordinates to display coordinates P_d.
-     * 
-     * @param imagePoint 2D point in image coordinates.
-     * @return 2D point in display coordinates.
      */
-    public Point2f imageToDisplayCoords(float x, float y) {
-      CvMat imageCoords = CvMat.create(1, 1, CV_32FC2);
-      imageCoords.put(0, x);
-      imageCoords.put(1, y);
-      cvUndistortPoints(imageCoords, imageCoords, intrinsicMatrixMat, 
-          distortionCoeffsMat, null, null);
-      
-      // P_cn = [X_c / Z_c, Y_c / Z_c, 1]
-      // P_c = Z_c * P_cn
-      CvMat normalizedCameraCoords = CvMat.create(3, 1, CV_32FC1);
-      normalizedCameraCoords.put(0, imageCoords.get(0));
-      normalizedCameraCoords.put(1, imageCoords.get(1));
-      normalizedCameraCoords.put(2, 1);
-
-      // P_c = R * P_d + T
-      // P_d = R^-1 * (P_c - T) = Z_c * (R^-1 * P_cn) - R^-1 * T
-      CvMat rotationInverse = CvMat.create(3, 3, CV_32FC1);
-      cvTranspose(rotationMat, rotationInverse);
-      
-      // result1 = R^-1 * P_cn
-      CvMat result1 = CvMat.create(3, 1, CV_32FC1);
-      // result2 = R^-1 * T
-      CvMat result2 = CvMat.create(3, 1, CV_32FC1);
-      cvGEMM(rotationInverse, normalizedCameraCoords, 1, null, 0, result1, 0);
-      cvGEMM(rotationInverse, translationMat, 1, null, 0, result2, 0);
-      
-      float cameraZ = (float)(result2.get(2) / result1.get(2));
-
-      Point2f converted = new Point2f(
-          (float)(result1.get(0) * cameraZ - result2.get(0)),
-          (float)(result1.get(1) * cameraZ - result2.get(1)));
-      
-      imageCoords.release();
-      imageCoords.release();
-      rotationInverse.release();
-      result1.release();
-      result2.release();
-
-      return converted;
+    public void imageToDisplayCoords(float[] imageCoords, 
+        float[] displayCoords, int n) {
+      undistortPoints(imageCoords, displayCoords, n);
+      double[] ri = rotationInverse, rt = rotatedTranslation;
+      for (int i = 0; i < n * 2; i += 2) {
+        // P_cn = [X_c / Z_c, Y_c / Z_c, 1]
+        // P_c = Z_c * P_cn
+        double x = displayCoords[i], y = displayCoords[i + 1];
+        // P_c = R * P_d + T
+        // P_d = R^-1 * (P_c - T) = Z_c * (R^-1 * P_cn) - R^-1 * T
+        // The plane of the display is Z_d = 0.
+        double r0 = ri[0] * x + ri[1] * y + ri[2];
+        double r1 = ri[3] * x + ri[4] * y + ri[5];
+        double r2 = ri[6] * x + ri[7] * y + ri[8];
+        double cameraZ = rt[2] / r2;
+        displayCoords[i] = (float)(r0 * cameraZ - rt[0]);
+        displayCoords[i + 1] = (float)(r1 * cameraZ - rt[1]);
+      }
+    }
+    
+    /**
+     * Computes R^-1 = R^T and R^-1 * T.
+     */
+    private void initInverse() {
+      for (int i = 0; i < 3; i++)
+        for (int j = 0; j < 3; j++)
+          rotationInverse[i * 3 + j] = rotationMat.get(j, i);
+      for (int i = 0; i < 3; i++) {
+        rotatedTranslation[i] = 0;
+        for (int j = 0; j < 3; j++)
+          rotatedTranslation[i] += rotationInverse[i * 3 + j] * 
+              translationMat.get(j);
+      }
     }
   }
   
@@ -276,10 +288,17 @@ public class CalibModel {
   
   private static final int MIN_POINTS = 4;
   
+  /**
+   * Suffix added to the calibration file name for the saved remap table.
+   */
+  public static final String REMAP_TABLE_SUFFIX = ".remap";
+  
   private CvMat intrinsicMatrixMat = CvMat.create(3, 3, CV_32FC1);
   private CvMat distortionCoeffsMat = CvMat.create(5, 1, CV_32FC1);
   private CalibMethodName methodName;
   private CalibrationMethod method;
+  private volatile RemapTable remapTable;
+  private volatile boolean remapBilinear = true;
   
   /**
    * Constructs a <code>CalibModel</code> from corresponding object points and 
@@ -333,6 +352,23 @@ public class CalibModel {
     }
   }
   
+  /**
+   * Constructs a <code>CalibModel</code> from a calibration result file with 
+   * a remap table for images of the specified size.
+   * 
+   * The remap table is read from the file with the same name plus 
+   * <code>REMAP_TABLE_SUFFIX</code> if it is computed from the same 
+   * calibration. Otherwise, it is computed and saved in that file.
+   * 
+   * @param fileName
+   * @param imageWidth
+   * @param imageHeight
+   */
+  public CalibModel(String fileName, int imageWidth, int imageHeight) {
+    this(fileName);
+    loadRemapTable(fileName, imageWidth, imageHeight);
+  }
+  
   public CalibMethodName calibMethod() { return methodName; }
   
   /**
@@ -342,13 +378,84 @@ public class CalibModel {
    * @return corresponding point in the display coordinate.
    */
   public Point2f imageToDisplayCoords(Point2f imagePoint) {
-    return method.imageToDisplayCoords(imagePoint.x, imagePoint.y);
+    return imageToDisplayCoords(imagePoint.x, imagePoint.y);
   }
   
   public Point2f imageToDisplayCoords(float x, float y) {
-    return method.imageToDisplayCoords(x, y);
+    float[] displayCoords = new float[2];
+    RemapTable table = remapTable;
+    if (table != null && table.contains(x, y)) {
+      table.lookup(x, y, displayCoords, 0);
+    } else {
+      displayCoords[0] = x;
+      displayCoords[1] = y;
+      method.imageToDisplayCoords(displayCoords, displayCoords, 1);
+    }
+    return new Point2f(displayCoords[0], displayCoords[1]);
   }
   
+  /**
+   * Converts points in the image coordinate to points in the display 
+   * coordinate. The points covered by the remap table are converted without
+   * allocation.
+   * 
+   * @param imageCoords x and y of the image points.
+   * @param displayCoords receives x and y of the display points. Can be
+   *    <code>imageCoords</code>.
+   * @param n number of points.
+   */
+  public void imageToDisplayCoords(float[] imageCoords, float[] displayCoords,
+      int n) {
+    RemapTable table = remapTable;
+    if (table == null) {
+      method.imageToDisplayCoords(imageCoords, displayCoords, n);
+      return;
+    }
+    for (int i = 0; i < n * 2; i += 2) {
+      float x = imageCoords[i], y = imageCoords[i + 1];
+      if (table.contains(x, y)) {
+        table.lookup(x, y, displayCoords, i);
+      } else {
+        Point2f p = imageToDisplayCoords(x, y);
+        displayCoords[i] = p.x;
+        displayCoords[i + 1] = p.y;
+      }
+    }
+  }
+  
+  /**
+   * Computes the display coordinates of every pixel of images of the 
+   * specified size, which are used for the points inside the images 
+   * afterwards.
+   * 
+   * @param width image width.
+   * @param height image height.
+   */
+  public void buildRemapTable(int width, int height) {
+    float[] table = new float[width * height * 2];
+    for (int y = 0, i = 0; y < height; y++)
+      for (int x = 0; x < width; x++, i += 2) {
+        table[i] = x;
+        table[i + 1] = y;
+      }
+    method.imageToDisplayCoords(table, table, width * height);
+    setRemapTable(new RemapTable(width, height, table));
+  }
+  
+  /**
+   * @param bilinear if true, the coordinates between pixels are interpolated
+   *    bilinearly from the remap table; otherwise, the nearest pixel is used.
+   *    True by default.
+   */
+  public void setRemapBilinear(boolean bilinear) {
+    remapBilinear = bilinear;
+    RemapTable table = remapTable;
+    if (table != null)
+      table.setBilinear(bilinear);
+  }
+  
+  public boolean hasRemapTable() { return remapTable != null; }
+  
   /**
    * Calculates and prints the average error between the converted display 
    * coordinates from the image coordinates and the actual display coordinates.
@@ -419,6 +526,94 @@ public class CalibModel {
     assert distortionCoeffsMat.cols() == 1;
   }
   
+  /**
+   * Reads the remap table saved next to the calibration file, or builds and
+   * saves it if there is none for this calibration.
+   */
+  private void loadRemapTable(String fileName, int width, int height) {
+    File cacheFile = new File(fileName + REMAP_TABLE_SUFFIX);
+    long key;
+    try {
+      key = calibrationKey(new File(fileName));
+    } catch (IOException e) {
+      LOGGER.warning("Cannot read the calibration file: " + e.getMessage());
+      buildRemapTable(width, height);
+      return;
+    }
+    
+    if (cacheFile.exists()) {
+      try {
+        RemapTable table = RemapTable.read(cacheFile, key, width, height);
+        if (table != null) {
+          setRemapTable(table);
+          LOGGER.info("Loaded remap table from " + cacheFile.getPath());
+          return;
+        }
+      } catch (IOException e) {
+        LOGGER.warning("Cannot read the remap table: " + e.getMessage());
+      }
+    }
+    
+    buildRemapTable(width, height);
+    try {
+      remapTable.write(cacheFile, key);
+      LOGGER.info("Saved remap table to " + cacheFile.getPath());
+    } catch (IOException e) {
+      LOGGER.warning("Cannot save the remap table: " + e.getMessage());
+    }
+  }
+  
+  private void setRemapTable(RemapTable table) {
+    table.setBilinear(remapBilinear);
+    remapTable = table;
+  }
+  
+  /**
+   * @return checksum of the calibration file and the intrinsic parameters,
+   *    which identifies the calibration a remap table is computed from.
+   * @throws IOException
+   */
+  private static long calibrationKey(File file) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(Files.readAllBytes(file.toPath()));
+    ByteBuffer bb = ByteBuffer.allocate((9 + DISTORTION_COEFFS.length) * 4);
+    for (float[] row : INTRINSIC_MATRIX)
+      for (float v : row)
+        bb.putFloat(v);
+    for (float v : DISTORTION_COEFFS)
+      bb.putFloat(v);
+    crc.update(bb.array());
+    return crc.getValue();
+  }
+  
+  /**
+   * Undistorts image points to normalized camera coordinates.
+   * 
+   * @param src x and y of the image points.
+   * @param dst receives x and y of the undistorted points. Can be 
+   *    <code>src</code>.
+   * @param n number of points.
+   */
+  private void undistortPoints(float[] src, float[] dst, int n) {
+    CvMat points = CvMat.create(n, 1, CV_32FC2);
+    FloatBuffer fb = points.getFloatBuffer();
+    fb.put(src, 0, n * 2);
+    cvUndistortPoints(points, points, intrinsicMatrixMat, distortionCoeffsMat,
+        null, null);
+    fb.rewind();
+    fb.get(dst, 0, n * 2);
+    points.release();
+  }
+  
+  /**
+   * Copies a 3 x 3 matrix in row-major order.
+   */
+  private static void copyMat(CvMat mat, double[] dst) {
+    for (int i = 0; i < 3; i++)
+      for (int j = 0; j < 3; j++)
+        dst[i * 3 + j] = mat.get(i, j);
+  }
+  
   private void initIntrinsicParameters() {
     for (int i = 0; i < 3; i++) 
       for (int j = 0; j < 3; j++) {
@@ -0,0 +1,141 @@
+package edu.mit.yingyin.calib;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A dense table of the display coordinates of every pixel of the image. The
+ * coordinates between pixels are interpolated bilinearly or taken from the
+ * nearest pixel.
+ *
+ * The table can be saved next to the calibration file, with a key that
+ * identifies the calibration it was computed from, so that it is not
+ * recomputed when the same calibration is loaded again.
+ *
+ * @author yingyin
+ *
+ */
+class RemapTable {
+  private static final int MAGIC = 0x52454d50; // "REMP"
+  private static final int VERSION = 1;
+  /**
+   * Magic, version, key, width and height.
+   */
+  private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4;
+
+  private final int width, height;
+  /**
+   * Display x and y of each pixel in row-major order.
+   */
+  private final float[] table;
+  private volatile boolean bilinear = true;
+
+  /**
+   * @param width image width, at least 2.
+   * @param height image height, at least 2.
+   * @param table display x and y of each pixel in row-major order. Not
+   *    copied.
+   */
+  public RemapTable(int width, int height, float[] table) {
+    if (width < 2 || height < 2 || table.length != width * height * 2)
+      throw new IllegalArgumentException(String.format(
+          "Invalid remap table of %d x %d with %d entries.", width, height,
+          table.length));
+    this.width = width;
+    this.height = height;
+    this.table = table;
+  }
+
+  public int width() { return width; }
+
+  public int height() { return height; }
+
+  /**
+   * @param bilinear if true, interpolates the coordinates between pixels
+   *    bilinearly; otherwise, uses the nearest pixel.
+   */
+  public void setBilinear(boolean bilinear) { this.bilinear = bilinear; }
+
+  /**
+   * @return true if the image point is covered by the table.
+   */
+  public boolean contains(float x, float y) {
+    return x >= 0 && y >= 0 && x <= width - 1 && y <= height - 1;
+  }
+
+  /**
+   * Looks up the display coordinates of an image point covered by the table.
+   *
+   * @param dst receives the display x and y at <code>offset</code> and
+   *    <code>offset + 1</code>.
+   */
+  public void lookup(float x, float y, float[] dst, int offset) {
+    if (!bilinear) {
+      int i = (Math.round(y) * width + Math.round(x)) * 2;
+      dst[offset] = table[i];
+      dst[offset + 1] = table[i + 1];
+      return;
+    }
+    int x0 = Math.min((int) x, width - 2), y0 = Math.min((int) y, height - 2);
+    float fx = x - x0, fy = y - y0;
+    int i00 = (y0 * width + x0) * 2, i10 = i00 + 2;
+    int i01 = i00 + width * 2, i11 = i01 + 2;
+    for (int c = 0; c < 2; c++) {
+      float top = table[i00 + c] + (table[i10 + c] - table[i00 + c]) * fx;
+      float bottom = table[i01 + c] + (table[i11 + c] - table[i01 + c]) * fx;
+      dst[offset + c] = top + (bottom - top) * fy;
+    }
+  }
+
+  /**
+   * Saves the table.
+   *
+   * @param key identifies the calibration the table is computed from.
+   * @throws IOException
+   */
+  public void write(File file, long key) throws IOException {
+    ByteBuffer bb = ByteBuffer.allocate(HEADER_BYTES + table.length * 4);
+    bb.putInt(MAGIC).putInt(VERSION).putLong(key).putInt(width)
+      .putInt(height);
+    bb.asFloatBuffer().put(table);
+    FileOutputStream fos = new FileOutputStream(file);
+    try {
+      fos.write(bb.array());
+    } finally {
+      fos.close();
+    }
+  }
+
+  /**
+   * Reads a table saved by <code>write</code>.
+   *
+   * @param key the key the table has to be saved with.
+   * @return the table, or null if the file is not a table of the size
+   *    requested or is saved with a different key.
+   * @throws IOException
+   */
+  public static RemapTable read(File file, long key, int width, int height)
+      throws IOException {
+    int numFloats = width * height * 2;
+    if (file.length() != HEADER_BYTES + (long) numFloats * 4)
+      return null;
+    byte[] bytes = new byte[(int) file.length()];
+    DataInputStream dis = new DataInputStream(new FileInputStream(file));
+    try {
+      dis.readFully(bytes);
+    } finally {
+      dis.close();
+    }
+    ByteBuffer bb = ByteBuffer.wrap(bytes);
+    if (bb.getInt() != MAGIC || bb.getInt() != VERSION ||
+        bb.getLong() != key || bb.getInt() != width || bb.getInt() != height)
+      return null;
+    float[] table = new float[numFloats];
+    bb.asFloatBuffer().get(table);
+    return new RemapTable(width, height, table);
+  }
+}
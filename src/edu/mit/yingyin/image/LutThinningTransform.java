@@ -0,0 +1,243 @@
+package edu.mit.yingyin.image;
+
+import java.util.Arrays;
+
+import edu.mit.yingyin.util.Matrix;
+
+/**
+ * Thins a binary image with 3x3 hit-and-miss kernels like
+ * <code>ThinningTransform</code>, using a lookup table instead of matching
+ * the kernel element by element.
+ *
+ * The 8 neighbours of a pixel are packed into an index between 0 and 255,
+ * and each kernel in each of its 4 rotations has a 256-entry table that says
+ * whether a neighbourhood matches. As in <code>HitMissTransform</code>, a
+ * neighbour outside the image only matches a don't care element. A step
+ * applies one rotated kernel and removes all the matching pixels at once. A
+ * round applies all the kernels in the first rotation, then all the kernels
+ * in the next rotation and so on, which is the order of rotating the kernels
+ * after each pass.
+ *
+ * Only the foreground pixels next to the background can match, so a step
+ * only visits a worklist of those pixels. The neighbours of the removed
+ * pixels are added to the worklist. The buffers are reused across calls, so
+ * an instance should only be used by one thread at a time.
+ *
+ * @author yingyin
+ *
+ */
+public class LutThinningTransform {
+  /**
+   * Number of rounds that runs until no pixel is removed.
+   */
+  public static final int UNTIL_CONVERGED = Integer.MAX_VALUE;
+
+  private static final int NUM_ROTATIONS = 4;
+  private static final int KERNEL_CENTER = 4;
+  /**
+   * Kernel element of each bit of the neighbourhood index.
+   */
+  private static final int[] NEIGHBOUR_ELEMENTS = {0, 1, 2, 3, 5, 6, 7, 8};
+
+  private final boolean[][] luts;
+  /**
+   * Bits of the neighbours that are not don't care elements, for each step.
+   */
+  private final int[] careMasks;
+  /**
+   * Offsets of the neighbours in the padded image in the bit order.
+   */
+  private final int[] offsets = new int[NEIGHBOUR_ELEMENTS.length];
+  /**
+   * The image with a 1-pixel border of background.
+   */
+  private byte[] padded = new byte[0];
+  /**
+   * Bits of the neighbours outside the image for each padded pixel.
+   */
+  private byte[] outside = new byte[0];
+  private boolean[] listed = new boolean[0];
+  private int[] worklist = new int[0], removed = new int[0];
+  private int numActive;
+
+  /**
+   * @param kernels 3x3 kernels in row-major order with 0 for background, 1
+   *    for foreground and 2 for don't care. The center has to be 1 and at
+   *    least one neighbour has to be 0. The kernels are not modified.
+   */
+  public LutThinningTransform(int[]... kernels) {
+    int numSteps = kernels.length * NUM_ROTATIONS;
+    luts = new boolean[numSteps][];
+    careMasks = new int[numSteps];
+    int[][] rotated = new int[kernels.length][];
+    for (int k = 0; k < kernels.length; k++) {
+      checkKernel(kernels[k]);
+      rotated[k] = Arrays.copyOf(kernels[k], kernels[k].length);
+    }
+    for (int r = 0; r < NUM_ROTATIONS; r++) {
+      for (int k = 0; k < kernels.length; k++) {
+        int step = r * kernels.length + k;
+        luts[step] = createLut(rotated[k]);
+        careMasks[step] = careMask(rotated[k]);
+        Matrix.rot90(rotated[k], 3);
+      }
+    }
+  }
+
+  /**
+   * Thins an image in place.
+   *
+   * @param pixels row-major image where nonzero is foreground. Set to
+   *    <code>BinaryFast.foreground</code> or <code>BinaryFast.background
+   *    </code>.
+   * @param width
+   * @param height
+   * @param maxRounds maximum number of rounds. Stops earlier if a round does
+   *    not remove any pixel.
+   * @return number of pixels removed.
+   */
+  public int thin(byte[] pixels, int width, int height, int maxRounds) {
+    load(pixels, width, height);
+    int total = 0;
+    for (int round = 0; round < maxRounds; round++) {
+      int n = 0;
+      for (int step = 0; step < luts.length; step++)
+        n += step(step);
+      total += n;
+      if (n == 0)
+        break;
+    }
+    int pw = width + 2;
+    for (int y = 0; y < height; y++)
+      System.arraycopy(padded, (y + 1) * pw + 1, pixels, y * width, width);
+    return total;
+  }
+
+  /**
+   * Copies the image into the padded buffer and puts the foreground pixels
+   * next to the background in the worklist.
+   */
+  private void load(byte[] pixels, int width, int height) {
+    int pw = width + 2;
+    int size = pw * (height + 2);
+    if (padded.length < size) {
+      padded = new byte[size];
+      outside = new byte[size];
+      listed = new boolean[size];
+      worklist = new int[size];
+      removed = new int[size];
+    }
+    Arrays.fill(padded, 0, size, BinaryFast.background);
+    Arrays.fill(outside, 0, size, (byte) 0);
+    Arrays.fill(listed, 0, size, false);
+    offsets[0] = -pw - 1;
+    offsets[1] = -pw;
+    offsets[2] = -pw + 1;
+    offsets[3] = -1;
+    offsets[4] = 1;
+    offsets[5] = pw - 1;
+    offsets[6] = pw;
+    offsets[7] = pw + 1;
+
+    for (int y = 0; y < height; y++)
+      for (int x = 0; x < width; x++)
+        if (pixels[y * width + x] != 0)
+          padded[(y + 1) * pw + x + 1] = BinaryFast.foreground;
+    // Bits 0-2 are the row above, 3-4 the left and right, and 5-7 the row
+    // below.
+    for (int x = 0; x < width; x++) {
+      outside[pw + x + 1] |= 0x07;
+      outside[height * pw + x + 1] |= 0xe0;
+    }
+    for (int y = 0; y < height; y++) {
+      outside[(y + 1) * pw + 1] |= 0x29;
+      outside[(y + 1) * pw + width] |= 0x94;
+    }
+
+    numActive = 0;
+    for (int y = 0; y < height; y++)
+      for (int x = 0; x < width; x++) {
+        int p = (y + 1) * pw + x + 1;
+        if (padded[p] != 0 &&
+            (~neighbourhood(p) & ~outside[p] & 0xff) != 0) {
+          listed[p] = true;
+          worklist[numActive++] = p;
+        }
+      }
+  }
+
+  /**
+   * Removes the pixels in the worklist that match the kernel of a step.
+   * @return number of pixels removed.
+   */
+  private int step(int step) {
+    boolean[] lut = luts[step];
+    int care = careMasks[step];
+    int numRemoved = 0, n = 0;
+    for (int i = 0; i < numActive; i++) {
+      int p = worklist[i];
+      if (padded[p] == 0) {
+        listed[p] = false;
+        continue;
+      }
+      worklist[n++] = p;
+      if (lut[neighbourhood(p)] && (care & outside[p]) == 0)
+        removed[numRemoved++] = p;
+    }
+    numActive = n;
+
+    for (int i = 0; i < numRemoved; i++)
+      padded[removed[i]] = BinaryFast.background;
+    for (int i = 0; i < numRemoved; i++) {
+      int p = removed[i];
+      for (int offset : offsets) {
+        int q = p + offset;
+        if (padded[q] != 0 && !listed[q]) {
+          listed[q] = true;
+          worklist[numActive++] = q;
+        }
+      }
+    }
+    return numRemoved;
+  }
+
+  private int neighbourhood(int p) {
+    int index = 0;
+    for (int i = 0; i < offsets.length; i++)
+      index |= padded[p + offsets[i]] << i;
+    return index;
+  }
+
+  private static boolean[] createLut(int[] kernel) {
+    boolean[] lut = new boolean[1 << NEIGHBOUR_ELEMENTS.length];
+    for (int index = 0; index < lut.length; index++) {
+      boolean match = true;
+      for (int i = 0; i < NEIGHBOUR_ELEMENTS.length && match; i++) {
+        int element = kernel[NEIGHBOUR_ELEMENTS[i]];
+        if (element != 2)
+          match = element == ((index >> i) & 1);
+      }
+      lut[index] = match;
+    }
+    return lut;
+  }
+
+  private static int careMask(int[] kernel) {
+    int mask = 0;
+    for (int i = 0; i < NEIGHBOUR_ELEMENTS.length; i++)
+      if (kernel[NEIGHBOUR_ELEMENTS[i]] != 2)
+        mask |= 1 << i;
+    return mask;
+  }
+
+  private static void checkKernel(int[] kernel) {
+    if (kernel.length != 9 || kernel[KERNEL_CENTER] != 1)
+      throw new IllegalArgumentException(
+          "A thinning kernel must be 3x3 with 1 at the center.");
+    for (int i : NEIGHBOUR_ELEMENTS)
+      if (kernel[i] == 0)
+        return;
+    throw new IllegalArgumentException(
+        "A thinning kernel must have a background element.");
+  }
+}
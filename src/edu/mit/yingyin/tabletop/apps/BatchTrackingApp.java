@@ -0,0 +1,364 @@
+package edu.mit.yingyin.tabletop.apps;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.vecmath.Point3f;
+
+import org.OpenNI.GeneralException;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+
+import edu.mit.yingyin.tabletop.models.ClickEvaluation;
+import edu.mit.yingyin.tabletop.models.DepthFrameSource;
+import edu.mit.yingyin.tabletop.models.DepthProjection;
+import edu.mit.yingyin.tabletop.models.EnvConstant;
+import edu.mit.yingyin.tabletop.models.FeatureBuilder;
+import edu.mit.yingyin.tabletop.models.FingertipEvaluation;
+import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+import edu.mit.yingyin.tabletop.models.OpenNIDevice;
+import edu.mit.yingyin.tabletop.models.OpenNIFrameSource;
+import edu.mit.yingyin.tabletop.models.ProcessPacket;
+import edu.mit.yingyin.tabletop.models.RawDepthFrameSource;
+import edu.mit.yingyin.util.CommandLineOptions;
+import edu.mit.yingyin.util.FileUtil;
+
+/**
+ * Headless application that tracks the fingertips in many recordings in
+ * parallel and evaluates the detected fingertips and clicks against the
+ * ground truth labels. Each recording is processed by its own engine on one
+ * worker thread, so the engines run single-threaded.
+ *
+ * Each line of the job file is a recording (.oni, .raw or a directory of .raw
+ * files) optionally followed by a fingertip label file and a click label
+ * file, all relative to the main directory. "-" skips a label file. Lines
+ * starting with '#' are comments. The label files have the format evaluated
+ * by <code>ruby/eval_fingertips.rb</code> and <code>ruby/eval_clicks.rb</code>.
+ *
+ * The engine configuration, the calibration file and the depth intrinsics of
+ * the raw recordings are read from config/fingertip-tracking.properties.
+ *
+ * @author yingyin
+ *
+ */
+public class BatchTrackingApp {
+  /**
+   * A recording and its label files.
+   */
+  private static class Job {
+    String recording, fingertipLabelFile, clickLabelFile;
+  }
+
+  private static class JobResult {
+    Job job;
+    int frames;
+    long nanos;
+    /**
+     * Null if the recording has no label file of that type.
+     */
+    FingertipEvaluation.Result fingertips;
+    ClickEvaluation.Result clicks;
+
+    double framesPerSecond() {
+      return frames * 1e9 / nanos;
+    }
+  }
+
+  /**
+   * Collects the finger pressed events as rows of the frame ID followed by
+   * the x, y, z image coordinates of the fingertips.
+   */
+  private static class EventCollector implements IHandEventListener {
+    final List<int[]> rows = new ArrayList<int[]>();
+
+    @Override
+    public void fingerPressed(List<ManipulativeEvent> feList) {
+      if (feList.isEmpty())
+        return;
+      int[] row = new int[1 + feList.size() * 3];
+      row[0] = feList.get(0).frameID;
+      for (int i = 0; i < feList.size(); i++) {
+        Point3f p = feList.get(i).posImage;
+        row[1 + i * 3] = (int) p.x;
+        row[2 + i * 3] = (int) p.y;
+        row[3 + i * 3] = (int) p.z;
+      }
+      rows.add(row);
+    }
+
+    @Override
+    public void fingerPointed(DiecticEvent de) {}
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      BatchTrackingApp.class.getName());
+  private static final String APP_PROPS = FileUtil.join(EnvConstant.CONFIG_DIR,
+      "fingertip-tracking.properties");
+  private static final String DEFAULT_CALIB_FILE = FileUtil.join(
+      EnvConstant.DATA_DIR, "calibration", "calibration.txt");
+  private static final String DEFAULT_DEPTH_INTRINSICS_FILE = FileUtil.join(
+      EnvConstant.CONFIG_DIR, "kinect-depth-intrinsics.properties");
+  private static final String NO_FILE = "-";
+
+  @SuppressWarnings("static-access")
+  public static void main(String[] args) {
+    Option mainDirOpt = OptionBuilder.withArgName("main directory").withLongOpt(
+        "dir").hasArg().withDescription(
+        "The main directory for input. The default dir is the current " +
+        "directory.").create("d");
+    Option jobsOpt = OptionBuilder.withArgName("job file").withLongOpt(
+        "jobs").hasArg().withDescription(
+        "File listing the recordings and their label files.").create("j");
+    Option threadsOpt = OptionBuilder.withArgName("threads").withLongOpt(
+        "threads").hasArg().withDescription(
+        "Number of recordings processed in parallel. The default is the " +
+        "number of processors.").create("t");
+    CommandLineOptions.addOption(mainDirOpt);
+    CommandLineOptions.addOption(jobsOpt);
+    CommandLineOptions.addOption(threadsOpt);
+    CommandLineOptions.parse(args);
+    if (!CommandLineOptions.hasOption("j")) {
+      CommandLineOptions.printHelp(BatchTrackingApp.class.getSimpleName());
+      System.exit(-1);
+    }
+    String mainDir = CommandLineOptions.getOptionValue("d", ".");
+    int threads = Integer.parseInt(CommandLineOptions.getOptionValue("t",
+        Integer.toString(Runtime.getRuntime().availableProcessors())));
+    BatchTrackingApp app = new BatchTrackingApp(mainDir);
+    boolean success = app.run(CommandLineOptions.getOptionValue("j", null),
+                              threads);
+    System.exit(success ? 0 : -1);
+  }
+
+  private final String mainDir;
+  private String calibrationFile, depthIntrinsicsFile;
+  private HandTrackingEngine.Config engineConfig;
+
+  public BatchTrackingApp(String mainDir) {
+    this.mainDir = mainDir;
+    processConfig();
+  }
+
+  /**
+   * Processes the recordings in a job file and prints the summary.
+   *
+   * @param jobFile
+   * @param threads number of recordings processed in parallel.
+   * @return true if all the recordings are processed.
+   */
+  public boolean run(String jobFile, int threads) {
+    List<Job> jobs;
+    try {
+      jobs = readJobs(FileUtil.join(mainDir, jobFile));
+    } catch (IOException e) {
+      LOGGER.severe(e.getMessage());
+      return false;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<JobResult>> futures = new ArrayList<Future<JobResult>>();
+    long start = System.nanoTime();
+    for (final Job job : jobs) {
+      futures.add(executor.submit(new Callable<JobResult>() {
+        @Override
+        public JobResult call() throws Exception {
+          return process(job);
+        }
+      }));
+    }
+
+    List<JobResult> results = new ArrayList<JobResult>();
+    boolean success = true;
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        results.add(futures.get(i).get());
+      } catch (ExecutionException e) {
+        LOGGER.severe(jobs.get(i).recording + ": " + e.getCause());
+        success = false;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        success = false;
+        break;
+      }
+    }
+    long nanos = System.nanoTime() - start;
+    executor.shutdownNow();
+    System.out.println(summary(results, nanos, Math.min(threads,
+                                                        jobs.size())));
+    return success;
+  }
+
+  private void processConfig() {
+    Properties config = new Properties();
+    try {
+      FileInputStream in = new FileInputStream(FileUtil.join(mainDir,
+                                                             APP_PROPS));
+      config.load(in);
+      in.close();
+    } catch (IOException e) {
+      LOGGER.severe(e.getMessage());
+      System.exit(-1);
+    }
+    calibrationFile = FileUtil.join(mainDir,
+        config.getProperty("calibration-file", DEFAULT_CALIB_FILE));
+    depthIntrinsicsFile = FileUtil.join(mainDir, config.getProperty(
+        "depth-intrinsics", DEFAULT_DEPTH_INTRINSICS_FILE));
+    String imageWidthStr = config.getProperty("image-width", null);
+    if (imageWidthStr != null)
+      FeatureBuilder.imageWidth(Integer.parseInt(imageWidthStr));
+
+    engineConfig = HandTrackingEngine.Config.fromProperties(config);
+    // The recordings are processed in parallel, so each engine uses one
+    // thread.
+    engineConfig.pipelined = false;
+    engineConfig.parallelRows = false;
+    engineConfig.metricsJmx = false;
+    engineConfig.metricsLogPeriod = 0;
+  }
+
+  private List<Job> readJobs(String jobFile) throws IOException {
+    List<Job> jobs = new ArrayList<Job>();
+    BufferedReader br = new BufferedReader(new FileReader(jobFile));
+    try {
+      String line;
+      while ((line = br.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#"))
+          continue;
+        String[] tokens = line.split("\\s+");
+        Job job = new Job();
+        job.recording = FileUtil.join(mainDir, tokens[0]);
+        if (tokens.length > 1 && !tokens[1].equals(NO_FILE))
+          job.fingertipLabelFile = FileUtil.join(mainDir, tokens[1]);
+        if (tokens.length > 2 && !tokens[2].equals(NO_FILE))
+          job.clickLabelFile = FileUtil.join(mainDir, tokens[2]);
+        jobs.add(job);
+      }
+    } finally {
+      br.close();
+    }
+    return jobs;
+  }
+
+  /**
+   * Tracks all the frames of a recording and evaluates the detections.
+   */
+  private JobResult process(Job job) throws IOException, GeneralException {
+    JobResult result = new JobResult();
+    result.job = job;
+    EventCollector collector = new EventCollector();
+    HandTrackingEngine engine = new HandTrackingEngine(
+        createSource(job.recording), calibrationFile, engineConfig);
+    engine.addHandEventListener(collector);
+    long start = System.nanoTime();
+    try {
+      while (!engine.isDone()) {
+        ProcessPacket packet = engine.step();
+        if (packet == null)
+          break;
+        engine.returnPacket(packet);
+        result.frames++;
+      }
+    } finally {
+      result.nanos = System.nanoTime() - start;
+      engine.release();
+    }
+
+    if (job.fingertipLabelFile != null) {
+      result.fingertips = FingertipEvaluation.evaluate(
+          FingertipEvaluation.readRows(job.fingertipLabelFile),
+          collector.rows);
+    }
+    if (job.clickLabelFile != null) {
+      result.clicks = ClickEvaluation.evaluate(collector.rows,
+          FingertipEvaluation.readRows(job.clickLabelFile));
+    }
+    LOGGER.info(String.format("%s: %d frames, %.1f frames/s", job.recording,
+                              result.frames, result.framesPerSecond()));
+    return result;
+  }
+
+  private DepthFrameSource createSource(String recording) 
+      throws IOException, GeneralException {
+    if (OpenNIDevice.isRecordingFile(recording))
+      return new OpenNIFrameSource(recording);
+    RawDepthFrameSource source = new RawDepthFrameSource(recording,
+        DepthProjection.load(depthIntrinsicsFile),
+        RawDepthFrameSource.PlaybackRate.AS_FAST_AS_POSSIBLE,
+        RawDepthFrameSource.DEFAULT_FPS);
+    // Each frame is tracked once.
+    source.setLooping(false);
+    return source;
+  }
+
+  /**
+   * Summarizes the results of each recording and the totals. The average
+   * fingertip errors are weighted by the true positives.
+   *
+   * @param nanos wall time of the batch.
+   * @param workers number of worker threads used.
+   */
+  private static String summary(List<JobResult> results, long nanos,
+                                int workers) {
+    StringBuilder sb = new StringBuilder();
+    FingertipEvaluation.Result fingertips = new FingertipEvaluation.Result();
+    ClickEvaluation.Result clicks = new ClickEvaluation.Result();
+    int frames = 0, clickSegments = 0;
+    for (JobResult r : results) {
+      frames += r.frames;
+      sb.append(String.format("%s: %d frames, %.1f frames/s%n",
+          r.job.recording, r.frames, r.framesPerSecond()));
+      if (r.fingertips != null) {
+        sb.append(r.fingertips).append(String.format("%n"));
+        fingertips.totalGroundtruth += r.fingertips.totalGroundtruth;
+        fingertips.totalDetected += r.fingertips.totalDetected;
+        fingertips.truePos += r.fingertips.truePos;
+        fingertips.falsePos += r.fingertips.falsePos;
+        fingertips.falseNeg += r.fingertips.falseNeg;
+        fingertips.error += r.fingertips.error * r.fingertips.truePos;
+        fingertips.xoffset += r.fingertips.xoffset * r.fingertips.truePos;
+        fingertips.yoffset += r.fingertips.yoffset * r.fingertips.truePos;
+      }
+      if (r.clicks != null) {
+        sb.append(r.clicks).append(String.format("%n"));
+        clicks.groundtruthClicks += r.clicks.groundtruthClicks;
+        clicks.truePos += r.clicks.truePos;
+        clicks.falsePos += r.clicks.falsePos;
+        clicks.falseNeg += r.clicks.falseNeg;
+        clicks.falseNegDuration += r.clicks.falseNegDuration *
+            r.clicks.groundtruthClicks;
+        clickSegments += r.clicks.groundtruthClicks;
+      }
+    }
+    if (fingertips.truePos > 0) {
+      fingertips.error /= fingertips.truePos;
+      fingertips.xoffset /= fingertips.truePos;
+      fingertips.yoffset /= fingertips.truePos;
+    }
+    if (clickSegments > 0)
+      clicks.falseNegDuration /= clickSegments;
+
+    double seconds = nanos / 1e9;
+    sb.append(String.format("== Total: %d recordings, %d frames in %.1f s%n",
+                            results.size(), frames, seconds));
+    sb.append(String.format("throughput: %.1f frames/s, %.1f frames/s per " +
+        "core%n", frames / seconds, frames / seconds / Math.max(1, workers)));
+    sb.append(fingertips).append(String.format("%n"));
+    sb.append(clicks);
+    return sb.toString();
+  }
+}
@@ -18,6 +18,7 @@ import edu.mit.yingyin.tabletop.controllers.DisplayImageFrame;
 import edu.mit.yingyin.tabletop.controllers.ProcessPacketController;
 import edu.mit.yingyin.tabletop.models.EnvConstant;
 import edu.mit.yingyin.tabletop.models.HandTrackingEngine;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngineException;
 import edu.mit.yingyin.tabletop.models.ProcessPacket;
 import edu.mit.yingyin.util.FileUtil;
 
@@ -107,6 +108,11 @@ public class CheckerboardTestApp {
       try {
         ProcessPacket packet = engine.step();
         packetController.show(packet);
+        engine.returnPacket(packet);
+      } catch (HandTrackingEngineException e) {
+        logger.severe(e.getMessage());
+        engine.release();
+        System.exit(-1);
       } catch (GeneralException e) {
         logger.severe(e.getMessage());
         engine.release();
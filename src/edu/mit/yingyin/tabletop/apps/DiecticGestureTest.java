@@ -114,7 +114,7 @@ public class DiecticGestureTest extends KeyAdapter implements
             packet = queue.take();
             packetController.show(packet);
   
-            packet.release();
+            engine.returnPacket(packet);
           } catch (InterruptedException e) {
             e.printStackTrace();
           } catch (GeneralException ge) {
@@ -11,6 +11,7 @@ import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
@@ -22,15 +23,20 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 
 import edu.mit.yingyin.tabletop.controllers.ProcessPacketController;
+import edu.mit.yingyin.tabletop.models.AsyncHandEventListener;
+import edu.mit.yingyin.tabletop.models.DepthProjection;
 import edu.mit.yingyin.tabletop.models.EnvConstant;
 import edu.mit.yingyin.tabletop.models.FeatureBuilder;
 import edu.mit.yingyin.tabletop.models.FeatureWriter;
+import edu.mit.yingyin.tabletop.models.FrameRecordWriter;
 import edu.mit.yingyin.tabletop.models.OpenNIDevice;
 import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
 import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
 import edu.mit.yingyin.tabletop.models.HandTrackingEngine;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngineException;
 import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
 import edu.mit.yingyin.tabletop.models.ProcessPacket;
+import edu.mit.yingyin.tabletop.models.RawDepthFrameSource;
 import edu.mit.yingyin.util.CommandLineOptions;
 import edu.mit.yingyin.util.FileUtil;
 import edu.mit.yingyin.util.ObjectIO;
@@ -103,6 +109,8 @@ public class HandTrackingApp extends KeyAdapter {
       EnvConstant.CONFIG_DIR, "config.xml");
   private static final String DEFAULT_CALIB_FILE = FileUtil.join(
       EnvConstant.DATA_DIR, "calibration", "calibration.txt");
+  private static final String DEFAULT_DEPTH_INTRINSICS_FILE = FileUtil.join(
+      EnvConstant.CONFIG_DIR, "kinect-depth-intrinsics.properties");
   private static final String TIME_FORMAT = "yyyy-MM-dd_HH-mm-SS";
   private static final String OUTPUT_EXTENSION = ".log";
 
@@ -122,6 +130,13 @@ public class HandTrackingApp extends KeyAdapter {
   private String mainDir, openniConfigFile, calibrationFile, labelFile, 
                  classificationFile;
   private HandTrackingEngine engine;
+  /**
+   * Null if the depth frames come from OpenNI.
+   */
+  private RawDepthFrameSource rawFrameSource;
+  private String depthFramesPath, depthIntrinsicsFile;
+  private RawDepthFrameSource.PlaybackRate playbackRate;
+  private float playbackFps;
   private ProcessPacketController packetController;
   private HandEventListener handEventListener;
   private PrintWriter descriptorPrintWriter;
@@ -129,6 +144,18 @@ public class HandTrackingApp extends KeyAdapter {
   private boolean displayOn = true, saveFingertip = false;
   private boolean paused = false;
   private FeatureWriter featureWriter;
+  /**
+   * Null if the frames are not recorded.
+   */
+  private FrameRecordWriter frameRecordWriter;
+  private String frameRecordFile;
+  private EnumSet<FrameRecordWriter.Section> frameRecordSections;
+  private FrameRecordWriter.Compression frameRecordCompression;
+  private HandTrackingEngine.Config engineConfig;
+  /**
+   * Null if the display receives the hand events on the tracking thread.
+   */
+  private AsyncHandEventListener.Policy displayEventPolicy;
 
   @SuppressWarnings("unchecked")
   public HandTrackingApp(String mainDir) {
@@ -138,16 +165,43 @@ public class HandTrackingApp extends KeyAdapter {
     this.mainDir = mainDir;
     processConfig();
     
-    try {
-      engine = new HandTrackingEngine(openniConfigFile, calibrationFile);
-    } catch (GeneralException ge) {
-      LOGGER.info("OpenNI config file = " + openniConfigFile);
-      LOGGER.severe(ge.getMessage());
-      System.exit(-1);
+    if (depthFramesPath != null) {
+      try {
+        rawFrameSource = new RawDepthFrameSource(depthFramesPath, 
+            DepthProjection.load(depthIntrinsicsFile), playbackRate, 
+            playbackFps);
+      } catch (IOException e) {
+        LOGGER.info("depth frames = " + depthFramesPath);
+        LOGGER.severe(e.getMessage());
+        System.exit(-1);
+      }
+      engine = new HandTrackingEngine(rawFrameSource, calibrationFile, 
+                                      engineConfig);
+    } else {
+      try {
+        engine = new HandTrackingEngine(openniConfigFile, calibrationFile,
+                                        engineConfig);
+      } catch (GeneralException ge) {
+        LOGGER.info("OpenNI config file = " + openniConfigFile);
+        LOGGER.severe(ge.getMessage());
+        System.exit(-1);
+      }
     }
     handEventListener = new HandEventListener();
     engine.addHandEventListener(handEventListener);
 
+    if (frameRecordFile != null) {
+      try {
+        frameRecordWriter = new FrameRecordWriter(frameRecordFile, 
+            engine.depthWidth(), engine.depthHeight(), frameRecordSections, 
+            frameRecordCompression);
+        LOGGER.info("frame record file: " + frameRecordFile);
+      } catch (IOException e) {
+        LOGGER.severe(e.getMessage());
+        System.exit(-1);
+      }
+    }
+
     if (displayOn) {
       try {
         HashMap<ProcessPacketController.Options, Object> options = 
@@ -161,7 +215,11 @@ public class HandTrackingApp extends KeyAdapter {
         
         packetController = new ProcessPacketController(engine.depthWidth(),
             engine.depthHeight(), options);
-        engine.addHandEventListener(packetController);
+        if (displayEventPolicy == null)
+          engine.addHandEventListener(packetController);
+        else
+          engine.addHandEventListener(packetController, displayEventPolicy,
+              AsyncHandEventListener.DEFAULT_CAPACITY);
         packetController.addKeyListener(this);
 
       } catch (IOException e) {
@@ -184,6 +242,12 @@ public class HandTrackingApp extends KeyAdapter {
   public void keyPressed(KeyEvent ke) {
     switch (ke.getKeyCode()) {
       case KeyEvent.VK_N:
+        if (rawFrameSource != null && rawFrameSource.playbackRate() == 
+            RawDepthFrameSource.PlaybackRate.STEPPED) {
+          // The main loop waits for the next frame.
+          rawFrameSource.step();
+          break;
+        }
         paused = true;
         step();
         break;
@@ -224,6 +288,24 @@ public class HandTrackingApp extends KeyAdapter {
                                    OpenNIDevice.RECORDING_SUFFIX);
     }
 
+    depthFramesPath = config.getProperty("depth-frames", null);
+    if (depthFramesPath != null) {
+      depthFramesPath = FileUtil.join(mainDir, depthFramesPath);
+      if (depthFramesPath.endsWith(RawDepthFrameSource.RAW_SUFFIX)) {
+        basename = FileUtil.basename(depthFramesPath, 
+                                     RawDepthFrameSource.RAW_SUFFIX);
+      } else {
+        basename = FileUtil.basename(depthFramesPath);
+      }
+      depthIntrinsicsFile = FileUtil.join(mainDir, config.getProperty(
+          "depth-intrinsics", DEFAULT_DEPTH_INTRINSICS_FILE));
+      playbackRate = RawDepthFrameSource.PlaybackRate.valueOf(
+          config.getProperty("playback-rate", "real-time").trim().
+          toUpperCase().replace('-', '_'));
+      playbackFps = Float.parseFloat(config.getProperty("playback-fps", 
+          Float.toString(RawDepthFrameSource.DEFAULT_FPS)));
+    }
+
     String saveFingertipProperty = config.getProperty("save-fingertip-data",
         "false");
     if (saveFingertipProperty.equalsIgnoreCase("true"))
@@ -264,6 +346,14 @@ public class HandTrackingApp extends KeyAdapter {
       FeatureBuilder.imageWidth(Integer.parseInt(imageWidthStr));
     }
 
+    engineConfig = HandTrackingEngine.Config.fromProperties(config);
+
+    String displayEventPolicyStr = config.getProperty("display-event-policy",
+                                                      "sync");
+    if (!displayEventPolicyStr.equalsIgnoreCase("sync"))
+      displayEventPolicy = AsyncHandEventListener.Policy.valueOf(
+          displayEventPolicyStr.trim().toUpperCase().replace('-', '_'));
+
     String saveFeatures = config.getProperty("save-features", "false");
     if (saveFeatures.equalsIgnoreCase("true")) {
       String dir = FileUtil.join(mainDir, EnvConstant.GESUTRE_DIR);
@@ -273,6 +363,23 @@ public class HandTrackingApp extends KeyAdapter {
                         EnvConstant.GESTURE_FEATURE_SUFFIX);
       featureWriter = new FeatureWriter(filename);
     }
+
+    String recordFrames = config.getProperty("record-frames", "false");
+    if (recordFrames.equalsIgnoreCase("true")) {
+      String dir = FileUtil.join(mainDir, EnvConstant.RECORDING_DIR);
+      (new File(dir)).mkdirs();
+      frameRecordFile = FileUtil.join(dir, 
+          basename + FrameRecordWriter.FILE_SUFFIX);
+      frameRecordSections = EnumSet.noneOf(FrameRecordWriter.Section.class);
+      String sections = config.getProperty("record-sections", 
+          "mask,forelimb-features,tracks,gesture-features");
+      for (String section : sections.split(","))
+        frameRecordSections.add(FrameRecordWriter.Section.valueOf(
+            section.trim().toUpperCase().replace('-', '_')));
+      frameRecordCompression = FrameRecordWriter.Compression.valueOf(
+          config.getProperty("record-compression", "deflate").trim().
+          toUpperCase());
+    }
   }
   
   private void cleanUp() {
@@ -284,6 +391,13 @@ public class HandTrackingApp extends KeyAdapter {
       featureWriter.close();
       LOGGER.info("Done writing features.");
     }
+    if (frameRecordWriter != null) {
+      try {
+        frameRecordWriter.close();
+      } catch (IOException e) {
+        LOGGER.severe(e.getMessage());
+      }
+    }
     engine.release();
     if (packetController != null)
       packetController.release();
@@ -295,6 +409,8 @@ public class HandTrackingApp extends KeyAdapter {
   private void step() {
     try {
       ProcessPacket packet = engine.step();
+      if (packet == null)
+        return;
 
       if (packetController != null)
         packetController.show(packet);
@@ -302,11 +418,23 @@ public class HandTrackingApp extends KeyAdapter {
       if (featureWriter != null)
         featureWriter.output(packet);
       
-      packet.release();
+      if (frameRecordWriter != null)
+        frameRecordWriter.write(packet);
+      
+      engine.returnPacket(packet);
+    } catch (HandTrackingEngineException hte) {
+      LOGGER.severe(hte.getMessage());
+      hte.printStackTrace();
+      engine.release();
+      System.exit(-1);
     } catch (GeneralException ge) {
       LOGGER.severe(ge.getMessage());
       engine.release();
       System.exit(-1);
+    } catch (IOException ioe) {
+      LOGGER.severe(ioe.getMessage());
+      engine.release();
+      System.exit(-1);
     }
   }
     
@@ -15,8 +15,11 @@ public class BackgroundController {
     bf.showUI();
   }
   
-  public void update() {
-    Background bg = Background.instance();
+  /**
+   * Shows the background model once it is learned.
+   * @param bg the background model of the engine. Can be null.
+   */
+  public void update(Background bg) {
     if (bg == null)
       return;
     
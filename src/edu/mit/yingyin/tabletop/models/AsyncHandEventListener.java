@@ -0,0 +1,297 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+
+/**
+ * Wraps an <code>IHandEventListener</code> so that the events are queued on the
+ * calling (tracking) thread and delivered to the wrapped listener on an
+ * executor. The events are delivered to the wrapped listener in order and
+ * never concurrently.
+ *
+ * When the wrapped listener falls behind, the backpressure policy decides
+ * whether new events are dropped, replace the pending ones, or make the
+ * tracking thread wait.
+ *
+ * @author yingyin
+ *
+ */
+public class AsyncHandEventListener implements IHandEventListener {
+  /**
+   * What to do when the queue of a listener is full.
+   */
+  public static enum Policy {
+    /** Discards the new event. */
+    DROP,
+    /**
+     * Keeps only the latest undelivered pointing event. The finger events are
+     * press and release transitions, so they are all queued and delivered.
+     * The queue capacity is not used.
+     */
+    COALESCE_LATEST,
+    /** Waits until the listener takes an event from the queue. */
+    BLOCK
+  }
+
+  public static final int DEFAULT_CAPACITY = 8;
+
+  private static final Logger LOGGER = Logger.getLogger(
+      AsyncHandEventListener.class.getName());
+
+  /**
+   * An event with the time it was queued.
+   */
+  private static class Envelope {
+    final List<ManipulativeEvent> pressed;
+    final DiecticEvent pointed;
+    final long queueTime = System.nanoTime();
+
+    Envelope(List<ManipulativeEvent> pressed, DiecticEvent pointed) {
+      this.pressed = pressed;
+      this.pointed = pointed;
+    }
+  }
+
+  private final IHandEventListener listener;
+  private final Executor executor;
+  private final Policy policy;
+  private final int capacity;
+
+  private final Queue<Envelope> queue = new ConcurrentLinkedQueue<Envelope>();
+  /** Latest undelivered pointing event in the COALESCE_LATEST policy. */
+  private final AtomicReference<Envelope> latestPointed =
+      new AtomicReference<Envelope>();
+  /** Limits the number of queued events in the BLOCK policy. */
+  private final Semaphore permits;
+  /** True if a delivery task is submitted and not finished. */
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+  private final Runnable deliveryTask = new Runnable() {
+    @Override
+    public void run() {
+      deliver();
+    }
+  };
+
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicLong delivered = new AtomicLong(),
+      dropped = new AtomicLong(), maxQueueDepth = new AtomicLong(),
+      totalLatency = new AtomicLong(), maxLatency = new AtomicLong();
+
+  /**
+   * @param listener the listener to deliver the events to.
+   * @param executor runs the deliveries. Can be shared by several listeners.
+   * @param policy backpressure policy.
+   * @param capacity maximum number of queued events for the DROP and BLOCK
+   *    policies.
+   */
+  public AsyncHandEventListener(IHandEventListener listener, Executor executor,
+      Policy policy, int capacity) {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("Capacity should be positive.");
+    this.listener = listener;
+    this.executor = executor;
+    this.policy = policy;
+    this.capacity = capacity;
+    permits = new Semaphore(capacity);
+  }
+
+  /**
+   * @return the wrapped listener.
+   */
+  public IHandEventListener listener() {
+    return listener;
+  }
+
+  public Policy policy() {
+    return policy;
+  }
+
+  @Override
+  public void fingerPressed(List<ManipulativeEvent> feList) {
+    offer(new Envelope(feList, null));
+  }
+
+  @Override
+  public void fingerPointed(DiecticEvent de) {
+    offer(new Envelope(null, de));
+  }
+
+  /**
+   * @return number of events waiting to be delivered.
+   */
+  public int queueDepth() {
+    return queueDepth.get();
+  }
+
+  /**
+   * @return the largest number of events waiting to be delivered so far.
+   */
+  public long maxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  public long deliveredCount() {
+    return delivered.get();
+  }
+
+  /**
+   * @return number of events discarded or replaced by a later event.
+   */
+  public long droppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * @return average time in nanoseconds from queuing an event to the end of
+   *    its delivery.
+   */
+  public double meanDeliveryLatency() {
+    long n = delivered.get();
+    return n == 0 ? 0 : (double) totalLatency.get() / n;
+  }
+
+  /**
+   * @return maximum time in nanoseconds from queuing an event to the end of
+   *    its delivery.
+   */
+  public long maxDeliveryLatency() {
+    return maxLatency.get();
+  }
+
+  public String stats() {
+    return String.format("%s: policy = %s, queue depth = %d (max %d), " +
+        "delivered = %d, dropped = %d, latency mean = %.3f ms max = %.3f ms",
+        listener.getClass().getSimpleName(), policy, queueDepth(),
+        maxQueueDepth(), deliveredCount(), droppedCount(),
+        meanDeliveryLatency() / 1e6, maxDeliveryLatency() / 1e6);
+  }
+
+  private void offer(Envelope e) {
+    switch (policy) {
+      case COALESCE_LATEST:
+        if (e.pressed != null)
+          enqueue(e);
+        else if (latestPointed.getAndSet(e) == null)
+          updateDepth(queueDepth.incrementAndGet());
+        else
+          dropped.incrementAndGet();
+        break;
+      case DROP:
+        if (queueDepth.get() >= capacity) {
+          dropped.incrementAndGet();
+          return;
+        }
+        enqueue(e);
+        break;
+      case BLOCK:
+        try {
+          permits.acquire();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          dropped.incrementAndGet();
+          return;
+        }
+        enqueue(e);
+        break;
+      default:
+        break;
+    }
+    schedule();
+  }
+
+  private void enqueue(Envelope e) {
+    queue.offer(e);
+    updateDepth(queueDepth.incrementAndGet());
+  }
+
+  private void updateDepth(int depth) {
+    long max;
+    while (depth > (max = maxQueueDepth.get()) &&
+           !maxQueueDepth.compareAndSet(max, depth));
+  }
+
+  private void schedule() {
+    if (!scheduled.compareAndSet(false, true))
+      return;
+    try {
+      executor.execute(deliveryTask);
+    } catch (RejectedExecutionException ree) {
+      scheduled.set(false);
+      LOGGER.warning("Event delivery rejected: " + ree.getMessage());
+    }
+  }
+
+  /**
+   * Delivers all the pending events. Only one delivery task runs at a time.
+   */
+  private void deliver() {
+    while (true) {
+      Envelope e;
+      while ((e = next()) != null) {
+        try {
+          if (e.pressed != null)
+            listener.fingerPressed(e.pressed);
+          else
+            listener.fingerPointed(e.pointed);
+        } catch (RuntimeException re) {
+          LOGGER.severe(re.getMessage());
+        }
+        long latency = System.nanoTime() - e.queueTime;
+        delivered.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        long max;
+        while (latency > (max = maxLatency.get()) &&
+               !maxLatency.compareAndSet(max, latency));
+      }
+      scheduled.set(false);
+      // An event may have been queued after the last poll but before the flag
+      // is cleared.
+      if (!hasPending() || !scheduled.compareAndSet(false, true))
+        return;
+    }
+  }
+
+  private Envelope next() {
+    Envelope e;
+    if (policy == Policy.COALESCE_LATEST) {
+      Envelope pressed = queue.peek(), pointed = latestPointed.get();
+      if (pressed == null && pointed == null)
+        return null;
+      // Delivers the older of the two kinds first.
+      if (pointed == null ||
+          (pressed != null && pressed.queueTime <= pointed.queueTime))
+        e = queue.poll();
+      else
+        e = latestPointed.getAndSet(null);
+      if (e != null)
+        queueDepth.decrementAndGet();
+    } else {
+      e = queue.poll();
+      if (e != null) {
+        queueDepth.decrementAndGet();
+        if (policy == Policy.BLOCK)
+          permits.release();
+      }
+    }
+    return e;
+  }
+
+  private boolean hasPending() {
+    if (policy == Policy.COALESCE_LATEST)
+      return !queue.isEmpty() || latestPointed.get() != null;
+    return !queue.isEmpty();
+  }
+}
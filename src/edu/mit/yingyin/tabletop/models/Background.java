@@ -15,19 +15,25 @@ import static com.googlecode.javacv.cpp.opencv_core.cvSub;
 import static com.googlecode.javacv.cpp.opencv_core.cvSubRS;
 import static com.googlecode.javacv.cpp.opencv_core.cvZero;
 import static com.googlecode.javacv.cpp.opencv_core.cvMinMaxLoc;
-import static com.googlecode.javacv.cpp.opencv_core.cvCopy;
 import static com.googlecode.javacv.cpp.opencv_imgproc.cvAcc;
 
+import java.awt.Rectangle;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 import java.util.logging.Logger;
 
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 
+import edu.mit.yingyin.util.BitMask;
 import edu.mit.yingyin.util.CvUtil;
+import edu.mit.yingyin.util.ParallelRows;
+import edu.mit.yingyin.util.ParallelRows.RowKernel;
 
 /**
- * A singleton class that keeps track of the statistics of the background model.
+ * Keeps track of the statistics of the background model. It is not a
+ * singleton: each <code>ForelimbFeatureDetector</code>, and so each engine,
+ * owns its own instance, so several engines can run side by side.
  * 
  * @author yingyin
  * 
@@ -45,21 +51,23 @@ public class Background {
   
   private static final int PHYSICAL_DIST_FROM_CAMERA = 1160; // mm
 
-  private static Background instance;
-  
-  public static Background initInstance(int width, int height) {
-    if (instance != null) {
-      LOGGER.warning("Instance has been initialized. Cannot initialize again");
-    }
-    instance = new Background(width, height);
-    return instance;
-  }
-  
-  public static Background instance() {
-    if (instance == null) {
-      LOGGER.severe("Instance is not initialized!");
+  /**
+   * Rows of the input and output images of a stripe.
+   */
+  private static class StripeRows {
+    final short[] depth;
+    final float[] low, hi, raw, scaled;
+    final byte[] mask, foreground;
+    
+    StripeRows(int width) {
+      depth = new short[width];
+      low = new float[width];
+      hi = new float[width];
+      raw = new float[width];
+      scaled = new float[width];
+      mask = new byte[width];
+      foreground = new byte[width];
     }
-    return instance;
   }
   
   public static boolean isForeground(byte v) {
@@ -94,6 +102,18 @@ public class Background {
   private double[] min = new double[1];
   private double[] max = new double[1];
   private double maxDepth = 0;
+  /**
+   * Scratch rows for each stripe of the row-by-row passes.
+   */
+  private final StripeRows[] stripeRows;
+  /**
+   * If true, the per-pixel loops run in row stripes.
+   */
+  private volatile boolean parallelRows = false;
+  /**
+   * Views of the model images for the online update, created on first use.
+   */
+  private FloatBuffer avgView, diffView, scaleView, hiView, lowView;
 
   /**
    * Initializes the background model.
@@ -101,9 +121,12 @@ public class Background {
    * @param width width of the background image.
    * @param height height of the background image.
    */
-  private Background(int width, int height) {
+  public Background(int width, int height) {
     this.width = width;
     this.height = height;
+    stripeRows = new StripeRows[ParallelRows.maxStripes()];
+    for (int i = 0; i < stripeRows.length; i++)
+      stripeRows[i] = new StripeRows(width);
 
     scratchI = IplImage.create(width, height, IPL_DEPTH_32F, 1);
     scratchI2 = IplImage.create(width, height, IPL_DEPTH_32F, 1);
@@ -129,6 +152,14 @@ public class Background {
     return height;
   }
 
+  /**
+   * @param parallel if true, the per-pixel loops of this background run in
+   *    row stripes on the shared pool of <code>ParallelRows</code>.
+   */
+  public void setParallelRows(boolean parallel) {
+    parallelRows = parallel;
+  }
+
   /**
    * Learns the background statistics for one more frame.
    * 
@@ -139,8 +170,14 @@ public class Background {
     accumulateBackground();
   }
   
+  /**
+   * Learns the background statistics for one more frame.
+   * 
+   * @param image 1-channel depth image in mm of any depth, e.g. the 16-bit 
+   *    image from the sensor.
+   */
   public void accumulateBackground(IplImage image) {
-    cvCopy(image, scratchI);
+    cvConvertScale(image, scratchI, 1, 0);
     accumulateBackground();
   }
   
@@ -206,11 +243,176 @@ public class Background {
     backgroundDiff(mask);
   }
   
+  /**
+   * Segments an input input into foreground and background.
+   * 
+   * @param depth 1-channel depth image in mm of any depth.
+   * @param mask a 0 or 255 mask image where 255 means foreground pixel.
+   */
   public void backgroundDiff(IplImage depth, IplImage mask) {
-    cvCopy(depth, scratchI);
+    cvConvertScale(depth, scratchI, 1, 0);
     backgroundDiff(mask);
   }
   
+  /**
+   * Converts a 16-bit depth image and segments it into foreground and 
+   * background in one row-by-row pass. This replaces the separate depth 
+   * conversions, <code>backgroundDiff</code> and the conversion of the 
+   * foreground to 8 bits.
+   * 
+   * @param depth 16-bit 1-channel depth image in mm.
+   * @param region the region to process, or null for the whole image. Pixels 
+   *    outside the region are not changed.
+   * @param depthRaw32F float image of the depth in mm. Not written if null.
+   * @param depthScaled32F float image of the depth scaled by 
+   *    1 / <code>maxDepth()</code>.
+   * @param mask set for the foreground pixels.
+   * @param foreground8U 8-bit foreground depth scaled by 
+   *    255 / <code>maxDepth()</code> and saturated. Background pixels are 0.
+   * @param nonzeroMask set for the nonzero pixels of 
+   *    <code>foreground8U</code>, i.e. the foreground pixels with a depth 
+   *    reading. Not written if null.
+   */
+  public void segment(IplImage depth, Rectangle region, IplImage depthRaw32F, 
+      IplImage depthScaled32F, final BitMask mask, IplImage foreground8U, 
+      final BitMask nonzeroMask) {
+    final int x0 = region == null ? 0 : region.x;
+    final int y0 = region == null ? 0 : region.y;
+    final int w = region == null ? width : region.width;
+    int h = region == null ? height : region.height;
+    final ShortBuffer db = depth.getShortBuffer();
+    final int depthStep = depth.widthStep() / 2;
+    final FloatBuffer lowb = lowFI.getFloatBuffer(), 
+        hib = hiFI.getFloatBuffer();
+    final int thresholdStep = avgBufferWidthStep();
+    final FloatBuffer rawb = depthRaw32F == null ? null : 
+        depthRaw32F.getFloatBuffer();
+    final int rawStep = depthRaw32F == null ? 0 : depthRaw32F.widthStep() / 4;
+    final FloatBuffer scaledb = depthScaled32F.getFloatBuffer();
+    final int scaledStep = depthScaled32F.widthStep() / 4;
+    final ByteBuffer fgb = foreground8U.getByteBuffer();
+    final int fgStep = foreground8U.widthStep();
+    
+    // Multiplications by the reciprocals replace per-pixel divisions.
+    final float invMaxDepth = (float) (1.0 / maxDepth), 
+          scale8U = (float) (255.0 / maxDepth);
+    ParallelRows.forEachRow(parallelRows, h, w, new RowKernel() {
+      @Override
+      public void run(int stripe, int rowStart, int rowEnd) {
+        StripeRows r = stripeRows[stripe];
+        // Each stripe has its own buffer positions.
+        ShortBuffer dbs = db.duplicate();
+        FloatBuffer lowbs = lowb.duplicate(), hibs = hib.duplicate(),
+            rawbs = rawb == null ? null : rawb.duplicate(), 
+            scaledbs = scaledb.duplicate();
+        ByteBuffer fgbs = fgb.duplicate();
+        for (int y = y0 + rowStart; y < y0 + rowEnd; y++) {
+          dbs.position(y * depthStep + x0);
+          dbs.get(r.depth, 0, w);
+          lowbs.position(y * thresholdStep + x0);
+          lowbs.get(r.low, 0, w);
+          hibs.position(y * thresholdStep + x0);
+          hibs.get(r.hi, 0, w);
+          for (int x = 0; x < w; x++) {
+            float d = r.depth[x] & 0xffff;
+            r.raw[x] = d;
+            r.scaled[x] = d * invMaxDepth;
+            // lowFI is inclusive lower bound, and hiFI is exclusive higher 
+            // bound.
+            if (d >= r.low[x] && d < r.hi[x]) {
+              r.mask[x] = 0;
+              r.foreground[x] = 0;
+            } else {
+              r.mask[x] = 1;
+              int v = Math.round(d * scale8U);
+              r.foreground[x] = (byte) (v > 255 ? 255 : v);
+            }
+          }
+          if (rawbs != null) {
+            rawbs.position(y * rawStep + x0);
+            rawbs.put(r.raw, 0, w);
+          }
+          scaledbs.position(y * scaledStep + x0);
+          scaledbs.put(r.scaled, 0, w);
+          mask.setRow(y, x0, r.mask, w);
+          if (nonzeroMask != null)
+            nonzeroMask.setRow(y, x0, r.foreground, w);
+          fgbs.position(y * fgStep + x0);
+          fgbs.put(r.foreground, 0, w);
+        }
+      }
+    });
+  }
+  
+  /**
+   * Adapts the background model to a new frame. For each pixel that is 
+   * background in <code>mask</code> and has a valid depth, the running 
+   * average and the average absolute difference are updated exponentially and
+   * the thresholds are refreshed in the same pass.
+   * 
+   * @param depth 16-bit 1-channel depth image in mm.
+   * @param mask set for the foreground pixels.
+   * @param learningRate weight of the new frame between 0 and 1.
+   */
+  public void updateBackground(IplImage depth, final BitMask mask, 
+                               final float learningRate) {
+    prepareUpdate();
+    final ShortBuffer db = depth.getShortBuffer();
+    final int depthWidthStep = depth.widthStep() / 2;
+    ParallelRows.forEachRow(parallelRows, height, width, new RowKernel() {
+      @Override
+      public void run(int stripe, int rowStart, int rowEnd) {
+        for (int h = rowStart; h < rowEnd; h++) {
+          int offset = h * depthWidthStep;
+          int modelOffset = h * avgBufferWidthStep();
+          // Only the background pixels are visited.
+          for (int w = mask.nextClearBit(h, 0); w >= 0; 
+               w = mask.nextClearBit(h, w + 1)) {
+            int d = db.get(offset + w) & 0xffff;
+            // 0 means no depth reading.
+            if (d != 0)
+              updatePixel(modelOffset + w, d, learningRate);
+          }
+        }
+      }
+    });
+  }
+  
+  private void prepareUpdate() {
+    if (!initialized) {
+      LOGGER.severe("The background model is not created.");
+      System.exit(-1);
+    }
+    if (avgView == null) {
+      avgView = avgFI.getFloatBuffer();
+      diffView = diffFI.getFloatBuffer();
+      scaleView = scaleFI.getFloatBuffer();
+      hiView = hiFI.getFloatBuffer();
+      lowView = lowFI.getFloatBuffer();
+    }
+  }
+  
+  /**
+   * Updates the statistics and the thresholds of one pixel.
+   * 
+   * @param i index of the pixel in the model images.
+   * @param d depth in mm.
+   */
+  private void updatePixel(int i, int d, float learningRate) {
+    float avg = avgView.get(i);
+    float diff = diffView.get(i);
+    float delta = d - avg;
+    avg += learningRate * delta;
+    diff += learningRate * (Math.abs(delta) - diff);
+    if (diff < MIN_DIFF)
+      diff = MIN_DIFF;
+    float range = diff * scaleView.get(i);
+    avgView.put(i, avg);
+    diffView.put(i, diff);
+    hiView.put(i, avg + range);
+    lowView.put(i, avg - range);
+  }
+  
   private void backgroundDiff(IplImage mask) {
     // lowFI is inclusive lower bound, and hiFI is exclusive higher bound.
     cvInRange(scratchI, lowFI, hiFI, mask);
@@ -378,24 +580,28 @@ public class Background {
     cvSub(avgFI, scratchI, lowFI, null);
   }
   
-  private void createScale(float lowScale, float highScale) {
-    FloatBuffer fb = scaleFI.getFloatBuffer();
-    int widthStep = scaleFI.widthStep() * BITS_PER_BYTE / scaleFI.depth();
+  private void createScale(final float lowScale, float highScale) {
+    final FloatBuffer fb = scaleFI.getFloatBuffer();
+    final int widthStep = 
+        scaleFI.widthStep() * BITS_PER_BYTE / scaleFI.depth();
     float maxDist = dist2FromCamera(width - 1, height - 1);
-    float minDist = dist2FromCamera((float) (width - 1) / 2, 
+    final float minDist = dist2FromCamera((float) (width - 1) / 2, 
         (float) (height - 1) / 2);
-    float scaleRange = highScale - lowScale;
-    for (int h = 0; h < height; h++)
-      for (int w = 0; w < width; w++) {
-        float scale;
-        if (isInCenterColumn(w)) {
-          scale = lowScale;
-        } else {
-          scale = (dist2FromCamera(w, h) - minDist) * scaleRange / 
-              (maxDist - minDist) + lowScale;
-        }
-        fb.put(h * widthStep + w, scale);
-    }
+    final float factor = (highScale - lowScale) / (maxDist - minDist);
+    ParallelRows.forEachRow(parallelRows, height, width, new RowKernel() {
+      @Override
+      public void run(int stripe, int rowStart, int rowEnd) {
+        for (int h = rowStart; h < rowEnd; h++)
+          for (int w = 0; w < width; w++) {
+            float scale;
+            if (isInCenterColumn(w))
+              scale = lowScale;
+            else
+              scale = (dist2FromCamera(w, h) - minDist) * factor + lowScale;
+            fb.put(h * widthStep + w, scale);
+          }
+      }
+    });
   }
   
   /**
@@ -0,0 +1,327 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.mit.yingyin.util.BitMask;
+
+/**
+ * Labels the 8-connected components of a binary mask in one raster scan with
+ * union-find, and computes the area, bounding box, centroid, second-order
+ * central moments and edge contact of each component at the same time. The
+ * pixels are only visited once; the statistics of the provisional labels are
+ * merged at the end of the scan.
+ *
+ * The label buffers are reused across frames, so a labeler should only be
+ * used by one thread at a time. The returned blobs are new objects for every
+ * frame.
+ *
+ * @author yingyin
+ *
+ */
+public class BlobLabeler {
+  /**
+   * A connected component of the mask.
+   */
+  public static class Blob {
+    public int area;
+    /**
+     * Inclusive bounds in pixels.
+     */
+    public int minX, minY, maxX, maxY;
+    public double centroidX, centroidY;
+    /**
+     * Second-order central moments divided by the area.
+     */
+    public double mu20, mu02, mu11;
+    /**
+     * Number of pixels in the bottom row of the image, and on any border of
+     * the image.
+     */
+    public int bottomContact, edgeContact;
+
+    public int width() { return maxX - minX + 1; }
+
+    public int height() { return maxY - minY + 1; }
+
+    public Rectangle bounds() {
+      return new Rectangle(minX, minY, width(), height());
+    }
+
+    /**
+     * @return angle in radians between the x axis and the major axis.
+     */
+    public double orientation() {
+      return 0.5 * Math.atan2(2 * mu11, mu20 - mu02);
+    }
+
+    /**
+     * @return ratio of the lengths of the major and minor axes, or infinity
+     *    for a line.
+     */
+    public double elongation() {
+      double common = Math.sqrt(4 * mu11 * mu11 + (mu20 - mu02) *
+                                (mu20 - mu02));
+      double major = (mu20 + mu02 + common) / 2;
+      double minor = (mu20 + mu02 - common) / 2;
+      return minor <= 0 ? Double.POSITIVE_INFINITY : Math.sqrt(major / minor);
+    }
+  }
+
+  private static final int INITIAL_LABELS = 256;
+
+  private final int width, height;
+  /**
+   * Provisional label of each pixel, 0 for background.
+   */
+  private final int[] labels;
+  private final byte[] row;
+  private int numLabels;
+  private int[] parent = new int[INITIAL_LABELS];
+  /**
+   * Index of the blob of each provisional label.
+   */
+  private int[] blobIndex = new int[INITIAL_LABELS];
+  private int[] area = new int[INITIAL_LABELS],
+      minX = new int[INITIAL_LABELS], minY = new int[INITIAL_LABELS],
+      maxX = new int[INITIAL_LABELS], maxY = new int[INITIAL_LABELS],
+      bottom = new int[INITIAL_LABELS], edge = new int[INITIAL_LABELS];
+  private long[] sumX = new long[INITIAL_LABELS],
+      sumY = new long[INITIAL_LABELS], sumXX = new long[INITIAL_LABELS],
+      sumYY = new long[INITIAL_LABELS], sumXY = new long[INITIAL_LABELS];
+
+  public BlobLabeler(int width, int height) {
+    this.width = width;
+    this.height = height;
+    labels = new int[width * height];
+    row = new byte[width];
+  }
+
+  /**
+   * Labels the nonzero pixels of a mask.
+   *
+   * @param mask 8-bit mask of <code>height</code> rows.
+   * @param widthStep number of bytes per row of the mask.
+   * @return the blobs in the raster order of their top-left pixels.
+   */
+  public List<Blob> label(ByteBuffer mask, int widthStep) {
+    ByteBuffer mb = mask.duplicate();
+    // Label 0 is the background.
+    numLabels = 1;
+    for (int y = 0; y < height; y++) {
+      mb.position(y * widthStep);
+      mb.get(row, 0, width);
+      int offset = y * width;
+      for (int x = 0; x < width; x++) {
+        if (row[x] == 0)
+          labels[offset + x] = 0;
+        else
+          labelPixel(x, y, offset);
+      }
+    }
+    return collect();
+  }
+
+  /**
+   * Labels the set pixels of a mask. Only the set pixels are visited.
+   *
+   * @param mask mask of the same size as the labeler.
+   * @return the blobs in the raster order of their top-left pixels.
+   */
+  public List<Blob> label(BitMask mask) {
+    numLabels = 1;
+    for (int y = 0; y < height; y++) {
+      int offset = y * width;
+      Arrays.fill(labels, offset, offset + width, 0);
+      for (int x = mask.nextSetBit(y, 0); x >= 0; 
+           x = mask.nextSetBit(y, x + 1))
+        labelPixel(x, y, offset);
+    }
+    return collect();
+  }
+
+  /**
+   * @return index of the blob of the pixel in the list returned by the last
+   *    <code>label</code>, or -1 if the pixel is background.
+   */
+  public int blobIndexAt(int x, int y) {
+    int l = labels[y * width + x];
+    return l == 0 ? -1 : blobIndex[l];
+  }
+
+  /**
+   * Writes a mask with only the kept blobs of the last <code>label</code>.
+   *
+   * @param dst 8-bit mask of <code>height</code> rows.
+   * @param widthStep number of bytes per row of <code>dst</code>.
+   * @param keep whether to keep each blob, indexed like the returned blobs.
+   */
+  public void fill(ByteBuffer dst, int widthStep, boolean[] keep) {
+    ByteBuffer db = dst.duplicate();
+    for (int y = 0; y < height; y++) {
+      int offset = y * width;
+      for (int x = 0; x < width; x++) {
+        int l = labels[offset + x];
+        row[x] = l != 0 && keep[blobIndex[l]] ? (byte) 255 : 0;
+      }
+      db.position(y * widthStep);
+      db.put(row, 0, width);
+    }
+  }
+
+  /**
+   * Labels a foreground pixel from its labeled neighbours in the current and
+   * the previous rows.
+   */
+  private void labelPixel(int x, int y, int offset) {
+    int l = 0;
+    if (x > 0)
+      l = merge(l, labels[offset + x - 1]);
+    if (y > 0) {
+      int up = offset - width + x;
+      if (x > 0)
+        l = merge(l, labels[up - 1]);
+      l = merge(l, labels[up]);
+      if (x < width - 1)
+        l = merge(l, labels[up + 1]);
+    }
+    if (l == 0)
+      l = newLabel();
+    labels[offset + x] = l;
+    accumulate(l, x, y);
+  }
+
+  /**
+   * Unites the label of a neighbour with the label found so far.
+   * @return the smaller root of the two, or the root of the neighbour if no
+   *    label is found so far.
+   */
+  private int merge(int l, int neighbour) {
+    if (neighbour == 0)
+      return l;
+    int r = find(neighbour);
+    if (l == 0 || l == r)
+      return r;
+    // l is a root.
+    if (r < l) {
+      parent[l] = r;
+      return r;
+    }
+    parent[r] = l;
+    return l;
+  }
+
+  private int find(int l) {
+    int r = l;
+    while (parent[r] != r)
+      r = parent[r];
+    // Path compression.
+    while (parent[l] != r) {
+      int next = parent[l];
+      parent[l] = r;
+      l = next;
+    }
+    return r;
+  }
+
+  private int newLabel() {
+    if (numLabels == parent.length)
+      grow();
+    int l = numLabels++;
+    parent[l] = l;
+    area[l] = 0;
+    minX[l] = minY[l] = Integer.MAX_VALUE;
+    maxX[l] = maxY[l] = -1;
+    bottom[l] = edge[l] = 0;
+    sumX[l] = sumY[l] = sumXX[l] = sumYY[l] = sumXY[l] = 0;
+    return l;
+  }
+
+  private void accumulate(int l, int x, int y) {
+    area[l]++;
+    if (x < minX[l]) minX[l] = x;
+    if (x > maxX[l]) maxX[l] = x;
+    if (y < minY[l]) minY[l] = y;
+    if (y > maxY[l]) maxY[l] = y;
+    if (y == height - 1)
+      bottom[l]++;
+    if (x == 0 || y == 0 || x == width - 1 || y == height - 1)
+      edge[l]++;
+    sumX[l] += x;
+    sumY[l] += y;
+    sumXX[l] += x * x;
+    sumYY[l] += y * y;
+    sumXY[l] += x * y;
+  }
+
+  /**
+   * Merges the statistics of the provisional labels into their roots and
+   * creates the blobs.
+   */
+  private List<Blob> collect() {
+    List<Blob> blobs = new ArrayList<Blob>();
+    // Roots are the smallest labels of their sets, so they are visited
+    // before the other labels of the sets.
+    for (int l = 1; l < numLabels; l++) {
+      int r = find(l);
+      if (r == l) {
+        blobIndex[l] = blobs.size();
+        blobs.add(new Blob());
+        continue;
+      }
+      blobIndex[l] = blobIndex[r];
+      area[r] += area[l];
+      minX[r] = Math.min(minX[r], minX[l]);
+      minY[r] = Math.min(minY[r], minY[l]);
+      maxX[r] = Math.max(maxX[r], maxX[l]);
+      maxY[r] = Math.max(maxY[r], maxY[l]);
+      bottom[r] += bottom[l];
+      edge[r] += edge[l];
+      sumX[r] += sumX[l];
+      sumY[r] += sumY[l];
+      sumXX[r] += sumXX[l];
+      sumYY[r] += sumYY[l];
+      sumXY[r] += sumXY[l];
+    }
+    for (int l = 1; l < numLabels; l++) {
+      if (parent[l] != l)
+        continue;
+      Blob b = blobs.get(blobIndex[l]);
+      double n = area[l];
+      b.area = area[l];
+      b.minX = minX[l];
+      b.minY = minY[l];
+      b.maxX = maxX[l];
+      b.maxY = maxY[l];
+      b.bottomContact = bottom[l];
+      b.edgeContact = edge[l];
+      b.centroidX = sumX[l] / n;
+      b.centroidY = sumY[l] / n;
+      b.mu20 = sumXX[l] / n - b.centroidX * b.centroidX;
+      b.mu02 = sumYY[l] / n - b.centroidY * b.centroidY;
+      b.mu11 = sumXY[l] / n - b.centroidX * b.centroidY;
+    }
+    return blobs;
+  }
+
+  private void grow() {
+    int n = parent.length * 2;
+    parent = Arrays.copyOf(parent, n);
+    blobIndex = Arrays.copyOf(blobIndex, n);
+    area = Arrays.copyOf(area, n);
+    minX = Arrays.copyOf(minX, n);
+    minY = Arrays.copyOf(minY, n);
+    maxX = Arrays.copyOf(maxX, n);
+    maxY = Arrays.copyOf(maxY, n);
+    bottom = Arrays.copyOf(bottom, n);
+    edge = Arrays.copyOf(edge, n);
+    sumX = Arrays.copyOf(sumX, n);
+    sumY = Arrays.copyOf(sumY, n);
+    sumXX = Arrays.copyOf(sumXX, n);
+    sumYY = Arrays.copyOf(sumYY, n);
+    sumXY = Arrays.copyOf(sumXY, n);
+  }
+}
@@ -0,0 +1,104 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Evaluates the detected clicks against the ground truth. Port of
+ * <code>ruby/eval_clicks.rb</code>.
+ *
+ * The ground truth rows are frame IDs followed by the coordinates of the
+ * pressed fingertip. Consecutive frame IDs form one click. The detected rows
+ * are the frame IDs of the finger pressed events followed by the fingertip
+ * coordinates. The rows are sorted by the frame IDs.
+ *
+ * @author yingyin
+ *
+ */
+public class ClickEvaluation {
+  public static class Result {
+    public int groundtruthClicks, truePos, falsePos, falseNeg;
+    /**
+     * Average length in frames of the runs of false positives.
+     */
+    public double falseNegDuration;
+
+    @Override
+    public String toString() {
+      return String.format("ground truth clicks: %d%n" +
+          "true positives: %d%n" +
+          "false positives: %d%n" +
+          "false negatives: %d%n" +
+          "false negative duration: %f", groundtruthClicks, truePos,
+          falsePos, falseNeg, falseNegDuration);
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      ClickEvaluation.class.getName());
+
+  /**
+   * @param detected detected rows sorted by the frame IDs.
+   * @param groundtruth ground truth rows sorted by the frame IDs.
+   * @return the evaluation result.
+   */
+  public static Result evaluate(List<int[]> detected,
+                                List<int[]> groundtruth) {
+    Result result = new Result();
+    if (groundtruth.isEmpty()) {
+      result.falsePos = detected.size();
+      return result;
+    }
+    int cursor = 0, falseNegDuration = 0, totalFalseNegDuration = 0;
+    int totalSegments = 0;
+    int gi = 0;
+    while (gi < groundtruth.size()) {
+      // A click is a run of consecutive frame IDs in the ground truth.
+      int start = groundtruth.get(gi)[0], end = start;
+      gi++;
+      while (gi < groundtruth.size() && groundtruth.get(gi)[0] <= end + 1)
+        end = groundtruth.get(gi++)[0];
+      result.groundtruthClicks++;
+
+      int prev = -1;
+      while (cursor < detected.size() && detected.get(cursor)[0] < start) {
+        result.falsePos++;
+        int frameID = detected.get(cursor)[0];
+        if (prev != -1) {
+          if (frameID == prev + 1) {
+            falseNegDuration++;
+          } else {
+            totalFalseNegDuration += falseNegDuration + 1;
+            totalSegments++;
+            falseNegDuration = 0;
+          }
+        }
+        prev = frameID;
+        LOGGER.fine(String.format("false positive: %d, start index = %d",
+                                  frameID, start));
+        cursor++;
+      }
+      totalFalseNegDuration += falseNegDuration + 1;
+      totalSegments++;
+      falseNegDuration = 0;
+
+      if (cursor < detected.size() && inRange(detected.get(cursor)[0], start,
+                                              end)) {
+        result.truePos++;
+        cursor++;
+        while (cursor < detected.size() &&
+               inRange(detected.get(cursor)[0], start, end))
+          cursor++;
+      } else {
+        result.falseNeg++;
+        LOGGER.fine(String.format("false negative: %d - %d", start, end));
+      }
+    }
+    result.falseNegDuration = (double) totalFalseNegDuration / totalSegments;
+    return result;
+  }
+
+  private static boolean inRange(int v, int start, int end) {
+    return v >= start && v <= end;
+  }
+}
@@ -0,0 +1,91 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * A source of depth frames consumed by <code>HandTrackingEngine</code>,
+ * either a sensor or a recording. The methods follow the names of
+ * <code>OpenNIDevice</code>, which is adapted by 
+ * <code>OpenNIFrameSource</code>. Failures of the device or the recording are
+ * reported as <code>DepthFrameSourceException</code>s.
+ *
+ * A source is used by one acquisition thread. The current frame stays valid
+ * until the next call to <code>waitDepthUpdateAll</code>.
+ *
+ * @author yingyin
+ *
+ */
+public interface DepthFrameSource {
+  public int getDepthWidth();
+
+  public int getDepthHeight();
+
+  /**
+   * @return the projection model of the depth camera.
+   */
+  public DepthProjection projection();
+
+  /**
+   * Waits for the next depth frame and makes it the current frame.
+   * @throws DepthFrameSourceException
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  public void waitDepthUpdateAll() throws DepthFrameSourceException, 
+      InterruptedException;
+
+  /**
+   * @return true if the source does not loop and the current frame is the
+   *    last one, so <code>waitDepthUpdateAll</code> should not be called 
+   *    again. Always false for a live sensor or a looping recording.
+   */
+  public boolean endOfStream();
+
+  /**
+   * @return ID of the current depth frame. IDs increase during the playback
+   *    and start again from the beginning if a recording loops.
+   */
+  public int getDepthFrameID();
+
+  /**
+   * @return timestamp of the current depth frame in microseconds from the
+   *    clock of the sensor or the recording.
+   */
+  public long getDepthTimestamp();
+
+  /**
+   * @return the raw depth values of the current frame in mm, row by row
+   *    without padding.
+   * @throws DepthFrameSourceException
+   */
+  public ShortBuffer getDepthBuffer() throws DepthFrameSourceException;
+
+  /**
+   * Copies the current depth frame into an unsigned 16-bit image.
+   *
+   * @param image a 1-channel <code>IPL_DEPTH_16U</code> image with the same
+   *    size as the depth frame.
+   * @throws DepthFrameSourceException
+   */
+  public void getDepthImage(IplImage image) throws DepthFrameSourceException;
+
+  /**
+   * @return the current RGB image in BGR order, or null if the source has no
+   *    RGB stream.
+   * @throws DepthFrameSourceException
+   */
+  public ByteBuffer getImageBuffer() throws DepthFrameSourceException;
+
+  /**
+   * Seeks a certain number of frames forward or backward. Does nothing if
+   * the source is not seekable.
+   *
+   * @param diff the number of frames to seek from the current frame.
+   * @throws DepthFrameSourceException
+   */
+  public void seekFrameBy(int diff) throws DepthFrameSourceException;
+
+  public void release();
+}
@@ -0,0 +1,21 @@
+package edu.mit.yingyin.tabletop.models;
+
+/**
+ * Thrown when a <code>DepthFrameSource</code> cannot provide a frame. The
+ * cause is the exception of the underlying device or recording, e.g. an
+ * OpenNI <code>StatusException</code>.
+ *
+ * @author yingyin
+ *
+ */
+public class DepthFrameSourceException extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  public DepthFrameSourceException(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+  public DepthFrameSourceException(Throwable cause) {
+    super(cause.getMessage(), cause);
+  }
+}
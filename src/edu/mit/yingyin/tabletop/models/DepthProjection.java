@@ -0,0 +1,202 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Pinhole projection model of the depth camera, equivalent to the conversions
+ * of the OpenNI depth generator. It is computed once from the field of view
+ * and the resolution, so the conversions do not need the sensor and are done
+ * in Java without crossing JNI.
+ *
+ * Projective coordinates are (column, row, depth in mm). As in
+ * <code>OpenNIDevice</code>, the z values of the world coordinates are
+ * flipped so that the world coordinates obey the right-hand rule, i.e.
+ * world z = -depth.
+ *
+ * The intrinsics can be saved to and loaded from a properties file so that
+ * recordings can be replayed without OpenNI.
+ *
+ * @author yingyin
+ *
+ */
+public class DepthProjection {
+  private static final String WIDTH_KEY = "depth-width",
+      HEIGHT_KEY = "depth-height", HFOV_KEY = "hfov", VFOV_KEY = "vfov";
+
+  private final int width, height;
+  private final double hFov, vFov;
+  /**
+   * Ratios between the half widths of the view and the depth.
+   */
+  private final float xzFactor, yzFactor;
+  /**
+   * world x = colFactor[column] * depth, world y = rowFactor[row] * depth.
+   */
+  private final float[] colFactor, rowFactor;
+
+  /**
+   * @param width horizontal resolution of the depth image.
+   * @param height vertical resolution of the depth image.
+   * @param hFov horizontal field of view in radians.
+   * @param vFov vertical field of view in radians.
+   */
+  public DepthProjection(int width, int height, double hFov, double vFov) {
+    this.width = width;
+    this.height = height;
+    this.hFov = hFov;
+    this.vFov = vFov;
+    xzFactor = (float) (Math.tan(hFov / 2) * 2);
+    yzFactor = (float) (Math.tan(vFov / 2) * 2);
+    colFactor = new float[width];
+    for (int u = 0; u < width; u++)
+      colFactor[u] = ((float) u / width - 0.5f) * xzFactor;
+    rowFactor = new float[height];
+    for (int v = 0; v < height; v++)
+      rowFactor[v] = (0.5f - (float) v / height) * yzFactor;
+  }
+
+  /**
+   * Loads the intrinsics saved by <code>save</code>.
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static DepthProjection load(String file) throws IOException {
+    Properties p = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      p.load(in);
+    } finally {
+      in.close();
+    }
+    try {
+      return new DepthProjection(Integer.parseInt(p.getProperty(WIDTH_KEY)),
+          Integer.parseInt(p.getProperty(HEIGHT_KEY)),
+          Double.parseDouble(p.getProperty(HFOV_KEY)),
+          Double.parseDouble(p.getProperty(VFOV_KEY)));
+    } catch (RuntimeException e) {
+      throw new IOException("Invalid depth intrinsics file: " + file, e);
+    }
+  }
+
+  public void save(String file) throws IOException {
+    Properties p = new Properties();
+    p.setProperty(WIDTH_KEY, Integer.toString(width));
+    p.setProperty(HEIGHT_KEY, Integer.toString(height));
+    p.setProperty(HFOV_KEY, Double.toString(hFov));
+    p.setProperty(VFOV_KEY, Double.toString(vFov));
+    OutputStream out = new FileOutputStream(file);
+    try {
+      p.store(out, "Depth camera intrinsics");
+    } finally {
+      out.close();
+    }
+  }
+
+  public int width() { return width; }
+
+  public int height() { return height; }
+
+  public double hFov() { return hFov; }
+
+  public double vFov() { return vFov; }
+
+  /**
+   * Converts a pixel of the depth image to the world coordinates using the
+   * precomputed tables.
+   * @param u column.
+   * @param v row.
+   * @param depth depth in mm.
+   * @param world the result.
+   */
+  public void pixelToWorld(int u, int v, float depth, Point3f world) {
+    world.set(colFactor[u] * depth, rowFactor[v] * depth, -depth);
+  }
+
+  /**
+   * Converts the pixels of the depth image in <code>src</code> to the world
+   * coordinates in <code>dst</code> using the precomputed tables. The x and y
+   * coordinates of the pixels must be integers inside the image.
+   * <code>src</code> and <code>dst</code> can be the same point cloud.
+   * @param src
+   * @param dst
+   */
+  public void pixelsToWorld(PointCloud src, PointCloud dst) {
+    int n = src.size();
+    dst.resize(n);
+    float[] sx = src.x, sy = src.y, sz = src.z;
+    float[] dx = dst.x, dy = dst.y, dz = dst.z;
+    for (int i = 0; i < n; i++) {
+      float d = sz[i];
+      dx[i] = colFactor[(int) sx[i]] * d;
+      dy[i] = rowFactor[(int) sy[i]] * d;
+      dz[i] = -d;
+    }
+  }
+
+  /**
+   * Converts a point in the projective coordinates with subpixel precision to
+   * the world coordinates.
+   */
+  public void projectiveToWorld(float u, float v, float depth, Point3f world) {
+    world.set((u / width - 0.5f) * depth * xzFactor,
+              (0.5f - v / height) * depth * yzFactor, -depth);
+  }
+
+  /**
+   * Converts points in the projective coordinates in <code>src</code> to the
+   * world coordinates in <code>dst</code>. <code>src</code> and
+   * <code>dst</code> can be the same point cloud.
+   */
+  public void projectiveToWorld(PointCloud src, PointCloud dst) {
+    int n = src.size();
+    dst.resize(n);
+    float[] sx = src.x, sy = src.y, sz = src.z;
+    float[] dx = dst.x, dy = dst.y, dz = dst.z;
+    float xScale = xzFactor / width, yScale = yzFactor / height;
+    float halfX = xzFactor / 2, halfY = yzFactor / 2;
+    for (int i = 0; i < n; i++) {
+      float d = sz[i];
+      dx[i] = (sx[i] * xScale - halfX) * d;
+      dy[i] = (halfY - sy[i] * yScale) * d;
+      dz[i] = -d;
+    }
+  }
+
+  /**
+   * Converts a point in the world coordinates to the projective coordinates.
+   */
+  public void worldToProjective(float x, float y, float z, Point3f projective) {
+    float depth = -z;
+    projective.set(x / (depth * xzFactor) * width + width / 2f,
+                   height / 2f - y / (depth * yzFactor) * height, depth);
+  }
+
+  /**
+   * Converts points in the world coordinates in <code>src</code> to the
+   * projective coordinates in <code>dst</code>. <code>src</code> and
+   * <code>dst</code> can be the same point cloud.
+   */
+  public void worldToProjective(PointCloud src, PointCloud dst) {
+    int n = src.size();
+    dst.resize(n);
+    float[] sx = src.x, sy = src.y, sz = src.z;
+    float[] dx = dst.x, dy = dst.y, dz = dst.z;
+    float xCoeff = width / xzFactor, yCoeff = height / yzFactor;
+    float halfWidth = width / 2f, halfHeight = height / 2f;
+    for (int i = 0; i < n; i++) {
+      float depth = -sz[i];
+      float inv = 1 / depth;
+      dx[i] = xCoeff * sx[i] * inv + halfWidth;
+      dy[i] = halfHeight - yCoeff * sy[i] * inv;
+      dz[i] = depth;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how often the products derived from the depth data of a frame are
+ * asked for and how often they are actually computed. The products of a
+ * <code>ProcessPacket</code> are computed on the first request in a frame, and
+ * only over the requested region if the product supports it. The packets of
+ * an engine share one instance, so recording is thread-safe.
+ *
+ * @author yingyin
+ *
+ */
+public class DerivedProductStats {
+  /**
+   * Products of a <code>ProcessPacket</code> that are computed on demand.
+   */
+  public static enum Product {
+    BLURRED_DEPTH, DERIVATIVE, RGB, DEPTH_RAW_ARRAY
+  }
+
+  private static final Product[] PRODUCTS = Product.values();
+
+  private final AtomicLongArray requests =
+      new AtomicLongArray(PRODUCTS.length),
+      materializations = new AtomicLongArray(PRODUCTS.length),
+      pixels = new AtomicLongArray(PRODUCTS.length),
+      nanos = new AtomicLongArray(PRODUCTS.length);
+
+  /**
+   * Counts a request for a product.
+   * @param product
+   */
+  public void requested(Product product) {
+    requests.incrementAndGet(product.ordinal());
+  }
+
+  /**
+   * Counts a computation of a product.
+   * @param product
+   * @param numPixels number of pixels computed.
+   * @param durationNanos time spent computing.
+   */
+  public void materialized(Product product, long numPixels,
+                           long durationNanos) {
+    int i = product.ordinal();
+    materializations.incrementAndGet(i);
+    pixels.addAndGet(i, numPixels);
+    nanos.addAndGet(i, durationNanos);
+  }
+
+  public long requests(Product product) {
+    return requests.get(product.ordinal());
+  }
+
+  public long materializations(Product product) {
+    return materializations.get(product.ordinal());
+  }
+
+  /**
+   * @return total number of pixels computed for a product.
+   */
+  public long pixels(Product product) {
+    return pixels.get(product.ordinal());
+  }
+
+  /**
+   * @return total time in nanoseconds spent computing a product.
+   */
+  public long nanos(Product product) {
+    return nanos.get(product.ordinal());
+  }
+
+  public void reset() {
+    for (int i = 0; i < PRODUCTS.length; i++) {
+      requests.set(i, 0);
+      materializations.set(i, 0);
+      pixels.set(i, 0);
+      nanos.set(i, 0);
+    }
+  }
+
+  /**
+   * @return one line per product with the numbers of requests and
+   *    computations, the pixels computed and the total time in milliseconds.
+   */
+  public String summary() {
+    String lineSeparator = System.getProperty("line.separator");
+    StringBuffer sb = new StringBuffer("Derived products:");
+    for (Product p : PRODUCTS) {
+      sb.append(lineSeparator);
+      sb.append(String.format("%-16s requests = %d, computed = %d, " +
+          "pixels = %d, time = %.1f ms", p, requests(p), materializations(p),
+          pixels(p), nanos(p) / 1e6));
+    }
+    return sb.toString();
+  }
+}
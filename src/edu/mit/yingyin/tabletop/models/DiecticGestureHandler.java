@@ -19,10 +19,11 @@ public class DiecticGestureHandler {
   
   /**
    * @param forelimbs
+   * @param is model of the surface pointed at.
    * @return a list of intersections of diectic gestures.
    */
-  public List<Point3D> update(List<Forelimb> forelimbs) {
-    InteractionSurface is = InteractionSurface.instance();
+  public List<Point3D> update(List<Forelimb> forelimbs, 
+                              InteractionSurface is) {
     List<Point3D> res = new ArrayList<Point3D>();
     if (is == null)
       return res;
@@ -1,79 +1,82 @@
 package edu.mit.yingyin.tabletop.models;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import javax.vecmath.Point3f;
 
-import edu.mit.yingyin.tabletop.models.ProcessPacket.ForelimbFeatures;
-
+/**
+ * Double exponential smoothing of a single point. Each tracked point has its
+ * own filter. The state is updated in place, so filtering does not allocate.
+ *
+ * @author yingyin
+ *
+ */
 public class DoubleExpFilter {
 
   private float alpha, beta;
-  
+
+  /**
+   * s is the smoothed state in the current frame, b is the trend.
+   */
+  private final Point3f s = new Point3f(), b = new Point3f();
+  private final Point3f temp = new Point3f();
   /**
-   * s1 is the smoothed state in the previous frame.
-   * s2 is the smoothed state in the current frame.
+   * Number of points filtered since the last reset, up to 2.
    */
-  private Point3f s1, s2, b;
-  
+  private int count;
+
   public DoubleExpFilter(float alpha, float beta) {
     this.alpha = alpha;
     this.beta = beta;
     reset();
   }
-  
+
   /**
-   * @param packet
-   * @return filtered fingertips in the same order as the list of
-   *    <code>ForelimbFeatures</code>.
+   * Updates the state with a new observation.
+   * @param p observation of the point in the current frame.
+   * @return the smoothed point. The caller should not change it.
    */
-  public List<Point3f> filter(ProcessPacket packet) {
-    List<Point3f> res = new ArrayList<Point3f>();
-    
-    // Hack(yingyin): only considers one forelimb and one fingertip.
-    // TODO(yingyin): consider all forelimbs and all fingertips.
-    if (!hasFingertip(packet)) {
-      reset();
-      return null;
-    }
-    
-    ForelimbFeatures ff = packet.forelimbFeatures.get(0);
-    Point3f tip = ff.fingertips.get(0).value;
-    s1 = s2;
-    s2 = new Point3f(tip);
-    Point3f temp = new Point3f();
-
-    if (s1 != null && b != null) {
-      temp.add(s1, b);
-      s2.interpolate(temp, 1 - alpha);
-      temp.sub(s2, s1);
+  public Point3f filter(Point3f p) {
+    if (count == 0) {
+      s.set(p);
+      b.set(0, 0, 0);
+      count = 1;
+    } else if (count == 1) {
+      b.sub(p, s);
+      s.set(p);
+      count = 2;
+    } else {
+      // temp is the smoothed state in the previous frame.
+      temp.set(s);
+      s.add(b);
+      s.interpolate(p, s, 1 - alpha);
+      temp.sub(s, temp);
       b.interpolate(temp, b, 1 - beta);
-    } else if (s1 != null) {
-      b = new Point3f();
-      b.sub(s2, s1);
     }
-    res.add(s2);
-
-    for (int i = 1; i < ff.fingertips.size(); i++) {
-      res.add(ff.fingertips.get(i).value);
-    }
-    
-    return res;
+    return s;
   }
-  
-  private boolean hasFingertip(ProcessPacket packet) {
-    return !packet.forelimbFeatures.isEmpty() && 
-        hasFingertip(packet.forelimbFeatures.get(0));
+
+  /**
+   * Predicts the point in the next frame without changing the state.
+   * @param result the predicted point.
+   * @return false if there is no observation since the last reset.
+   */
+  public boolean predict(Point3f result) {
+    if (count == 0)
+      return false;
+    result.add(s, b);
+    return true;
   }
-  
-  private boolean hasFingertip(ForelimbFeatures ff) {
-    return ff.fingertips.size() > 0;
+
+  /**
+   * @return the smoothed point, or null if there is no observation since the
+   *    last reset. The caller should not change it.
+   */
+  public Point3f state() {
+    return count == 0 ? null : s;
   }
-  
-  private void reset() {
-    s1 = null;
-    s2 = null;
-    b = null;
+
+  public void reset() {
+    s.set(0, 0, 0);
+    b.set(0, 0, 0);
+    count = 0;
   }
 }
@@ -24,4 +24,6 @@ public class EnvConstant {
   public static final String ONI_DIR = FileUtil.join(DATA_DIR, 
                                                      "oni");
   public static final String GESUTRE_DIR = FileUtil.join(DATA_DIR, "gesture");
+  public static final String RECORDING_DIR = FileUtil.join(DATA_DIR, 
+                                                           "recording");
 }
@@ -1,6 +1,5 @@
 package edu.mit.yingyin.tabletop.models;
 
-import javax.vecmath.Point3f;
 import javax.vecmath.Tuple3f;
 
 public class FeatureBuilder {
@@ -45,11 +44,12 @@ public class FeatureBuilder {
   private static void addHandPoints(float[] features, Hand hand) {
     float scale = imageWidth / hand.width();
     float offset = imageWidth / 2;
-    for (Point3f p : hand.pointCloud()) {
-      int x = Math.round(p.x * scale + offset);
-      int y = Math.round(p.y * scale + offset);
+    PointCloud points = hand.pointCloud();
+    for (int i = 0; i < points.size(); i++) {
+      int x = Math.round(points.x[i] * scale + offset);
+      int y = Math.round(points.y[i] * scale + offset);
       if (x >= 0 && x < imageWidth && y >= 0 && y < imageWidth) {
-        float z = Math.max(0, p.z * scale + offset);
+        float z = Math.max(0, points.z[i] * scale + offset);
         features[CONTINUOUS_FEATURE_SIZE + y * imageWidth + x] = z;
       }
     }
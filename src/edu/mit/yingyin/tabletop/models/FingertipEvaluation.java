@@ -0,0 +1,169 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Evaluates the accuracy of the detected fingertips against the ground truth
+ * labels. Port of <code>ruby/eval_fingertips.rb</code>.
+ *
+ * Each row of the ground truth is a frame ID followed by the x and y
+ * coordinates of the labeled fingertips. Each row of the detected fingertips
+ * is a frame ID followed by the x, y and z coordinates of the fingertips. The
+ * rows are sorted by the frame IDs.
+ *
+ * @author yingyin
+ *
+ */
+public class FingertipEvaluation {
+  public static class Result {
+    public int totalGroundtruth, totalDetected, truePos, falsePos, falseNeg;
+    /**
+     * Average Euclidean distance and x and y offsets in pixels between the
+     * true positives and their ground truth.
+     */
+    public double error, xoffset, yoffset;
+
+    @Override
+    public String toString() {
+      return String.format("total fingertips in groundtruth: %d%n" +
+          "total fingertips in detected: %d%n" +
+          "true positives: %d%n" +
+          "error for true positives: %f%n" +
+          "xoffset for true positives: %f%n" +
+          "yoffset for true positives: %f%n" +
+          "false positives: %d%n" +
+          "false negatives: %d", totalGroundtruth, totalDetected, truePos,
+          error, xoffset, yoffset, falsePos, falseNeg);
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      FingertipEvaluation.class.getName());
+
+  /**
+   * Reads the rows of a label or fingertip output file. The first line is a
+   * header and lines starting with '#' are skipped.
+   *
+   * @param filename
+   * @return rows of integers.
+   * @throws IOException
+   */
+  public static List<int[]> readRows(String filename) throws IOException {
+    List<int[]> rows = new ArrayList<int[]>();
+    BufferedReader br = new BufferedReader(new FileReader(filename));
+    try {
+      String line = br.readLine();
+      while ((line = br.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#"))
+          continue;
+        String[] tokens = line.split("\\s+");
+        int[] row = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++)
+          row[i] = Integer.parseInt(tokens[i]);
+        rows.add(row);
+      }
+    } finally {
+      br.close();
+    }
+    return rows;
+  }
+
+  /**
+   * @param groundtruth ground truth rows sorted by the frame IDs.
+   * @param detected detected rows sorted by the frame IDs.
+   * @return the evaluation result.
+   */
+  public static Result evaluate(List<int[]> groundtruth,
+                                List<int[]> detected) {
+    Result result = new Result();
+    int gi = 0, di = 0;
+    double[] frameError = new double[3];
+    while (gi < groundtruth.size() && di < detected.size()) {
+      int[] g = groundtruth.get(gi), d = detected.get(di);
+      int gNum = numPoints(g, 2), dNum = numPoints(d, 3);
+      if (g[0] == d[0]) {
+        evaluateFrame(g, d, frameError);
+        result.error += frameError[0];
+        result.xoffset += frameError[1];
+        result.yoffset += frameError[2];
+        result.totalGroundtruth += gNum;
+        result.totalDetected += dNum;
+        result.truePos += Math.min(gNum, dNum);
+        if (gNum > dNum)
+          result.falseNeg += gNum - dNum;
+        else
+          result.falsePos += dNum - gNum;
+        gi++;
+        di++;
+      } else if (g[0] < d[0]) {
+        result.totalGroundtruth += gNum;
+        result.falseNeg += gNum;
+        gi++;
+        LOGGER.fine("false negative: " + g[0]);
+      } else {
+        result.totalDetected += dNum;
+        result.falsePos += dNum;
+        di++;
+      }
+    }
+    for (; gi < groundtruth.size(); gi++) {
+      int n = numPoints(groundtruth.get(gi), 2);
+      result.falseNeg += n;
+      result.totalGroundtruth += n;
+    }
+    for (; di < detected.size(); di++) {
+      int n = numPoints(detected.get(di), 3);
+      result.falsePos += n;
+      result.totalDetected += n;
+    }
+    if (result.truePos > 0) {
+      result.error /= result.truePos;
+      result.xoffset /= result.truePos;
+      result.yoffset /= result.truePos;
+    }
+    return result;
+  }
+
+  private static int numPoints(int[] row, int dim) {
+    return (row.length - 1) / dim;
+  }
+
+  /**
+   * Greedily matches each ground truth fingertip with the closest unmatched
+   * detected fingertip.
+   *
+   * @param res total error, x offset and y offset of the matched fingertips.
+   */
+  private static void evaluateFrame(int[] g, int[] d, double[] res) {
+    res[0] = res[1] = res[2] = 0;
+    int dNum = numPoints(d, 3);
+    boolean[] matched = new boolean[dNum];
+    int unmatched = dNum;
+    for (int i = 0; i < numPoints(g, 2) && unmatched > 0; i++) {
+      int gx = g[1 + i * 2], gy = g[2 + i * 2];
+      double minError = Double.MAX_VALUE;
+      int minIndex = -1;
+      for (int j = 0; j < dNum; j++) {
+        if (matched[j])
+          continue;
+        int dx = d[1 + j * 3] - gx, dy = d[2 + j * 3] - gy;
+        double error = Math.sqrt(dx * dx + dy * dy);
+        if (error < minError) {
+          minError = error;
+          minIndex = j;
+        }
+      }
+      matched[minIndex] = true;
+      unmatched--;
+      res[0] += minError;
+      res[1] += Math.abs(d[1 + minIndex * 3] - gx);
+      res[2] += Math.abs(d[2 + minIndex * 3] - gy);
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.Point2f;
+import javax.vecmath.Point3f;
+
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent.FingerEventType;
+
+/**
+ * Compensates the latency of the pipeline by predicting the display positions
+ * of the fingertips forward in time. Each tracked fingertip has a
+ * <code>DoubleExpFilter</code> in the display coordinates whose trend gives
+ * the velocity per frame. The prediction horizon is the measured latency from
+ * the acquisition of a depth frame to the emission of its events, plus a
+ * fixed sensor latency, up to a maximum horizon.
+ *
+ * The prediction is damped by its confidence. A fingertip seen in fewer than
+ * <code>WARM_UP_FRAMES</code> frames is not predicted, and the offset shrinks
+ * as the root mean square error of the one-frame predictions of the
+ * fingertip grows beyond <code>dampingDistance</code>, e.g. when the finger
+ * changes direction.
+ *
+ * @author yingyin
+ *
+ */
+public class FingertipPredictor {
+  public static final float DEFAULT_ALPHA = 0.7f, DEFAULT_BETA = 0.5f;
+  public static final float DEFAULT_DAMPING_DISTANCE = 15;
+  public static final long DEFAULT_MAX_HORIZON_MILLIS = 100;
+  /**
+   * Number of frames a fingertip has to be seen before it is predicted.
+   */
+  public static final int WARM_UP_FRAMES = 3;
+  /**
+   * Weight of a new measurement in the running averages of the latency, the
+   * frame period and the prediction error.
+   */
+  private static final float SMOOTHING = 0.2f;
+
+  private static class State {
+    final DoubleExpFilter filter;
+    /**
+     * One-frame prediction from the previous frame.
+     */
+    final Point3f predicted = new Point3f();
+    final Point3f observed = new Point3f();
+    int count;
+    long lastTime;
+    float framePeriodNanos, error;
+    long lastUpdate;
+
+    State(float alpha, float beta) {
+      filter = new DoubleExpFilter(alpha, beta);
+    }
+  }
+
+  private final float alpha, beta;
+  private final float dampingDistance2;
+  private final long sensorLatencyNanos, maxHorizonNanos;
+  private final Map<Integer, State> states = new HashMap<Integer, State>();
+  private float latencyNanos = -1;
+  private long updateCount = 0;
+
+  /**
+   * @param sensorLatencyNanos latency before the acquisition of a frame, e.g.
+   *    the exposure and transfer of the sensor, which cannot be measured.
+   * @param maxHorizonNanos maximum time to predict forward.
+   * @param dampingDistance root mean square one-frame prediction error in
+   *    display units at which the prediction is halved.
+   * @param alpha smoothing factor of the fingertip filters.
+   * @param beta trend smoothing factor of the fingertip filters.
+   */
+  public FingertipPredictor(long sensorLatencyNanos, long maxHorizonNanos,
+      float dampingDistance, float alpha, float beta) {
+    this.sensorLatencyNanos = sensorLatencyNanos;
+    this.maxHorizonNanos = maxHorizonNanos;
+    this.dampingDistance2 = dampingDistance * dampingDistance;
+    this.alpha = alpha;
+    this.beta = beta;
+  }
+
+  /**
+   * Records the latency of a frame from its acquisition to the emission of
+   * its events.
+   * @param nanos
+   */
+  public void recordLatency(long nanos) {
+    latencyNanos = latencyNanos < 0 ? nanos :
+        latencyNanos + SMOOTHING * (nanos - latencyNanos);
+  }
+
+  /**
+   * @return the time the positions are predicted forward by, including the
+   *    sensor latency.
+   */
+  public long horizonNanos() {
+    long horizon = sensorLatencyNanos + (long) Math.max(latencyNanos, 0);
+    return Math.min(horizon, maxHorizonNanos);
+  }
+
+  /**
+   * Replaces the display positions of the pressed events of the tracked
+   * fingertips with their predicted positions. The states of the fingertips
+   * that are not in the events are removed.
+   *
+   * @param events events generated from one frame, all with the same
+   *    acquisition time.
+   */
+  public void predict(List<ManipulativeEvent> events) {
+    updateCount++;
+    long horizon = horizonNanos();
+    for (ManipulativeEvent fe : events) {
+      if (fe.fingertipID == PointTracker.NO_TRACK || fe.posDisplay == null)
+        continue;
+      State state = states.get(fe.fingertipID);
+      if (state == null) {
+        state = new State(alpha, beta);
+        states.put(fe.fingertipID, state);
+      }
+      state.lastUpdate = updateCount;
+      update(state, fe.posDisplay, fe.acquisitionTime);
+      if (fe.type != FingerEventType.PRESSED)
+        continue;
+      float confidence = confidence(state);
+      if (confidence > 0) {
+        // The trend of the filter is the displacement per frame.
+        float scale = confidence * horizon / state.framePeriodNanos;
+        Point3f s = state.filter.state();
+        fe.posDisplay = new Point2f(
+            fe.posDisplay.x + scale * (state.predicted.x - s.x),
+            fe.posDisplay.y + scale * (state.predicted.y - s.y));
+      }
+    }
+
+    Iterator<State> it = states.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().lastUpdate != updateCount)
+        it.remove();
+    }
+  }
+
+  /**
+   * @return number of fingertips with prediction states.
+   */
+  public int numFingertips() {
+    return states.size();
+  }
+
+  /**
+   * Updates the filter, the frame period and the prediction error of a
+   * fingertip, and leaves its prediction for the next frame in
+   * <code>state.predicted</code>.
+   */
+  private void update(State state, Point2f p, long time) {
+    state.observed.set(p.x, p.y, 0);
+    if (state.count > 0) {
+      float dt = time - state.lastTime;
+      if (dt > 0) {
+        state.framePeriodNanos = state.framePeriodNanos == 0 ? dt :
+            state.framePeriodNanos + SMOOTHING * (dt - state.framePeriodNanos);
+      }
+      if (state.count > 1) {
+        float e2 = state.predicted.distanceSquared(state.observed);
+        state.error += SMOOTHING * (e2 - state.error);
+      }
+    }
+    state.lastTime = time;
+    state.count++;
+    state.filter.filter(state.observed);
+    state.filter.predict(state.predicted);
+  }
+
+  /**
+   * @return a value between 0 and 1 that the prediction offset is scaled by.
+   */
+  private float confidence(State state) {
+    if (state.count < WARM_UP_FRAMES || state.framePeriodNanos <= 0)
+      return 0;
+    return dampingDistance2 / (dampingDistance2 + state.error);
+  }
+}
@@ -17,6 +17,16 @@ public class Forelimb {
   private static final Logger LOGGER = Logger.getLogger(
       Forelimb.class.getName());
   
+  /**
+   * Persistent ID of the forelimb across frames.
+   */
+  private int id;
+  /**
+   * Persistent IDs of the fingertips in the same order as the fingertip
+   * locations.
+   */
+  private int[] fingertipIDs;
+  
   /**
    * Fingertip locations in the image coordinate.
    */
@@ -36,21 +46,29 @@ public class Forelimb {
   /**
    * Creates a forelimb model from the parameters. The model references the 
    * parameters.
+   * @param id persistent ID of the forelimb.
+   * @param fingertipIDs persistent IDs of the fingertips. Can be null if
+   *    fingertipsI is null.
    * @param fingertipsI can be null;
    * @param fingertipsW can be null;
    * @param armJoints list of 2 arm joints. The first on is in the image 
    *    coordinates and the second one is in the world coordinates.
    */
-  public Forelimb(List<Point3f> fingertipsI, List<Point3f> fingertipsW, 
-                  List<Point3f> armJoints, Hand hand) {
+  public Forelimb(int id, int[] fingertipIDs, List<Point3f> fingertipsI, 
+                  List<Point3f> fingertipsW, List<Point3f> armJoints, 
+                  Hand hand) {
     if (fingertipsI == null) {
       fingertipsI = new ArrayList<Point3f>();
       fingertipsW = new ArrayList<Point3f>();
-    } else if (fingertipsI.size() != fingertipsW.size()) {
-      LOGGER.severe("Number of fingertips in fingertipsI and fingertipsW are" +
-      		"not equal.");
+      fingertipIDs = new int[0];
+    } else if (fingertipsI.size() != fingertipsW.size() || 
+               fingertipsI.size() != fingertipIDs.length) {
+      LOGGER.severe("Number of fingertips in fingertipsI, fingertipsW and " +
+      		"fingertipIDs are not equal.");
       System.exit(-1);
     }
+    this.id = id;
+    this.fingertipIDs = fingertipIDs;
     this.fingertipsI = fingertipsI;
     this.fingertipsW = fingertipsW;
     
@@ -86,6 +104,14 @@ public class Forelimb {
     return res;
   }
   
+  public int id() { return id; }
+  
+  /**
+   * @return the IDs of the fingertips in the same order as 
+   *    <code>fingertipsI</code> and <code>fingertipsW</code>.
+   */
+  public int[] fingertipIDs() { return fingertipIDs.clone(); }
+  
   public int numFingertips() {
     return fingertipsI.size();
   }
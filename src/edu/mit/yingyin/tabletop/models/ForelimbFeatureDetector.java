@@ -4,29 +4,26 @@ import static com.googlecode.javacv.cpp.opencv_core.CV_32SC1;
 import static com.googlecode.javacv.cpp.opencv_core.CV_32SC2;
 import static com.googlecode.javacv.cpp.opencv_core.CV_WHOLE_SEQ;
 import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
-import static com.googlecode.javacv.cpp.opencv_core.cvCopy;
 import static com.googlecode.javacv.cpp.opencv_core.cvCreateMat;
 import static com.googlecode.javacv.cpp.opencv_core.cvCvtSeqToArray;
+import static com.googlecode.javacv.cpp.opencv_core.cvGetSeqElem;
 import static com.googlecode.javacv.cpp.opencv_core.cvMat;
 import static com.googlecode.javacv.cpp.opencv_core.cvRect;
+import static com.googlecode.javacv.cpp.opencv_core.cvZero;
 import static com.googlecode.javacv.cpp.opencv_imgproc.CV_CHAIN_APPROX_SIMPLE;
 import static com.googlecode.javacv.cpp.opencv_imgproc.CV_CLOCKWISE;
-import static com.googlecode.javacv.cpp.opencv_imgproc.CV_MOP_OPEN;
 import static com.googlecode.javacv.cpp.opencv_imgproc.CV_POLY_APPROX_DP;
 import static com.googlecode.javacv.cpp.opencv_imgproc.CV_RETR_EXTERNAL;
-import static com.googlecode.javacv.cpp.opencv_imgproc.CV_GAUSSIAN;
 import static com.googlecode.javacv.cpp.opencv_imgproc.cvApproxPoly;
-import static com.googlecode.javacv.cpp.opencv_imgproc.cvBoundingRect;
 import static com.googlecode.javacv.cpp.opencv_imgproc.cvContourPerimeter;
 import static com.googlecode.javacv.cpp.opencv_imgproc.cvConvexHull2;
 import static com.googlecode.javacv.cpp.opencv_imgproc.cvConvexityDefects;
 import static com.googlecode.javacv.cpp.opencv_imgproc.cvFindNextContour;
-import static com.googlecode.javacv.cpp.opencv_imgproc.cvMorphologyEx;
-import static com.googlecode.javacv.cpp.opencv_imgproc.cvSobel;
 import static com.googlecode.javacv.cpp.opencv_imgproc.cvStartFindContours;
-import static com.googlecode.javacv.cpp.opencv_imgproc.cvSmooth;
 
-import java.nio.ByteBuffer;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.OpenNI.StatusException;
@@ -34,13 +31,15 @@ import org.OpenNI.StatusException;
 import com.googlecode.javacpp.Loader;
 import com.googlecode.javacv.cpp.opencv_core.CvContour;
 import com.googlecode.javacv.cpp.opencv_core.CvPoint;
-import com.googlecode.javacv.cpp.opencv_core.CvRect;
 import com.googlecode.javacv.cpp.opencv_core.CvSeq;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 import com.googlecode.javacv.cpp.opencv_imgproc.CvContourScanner;
 
+import edu.mit.yingyin.tabletop.models.BlobLabeler.Blob;
+import edu.mit.yingyin.tabletop.models.PipelineMetrics.Stage;
+import edu.mit.yingyin.tabletop.models.ProcessPacket.Checkpoint;
 import edu.mit.yingyin.tabletop.models.ProcessPacket.ForelimbFeatures;
-import edu.mit.yingyin.util.CvUtil;
+import edu.mit.yingyin.util.BitMask;
 
 /**
  * HandAnalyzer estimates the parameters of the hand model using measurements
@@ -61,7 +60,7 @@ public class ForelimbFeatureDetector {
   /**
    * Number of initial frames to initialize the background.
    */
-  private static final int BG_INIT_FRAMES = BG_INGNORE_FRAMES + 40;
+  static final int BG_INIT_FRAMES = BG_INGNORE_FRAMES + 40;
 
   private static final float BG_DIFF_LSCALE = 5;
   private static final float BG_DIFF_HSCALE = 6;
@@ -76,7 +75,7 @@ public class ForelimbFeatureDetector {
    * Assumes a fully extended hand's dimension is w = 15cm, h = 15cm, and the 
    * table's dimension is w = 122cm, h = 92cm.
    */
-  private static final int HAND_PERIM_SCALE = 7;
+  static final int HAND_PERIM_SCALE = 7;
   /**
    * The ratio between the height of the table and the maximum (fully extended)
    * height of the hand. 
@@ -90,26 +89,131 @@ public class ForelimbFeatureDetector {
   private static final int ARM_JOINT_HEIGHT_SCALE = 20;
 
   private static final int FORELIMB_BOTTOM_TO_IMAGE_BOTTOM_DIST_THRESH = 10;
+  /**
+   * Upper bound of the contour perimeter per pixel of a blob. Each step of the
+   * outer contour is at most sqrt(2) long, and a pixel is visited at most 4 
+   * times, so blobs whose area times this bound is not more than the minimum
+   * contour perimeter cannot be forelimbs.
+   */
+  private static final double MAX_PERIMETER_PER_PIXEL = 4 * Math.sqrt(2);
   
   private final Background background;
+  /**
+   * Surface model created when the background is learned. Null before.
+   */
+  private volatile InteractionSurface interactionSurface;
   private final IplImage tempImage;
+  /**
+   * Foreground pixels with depth readings before the opening. Only used in
+   * <code>preprocess</code>.
+   */
+  private final BitMask nonzeroMask;
+  private final BlobLabeler blobLabeler;
   private final ForelimbModelEstimator forelimbModelEstimator;
-  private final OpenNIDevice openni;
+  private final DepthProjection projection;
   private final HandFeatureDetector hpfd;
+  private PipelineMetrics metrics = new PipelineMetrics();
+  /**
+   * Null if the full frames are always processed.
+   */
+  private volatile RegionOfInterest roi;
+  /**
+   * Weight of a new frame in the online background update. 0 means the 
+   * background is fixed after it is learned.
+   */
+  private volatile float backgroundLearningRate = 0;
+  /**
+   * If true, blobs that do not touch the image borders are rejected as props
+   * on the surface.
+   */
+  private volatile boolean rejectFloatingBlobs = false;
   
   /**
    * Initializes the data structures.
    * 
    * @param width
    * @param height
-   * @param egnine reference to the <code>HandTrackingEngine</code>.
+   * @param openni the device whose projection model is used.
    */
   public ForelimbFeatureDetector(int width, int height, OpenNIDevice openni) {
+    this(width, height, openni.projection());
+  }
+
+  /**
+   * Initializes the data structures.
+   * 
+   * @param width
+   * @param height
+   * @param projection projection model of the depth camera.
+   */
+  public ForelimbFeatureDetector(int width, int height, 
+                                 DepthProjection projection) {
     tempImage = IplImage.create(width, height, IPL_DEPTH_8U, 1);
-    background = Background.initInstance(width, height);
-    forelimbModelEstimator = new ForelimbModelEstimator(width, height, openni);
-    this.openni = openni;
-    hpfd = new HandFeatureDetector(width, height, openni);
+    nonzeroMask = new BitMask(width, height);
+    blobLabeler = new BlobLabeler(width, height);
+    background = new Background(width, height);
+    forelimbModelEstimator = new ForelimbModelEstimator(width, height, 
+                                                        projection);
+    this.projection = projection;
+    hpfd = new HandFeatureDetector(width, height, projection);
+  }
+
+  /**
+   * Sets the metrics the stage latencies are recorded to.
+   * @param metrics cannot be null.
+   */
+  public void setMetrics(PipelineMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Enables the region of interest processing. After the background is 
+   * learned, only the regions decided by <code>roi</code> are preprocessed in
+   * most frames.
+   * @param roi null to always process the full frames.
+   */
+  public void setRegionOfInterest(RegionOfInterest roi) {
+    this.roi = roi;
+  }
+
+  /**
+   * Enables the online background update. After the background is learned, 
+   * the background pixels of each full frame are blended into the 
+   * background model so that it follows slow changes of the scene.
+   * @param learningRate weight of a new frame between 0 and 1. 0 disables the
+   *    update.
+   */
+  public void setBackgroundLearningRate(float learningRate) {
+    backgroundLearningRate = learningRate;
+  }
+
+  /**
+   * @param reject if true, blobs that do not touch any image border are 
+   *    rejected before the contour analysis, because forelimbs enter the view
+   *    from the borders.
+   */
+  public void setRejectFloatingBlobs(boolean reject) {
+    rejectFloatingBlobs = reject;
+  }
+
+  /**
+   * @param enabled if true, a fingertip is searched on the skeleton of a hand
+   *    when the convexity defects do not find any.
+   */
+  public void setThinningFingertips(boolean enabled) {
+    forelimbModelEstimator.setThinningFingertips(enabled);
+  }
+
+  public Background background() {
+    return background;
+  }
+
+  /**
+   * @return the model of the interaction surface, or null if the background
+   *    is not learned yet.
+   */
+  public InteractionSurface interactionSurface() {
+    return interactionSurface;
   }
 
   /**
@@ -119,34 +223,112 @@ public class ForelimbFeatureDetector {
    * @throws StatusException
    */
   public void detect(ProcessPacket packet) throws StatusException {
+    if (!preprocess(packet))
+      return;
+    extractFeatures(packet);
+    estimateModel(packet);
+  }
+
+  /**
+   * First stage of the analysis pipeline: learns the background in the initial
+   * frames and then subtracts the background and cleans up the foreground.
+   * 
+   * @param packet contains the depth data of the frame.
+   * @return true if the foreground is extracted, i.e. the packet is ready for
+   *    the later stages.
+   * @throws StatusException
+   */
+  public boolean preprocess(ProcessPacket packet) throws StatusException {
     packet.clear();
 
     if (packet.depthFrameID < BG_INGNORE_FRAMES)
-      return;
+      return false;
 
-    CvUtil.intToIplImage32F(packet.depthRawData, packet.depthImageBlur32F, 
-        1);
-    cvSmooth(packet.depthImageBlur32F, packet.depthImageBlur32F, CV_GAUSSIAN, 5);
     if (packet.depthFrameID < BG_INIT_FRAMES) {
-      background.accumulateBackground(packet.depthRawData);
-      return;
+      background.accumulateBackground(packet.depthImage16U);
+      return false;
     } else if (packet.depthFrameID == BG_INIT_FRAMES) {
       background.createModelsFromStats((float) BG_DIFF_LSCALE,
           (float) BG_DIFF_HSCALE);
-      InteractionSurface.initInstance(background, openni);
+      interactionSurface = new InteractionSurface(background, projection);
       LOGGER.info(background.stats());
+    } else if (roi != null) {
+      // The background is learned from full frames.
+      packet.regions = roi.nextRegions();
     }
+    packet.interactionSurface = interactionSurface;
+    List<Rectangle> regions = packet.regions;
+    int n = regions == null ? 1 : regions.size();
 
-    CvUtil.intToIplImage32F(packet.depthRawData, packet.depthImage32F, 
-        (float) 1 / background.maxDepth());
-    cvSobel(packet.depthImage32F, packet.derivative, 2, 2, 3);
+    long t = System.nanoTime();
+    if (regions != null) {
+      // The packets are reused, so the foreground outside the regions is 
+      // cleared.
+      packet.foregroundMask.clear();
+      cvZero(packet.depthImage8U);
+      packet.morphedMask.clear();
+    }
+    // The depth conversions are fused with the background subtraction and 
+    // recorded as part of it.
+    for (int i = 0; i < n; i++)
+      subtractBackground(packet, regions == null ? null : regions.get(i));
+    t = metrics.record(Stage.BACKGROUND_DIFF, t);
+    // The mask outside the regions is not computed, so the background only
+    // adapts in full frames.
+    if (backgroundLearningRate > 0 && regions == null) {
+      background.updateBackground(packet.depthImage16U, packet.foregroundMask,
+                                  backgroundLearningRate);
+      t = metrics.record(Stage.BACKGROUND_UPDATE, t);
+    }
+    // The blurred depth and the derivative are computed by the packet when
+    // they are asked for.
+    for (int i = 0; i < n; i++)
+      cleanUpBackground(packet, regions == null ? null : regions.get(i));
+    metrics.record(Stage.MORPHOLOGY, t);
+    packet.foregroundExtracted = true;
+    packet.stamp(Checkpoint.PREPROCESSED);
+    return true;
+  }
 
-    subtractBackground(packet);
-    cleanUpBackground(packet);
-    findConnectedComponents(packet, HAND_PERIM_SCALE);
+  /**
+   * Second stage of the analysis pipeline: finds the forelimb contours, the
+   * hand regions and the hand features. Does nothing if the foreground is not 
+   * extracted.
+   * 
+   * @param packet a packet that has gone through <code>preprocess</code>.
+   * @throws StatusException
+   */
+  public void extractFeatures(ProcessPacket packet) throws StatusException {
+    if (!packet.foregroundExtracted)
+      return;
+    long t = System.nanoTime();
+    List<Blob> blobs = findBlobs(packet, HAND_PERIM_SCALE);
+    t = metrics.record(Stage.BLOBS, t);
+    findConnectedComponents(packet, blobs, HAND_PERIM_SCALE);
+    if (roi != null)
+      roi.update(boundingBoxes(packet), blobs, packet.regions == null);
+    t = metrics.record(Stage.CONTOURS, t);
     findHandRegions(packet);
+    t = metrics.record(Stage.HAND_REGIONS, t);
     hpfd.detect(packet);
+    metrics.record(Stage.HAND_FEATURES, t);
+    packet.stamp(Checkpoint.FEATURES_EXTRACTED);
+  }
+
+  /**
+   * Last stage of the analysis pipeline: estimates the forelimb models from 
+   * the features. Does nothing if the foreground is not extracted.
+   * 
+   * @param packet a packet that has gone through <code>extractFeatures</code>.
+   * @throws StatusException
+   */
+  public void estimateModel(ProcessPacket packet) throws StatusException {
+    if (!packet.foregroundExtracted)
+      return;
+    long t = System.nanoTime();
     forelimbModelEstimator.updateModel(packet);
+    metrics.record(Stage.MODEL_ESTIMATION, t);
+    packet.stamp(Checkpoint.MODEL_ESTIMATED);
   }
 
   /**
@@ -158,27 +340,25 @@ public class ForelimbFeatureDetector {
     LOGGER.info("HandAnalyzer released.");
   }
 
+  /**
+   * Computes the foreground mask, the 8-bit foreground depth image scaled 
+   * by the maximum background depth, and the float depth images in one pass 
+   * over the depth data. Background pixels are 0.
+   * 
+   * @param packet
+   */
   protected void subtractBackground(ProcessPacket packet) {
-    int[] depthData = packet.depthRawData;
-    IplImage depthImage = packet.depthImage8U;
-
-    background.backgroundDiff(packet.depthRawData, packet.foregroundMask);
-    ByteBuffer depthBuffer = depthImage.getByteBuffer();
-    ByteBuffer maskBuffer = packet.foregroundMask.getByteBuffer();
-    int maskWidthStep = packet.foregroundMask.widthStep();
-    int depthWidthStep = depthImage.widthStep();
-    int width = packet.width;
-    for (int h = 0; h < packet.height; h++)
-      for (int w = 0; w < packet.width; w++) {
-        int pos = h * depthWidthStep + w;
-        if (Background.isForeground(maskBuffer.get(h * maskWidthStep + w))) {
-          byte d = (byte) (depthData[h * width + w] * 255 / 
-                           background.maxDepth());
-          depthBuffer.put(pos, d);
-        } else {
-          depthBuffer.put(pos, (byte) 0);
-        }
-      }
+    subtractBackground(packet, null);
+  }
+
+  /**
+   * @param packet
+   * @param region the region to process, or null for the full frame.
+   */
+  private void subtractBackground(ProcessPacket packet, Rectangle region) {
+    background.segment(packet.depthImage16U, region, null,
+        packet.depthImage32F, packet.foregroundMask, packet.depthImage8U,
+        nonzeroMask);
   }
 
   /**
@@ -186,25 +366,55 @@ public class ForelimbFeatureDetector {
    * 
    * @param packet ProcessPacket containing the data.
    */
-  private void cleanUpBackground(ProcessPacket packet) {
-    // The default 3x3 kernel with the anchor at the center is used.
-    // The opening operator involves erosion followed by dilation. Its effect is
-    // to eliminate lone outliers that are higher in intensity (bumps) than
-    // their neighbors.
-    cvMorphologyEx(packet.depthImage8U, packet.morphedImage, null, null,
-        CV_MOP_OPEN, MORPH_ITR);
+  void cleanUpBackground(ProcessPacket packet) {
+    cleanUpBackground(packet, null);
+  }
+
+  /**
+   * @param packet
+   * @param region the region to clean up, or null for the full frame.
+   */
+  private void cleanUpBackground(ProcessPacket packet, Rectangle region) {
+    // The 3x3 square is used. The opening operator involves erosion followed 
+    // by dilation. Its effect is to eliminate lone outliers and thin 
+    // protrusions of the foreground.
+    nonzeroMask.open(packet.morphedMask, region, MORPH_ITR);
+  }
+
+  /**
+   * Labels the blobs of the cleaned up foreground and copies the ones that 
+   * can be forelimbs to <code>tempImage</code>. Blobs too small to have a 
+   * long enough contour, and floating blobs if they are rejected, are left 
+   * out.
+   * 
+   * @param packet
+   * @param perimScale see <code>findConnectedComponents</code>.
+   * @return all the blobs of the frame.
+   */
+  List<Blob> findBlobs(ProcessPacket packet, float perimScale) {
+    List<Blob> blobs = blobLabeler.label(packet.morphedMask);
+    double q = (packet.height + packet.width) / perimScale;
+    boolean[] keep = new boolean[blobs.size()];
+    for (int i = 0; i < keep.length; i++) {
+      Blob b = blobs.get(i);
+      keep[i] = b.area * MAX_PERIMETER_PER_PIXEL > q && 
+          (!rejectFloatingBlobs || b.edgeContact > 0);
+    }
+    blobLabeler.fill(tempImage.getByteBuffer(), tempImage.widthStep(), keep);
+    return blobs;
   }
 
   /**
    * Finds connected components as forelimbs.
    * 
    * @param packet ProcessPacket containing the data necessary for the analysis.
+   * @param blobs blobs from <code>findBlobs</code>, whose candidates are in
+   *    <code>tempImage</code>.
    * @param perimScale len = (image.width + image.height) / perimScale. If
    *          contour length < len, delete that contour.
-   * @return a sequence of contours
    */
-  private void findConnectedComponents(ProcessPacket packet, float perimScale) {
-    cvCopy(packet.morphedImage, tempImage);
+  void findConnectedComponents(ProcessPacket packet, List<Blob> blobs, 
+                               float perimScale) {
 
     // CV_RETR_EXTERNAL: retrieves only the extreme outer contours.
     // CV_CHAIN_APPROX_SIMPLE: compresses horizontal, vertical, and diagonal
@@ -215,12 +425,15 @@ public class ForelimbFeatureDetector {
             CV_CHAIN_APPROX_SIMPLE);
     CvSeq c;
     double q =
-        (packet.morphedImage.height() + packet.morphedImage.width()) /
+        (packet.height + packet.width) /
             perimScale;
     while ((c = cvFindNextContour(scanner)) != null) {
       double len = cvContourPerimeter(c);
-      if (len > q) {
+      CvPoint start = new CvPoint(cvGetSeqElem(c, 0));
+      int blobIndex = blobLabeler.blobIndexAt(start.x(), start.y());
+      if (len > q && blobIndex >= 0) {
         ForelimbFeatures ff = new ForelimbFeatures();
+        ff.blob = blobs.get(blobIndex);
         // Approximates the contour with fewer vertices. Only CV_POLY_APPROX_DP
         // is supported which corresponds to Douglas-Peucker algorithm.
         CvSeq approxPoly =
@@ -229,7 +442,9 @@ public class ForelimbFeatureDetector {
         CvPoint approxPolyPts = new CvPoint(approxPoly.total());
         cvCvtSeqToArray(approxPoly, approxPolyPts, CV_WHOLE_SEQ);
         ff.approxPoly = cvMat(1, approxPoly.total(), CV_32SC2, approxPolyPts);
-        ff.boundingBox = cvBoundingRect(ff.approxPoly, 0);
+        // The bounding box of the outer contour is the one of the blob.
+        ff.boundingBox = cvRect(ff.blob.minX, ff.blob.minY, ff.blob.width(),
+                                ff.blob.height());
         ff.hull = cvCreateMat(1, approxPoly.total(), CV_32SC1);
         // returnPoints = 0: returns pointers to the points in the contour
         cvConvexHull2(ff.approxPoly, ff.hull, CV_CLOCKWISE, 0);
@@ -245,32 +460,40 @@ public class ForelimbFeatureDetector {
    * 
    * @param packet contains all the processing information.
    */
-  private void findHandRegions(ProcessPacket packet) {
+  void findHandRegions(ProcessPacket packet) {
     int maxHandHeight = packet.height / HAND_MAX_HEIGHT_SCALE;
     int minHandHeight = packet.height / HAND_MIN_HEIGHT_SCALE;
     int armJointHeight = packet.height / ARM_JOINT_HEIGHT_SCALE;
 
     for (ForelimbFeatures ff : packet.forelimbFeatures) {
-      CvRect rect = ff.boundingBox;
-      if (rect.height() < maxHandHeight)
-        maxHandHeight = rect.height();
-      if (rect.height() >= minHandHeight) {
-        int y1 = rect.y();
-        int y2 = y1 + rect.height();
+      Blob blob = ff.blob;
+      if (blob.height() < maxHandHeight)
+        maxHandHeight = blob.height();
+      if (blob.height() >= minHandHeight) {
+        int y1 = blob.minY;
+        int y2 = y1 + blob.height();
         int yhand = y1, yarm = y2 - armJointHeight;
         if (!isForelimbAtBottom(y2, packet.height)) {
           yhand = y2 - maxHandHeight;
           yarm = y1;
         }
-        ff.handRegion = cvRect(rect.x(), yhand, rect.width(), maxHandHeight);
-        if (rect.height() - maxHandHeight >= armJointHeight) {
+        ff.handRegion = cvRect(blob.minX, yhand, blob.width(), maxHandHeight);
+        if (blob.height() - maxHandHeight >= armJointHeight) {
           ff.armJointRegion =
-              cvRect(rect.x(), yarm, rect.width(), armJointHeight);
+              cvRect(blob.minX, yarm, blob.width(), armJointHeight);
         }
       }
     }
   }
   
+  private List<Rectangle> boundingBoxes(ProcessPacket packet) {
+    List<Rectangle> boxes = new ArrayList<Rectangle>(
+        packet.forelimbFeatures.size());
+    for (ForelimbFeatures ff : packet.forelimbFeatures)
+      boxes.add(ff.blob.bounds());
+    return boxes;
+  }
+
   private boolean isForelimbAtBottom(int forelimbBottom, int imageBottom) {
     return Math.abs(forelimbBottom - imageBottom) < 
            FORELIMB_BOTTOM_TO_IMAGE_BOTTOM_DIST_THRESH;
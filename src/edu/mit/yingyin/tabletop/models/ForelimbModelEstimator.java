@@ -3,31 +3,35 @@ package edu.mit.yingyin.tabletop.models;
 import static com.googlecode.javacv.cpp.opencv_core.cvGetSeqElem;
 
 import java.awt.Point;
-import java.nio.ByteBuffer;
+import java.awt.Rectangle;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.vecmath.Point2f;
 import javax.vecmath.Point3f;
 import javax.vecmath.Vector2f;
 import javax.vecmath.Vector3f;
 
-import org.OpenNI.Point3D;
-import org.OpenNI.StatusException;
 
 import com.googlecode.javacv.cpp.opencv_core.CvMat;
 import com.googlecode.javacv.cpp.opencv_core.CvRect;
 import com.googlecode.javacv.cpp.opencv_core.CvSeq;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
 import com.googlecode.javacv.cpp.opencv_imgproc.CvConvexityDefect;
 
 import edu.mit.yingyin.image.BinaryFast;
-import edu.mit.yingyin.image.ThinningTransform;
+import edu.mit.yingyin.image.LutThinningTransform;
 import edu.mit.yingyin.tabletop.models.ProcessPacket.ForelimbFeatures;
 import edu.mit.yingyin.tabletop.models.ProcessPacket.HandFeatures;
+import edu.mit.yingyin.util.BitMask;
 import edu.mit.yingyin.util.CvUtil;
 import edu.mit.yingyin.util.Geometry;
-import edu.mit.yingyin.util.Matrix;
 import edu.mit.yingyin.util.ValConfidencePair;
 
 /**
@@ -48,81 +52,194 @@ public class ForelimbModelEstimator {
   
   private static final float SMOOTH_FACTOR = (float) 0.9;
   private static final float TREND_SMOOTH_FACTOR = (float) 0.9;
-  
+
+  /**
+   * Maximum number of simultaneously tracked forelimbs and fingertips per
+   * forelimb.
+   */
+  static final int MAX_FORELIMBS = 8, MAX_FINGERTIPS = 5;
+  /**
+   * Association gates for the hand centroids in mm and for the fingertips in
+   * pixels.
+   */
+  private static final float FORELIMB_GATE = 150, FINGERTIP_GATE = 30;
+  /**
+   * Number of frames a track is kept without a detection.
+   */
+  private static final int MAX_MISSED = 2;
+
+  /**
+   * State of a tracked forelimb.
+   */
+  private static class ForelimbTrack {
+    final PointTracker fingertips;
+    /**
+     * Displacement in world coordinates in the previous frame.
+     */
+    Point3f prevS;
+    /**
+     * Velocity in world coordinates in the previous frame.
+     */
+    Vector3f prevV;
+    /**
+     * Number of the update in which the forelimb was last detected.
+     */
+    long lastUpdate;
+
+    ForelimbTrack(AtomicInteger fingertipIDs) {
+      fingertips = new PointTracker(MAX_FINGERTIPS, FINGERTIP_GATE, MAX_MISSED,
+          true, SMOOTH_FACTOR, TREND_SMOOTH_FACTOR, fingertipIDs);
+    }
+  }
+
   private final int width, height;
-  private final OpenNIDevice openni;
-  private final DoubleExpFilter filter;
-  
+  private final DepthProjection projection;
   /**
-   * Displacement in world coordinates in the previous frame.
+   * Tracks the hand centroids in the world coordinates.
    */
-  private Point3f prevS;
+  private final PointTracker forelimbTracker;
+  private final Map<Integer, ForelimbTrack> forelimbTracks =
+      new HashMap<Integer, ForelimbTrack>();
+  private final AtomicInteger fingertipIDs = new AtomicInteger();
+  private final LutThinningTransform thinning = new LutThinningTransform(
+      THINNING_KERNEL_ORTH, THINNING_KERNEL_DIAG);
+  private final LutThinningTransform pruning = new LutThinningTransform(
+      PRUNING_KERNEL1, PRUNING_KERNEL2);
   /**
-   * Velocity in world coordinates in the previous frame.
+   * The copy of the hand region that is thinned. It only grows, so it is not
+   * allocated per hand per frame.
    */
-  private Vector3f prevV;
+  private byte[] pixels = new byte[0];
+  /**
+   * If true, the skeleton of a hand is used to find a fingertip when the 
+   * convexity defects do not find any.
+   */
+  private volatile boolean thinningFingertips = false;
+  private long updateCount;
 
   public ForelimbModelEstimator(int width, int height, 
-      OpenNIDevice openni) {
+      DepthProjection projection) {
     this.width = width;
     this.height = height;
-    this.openni = openni;
-    filter = new DoubleExpFilter(SMOOTH_FACTOR, TREND_SMOOTH_FACTOR);
+    this.projection = projection;
+    forelimbTracker = new PointTracker(MAX_FORELIMBS, FORELIMB_GATE,
+        MAX_MISSED, false, SMOOTH_FACTOR, TREND_SMOOTH_FACTOR,
+        new AtomicInteger());
   }
 
-  public void updateModel(ProcessPacket packet) throws StatusException {
+  /**
+   * @param enabled if true, a fingertip is searched on the skeleton of a hand
+   *    when the convexity defects do not find any.
+   */
+  public void setThinningFingertips(boolean enabled) {
+    thinningFingertips = enabled;
+  }
+
+  /**
+   * Estimates the models of all the forelimbs with hand features. Each
+   * forelimb and each of its fingertips keeps its ID across frames.
+   * @param packet
+   */
+  public void updateModel(ProcessPacket packet) {
+    updateCount++;
+    List<ForelimbFeatures> hands = new ArrayList<ForelimbFeatures>();
+    List<Point3f> centroids = new ArrayList<Point3f>();
     for (ForelimbFeatures ff : packet.forelimbFeatures) {
       if (ff.handRegion == null)
         continue;
 
       findFingertipsConvexityDefects(ff, packet);
-    }  
-    
-    List<Point3f> filteredFingertips = filter.filter(packet);
-    
-    // HACK: only consider one hand now.
-    if (packet.forelimbFeatures.size() > 0) {
-      ForelimbFeatures ff = packet.forelimbFeatures.get(0);
-      HandFeatures hf = ff.hf;
-      if (hf != null) {
-        List<Point3f> fingertipsW = null;
-        if (filteredFingertips != null) {
-          // Convert to world coordinates.
-          Point3D[] points = new Point3D[filteredFingertips.size()];
-          for (int i = 0; i < filteredFingertips.size(); i++) {
-            Point3f point = filteredFingertips.get(i);
-            points[i] = new Point3D(point.x, point.y, point.z);
-          }
-          Point3D[] converted = openni.convertProjectiveToRealWorld(points);
-          fingertipsW = new ArrayList<Point3f>(converted.length);
-          for (Point3D p : converted)
-            fingertipsW.add(new Point3f(p.getX(), p.getY(), p.getZ()));
-          
-        }
-        List<Point3f> armJoints = findCentroid(packet, ff.armJointRegion);
-        Vector3f v = null, a = null;
-        if (prevS != null) {
-          v = new Vector3f();
-          v.sub(hf.centroidWorld, prevS);
-          if (prevV != null) {
-            a = new Vector3f();
-            a.sub(v, prevV);
-            float dist = InteractionSurface.instance().
-                distanceAboveSurface(hf.centroidWorld);
-            Hand hand = new Hand(dist, hf.handPoseWidth, hf.centroidWorld, v, a, 
-                                 hf.rot, hf.pointCloud);
-            Forelimb forelimb = new Forelimb(filteredFingertips, fingertipsW, 
-                armJoints, hand);
-            packet.forelimbs.add(forelimb);
-          }
-        }
-        prevS = hf.centroidWorld;
-        prevV = v;
-        return;
+      // A single extended finger has no convexity defect on one of its 
+      // sides.
+      if (thinningFingertips && ff.fingertips.isEmpty())
+        ff.fingertips.addAll(findFingertipsThinning(ff, packet));
+      if (ff.hf != null) {
+        hands.add(ff);
+        centroids.add(ff.hf.centroidWorld);
+      }
+    }
+
+    int[] ids = forelimbTracker.update(centroids);
+    for (int i = 0; i < ids.length; i++) {
+      if (ids[i] == PointTracker.NO_TRACK)
+        continue;
+      ForelimbTrack track = forelimbTracks.get(ids[i]);
+      if (track == null) {
+        track = new ForelimbTrack(fingertipIDs);
+        forelimbTracks.put(ids[i], track);
+      } else if (track.lastUpdate != updateCount - 1) {
+        // Velocity is only estimated from consecutive detections.
+        track.prevS = null;
+        track.prevV = null;
+      }
+      track.lastUpdate = updateCount;
+      Forelimb forelimb = updateForelimb(ids[i], track, hands.get(i), packet);
+      if (forelimb != null)
+        packet.forelimbs.add(forelimb);
+    }
+
+    Iterator<Integer> it = forelimbTracks.keySet().iterator();
+    while (it.hasNext())
+      if (!forelimbTracker.isActive(it.next()))
+        it.remove();
+  }
+
+  /**
+   * Updates a tracked forelimb with its features in the current frame.
+   * @return the forelimb model, or null if its velocity and acceleration are
+   *    not available yet.
+   */
+  private Forelimb updateForelimb(int id, ForelimbTrack track,
+      ForelimbFeatures ff, ProcessPacket packet) {
+    HandFeatures hf = ff.hf;
+    List<Point3f> detected = new ArrayList<Point3f>(ff.fingertips.size());
+    for (ValConfidencePair<Point3f> vcp : ff.fingertips)
+      detected.add(vcp.value);
+    int[] tipIDs = track.fingertips.update(detected);
+
+    int numTracked = 0;
+    for (int tipID : tipIDs)
+      if (tipID != PointTracker.NO_TRACK)
+        numTracked++;
+    List<Point3f> fingertipsI = new ArrayList<Point3f>(numTracked);
+    int[] fingertipIDs = new int[numTracked];
+    for (int tipID : tipIDs) {
+      if (tipID == PointTracker.NO_TRACK)
+        continue;
+      fingertipIDs[fingertipsI.size()] = tipID;
+      fingertipsI.add(track.fingertips.position(tipID));
+    }
+
+    Vector3f v = null, a = null;
+    Forelimb forelimb = null;
+    if (track.prevS != null) {
+      v = new Vector3f();
+      v.sub(hf.centroidWorld, track.prevS);
+      if (track.prevV != null) {
+        a = new Vector3f();
+        a.sub(v, track.prevV);
+        float dist = packet.interactionSurface.distanceAboveSurface(
+            hf.centroidWorld);
+        Hand hand = new Hand(dist, hf.handPoseWidth, hf.centroidWorld, v, a, 
+                             hf.rot, hf.pointCloud);
+        forelimb = new Forelimb(id, fingertipIDs, fingertipsI,
+            toRealWorld(fingertipsI), findCentroid(packet, ff.armJointRegion),
+            hand);
       }
     }
-    prevS = null;
-    prevV = null;
+    track.prevS = hf.centroidWorld;
+    track.prevV = v;
+    return forelimb;
+  }
+
+  private List<Point3f> toRealWorld(List<Point3f> pointsI) {
+    List<Point3f> pointsW = new ArrayList<Point3f>(pointsI.size());
+    for (Point3f p : pointsI) {
+      Point3f w = new Point3f();
+      projection.projectiveToWorld(p.x, p.y, p.z, w);
+      pointsW.add(w);
+    }
+    return pointsW;
   }
 
   /**
@@ -202,8 +319,17 @@ public class ForelimbModelEstimator {
       ProcessPacket packet) {
     Point2f p = new Point2f(start);
 
-    FloatBuffer fb = packet.derivative.getFloatBuffer();
-    int widthStep = packet.derivative.widthStep() / 4;
+    // Only the derivative around the search ray is computed.
+    Point2f end = new Point2f();
+    end.scaleAdd(FINGERTIP_WIDTH, unitDir, start);
+    int x0 = (int) Math.floor(Math.min(start.x, end.x)) - 1;
+    int y0 = (int) Math.floor(Math.min(start.y, end.y)) - 1;
+    int x1 = (int) Math.floor(Math.max(start.x, end.x)) + 1;
+    int y1 = (int) Math.floor(Math.max(start.y, end.y)) + 1;
+    IplImage derivative = packet.derivative(
+        new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1));
+    FloatBuffer fb = derivative.getFloatBuffer();
+    int widthStep = derivative.widthStep() / 4;
 
     int count = 0;
     while (count <= FINGERTIP_WIDTH && p.y >= 0 && p.y < height && p.x >= 0
@@ -251,7 +377,7 @@ public class ForelimbModelEstimator {
       float angle = (float) Geometry.getAngleC(A, B, C);
       if (angle < FINGERTIP_ANGLE_THRESH && C.y >= handRect.y()
           && C.y <= handRect.y() + handRect.height()) {
-        float z = packet.depthRawData[C.y * packet.width + C.x];
+        float z = packet.getDepthRaw(C.x, C.y);
         fingertips.add(new ValConfidencePair<Point3f>(new Point3f(C.x, C.y, z),
             1));
       }
@@ -264,132 +390,119 @@ public class ForelimbModelEstimator {
   /**
    * Structuring elements for skeletonization by morphological thinning.
    */
-  private static int[] THINNING_KERNEL_ORTH = {0, 0, 0, 2, 1, 2, 1, 1, 1};
-  private static int[] THINNING_KERNEL_DIAG = {2, 0, 0, 1, 1, 0, 2, 1, 2};
-  private static int[] PRUNING_KERNEL1 = {0, 0, 0, 0, 1, 0, 0, 2, 2};
-  private static int[] PRUNING_KERNEL2 = {0, 0, 0, 0, 1, 0, 2, 2, 0};
+  private static final int[] THINNING_KERNEL_ORTH = 
+      {0, 0, 0, 2, 1, 2, 1, 1, 1};
+  private static final int[] THINNING_KERNEL_DIAG = 
+      {2, 0, 0, 1, 1, 0, 2, 1, 2};
+  private static final int[] PRUNING_KERNEL1 = {0, 0, 0, 0, 1, 0, 0, 2, 2};
+  private static final int[] PRUNING_KERNEL2 = {0, 0, 0, 0, 1, 0, 2, 2, 0};
+  /**
+   * Number of rounds of pruning the end points of the skeleton. Each round 
+   * applies the pruning kernels in all 4 rotations.
+   */
+  private static final int PRUNING_ROUNDS = 2;
 
   /**
    * Finds fingertips based on thinning of fingers by applying thinning 
-   * mophological operation to hand regions.
+   * mophological operation to hand regions. The fingertip is the end point of
+   * the skeleton farthest from the arm joint.
    * 
    * @param packet
    */
   private List<ValConfidencePair<Point3f>> findFingertipsThinning(
       ForelimbFeatures ff, ProcessPacket packet) {
-    ByteBuffer bb = packet.morphedImage.getByteBuffer();
-    int widthStep = packet.morphedImage.widthStep();
+    BitMask mask = packet.morphedMask;
     CvRect rect = ff.handRegion;
-
-    byte[][] pixels = new byte[rect.height()][rect.width()];
-    for (int dy = 0; dy < rect.height(); dy++)
-      for (int dx = 0; dx < rect.width(); dx++) {
-        int index = (rect.y() + dy) * widthStep + rect.x() + dx;
-        if (bb.get(index) == 0)
-          pixels[dy][dx] = BinaryFast.background;
-        else
-          pixels[dy][dx] = BinaryFast.foreground;
-      }
-    BinaryFast bf = new BinaryFast(pixels, rect.width(), rect.height());
-
-    for (int i = 0; i < 20; i++) {
-      ThinningTransform.thinBinaryOnce(bf, THINNING_KERNEL_ORTH);
-      ThinningTransform.thinBinaryOnce(bf, THINNING_KERNEL_DIAG);
-      Matrix.rot90(THINNING_KERNEL_ORTH, 3);
-      Matrix.rot90(THINNING_KERNEL_DIAG, 3);
-    }
-    for (int i = 0; i < 8; i++) {
-      ThinningTransform.thinBinaryOnce(bf, PRUNING_KERNEL1);
-      ThinningTransform.thinBinaryOnce(bf, PRUNING_KERNEL2);
-      Matrix.rot90(PRUNING_KERNEL1, 3);
-      Matrix.rot90(PRUNING_KERNEL2, 3);
-    }
-    for (int dy = 0; dy < rect.height(); dy++)
-      for (int dx = 0; dx < rect.width(); dx++) {
-        int index = (rect.y() + dy) * widthStep + rect.x() + dx;
-        if (pixels[dy][dx] == BinaryFast.background)
-          bb.put(index, (byte) 0);
-        else
-          bb.put(index, (byte) 255);
-      }
-
-    List<Point3f> finger = new ArrayList<Point3f>();
+    int w = rect.width(), h = rect.height();
     List<ValConfidencePair<Point3f>> fingertips = 
         new ArrayList<ValConfidencePair<Point3f>>();
-    for (Point p : extractFinger(pixels)) {
-      int x = rect.x() + p.x;
-      int y = rect.y() + p.y;
-      float z = packet.depthRawData[y * packet.width + x];
-      finger.add(new Point3f(x, y, z));
+    if (w <= 0 || h <= 0)
+      return fingertips;
+
+    // The mask is copied, so the views and the later stages still see the
+    // hand region rather than its skeleton.
+    if (pixels.length < w * h)
+      pixels = new byte[w * h];
+    Arrays.fill(pixels, 0, w * h, BinaryFast.background);
+    for (int dy = 0; dy < h; dy++) {
+      int y = rect.y() + dy;
+      for (int x = mask.nextSetBit(y, rect.x()); x >= 0 && x < rect.x() + w; 
+           x = mask.nextSetBit(y, x + 1))
+        pixels[dy * w + x - rect.x()] = BinaryFast.foreground;
     }
-    if (!finger.isEmpty()) {
-      fingertips.add(new ValConfidencePair<Point3f>(new Point3f(
-          finger.get(finger.size() - 1)), 1));
+    thinning.thin(pixels, w, h, LutThinningTransform.UNTIL_CONVERGED);
+    pruning.thin(pixels, w, h, PRUNING_ROUNDS);
+
+    Point2f arm = armJoint(ff);
+    Point tip = farthestEndPoint(pixels, w, h, arm.x - rect.x(), 
+                                 arm.y - rect.y());
+    if (tip != null) {
+      int x = rect.x() + tip.x;
+      int y = rect.y() + tip.y;
+      fingertips.add(new ValConfidencePair<Point3f>(
+          new Point3f(x, y, packet.getDepthRaw(x, y)), 1));
     }
     return fingertips;
   }
 
   /**
-   * 
-   * @param pixels two dimensional array of the hand region with at least one
-   *          row.
+   * @return the center of the arm joint region, or the center of the end of
+   *    the forelimb opposite the hand region if there is no arm joint region.
    */
-  private List<Point> extractFinger(byte[][] pixels) {
-    List<Point> finger = new ArrayList<Point>();
-
-    int h = pixels.length;
-    int w = pixels[0].length;
-
-    int[][] dp = new int[h][w];
-    int[][] parents = new int[h][w];
-
-    for (int j = 0; j < w; j++) {
-      dp[0][j] = isSinglePixel(pixels, 0, j) ? 1 : 0;
-      parents[0][j] = 2;
-    }
+  private static Point2f armJoint(ForelimbFeatures ff) {
+    CvRect r = ff.armJointRegion;
+    if (r != null)
+      return new Point2f(r.x() + r.width() / 2f, r.y() + r.height() / 2f);
+    BlobLabeler.Blob b = ff.blob;
+    float x = (b.minX + b.maxX) / 2f;
+    return ff.handRegion.y() > b.minY ? new Point2f(x, b.minY) : 
+                                        new Point2f(x, b.maxY);
+  }
 
-    for (int i = 1; i < h; i++)
-      for (int j = 0; j < w; j++) {
-        int max = dp[i - 1][j];
-        int parent = 0;
-        if (j - 1 >= 0 && max < dp[i - 1][j - 1]) {
-          max = dp[i - 1][j - 1];
-          parent = -1;
+  /**
+   * Finds the end point of a skeleton farthest from a reference point. An end
+   * point has at most one 8-connected neighbor in the skeleton. If the
+   * skeleton has no end points, e.g. it is a loop, the farthest skeleton
+   * pixel is used.
+   * 
+   * @param pixels row-major skeleton.
+   * @param w width of the skeleton image.
+   * @param h height of the skeleton image.
+   * @param refX x of the reference point in the skeleton image.
+   * @param refY y of the reference point in the skeleton image.
+   * @return the end point, or null if the skeleton is empty.
+   */
+  static Point farthestEndPoint(byte[] pixels, int w, int h, float refX, 
+                                float refY) {
+    Point endPoint = null, any = null;
+    float endPointDistSq = -1, anyDistSq = -1;
+    for (int y = 0; y < h; y++)
+      for (int x = 0; x < w; x++) {
+        if (pixels[y * w + x] == BinaryFast.background)
+          continue;
+        float dx = x - refX, dy = y - refY;
+        float distSq = dx * dx + dy * dy;
+        if (distSq > anyDistSq) {
+          anyDistSq = distSq;
+          any = new Point(x, y);
         }
-        if (j + 1 < w && max < dp[i - 1][j + 1]) {
-          max = dp[i - 1][j + 1];
-          parent = 1;
+        if (numNeighbors(pixels, w, h, x, y) <= 1 && 
+            distSq > endPointDistSq) {
+          endPointDistSq = distSq;
+          endPoint = new Point(x, y);
         }
-        dp[i][j] = max + (isSinglePixel(pixels, i, j) ? 1 : 0);
-        parents[i][j] = parent;
-      }
-
-    int best = 0;
-    int bestj = 0;
-    for (int j = 0; j < w; j++)
-      if (dp[h - 1][j] > best) {
-        best = dp[h - 1][j];
-        bestj = j;
       }
-
-    int current = bestj;
-    for (int i = h - 1; i > 0; i--) {
-      if (isSinglePixel(pixels, i, current))
-        finger.add(new Point(current, i));
-      current = current + parents[i][current];
-    }
-    return finger;
+    return endPoint == null ? any : endPoint;
   }
 
-  private boolean isSinglePixel(byte[][] pixels, int i, int j) {
-    int w = pixels[0].length;
-    if (pixels[i][j] == BinaryFast.background)
-      return false;
-    if (j - 1 >= 0 && pixels[i][j - 1] == BinaryFast.foreground)
-      return false;
-    if (j + 1 < w && pixels[i][j + 1] == BinaryFast.foreground)
-      return false;
-    return true;
+  private static int numNeighbors(byte[] pixels, int w, int h, int x, int y) {
+    int n = 0;
+    for (int ny = Math.max(0, y - 1); ny <= Math.min(h - 1, y + 1); ny++)
+      for (int nx = Math.max(0, x - 1); nx <= Math.min(w - 1, x + 1); nx++)
+        if ((nx != x || ny != y) && 
+            pixels[ny * w + nx] == BinaryFast.foreground)
+          n++;
+    return n;
   }
 
   /**
@@ -401,50 +514,38 @@ public class ForelimbModelEstimator {
    * @return a list of 3D points. The first point is the 3D location of the arm
    *         joint in the image, and the 2nd one is the location in the world
    *         coordinate. The list is empty if the arm joint cannot be found.
-   * @throws StatusException 
    */
-  private List<Point3f> findCentroid(ProcessPacket packet, CvRect rect) 
-      throws StatusException {
+  private List<Point3f> findCentroid(ProcessPacket packet, CvRect rect) {
     List<Point3f> res = new ArrayList<Point3f>(2);
 
     if (rect == null)
       return res;
 
-    ByteBuffer maskBuffer = packet.foregroundMask.getByteBuffer();
-    int maskStepWidth = packet.foregroundMask.widthStep();
-    List<Point3D> list = new ArrayList<Point3D>();
+    BitMask mask = packet.foregroundMask;
+    int x1 = rect.x() + rect.width();
+    Point3f world = new Point3f();
+    float imagex = 0, imagey = 0, imagez = 0;
+    float centerx = 0, centery = 0, centerz = 0;
+    int count = 0;
     for (int y = rect.y(); y < rect.y() + rect.height(); y++)
-      for (int x = rect.x(); x < rect.x() + rect.width(); x++) {
-        if ((maskBuffer.get(y * maskStepWidth + x) & 0xff) == 255) {
-          list.add(new Point3D(x, y,
-              packet.depthRawData[y * packet.width + x]));
-        }
+      for (int x = mask.nextSetBit(y, rect.x()); x >= 0 && x < x1; 
+           x = mask.nextSetBit(y, x + 1)) {
+        float depth = packet.getDepthRaw(x, y);
+        imagex += x;
+        imagey += y;
+        imagez += depth;
+        projection.pixelToWorld(x, y, depth, world);
+        centerx += world.x;
+        centery += world.y;
+        centerz += world.z;
+        count++;
       }
-    if (list.size() == 0)
+    if (count == 0)
       return null;
 
-    float imagex = 0, imagey = 0, imagez = 0;
-    for (Point3D point : list) {
-      imagex += point.getX();
-      imagey += point.getY();
-      imagez += point.getZ();
-    }
-
-    res.add(new Point3f(imagex / list.size(), imagey / list.size(), imagez
-        / list.size()));
-
-    Point3D[] points = new Point3D[list.size()];
-    list.toArray(points);
-    Point3D[] converted = openni.convertProjectiveToRealWorld(points);
-    float centerx = 0, centery = 0, centerz = 0;
-    for (Point3D point : converted) {
-      centerx += point.getX();
-      centery += point.getY();
-      centerz += point.getZ();
-    }
-    res.add(new Point3f(centerx / list.size(), centery / list.size(), centerz
-        / list.size()));
-
+    res.add(new Point3f(imagex / count, imagey / count, imagez / count));
+    res.add(new Point3f(centerx / count, centery / count, centerz / count));
     return res;
   }
+
 }
@@ -0,0 +1,257 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.QueuePolicy;
+
+/**
+ * Runs the frame processing stages of the <code>HandTrackingEngine</code> on
+ * separate threads: acquisition, preprocessing, feature extraction, and model
+ * estimation with tracking. Adjacent stages are connected by bounded queues of
+ * pooled <code>ProcessPacket</code>s, each having exactly one producer and one
+ * consumer, so the frames stay in order and the throughput is limited by the
+ * slowest stage.
+ *
+ * @author yingyin
+ *
+ */
+class FramePipeline {
+  /**
+   * Work done by one stage on a packet.
+   */
+  interface Stage {
+    /**
+     * @param packet the packet to process.
+     * @throws Exception any exception stops the pipeline and is thrown from
+     *    <code>take</code>.
+     */
+    public void process(ProcessPacket packet) throws Exception;
+  }
+
+  /**
+   * Produces packets for the first stage.
+   */
+  interface Source {
+    /**
+     * @return a packet with new depth data, or null if there are no more
+     *    frames.
+     * @throws Exception
+     */
+    public ProcessPacket next() throws Exception;
+  }
+
+  /**
+   * A bounded hand-off queue between two stages.
+   */
+  private class StageQueue {
+    private final BlockingQueue<ProcessPacket> queue;
+
+    public StageQueue(int capacity) {
+      queue = new ArrayBlockingQueue<ProcessPacket>(capacity);
+    }
+
+    /**
+     * Adds a packet to the queue. If the queue is full, either waits or drops
+     * the oldest packet depending on the queue policy.
+     */
+    public void put(ProcessPacket packet) throws InterruptedException {
+      if (policy == QueuePolicy.BLOCK) {
+        queue.put(packet);
+        return;
+      }
+      while (!queue.offer(packet)) {
+        ProcessPacket oldest = queue.poll();
+        if (oldest != null)
+          drop(oldest);
+      }
+    }
+
+    public ProcessPacket take() throws InterruptedException {
+      return queue.take();
+    }
+
+    public ProcessPacket poll(long timeout, TimeUnit unit)
+        throws InterruptedException {
+      return queue.poll(timeout, unit);
+    }
+
+    public void clear() {
+      ProcessPacket packet;
+      while ((packet = queue.poll()) != null)
+        drop(packet);
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(
+      FramePipeline.class.getName());
+  private static final long POLL_TIMEOUT_MS = 100;
+
+  private final ProcessPacketPool pool;
+  private final QueuePolicy policy;
+  private final List<StageQueue> queues = new ArrayList<StageQueue>();
+  private final List<Thread> threads = new ArrayList<Thread>();
+  /**
+   * Number of packets leased by the source and not yet taken from the output
+   * queue or dropped.
+   */
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final PipelineMetrics metrics;
+  private volatile boolean sourceDone = false, running = false;
+  /**
+   * The first exception thrown by the source or a stage. Null if none.
+   */
+  private volatile Exception failure;
+
+  /**
+   * Creates a pipeline.
+   *
+   * @param source produces the packets for the first stage.
+   * @param stages the stages in processing order. Each one runs on its own
+   *    thread.
+   * @param names names of the stages for the threads.
+   * @param pool the pool the packets are leased from.
+   * @param queueCapacity capacity of each hand-off queue.
+   * @param policy what to do when a queue is full.
+   * @param metrics counts the dropped frames.
+   */
+  public FramePipeline(final Source source, List<Stage> stages,
+      List<String> names, ProcessPacketPool pool, int queueCapacity,
+      QueuePolicy policy, PipelineMetrics metrics) {
+    this.pool = pool;
+    this.metrics = metrics;
+    this.policy = policy;
+    for (int i = 0; i <= stages.size(); i++)
+      queues.add(new StageQueue(queueCapacity));
+
+    threads.add(new Thread("pipeline-acquisition") {
+      @Override
+      public void run() {
+        runSource(source, queues.get(0));
+      }
+    });
+    for (int i = 0; i < stages.size(); i++) {
+      final Stage stage = stages.get(i);
+      final StageQueue in = queues.get(i), out = queues.get(i + 1);
+      threads.add(new Thread("pipeline-" + names.get(i)) {
+        @Override
+        public void run() {
+          runStage(stage, in, out);
+        }
+      });
+    }
+    for (Thread t : threads)
+      t.setDaemon(true);
+  }
+
+  public void start() {
+    running = true;
+    for (Thread t : threads)
+      t.start();
+  }
+
+  /**
+   * Stops all the stage threads and gives the queued packets back to the pool.
+   */
+  public void stop() {
+    running = false;
+    for (Thread t : threads)
+      t.interrupt();
+    for (Thread t : threads) {
+      try {
+        t.join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    for (StageQueue q : queues)
+      q.clear();
+    LOGGER.info(String.format("Pipeline stopped. Dropped frames = %d",
+                              metrics.getDroppedFrames()));
+  }
+
+  /**
+   * Takes the next fully processed packet in frame order. Waits until one is
+   * available.
+   *
+   * @return the next processed packet, or null if all the frames are
+   *    processed.
+   * @throws InterruptedException
+   * @throws HandTrackingEngineException if the source or a stage has failed.
+   */
+  public ProcessPacket take() throws InterruptedException {
+    StageQueue out = queues.get(queues.size() - 1);
+    while (!isDone()) {
+      if (failure != null)
+        throw new HandTrackingEngineException(failure);
+      ProcessPacket packet = out.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      if (packet != null) {
+        inFlight.decrementAndGet();
+        return packet;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return true if the source has no more frames and all the packets are
+   *    taken or dropped. False after a failure, so that the caller gets the
+   *    failure from <code>take</code>.
+   */
+  public boolean isDone() {
+    return failure == null && sourceDone && inFlight.get() == 0;
+  }
+
+  private void runSource(Source source, StageQueue out) {
+    try {
+      while (running) {
+        ProcessPacket packet = source.next();
+        if (packet == null)
+          break;
+        inFlight.incrementAndGet();
+        out.put(packet);
+      }
+    } catch (InterruptedException ie) {
+      // Stopped.
+    } catch (Exception e) {
+      fail(e);
+    } finally {
+      sourceDone = true;
+    }
+  }
+
+  private void runStage(Stage stage, StageQueue in, StageQueue out) {
+    try {
+      while (running) {
+        ProcessPacket packet = in.take();
+        stage.process(packet);
+        out.put(packet);
+      }
+    } catch (InterruptedException ie) {
+      // Stopped.
+    } catch (Exception e) {
+      fail(e);
+    }
+  }
+
+  private void drop(ProcessPacket packet) {
+    metrics.frameDropped();
+    inFlight.decrementAndGet();
+    pool.returnPacket(packet);
+  }
+
+  /**
+   * Records the failure for <code>take</code> and stops the source.
+   */
+  private synchronized void fail(Exception e) {
+    LOGGER.severe(e.getMessage());
+    if (failure == null)
+      failure = e;
+    running = false;
+  }
+}
@@ -0,0 +1,70 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+import edu.mit.yingyin.util.ValConfidencePair;
+
+/**
+ * A frame read from a recording written by <code>FrameRecordWriter</code>.
+ * The data of the sections that are not recorded are null.
+ *
+ * @author yingyin
+ *
+ */
+public class FrameRecord {
+  /**
+   * Image features of a forelimb.
+   */
+  public static class ForelimbRegion {
+    /**
+     * Bounding box of the forelimb as x, y, width, height.
+     */
+    public int[] boundingBox;
+    /**
+     * Hand region as x, y, width, height. Null if there is no hand region.
+     */
+    public int[] handRegion;
+    public List<ValConfidencePair<Point3f>> fingertips =
+        new ArrayList<ValConfidencePair<Point3f>>();
+  }
+
+  /**
+   * A tracked forelimb and its fingertips.
+   */
+  public static class Track {
+    public int forelimbID;
+    public int[] fingertipIDs;
+    /**
+     * Fingertips in the image and the world coordinates.
+     */
+    public List<Point3f> fingertipsI = new ArrayList<Point3f>(),
+        fingertipsW = new ArrayList<Point3f>();
+  }
+
+  /**
+   * Gesture feature vector of a forelimb with a hand.
+   */
+  public static class GestureFeatures {
+    public int forelimbID;
+    /**
+     * Feature vector created by <code>FeatureBuilder</code>.
+     */
+    public float[] features;
+  }
+
+  public int frameID;
+  /**
+   * Raw depth values in mm, row by row without padding.
+   */
+  public short[] depth;
+  /**
+   * Foreground mask, 0 or 255, row by row without padding.
+   */
+  public byte[] mask;
+  public List<ForelimbRegion> forelimbRegions;
+  public List<Track> tracks;
+  public List<GestureFeatures> gestureFeatures;
+}
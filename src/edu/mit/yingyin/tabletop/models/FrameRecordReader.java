@@ -0,0 +1,260 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.vecmath.Point3f;
+
+import edu.mit.yingyin.tabletop.models.FrameRecordWriter.Compression;
+import edu.mit.yingyin.tabletop.models.FrameRecordWriter.Section;
+import edu.mit.yingyin.util.ValConfidencePair;
+
+/**
+ * Reads a recording written by <code>FrameRecordWriter</code>. The frame
+ * index is loaded when the recording is opened, so any frame can be read with
+ * one lookup and one positioned read. A reader reuses its buffers, so it
+ * should only be used by one thread.
+ *
+ * @author yingyin
+ *
+ */
+public class FrameRecordReader {
+  private static final Section[] SECTIONS = Section.values();
+
+  private final FileInputStream in;
+  private final FileChannel channel;
+  private final int width, height, gestureImageWidth;
+  private final Compression compression;
+  private final int[] frameIDs;
+  private final Map<Integer, Long> offsets;
+  private final Inflater inflater = new Inflater();
+  private final ByteBuffer chunkHeader = ByteBuffer.allocate(
+      FrameRecordWriter.CHUNK_HEADER_SIZE);
+  private byte[] stored = new byte[0], raw = new byte[0];
+
+  /**
+   * Opens a recording and reads its frame index.
+   * @param filename
+   * @throws IOException if the file is not a complete recording.
+   */
+  public FrameRecordReader(String filename) throws IOException {
+    in = new FileInputStream(filename);
+    channel = in.getChannel();
+    try {
+      ByteBuffer header = read(0, 21);
+      if (header.getInt() != FrameRecordWriter.MAGIC)
+        throw new IOException("Not a frame recording: " + filename);
+      int version = header.getInt();
+      if (version != FrameRecordWriter.VERSION)
+        throw new IOException("Unsupported recording version: " + version);
+      width = header.getInt();
+      height = header.getInt();
+      compression = Compression.values()[header.get()];
+      gestureImageWidth = header.getInt();
+
+      long size = channel.size();
+      ByteBuffer footer = read(size - FrameRecordWriter.FOOTER_SIZE,
+                               FrameRecordWriter.FOOTER_SIZE);
+      long indexOffset = footer.getLong();
+      if (footer.getInt() != FrameRecordWriter.MAGIC)
+        throw new IOException("The recording is not closed properly: " +
+                              filename);
+      int numFrames = read(indexOffset, 4).getInt();
+      ByteBuffer index = read(indexOffset + 4, numFrames * 12);
+      frameIDs = new int[numFrames];
+      offsets = new HashMap<Integer, Long>(numFrames * 2);
+      for (int i = 0; i < numFrames; i++) {
+        frameIDs[i] = index.getInt();
+        offsets.put(frameIDs[i], index.getLong());
+      }
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  public int width() { return width; }
+
+  public int height() { return height; }
+
+  /**
+   * @return width of the hand image in the gesture features.
+   */
+  public int gestureImageWidth() { return gestureImageWidth; }
+
+  public int numFrames() { return frameIDs.length; }
+
+  /**
+   * @return the IDs of the recorded frames in the recording order.
+   */
+  public int[] frameIDs() { return frameIDs.clone(); }
+
+  public boolean contains(int frameID) {
+    return offsets.containsKey(frameID);
+  }
+
+  /**
+   * Reads a frame.
+   * @param frameID
+   * @return the frame, or null if the frame is not recorded.
+   * @throws IOException
+   */
+  public FrameRecord read(int frameID) throws IOException {
+    Long offset = offsets.get(frameID);
+    if (offset == null)
+      return null;
+    chunkHeader.clear();
+    readFully(chunkHeader, offset);
+    chunkHeader.flip();
+    FrameRecord record = new FrameRecord();
+    record.frameID = chunkHeader.getInt();
+    int sections = chunkHeader.getInt();
+    int rawLength = chunkHeader.getInt();
+    int storedLength = chunkHeader.getInt();
+
+    if (stored.length < storedLength)
+      stored = new byte[storedLength];
+    readFully(ByteBuffer.wrap(stored, 0, storedLength),
+              offset + FrameRecordWriter.CHUNK_HEADER_SIZE);
+    ByteBuffer payload;
+    if (compression == Compression.DEFLATE) {
+      if (raw.length < rawLength)
+        raw = new byte[rawLength];
+      inflater.reset();
+      inflater.setInput(stored, 0, storedLength);
+      try {
+        int n = 0;
+        while (n < rawLength && !inflater.finished())
+          n += inflater.inflate(raw, n, rawLength - n);
+        if (n != rawLength)
+          throw new IOException("Corrupted frame " + frameID);
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupted frame " + frameID, e);
+      }
+      payload = ByteBuffer.wrap(raw, 0, rawLength);
+    } else {
+      payload = ByteBuffer.wrap(stored, 0, storedLength);
+    }
+
+    for (Section section : SECTIONS) {
+      if ((sections & (1 << section.ordinal())) == 0)
+        continue;
+      int length = payload.getInt();
+      int end = payload.position() + length;
+      switch (section) {
+        case DEPTH:
+          record.depth = new short[width * height];
+          payload.asShortBuffer().get(record.depth);
+          break;
+        case MASK:
+          record.mask = new byte[width * height];
+          payload.get(record.mask);
+          break;
+        case FORELIMB_FEATURES:
+          record.forelimbRegions = readForelimbRegions(payload);
+          break;
+        case TRACKS:
+          record.tracks = readTracks(payload);
+          break;
+        case GESTURE_FEATURES:
+          record.gestureFeatures = readGestureFeatures(payload);
+          break;
+        default:
+          break;
+      }
+      payload.position(end);
+    }
+    return record;
+  }
+
+  public void close() throws IOException {
+    inflater.end();
+    in.close();
+  }
+
+  private List<FrameRecord.ForelimbRegion> readForelimbRegions(ByteBuffer bb) {
+    int n = bb.getInt();
+    List<FrameRecord.ForelimbRegion> res =
+        new ArrayList<FrameRecord.ForelimbRegion>(n);
+    for (int i = 0; i < n; i++) {
+      FrameRecord.ForelimbRegion fr = new FrameRecord.ForelimbRegion();
+      fr.boundingBox = readRect(bb);
+      if (bb.get() != 0)
+        fr.handRegion = readRect(bb);
+      int numFingertips = bb.getInt();
+      for (int j = 0; j < numFingertips; j++) {
+        Point3f p = readPoint(bb);
+        fr.fingertips.add(new ValConfidencePair<Point3f>(p, bb.getFloat()));
+      }
+      res.add(fr);
+    }
+    return res;
+  }
+
+  private List<FrameRecord.Track> readTracks(ByteBuffer bb) {
+    int n = bb.getInt();
+    List<FrameRecord.Track> res = new ArrayList<FrameRecord.Track>(n);
+    for (int i = 0; i < n; i++) {
+      FrameRecord.Track track = new FrameRecord.Track();
+      track.forelimbID = bb.getInt();
+      int numFingertips = bb.getInt();
+      track.fingertipIDs = new int[numFingertips];
+      for (int j = 0; j < numFingertips; j++) {
+        track.fingertipIDs[j] = bb.getInt();
+        track.fingertipsI.add(readPoint(bb));
+        track.fingertipsW.add(readPoint(bb));
+      }
+      res.add(track);
+    }
+    return res;
+  }
+
+  private List<FrameRecord.GestureFeatures> readGestureFeatures(
+      ByteBuffer bb) {
+    int n = bb.getInt();
+    List<FrameRecord.GestureFeatures> res =
+        new ArrayList<FrameRecord.GestureFeatures>(n);
+    for (int i = 0; i < n; i++) {
+      FrameRecord.GestureFeatures gf = new FrameRecord.GestureFeatures();
+      gf.forelimbID = bb.getInt();
+      gf.features = new float[bb.getInt()];
+      bb.asFloatBuffer().get(gf.features);
+      bb.position(bb.position() + gf.features.length * 4);
+      res.add(gf);
+    }
+    return res;
+  }
+
+  private int[] readRect(ByteBuffer bb) {
+    return new int[] {bb.getInt(), bb.getInt(), bb.getInt(), bb.getInt()};
+  }
+
+  private Point3f readPoint(ByteBuffer bb) {
+    return new Point3f(bb.getFloat(), bb.getFloat(), bb.getFloat());
+  }
+
+  private ByteBuffer read(long position, int length) throws IOException {
+    ByteBuffer bb = ByteBuffer.allocate(length);
+    readFully(bb, position);
+    bb.flip();
+    return bb;
+  }
+
+  private void readFully(ByteBuffer bb, long position) throws IOException {
+    while (bb.hasRemaining()) {
+      int n = channel.read(bb, position);
+      if (n < 0)
+        throw new EOFException();
+      position += n;
+    }
+  }
+}
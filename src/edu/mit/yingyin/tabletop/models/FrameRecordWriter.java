@@ -0,0 +1,499 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import javax.vecmath.Point3f;
+
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+
+import edu.mit.yingyin.tabletop.models.ProcessPacket.ForelimbFeatures;
+import edu.mit.yingyin.util.BitMask;
+import edu.mit.yingyin.util.ValConfidencePair;
+
+/**
+ * Writes processed frames and tracking results to a binary recording file.
+ *
+ * A recording consists of a header, one chunk per frame and a frame index at
+ * the end:
+ * <pre>
+ * header: magic, version, width, height, compression, gesture image width
+ * chunk:  frame ID, section flags, raw length, stored length, payload
+ * index:  number of frames, (frame ID, chunk offset) for each frame
+ * footer: index offset, magic
+ * </pre>
+ * The payload has one length-prefixed block per recorded section in the
+ * order of <code>Section</code>, and is compressed with Deflate if
+ * compression is on. All the values are big-endian.
+ *
+ * Frames are encoded in the calling thread into buffers from a small pool,
+ * and compressed and written through a <code>FileChannel</code> on a
+ * background thread. <code>write</code> blocks when all the buffers are
+ * waiting to be written.
+ *
+ * @author yingyin
+ *
+ */
+public class FrameRecordWriter {
+  /**
+   * Data that can be recorded for each frame.
+   */
+  public static enum Section {
+    /** Raw depth values. */
+    DEPTH,
+    /** Foreground mask. */
+    MASK,
+    /** Forelimb bounding boxes, hand regions and fingertip candidates. */
+    FORELIMB_FEATURES,
+    /** Persistent forelimb and fingertip IDs with fingertip positions. */
+    TRACKS,
+    /** Gesture feature vectors from <code>FeatureBuilder</code>. */
+    GESTURE_FEATURES
+  }
+
+  public static enum Compression { NONE, DEFLATE }
+
+  public static final String FILE_SUFFIX = ".frec";
+
+  static final int MAGIC = 0x54544652; // "TTFR"
+  static final int VERSION = 1;
+  static final int CHUNK_HEADER_SIZE = 16;
+  static final int FOOTER_SIZE = 12;
+
+  private static final Logger LOGGER = Logger.getLogger(
+      FrameRecordWriter.class.getName());
+  private static final int NUM_BUFFERS = 4;
+  private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+  /**
+   * A frame waiting to be written.
+   */
+  private static class Chunk {
+    int frameID, sections;
+    ByteBuffer data;
+    /**
+     * True if the chunk tells the writer thread to finish.
+     */
+    boolean last;
+  }
+
+  private final int width, height;
+  private final EnumSet<Section> sections;
+  private final Compression compression;
+  private final FileOutputStream out;
+  private final FileChannel channel;
+  private final BlockingQueue<Chunk> freeChunks, pendingChunks;
+  private final Thread writerThread;
+  private volatile IOException writeException;
+  private boolean closed = false;
+
+  // Only accessed by the writer thread until it finishes.
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private byte[] compressed = new byte[0];
+  private int[] indexFrameIDs = new int[INITIAL_INDEX_CAPACITY];
+  private long[] indexOffsets = new long[INITIAL_INDEX_CAPACITY];
+  private int numFrames = 0;
+
+  /**
+   * Creates a new recording file and starts the writer thread.
+   *
+   * @param filename
+   * @param width width of the depth frames.
+   * @param height height of the depth frames.
+   * @param sections data to record.
+   * @param compression
+   * @throws IOException
+   */
+  public FrameRecordWriter(String filename, int width, int height,
+      EnumSet<Section> sections, Compression compression) throws IOException {
+    this.width = width;
+    this.height = height;
+    this.sections = EnumSet.copyOf(sections);
+    this.compression = compression;
+    out = new FileOutputStream(filename);
+    channel = out.getChannel();
+
+    ByteBuffer header = ByteBuffer.allocate(21);
+    header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+    header.put((byte) compression.ordinal());
+    header.putInt(FeatureBuilder.imageWidth());
+    header.flip();
+    writeFully(header);
+
+    freeChunks = new ArrayBlockingQueue<Chunk>(NUM_BUFFERS);
+    pendingChunks = new ArrayBlockingQueue<Chunk>(NUM_BUFFERS + 1);
+    for (int i = 0; i < NUM_BUFFERS; i++) {
+      Chunk chunk = new Chunk();
+      chunk.data = ByteBuffer.allocate(estimateSize());
+      freeChunks.add(chunk);
+    }
+    writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeChunks();
+      }
+    }, "FrameRecordWriter");
+    writerThread.start();
+  }
+
+  /**
+   * Records a processed frame. The packet can be reused as soon as this method
+   * returns.
+   *
+   * @param packet
+   * @throws IOException if an earlier frame could not be written.
+   */
+  public void write(ProcessPacket packet) throws IOException {
+    Chunk chunk = takeFreeChunk(packet.depthFrameID);
+    for (Section section : sections) {
+      if (section != Section.DEPTH && !packet.foregroundExtracted)
+        continue;
+      int start = beginSection(chunk, section);
+      ByteBuffer bb = chunk.data;
+      switch (section) {
+        case DEPTH:
+          ShortBuffer sb = packet.depthImage16U.getShortBuffer();
+          int depthStep = packet.depthImage16U.widthStep() / 2;
+          for (int h = 0; h < height; h++)
+            for (int w = 0; w < width; w++)
+              bb.putShort(sb.get(h * depthStep + w));
+          break;
+        case MASK:
+          BitMask mask = packet.foregroundMask;
+          for (int h = 0; h < height; h++)
+            for (int w = 0; w < width; w++)
+              bb.put(mask.get(w, h) ? (byte) 255 : 0);
+          break;
+        case FORELIMB_FEATURES:
+          bb.putInt(packet.forelimbFeatures.size());
+          for (ForelimbFeatures ff : packet.forelimbFeatures) {
+            chunk.data = bb = ensureRemaining(bb, 40 +
+                ff.fingertips.size() * 16);
+            putRect(bb, ff.boundingBox);
+            bb.put((byte) (ff.handRegion == null ? 0 : 1));
+            if (ff.handRegion != null)
+              putRect(bb, ff.handRegion);
+            putFingertips(bb, ff.fingertips);
+          }
+          break;
+        case TRACKS:
+          bb.putInt(packet.forelimbs.size());
+          for (Forelimb forelimb : packet.forelimbs) {
+            int[] ids = forelimb.fingertipIDs();
+            chunk.data = bb = ensureRemaining(bb, 8 + ids.length * 28);
+            bb.putInt(forelimb.id());
+            putTrack(bb, ids, forelimb.fingertipsI(), forelimb.fingertipsW());
+          }
+          break;
+        case GESTURE_FEATURES:
+          int count = 0;
+          for (Forelimb forelimb : packet.forelimbs)
+            if (forelimb.hand() != null)
+              count++;
+          bb.putInt(count);
+          for (Forelimb forelimb : packet.forelimbs) {
+            if (forelimb.hand() == null)
+              continue;
+            float[] features = FeatureBuilder.create(forelimb);
+            chunk.data = bb = ensureRemaining(bb, 8 + features.length * 4);
+            putFeatures(bb, forelimb.id(), features);
+          }
+          break;
+        default:
+          break;
+      }
+      endSection(chunk, section, start);
+    }
+    submit(chunk);
+  }
+
+  /**
+   * Records a frame that is already decoded, e.g. to convert or trim a
+   * recording. Only the sections that are recorded by this writer and present
+   * in <code>record</code> are written.
+   *
+   * @param record
+   * @throws IOException if an earlier frame could not be written.
+   */
+  public void write(FrameRecord record) throws IOException {
+    Chunk chunk = takeFreeChunk(record.frameID);
+    for (Section section : sections) {
+      Object data = null;
+      switch (section) {
+        case DEPTH: data = record.depth; break;
+        case MASK: data = record.mask; break;
+        case FORELIMB_FEATURES: data = record.forelimbRegions; break;
+        case TRACKS: data = record.tracks; break;
+        case GESTURE_FEATURES: data = record.gestureFeatures; break;
+        default: break;
+      }
+      if (data == null)
+        continue;
+      int start = beginSection(chunk, section);
+      ByteBuffer bb = chunk.data;
+      switch (section) {
+        case DEPTH:
+          for (short v : record.depth)
+            bb.putShort(v);
+          break;
+        case MASK:
+          bb.put(record.mask);
+          break;
+        case FORELIMB_FEATURES:
+          bb.putInt(record.forelimbRegions.size());
+          for (FrameRecord.ForelimbRegion fr : record.forelimbRegions) {
+            chunk.data = bb = ensureRemaining(bb, 40 +
+                fr.fingertips.size() * 16);
+            for (int v : fr.boundingBox)
+              bb.putInt(v);
+            bb.put((byte) (fr.handRegion == null ? 0 : 1));
+            if (fr.handRegion != null)
+              for (int v : fr.handRegion)
+                bb.putInt(v);
+            putFingertips(bb, fr.fingertips);
+          }
+          break;
+        case TRACKS:
+          bb.putInt(record.tracks.size());
+          for (FrameRecord.Track track : record.tracks) {
+            chunk.data = bb = ensureRemaining(bb, 8 +
+                track.fingertipIDs.length * 28);
+            bb.putInt(track.forelimbID);
+            putTrack(bb, track.fingertipIDs, track.fingertipsI,
+                     track.fingertipsW);
+          }
+          break;
+        case GESTURE_FEATURES:
+          bb.putInt(record.gestureFeatures.size());
+          for (FrameRecord.GestureFeatures gf : record.gestureFeatures) {
+            chunk.data = bb = ensureRemaining(bb, 8 + gf.features.length * 4);
+            putFeatures(bb, gf.forelimbID, gf.features);
+          }
+          break;
+        default:
+          break;
+      }
+      endSection(chunk, section, start);
+    }
+    submit(chunk);
+  }
+
+  /**
+   * Writes the remaining frames and the frame index, and closes the file.
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+    Chunk last = new Chunk();
+    last.last = true;
+    try {
+      pendingChunks.put(last);
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while closing the recording.", e);
+    }
+    try {
+      if (writeException != null)
+        throw writeException;
+      long indexOffset = channel.position();
+      ByteBuffer index = ByteBuffer.allocate(4 + numFrames * 12 +
+                                             FOOTER_SIZE);
+      index.putInt(numFrames);
+      for (int i = 0; i < numFrames; i++)
+        index.putInt(indexFrameIDs[i]).putLong(indexOffsets[i]);
+      index.putLong(indexOffset).putInt(MAGIC);
+      index.flip();
+      writeFully(index);
+      LOGGER.info(String.format("Recorded %d frames.", numFrames));
+    } finally {
+      deflater.end();
+      out.close();
+    }
+  }
+
+  private Chunk takeFreeChunk(int frameID) throws IOException {
+    if (writeException != null)
+      throw writeException;
+    if (closed)
+      throw new IOException("The recording is closed.");
+    Chunk chunk;
+    try {
+      chunk = freeChunks.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the writer.", e);
+    }
+    chunk.frameID = frameID;
+    chunk.sections = 0;
+    chunk.data.clear();
+    return chunk;
+  }
+
+  private void submit(Chunk chunk) throws IOException {
+    chunk.data.flip();
+    try {
+      pendingChunks.put(chunk);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the writer.", e);
+    }
+  }
+
+  /**
+   * Reserves the length of a section and makes sure the buffer can hold the
+   * fixed size data of the section.
+   * @return the position of the section length.
+   */
+  private int beginSection(Chunk chunk, Section section) {
+    int fixedSize = 0;
+    if (section == Section.DEPTH)
+      fixedSize = width * height * 2;
+    else if (section == Section.MASK)
+      fixedSize = width * height;
+    chunk.data = ensureRemaining(chunk.data, 8 + fixedSize);
+    int start = chunk.data.position();
+    chunk.data.putInt(0);
+    return start;
+  }
+
+  private void endSection(Chunk chunk, Section section, int start) {
+    chunk.data.putInt(start, chunk.data.position() - start - 4);
+    chunk.sections |= 1 << section.ordinal();
+  }
+
+  private int estimateSize() {
+    int size = 4096;
+    if (sections.contains(Section.DEPTH))
+      size += width * height * 2;
+    if (sections.contains(Section.MASK))
+      size += width * height;
+    return size;
+  }
+
+  /**
+   * @return a buffer with at least <code>n</code> bytes remaining, with the
+   *    same content as <code>bb</code>.
+   */
+  private static ByteBuffer ensureRemaining(ByteBuffer bb, int n) {
+    if (bb.remaining() >= n)
+      return bb;
+    int capacity = Math.max(bb.capacity() * 2, bb.position() + n);
+    ByteBuffer res = ByteBuffer.allocate(capacity);
+    bb.flip();
+    res.put(bb);
+    return res;
+  }
+
+  private static void putRect(ByteBuffer bb, CvRect rect) {
+    bb.putInt(rect.x()).putInt(rect.y()).putInt(rect.width()).
+       putInt(rect.height());
+  }
+
+  private static void putFingertips(ByteBuffer bb,
+      List<ValConfidencePair<Point3f>> fingertips) {
+    bb.putInt(fingertips.size());
+    for (ValConfidencePair<Point3f> vc : fingertips) {
+      bb.putFloat(vc.value.x).putFloat(vc.value.y).putFloat(vc.value.z);
+      bb.putFloat(vc.confidence);
+    }
+  }
+
+  private static void putTrack(ByteBuffer bb, int[] ids,
+      List<Point3f> fingertipsI, List<Point3f> fingertipsW) {
+    bb.putInt(ids.length);
+    for (int i = 0; i < ids.length; i++) {
+      Point3f pi = fingertipsI.get(i), pw = fingertipsW.get(i);
+      bb.putInt(ids[i]);
+      bb.putFloat(pi.x).putFloat(pi.y).putFloat(pi.z);
+      bb.putFloat(pw.x).putFloat(pw.y).putFloat(pw.z);
+    }
+  }
+
+  private static void putFeatures(ByteBuffer bb, int forelimbID,
+                                  float[] features) {
+    bb.putInt(forelimbID);
+    bb.putInt(features.length);
+    for (float f : features)
+      bb.putFloat(f);
+  }
+
+  /**
+   * Body of the writer thread.
+   */
+  private void writeChunks() {
+    ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+    while (true) {
+      Chunk chunk;
+      try {
+        chunk = pendingChunks.take();
+      } catch (InterruptedException e) {
+        writeException = new IOException("Writer thread interrupted.", e);
+        return;
+      }
+      if (chunk.last)
+        return;
+      if (writeException == null) {
+        try {
+          writeChunk(chunk, header);
+        } catch (IOException e) {
+          LOGGER.severe(e.getMessage());
+          writeException = e;
+        }
+      }
+      freeChunks.add(chunk);
+    }
+  }
+
+  private void writeChunk(Chunk chunk, ByteBuffer header) throws IOException {
+    ByteBuffer data = chunk.data;
+    int rawLength = data.remaining();
+    ByteBuffer payload = data;
+    if (compression == Compression.DEFLATE) {
+      deflater.reset();
+      deflater.setInput(data.array(), data.position(), rawLength);
+      deflater.finish();
+      int n = 0;
+      if (compressed.length < rawLength + 64)
+        compressed = new byte[rawLength + 64];
+      while (!deflater.finished()) {
+        if (n == compressed.length)
+          compressed = Arrays.copyOf(compressed, compressed.length * 2);
+        n += deflater.deflate(compressed, n, compressed.length - n);
+      }
+      payload = ByteBuffer.wrap(compressed, 0, n);
+    }
+
+    if (numFrames == indexFrameIDs.length) {
+      indexFrameIDs = Arrays.copyOf(indexFrameIDs, numFrames * 2);
+      indexOffsets = Arrays.copyOf(indexOffsets, numFrames * 2);
+    }
+    indexFrameIDs[numFrames] = chunk.frameID;
+    indexOffsets[numFrames] = channel.position();
+    numFrames++;
+
+    header.clear();
+    header.putInt(chunk.frameID).putInt(chunk.sections).putInt(rawLength).
+           putInt(payload.remaining());
+    header.flip();
+    writeFully(header);
+    writeFully(payload);
+  }
+
+  private void writeFully(ByteBuffer bb) throws IOException {
+    while (bb.hasRemaining())
+      channel.write(bb);
+  }
+}
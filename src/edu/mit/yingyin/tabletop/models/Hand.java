@@ -1,6 +1,5 @@
 package edu.mit.yingyin.tabletop.models;
 
-import java.util.List;	
 import java.util.logging.Logger;
 
 import javax.vecmath.Point3f;
@@ -31,7 +30,7 @@ public class Hand {
    * Euler rotation angles.
    */
   private final Tuple3f rotation;
-  private final List<Point3f> pointCloud;
+  private final PointCloud pointCloud;
  
   /**
    * 
@@ -44,7 +43,7 @@ public class Hand {
    * @param pointCloud
    */
   public Hand(float distAboveSurface, float width, Point3f position, Vector3f v, 
-      Vector3f a, Tuple3f theta, List<Point3f> pointCloud) {
+      Vector3f a, Tuple3f theta, PointCloud pointCloud) {
     if (v == null || a == null) {
       LOGGER.severe("velocity and acceleration cannot be null.");
       System.exit(-1);
@@ -74,17 +73,14 @@ public class Hand {
   
   public Tuple3f rotation() { return (Tuple3f) rotation.clone(); }
   
-  public List<Point3f> pointCloud() { return pointCloud; }
-  
-  public String pointCloudToString(List<Point3f> points) {
-    StringBuffer sb = new StringBuffer();
-    for (Point3f p : points) {
-      sb.append(tupleToString(p));
-    }
-    return sb.toString();
-  }
+  /**
+   * @return the reference of the point cloud. It is owned by the 
+   *    <code>ProcessPacket</code> the hand is estimated from and is only valid
+   *    until the packet is reused.
+   */
+  public PointCloud pointCloud() { return pointCloud; }
   
-  private String tupleToString(Tuple3f t) {
-    return String.format("%.3f,%.3f,%.3f,", t.x, t.y, t.z);
+  public String pointCloudToString(PointCloud points) {
+    return points.toString();
   }
 }
@@ -0,0 +1,316 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.vecmath.Point2f;
+
+import org.OpenNI.Point3D;
+
+import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+
+/**
+ * Fuses the events of several engines whose sensors overlap into one event
+ * stream. It listens to a <code>MultiEngineHost</code>, whose events are
+ * already in the shared display space and carry their engine IDs and
+ * acquisition times.
+ *
+ * A fingertip seen by several sensors becomes one fused fingertip. A new
+ * fingertip is matched to the fused fingertip that was last seen within
+ * <code>mergeDistance</code> display units and <code>timeWindow</code> of its
+ * acquisition time. Each fused fingertip is owned by the first engine that
+ * sees it, and the events of the other engines for that fingertip are
+ * dropped. If the owner does not see the fingertip within the time window,
+ * another engine that sees it takes over. The published events have the
+ * fused fingertip IDs and the engine IDs of the owners.
+ *
+ * The pointing locations of all the engines within the time window are
+ * merged, with the locations closer than <code>mergeDistance</code> counted
+ * once.
+ *
+ * Events are published as soon as they arrive, so the fusion only adds the
+ * matching time to the latency. Each arriving fingertip is compared with the
+ * fused fingertips of the last time window only.
+ *
+ * @author yingyin
+ *
+ */
+public class HandEventFusion implements IHandEventListener {
+  public static final float DEFAULT_MERGE_DISTANCE = 40;
+  public static final long DEFAULT_TIME_WINDOW_MILLIS = 50;
+
+  /**
+   * A fingertip fused from the observations of several engines.
+   */
+  private static class FusedFingertip {
+    final int id;
+    int owner;
+    final Point2f position = new Point2f();
+    /**
+     * Latest acquisition time of the fingertip by the owner.
+     */
+    long ownerSeen;
+    /**
+     * Fingertip IDs of the engines that see this fingertip, indexed by the
+     * engine IDs.
+     */
+    final Map<Integer, Integer> sourceIDs = new HashMap<Integer, Integer>();
+    /**
+     * Latest acquisition times of the fingertip by the engines that see it,
+     * indexed by the engine IDs.
+     */
+    final Map<Integer, Long> lastSeen = new HashMap<Integer, Long>();
+
+    FusedFingertip(int id, int owner) {
+      this.id = id;
+      this.owner = owner;
+    }
+  }
+
+  private final float mergeDistanceSq;
+  private final long timeWindowNanos;
+  private final List<IHandEventListener> listeners =
+      new CopyOnWriteArrayList<IHandEventListener>();
+  private final List<FusedFingertip> fingertips =
+      new ArrayList<FusedFingertip>();
+  /**
+   * Latest pointing event of each engine.
+   */
+  private final Map<Integer, DiecticEvent> pointings =
+      new HashMap<Integer, DiecticEvent>();
+  /**
+   * Latest acquisition time of the events of each engine. The engines deliver
+   * their events with different delays, so each engine's sightings are
+   * expired against the time of that engine.
+   */
+  private final Map<Integer, Long> clocks = new HashMap<Integer, Long>();
+  private int nextID = 0;
+  private long fusionNanos = 0, maxFusionNanos = 0, fusions = 0,
+      duplicates = 0;
+
+  /**
+   * @param mergeDistance maximum distance in the display space between the
+   *    observations of the same fingertip by different sensors.
+   * @param timeWindow maximum difference between the acquisition times of the
+   *    observations of the same fingertip.
+   * @param unit unit of <code>timeWindow</code>.
+   */
+  public HandEventFusion(float mergeDistance, long timeWindow,
+                         TimeUnit unit) {
+    mergeDistanceSq = mergeDistance * mergeDistance;
+    timeWindowNanos = unit.toNanos(timeWindow);
+  }
+
+  public HandEventFusion() {
+    this(DEFAULT_MERGE_DISTANCE, DEFAULT_TIME_WINDOW_MILLIS,
+         TimeUnit.MILLISECONDS);
+  }
+
+  public void addHandEventListener(IHandEventListener l) {
+    listeners.add(l);
+  }
+
+  public void removeListener(IHandEventListener l) {
+    listeners.remove(l);
+  }
+
+  @Override
+  public void fingerPressed(List<ManipulativeEvent> feList) {
+    List<ManipulativeEvent> fused;
+    synchronized (this) {
+      long start = System.nanoTime();
+      fused = fuse(feList);
+      record(System.nanoTime() - start);
+    }
+    if (!fused.isEmpty()) {
+      for (IHandEventListener l : listeners)
+        l.fingerPressed(fused);
+    }
+  }
+
+  @Override
+  public void fingerPointed(DiecticEvent de) {
+    DiecticEvent fused;
+    synchronized (this) {
+      long start = System.nanoTime();
+      fused = fuse(de);
+      record(System.nanoTime() - start);
+    }
+    for (IHandEventListener l : listeners)
+      l.fingerPointed(fused);
+  }
+
+  /**
+   * @return average time in nanoseconds spent fusing an event.
+   */
+  public synchronized long averageFusionNanos() {
+    return fusions == 0 ? 0 : fusionNanos / fusions;
+  }
+
+  /**
+   * @return maximum time in nanoseconds spent fusing an event.
+   */
+  public synchronized long maxFusionNanos() {
+    return maxFusionNanos;
+  }
+
+  /**
+   * @return number of fingertip observations dropped as duplicates.
+   */
+  public synchronized long duplicates() {
+    return duplicates;
+  }
+
+  /**
+   * @return number of fused fingertips seen within the time window of the
+   *    latest event of an engine that sees them.
+   */
+  public synchronized int numFingertips() {
+    return fingertips.size();
+  }
+
+  private List<ManipulativeEvent> fuse(List<ManipulativeEvent> feList) {
+    List<ManipulativeEvent> res =
+        new ArrayList<ManipulativeEvent>(feList.size());
+    if (feList.isEmpty())
+      return res;
+    for (ManipulativeEvent fe : feList)
+      advanceClock(fe.engineID, fe.acquisitionTime);
+    removeStale();
+    for (ManipulativeEvent fe : feList) {
+      if (fe.posDisplay == null)
+        continue;
+      FusedFingertip f = match(fe);
+      if (f == null) {
+        f = new FusedFingertip(nextID++, fe.engineID);
+        fingertips.add(f);
+      }
+      f.sourceIDs.put(fe.engineID, fe.fingertipID);
+      Long seen = f.lastSeen.get(fe.engineID);
+      if (seen == null || seen < fe.acquisitionTime)
+        f.lastSeen.put(fe.engineID, fe.acquisitionTime);
+      if (f.owner != fe.engineID) {
+        if (fe.acquisitionTime - f.ownerSeen <= timeWindowNanos) {
+          // The owner of the fingertip is still seeing it.
+          duplicates++;
+          continue;
+        }
+        f.owner = fe.engineID;
+      }
+      f.position.set(fe.posDisplay);
+      f.ownerSeen = Math.max(f.ownerSeen, fe.acquisitionTime);
+
+      ManipulativeEvent e = new ManipulativeEvent(fe.posImage, fe.posDisplay,
+          fe.frameID, fe.type, fe.forelimbID, f.id);
+      e.engineID = fe.engineID;
+      e.acquisitionTime = fe.acquisitionTime;
+      e.sensorTimestamp = fe.sensorTimestamp;
+      e.checkpointTimes = fe.checkpointTimes;
+      res.add(e);
+    }
+    return res;
+  }
+
+  /**
+   * Finds the fused fingertip of an observation, either by the fingertip ID
+   * of the engine or by the position.
+   */
+  private FusedFingertip match(ManipulativeEvent fe) {
+    FusedFingertip closest = null;
+    float minDistSq = mergeDistanceSq;
+    for (FusedFingertip f : fingertips) {
+      Integer id = f.sourceIDs.get(fe.engineID);
+      if (id != null && id == fe.fingertipID &&
+          fe.fingertipID != PointTracker.NO_TRACK)
+        return f;
+      // A fingertip of the same engine is a different fingertip.
+      if (id != null && f.owner == fe.engineID)
+        continue;
+      float distSq = f.position.distanceSquared(fe.posDisplay);
+      if (distSq <= minDistSq) {
+        minDistSq = distSq;
+        closest = f;
+      }
+    }
+    return closest;
+  }
+
+  private void advanceClock(int engineID, long time) {
+    Long clock = clocks.get(engineID);
+    if (clock == null || clock < time)
+      clocks.put(engineID, time);
+  }
+
+  /**
+   * Removes the fused fingertips that none of the engines seeing them has
+   * seen within the time window of its latest event.
+   */
+  private void removeStale() {
+    Iterator<FusedFingertip> it = fingertips.iterator();
+    while (it.hasNext()) {
+      if (isStale(it.next()))
+        it.remove();
+    }
+  }
+
+  private boolean isStale(FusedFingertip f) {
+    for (Map.Entry<Integer, Long> e : f.lastSeen.entrySet()) {
+      if (clocks.get(e.getKey()) - e.getValue() <= timeWindowNanos)
+        return false;
+    }
+    return true;
+  }
+
+  private DiecticEvent fuse(DiecticEvent de) {
+    pointings.put(de.engineID, de);
+    // Every engine sends a pointing event per frame, so the fingertips that
+    // are no longer seen expire even when there are no fingertip events.
+    advanceClock(de.engineID, de.acquisitionTime);
+    removeStale();
+    List<Point3D> image = new ArrayList<Point3D>(),
+        world = new ArrayList<Point3D>();
+    List<Point2f> display = new ArrayList<Point2f>();
+    for (DiecticEvent p : pointings.values()) {
+      if (Math.abs(de.acquisitionTime - p.acquisitionTime) > timeWindowNanos)
+        continue;
+      Point3D[] pi = p.pointingLocationsI(), pw = p.pointingLocationsW();
+      Point2f[] pd = p.pointingLocationsD();
+      for (int i = 0; i < pd.length; i++) {
+        if (isNear(display, pd[i])) {
+          duplicates++;
+          continue;
+        }
+        display.add(pd[i]);
+        image.add(pi[i]);
+        world.add(pw[i]);
+      }
+    }
+    DiecticEvent res = new DiecticEvent(image.toArray(new Point3D[0]),
+        world.toArray(new Point3D[0]), display.toArray(new Point2f[0]));
+    res.engineID = de.engineID;
+    res.acquisitionTime = de.acquisitionTime;
+    res.sensorTimestamp = de.sensorTimestamp;
+    res.checkpointTimes = de.checkpointTimes;
+    return res;
+  }
+
+  private boolean isNear(List<Point2f> points, Point2f p) {
+    for (Point2f q : points)
+      if (q.distanceSquared(p) <= mergeDistanceSq)
+        return true;
+    return false;
+  }
+
+  private void record(long nanos) {
+    fusions++;
+    fusionNanos += nanos;
+    maxFusionNanos = Math.max(maxFusionNanos, nanos);
+  }
+}
@@ -22,10 +22,7 @@ public class HandPoseDescriptor {
    * Creates a descriptor.
    * @param points in physical coordinates.
    */
-  public HandPoseDescriptor(CvMat points) {
-    if (points.cols() != 3)
-      throw new IllegalArgumentException(
-          "The points matrix should have 3 colums.");
+  public HandPoseDescriptor(PointCloud points) {
     radius = findRadius(points);
     radiusWidthInv = NUM_CIRCLES / radius;
     sectorWidthInv = (float) (NUM_SECTORS / (Math.PI * 2));
@@ -33,6 +30,14 @@ public class HandPoseDescriptor {
     depthWidthInv = NUM_DEPTH_SECTIONS / (maxDepth - minDepth);
     computeDescriptor(points);
   }
+  
+  /**
+   * Creates a descriptor.
+   * @param points in physical coordinates. Each row is a 3 dimensional point.
+   */
+  public HandPoseDescriptor(CvMat points) {
+    this(toPointCloud(points));
+  }
 
   /**
    * Radius of the descriptor. It is calculated according to CAMSHIFT window
@@ -56,48 +61,51 @@ public class HandPoseDescriptor {
     return sb.toString();
   }
   
+  private static PointCloud toPointCloud(CvMat points) {
+    if (points.cols() != 3)
+      throw new IllegalArgumentException(
+          "The points matrix should have 3 colums.");
+    PointCloud res = new PointCloud(points.rows());
+    FloatBuffer fb = points.getFloatBuffer();
+    fb.rewind();
+    for (int i = 0; i < points.rows(); i++)
+      res.add(fb.get(i * 3), fb.get(i * 3 + 1), fb.get(i * 3 + 2));
+    return res;
+  }
+  
   /**
    * Radius of the window enclosing the hand, excluding outliers.
    * @param points centered at the origin.
    * @return
    */
-  private float findRadius(CvMat points) {
+  private float findRadius(PointCloud points) {
     // 1 pixel is roughly 2mm.
-    return (float) Math.sqrt(points.rows()) * 2;
+    return (float) Math.sqrt(points.size()) * 2;
   }
   
-  /**
-   * 
-   * @param points a matrix of float numbers. Each row is a 3 dimensional point.
-   */
-  private void findDepthMinMax(CvMat points) {
-    FloatBuffer fb = points.getFloatBuffer();
-    fb.rewind();
+  private void findDepthMinMax(PointCloud points) {
     minDepth = Float.POSITIVE_INFINITY;
     maxDepth = Float.NEGATIVE_INFINITY;
-    for (int i = 0; i < points.rows(); i++) {
-      float d = fb.get(i * 3 + 2);
+    for (int i = 0; i < points.size(); i++) {
+      float d = points.z[i];
       minDepth = Math.min(d, minDepth);
       maxDepth = Math.max(d, maxDepth);
     }
   }
   
-  private void computeDescriptor(CvMat points) {
-    float[] p = new float[3];
-    FloatBuffer fb = points.getFloatBuffer();
-    fb.rewind();
+  private void computeDescriptor(PointCloud points) {
     int total = 0;
-    while (fb.remaining() > 0) {
-      fb.get(p);
-      float r = (float) Math.sqrt(p[0] * p[0] + p[1] * p[1]);
+    for (int i = 0; i < points.size(); i++) {
+      float x = points.x[i], y = points.y[i];
+      float r = (float) Math.sqrt(x * x + y * y);
       if (r <= radius) {
         // From -pi to pi.
-        float theta = (float) (Math.atan2(p[1], p[0]) + Math.PI);
+        float theta = (float) (Math.atan2(y, x) + Math.PI);
         int rIndex = (int) (r * radiusWidthInv); 
         rIndex = Math.min(rIndex, NUM_CIRCLES - 1);
         int sIndex = (int) (theta * sectorWidthInv);
         sIndex = Math.min(sIndex, NUM_SECTORS - 1);
-        int dIndex = (int) ((p[2] - minDepth) * depthWidthInv);
+        int dIndex = (int) ((points.z[i] - minDepth) * depthWidthInv);
         dIndex = Math.min(dIndex, NUM_DEPTH_SECTIONS - 1);
         histogram[rIndex * NUM_SECTORS * NUM_DEPTH_SECTIONS + 
                   sIndex * NUM_DEPTH_SECTIONS + dIndex]++;
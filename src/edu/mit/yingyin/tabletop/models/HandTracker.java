@@ -1,18 +1,23 @@
 package edu.mit.yingyin.tabletop.models;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
 import javax.vecmath.Point2f;
 import javax.vecmath.Point3f;
 
 import org.OpenNI.Point3D;
-import org.OpenNI.StatusException;
 
 import edu.mit.yingyin.calib.CalibModel;
 import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent.FingerEventType;
 import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+import edu.mit.yingyin.tabletop.models.PipelineMetrics.Stage;
+import edu.mit.yingyin.tabletop.models.ProcessPacket.Checkpoint;
 
 /**
  * <code>HandTracker</code> tracks hand events based on estimated hand model 
@@ -30,19 +35,54 @@ public class HandTracker {
     public enum FingerEventType {PRESSED, RELEASED};
     
     public int frameID;
+    /**
+     * Persistent IDs of the forelimb and the fingertip generating the event.
+     * <code>PointTracker.NO_TRACK</code> if unknown.
+     */
+    public int forelimbID, fingertipID;
     /**
      * Position on depth image and position on display.
      */
     public Point3f posImage;
     public Point2f posDisplay;
     public FingerEventType type;
+    /**
+     * Index of the engine generating the event in a 
+     * <code>MultiEngineHost</code>. 0 for a single engine.
+     */
+    public int engineID;
+    /**
+     * <code>System.nanoTime</code> when the depth frame of the event was 
+     * acquired.
+     */
+    public long acquisitionTime;
+    /**
+     * Timestamp of the depth frame of the event in microseconds from the 
+     * sensor clock.
+     */
+    public long sensorTimestamp;
+    /**
+     * <code>System.nanoTime</code> when the frame of the event reached each 
+     * <code>ProcessPacket.Checkpoint</code> up to <code>TRACKED</code>, 
+     * indexed by the ordinals. Shared by the events of the same frame, so 
+     * the caller should not change it. Null if unknown.
+     */
+    public long[] checkpointTimes;
     
     public ManipulativeEvent(Point3f posImage, Point2f posDisplay,
         int frameID, FingerEventType type) { 
+      this(posImage, posDisplay, frameID, type, PointTracker.NO_TRACK, 
+           PointTracker.NO_TRACK);
+    }
+    
+    public ManipulativeEvent(Point3f posImage, Point2f posDisplay,
+        int frameID, FingerEventType type, int forelimbID, int fingertipID) { 
       this.posImage = posImage;
       this.posDisplay = posDisplay;
       this.frameID = frameID;
       this.type = type;
+      this.forelimbID = forelimbID;
+      this.fingertipID = fingertipID;
     }
     
     public String toString() {
@@ -52,6 +92,28 @@ public class HandTracker {
   }
   
   public static class DiecticEvent {
+    /**
+     * Index of the engine generating the event in a 
+     * <code>MultiEngineHost</code>. 0 for a single engine.
+     */
+    public int engineID;
+    /**
+     * <code>System.nanoTime</code> when the depth frame of the event was 
+     * acquired.
+     */
+    public long acquisitionTime;
+    /**
+     * Timestamp of the depth frame of the event in microseconds from the 
+     * sensor clock.
+     */
+    public long sensorTimestamp;
+    /**
+     * <code>System.nanoTime</code> when the frame of the event reached each 
+     * <code>ProcessPacket.Checkpoint</code> up to <code>TRACKED</code>, 
+     * indexed by the ordinals. Shared by the events of the same frame, so 
+     * the caller should not change it. Null if unknown.
+     */
+    public long[] checkpointTimes;
     private Point3D[] pointingLocationsI, pointingLocationsW;
     private Point2f[] pointingLocationsD;
     
@@ -99,53 +161,130 @@ public class HandTracker {
       HandTracker.class.getName());
   private static final int DEBOUNCE_COUNT = 3;
 
+  /**
+   * Listeners can be added and removed while another thread is updating.
+   */
   private List<IHandEventListener> listeners = 
-      new ArrayList<IHandEventListener>();
+      new CopyOnWriteArrayList<IHandEventListener>();
   
-  /** Counts the duration of contact or noncontact. */
-  private int pressedCounter = 0, releasedCounter = 0;
-  /** True if finger is pressed, false otherwise. */
-  private boolean pressed = false;
+  /**
+   * Press debounce state of a tracked fingertip.
+   */
+  private static class FingertipState {
+    /** Counts the duration of contact or noncontact. */
+    int pressedCounter = 0, releasedCounter = 0;
+    /** True if finger is pressed, false otherwise. */
+    boolean pressed = false;
+    int forelimbID;
+    /** Last position in the image. */
+    Point3f tip;
+    long lastUpdate;
+  }
+
+  /**
+   * Debounce states of the fingertips indexed by the fingertip IDs. Only
+   * contains the fingertips seen in the last DEBOUNCE_COUNT updates.
+   */
+  private Map<Integer, FingertipState> fingertipStates = 
+      new HashMap<Integer, FingertipState>();
+  private long updateCount = 0;
   private CalibModel calibExample;
   private DiecticGestureHandler dgh = new DiecticGestureHandler();
-  private OpenNIDevice openni;
+  private DepthProjection projection;
+  private PipelineMetrics metrics = new PipelineMetrics();
+  private FingertipPredictor predictor;
+  /**
+   * Image and then display coordinates of the pointing locations, reused
+   * across frames.
+   */
+  private float[] pointingCoords = new float[0];
   
-  public HandTracker(CalibModel calibExample, OpenNIDevice openni) {
+  /**
+   * @param calibExample calibration between the depth image and the display.
+   * @param projection projection model of the depth camera.
+   */
+  public HandTracker(CalibModel calibExample, DepthProjection projection) {
     this.calibExample = calibExample;
-    this.openni = openni;
+    this.projection = projection;
   }
   
+  /**
+   * Sets the metrics the tracking and dispatch latencies are recorded to.
+   * @param metrics cannot be null.
+   */
+  public void setMetrics(PipelineMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Sets the predictor of the display positions of the fingertips.
+   * @param predictor null if the positions are not predicted.
+   */
+  public void setPredictor(FingertipPredictor predictor) {
+    this.predictor = predictor;
+  }
+
   /**
    * Updates forelimbs information and generates events.
-   * @param forelimbs information for all the forelimbs detected.
-   * @param frameID frame ID for the current update.
+   * @param packet a processed frame with the forelimbs detected and the model
+   *    of the interaction surface.
    */
-  public void update(List<Forelimb> forelimbs, int frameID) {
-    List<ManipulativeEvent> fingerEventList = noFilter(forelimbs, frameID);
-    if (fingerEventList != null && !fingerEventList.isEmpty()) {
+  public void update(ProcessPacket packet) {
+    List<Forelimb> forelimbs = packet.forelimbs;
+    InteractionSurface surface = packet.interactionSurface;
+    // Time spent in the listeners is recorded separately from tracking.
+    long start = System.nanoTime();
+    List<ManipulativeEvent> fingerEventList = noFilter(forelimbs, 
+                                                       packet.depthFrameID);
+    for (ManipulativeEvent fe : fingerEventList)
+      fe.acquisitionTime = packet.acquisitionTime;
+    if (predictor != null) {
+      predictor.recordLatency(System.nanoTime() - packet.acquisitionTime);
+      predictor.predict(fingerEventList);
+    }
+    List<Point3D> intersections = dgh.update(forelimbs, surface);
+    int size = intersections.size();
+    Point3D[] intersectionsW = new Point3D[size];
+    intersections.toArray(intersectionsW);
+    Point3D[] intersectionsI = new Point3D[size];
+    Point2f[] intersectionsD = new Point2f[size];
+    Point3f imageP = new Point3f();
+    if (pointingCoords.length < size * 2)
+      pointingCoords = new float[size * 2];
+    for (int i = 0; i < size; i++) {
+      Point3D worldP = intersectionsW[i];
+      projection.worldToProjective(worldP.getX(), worldP.getY(), 
+                                   worldP.getZ(), imageP);
+      intersectionsI[i] = new Point3D(imageP.x, imageP.y, imageP.z);
+      pointingCoords[i * 2] = imageP.x;
+      pointingCoords[i * 2 + 1] = imageP.y;
+    }
+    calibExample.imageToDisplayCoords(pointingCoords, pointingCoords, size);
+    for (int i = 0; i < size; i++)
+      intersectionsD[i] = new Point2f(pointingCoords[i * 2], 
+                                      pointingCoords[i * 2 + 1]);
+    DiecticEvent de = new DiecticEvent(intersectionsI, intersectionsW, 
+        intersectionsD);
+    de.acquisitionTime = packet.acquisitionTime;
+
+    long t = packet.stamp(Checkpoint.TRACKED);
+    long[] checkpointTimes = packet.checkpointTimes.clone();
+    for (ManipulativeEvent fe : fingerEventList) {
+      fe.sensorTimestamp = packet.sensorTimestamp;
+      fe.checkpointTimes = checkpointTimes;
+    }
+    de.sensorTimestamp = packet.sensorTimestamp;
+    de.checkpointTimes = checkpointTimes;
+    if (!fingerEventList.isEmpty()) {
       for (IHandEventListener l : listeners) 
         l.fingerPressed(fingerEventList);
     }
-    try {
-      List<Point3D> intersections = dgh.update(forelimbs);
-      int size = intersections.size();
-      Point3D[] intersectionsW = new Point3D[size];
-      intersections.toArray(intersectionsW);
-      Point3D[] intersectionsI = openni.convertRealWorldToProjective(
-          intersectionsW);
-      Point2f[] intersectionsD = new Point2f[size];
-      for (int i = 0; i < size; i++) {
-        Point3D imageP = intersectionsI[i];
-        intersectionsD[i] = calibExample.imageToDisplayCoords(imageP.getX(), 
-            imageP.getY());
-      }
-      DiecticEvent de = new DiecticEvent(intersectionsI, intersectionsW, 
-          intersectionsD);
-      for (IHandEventListener l : listeners)
-        l.fingerPointed(de);
-    } catch (StatusException e) {
-      LOGGER.severe(e.getMessage());
-    }
+    for (IHandEventListener l : listeners)
+      l.fingerPointed(de);
+    long end = packet.stamp(Checkpoint.DISPATCHED);
+    metrics.recordDuration(Stage.DISPATCH, end - t);
+    metrics.recordDuration(Stage.TRACKING, t - start);
+    metrics.recordDuration(Stage.END_TO_END, end - packet.acquisitionTime);
   }
   
   public void addListener(IHandEventListener l) {
@@ -164,57 +303,94 @@ public class HandTracker {
    */
   public List<ManipulativeEvent> noFilter(List<Forelimb> forelimbs, int frameID) {
     List<ManipulativeEvent> fingerEventList = new ArrayList<ManipulativeEvent>();
-    for (Forelimb forelimb : forelimbs) 
-      for (Point3f tip : forelimb.fingertipsI())
-        fingerEventList.add(createFingerEvent(tip, frameID, 
-                                              FingerEventType.PRESSED));
+    for (Forelimb forelimb : forelimbs) {
+      int[] ids = forelimb.fingertipIDs();
+      List<Point3f> tips = forelimb.fingertipsI();
+      for (int i = 0; i < ids.length; i++)
+        fingerEventList.add(createFingerEvent(tips.get(i), frameID, 
+            FingerEventType.PRESSED, forelimb.id(), ids[i]));
+    }
     return fingerEventList;
   }
 
   /**
-   * Filters out finger pressed events.
+   * Filters out finger pressed events. Each fingertip is debounced separately
+   * by its ID. A frame in which a fingertip is not detected counts as a frame
+   * without contact, so a pressed fingertip that is missing for 
+   * DEBOUNCE_COUNT frames is released.
    * @param forelimbs
    * @param frameID
+   * @param table model of the interaction surface.
    * @return
    */
   public List<ManipulativeEvent> filterPressed(List<Forelimb> forelimbs, 
-                                         int frameID) {
-    InteractionSurface table = InteractionSurface.instance();
+      int frameID, InteractionSurface table) {
     List<ManipulativeEvent> fingerEventList = new ArrayList<ManipulativeEvent>();
     
     if (table == null) 
       return fingerEventList;
     
+    updateCount++;
     for (Forelimb forelimb : forelimbs) {
-      for (Point3f tip : forelimb.fingertipsI()) {
+      int[] ids = forelimb.fingertipIDs();
+      List<Point3f> tips = forelimb.fingertipsI();
+      for (int i = 0; i < ids.length; i++) {
+        Point3f tip = tips.get(i);
+        FingertipState state = fingertipStates.get(ids[i]);
+        if (state == null) {
+          state = new FingertipState();
+          fingertipStates.put(ids[i], state);
+        }
+        state.forelimbID = forelimb.id();
+        state.tip = tip;
+        state.lastUpdate = updateCount;
         float tipDepth = tip.z + Hand.FINGER_THICKNESS; 
         boolean inContact = table.isInContact((int)tip.x, (int)tip.y, tipDepth);
         if (inContact) {
-          pressedCounter++;
-          releasedCounter = 0;
+          state.pressedCounter++;
+          state.releasedCounter = 0;
         } else {
-          releasedCounter++;
-          pressedCounter = 0;
+          state.releasedCounter++;
+          state.pressedCounter = 0;
         }
-        if (pressedCounter == DEBOUNCE_COUNT && !pressed) {
-          pressed = true;
+        if (state.pressedCounter == DEBOUNCE_COUNT && !state.pressed) {
+          state.pressed = true;
           fingerEventList.add(createFingerEvent(tip, frameID, 
-                                                FingerEventType.PRESSED));
-        } else if (releasedCounter == DEBOUNCE_COUNT && pressed) {
-          pressed = false;
+              FingerEventType.PRESSED, forelimb.id(), ids[i]));
+        } else if (state.releasedCounter == DEBOUNCE_COUNT && state.pressed) {
+          state.pressed = false;
           fingerEventList.add(createFingerEvent(tip, frameID, 
-                                                FingerEventType.RELEASED));
+              FingerEventType.RELEASED, forelimb.id(), ids[i]));
         }
       }
     }
+    
+    Iterator<Map.Entry<Integer, FingertipState>> it = 
+        fingertipStates.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Integer, FingertipState> entry = it.next();
+      FingertipState state = entry.getValue();
+      if (state.lastUpdate == updateCount)
+        continue;
+      // A missing fingertip counts as not in contact, so a fingertip missed
+      // for fewer than DEBOUNCE_COUNT frames is not released.
+      state.releasedCounter++;
+      state.pressedCounter = 0;
+      if (state.releasedCounter < DEBOUNCE_COUNT)
+        continue;
+      if (state.pressed)
+        fingerEventList.add(createFingerEvent(state.tip, frameID, 
+            FingerEventType.RELEASED, state.forelimbID, entry.getKey()));
+      it.remove();
+    }
     return fingerEventList;
   }
   
   private ManipulativeEvent createFingerEvent(Point3f posImage, int frameID, 
-      FingerEventType type) {
+      FingerEventType type, int forelimbID, int fingertipID) {
     return new ManipulativeEvent(posImage, 
         calibExample.imageToDisplayCoords(posImage.x, posImage.y),
-        frameID, type);
+        frameID, type, forelimbID, fingertipID);
   }
   
 }
@@ -1,6 +1,15 @@
 package edu.mit.yingyin.tabletop.models;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import org.OpenNI.GeneralException;
@@ -8,6 +17,7 @@ import org.OpenNI.GeneralException;
 import edu.mit.yingyin.calib.CalibModel;
 import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
 import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.PipelineMetrics.Stage;
 
 /**
  * Main interface to the hand tracking back-end module that tracks the hand
@@ -29,17 +39,191 @@ public class HandTrackingEngine {
     public void fingerPointed(DiecticEvent de);
   }
 
+  /**
+   * What a pipeline stage does when the queue to the next stage is full.
+   */
+  public static enum QueuePolicy {
+    /** Waits until the next stage takes a packet. */
+    BLOCK,
+    /** Drops the oldest queued frame to make room for the new one. */
+    DROP_OLDEST
+  }
+
+  /**
+   * Configuration of the engine.
+   * 
+   * @author yingyin
+   *
+   */
+  public static class Config {
+    /**
+     * If true, acquisition, preprocessing, feature extraction and model 
+     * estimation run on separate threads.
+     */
+    public boolean pipelined = false;
+    /**
+     * Capacity of the hand-off queue after each stage in the pipelined mode.
+     */
+    public int pipelineQueueCapacity = 2;
+    public QueuePolicy queuePolicy = QueuePolicy.BLOCK;
+    /**
+     * If true, the pipeline metrics are registered as a JMX MBean.
+     */
+    public boolean metricsJmx = true;
+    /**
+     * Period in seconds to log the pipeline metrics. No logging if 0.
+     */
+    public int metricsLogPeriod = 0;
+    /**
+     * If true, only the regions near the forelimbs in the previous frames and 
+     * the image edges are preprocessed between full frames.
+     */
+    public boolean roi = false;
+    /**
+     * A full frame is processed at least once every this number of frames in
+     * the region of interest mode.
+     */
+    public int roiFullFramePeriod = RegionOfInterest.DEFAULT_FULL_FRAME_PERIOD;
+    /**
+     * Number of pixels the forelimb bounding boxes are expanded by in the 
+     * region of interest mode.
+     */
+    public int roiMargin = RegionOfInterest.DEFAULT_MARGIN;
+    /**
+     * Weight of a new frame in the online background update. 0 means the 
+     * background is fixed after the initial frames.
+     */
+    public float backgroundLearningRate = 0;
+    /**
+     * If true, the per-pixel loops of the background model run in row stripes
+     * on a shared fork/join pool.
+     */
+    public boolean parallelRows = false;
+    /**
+     * If true, foreground blobs that do not touch the image borders are 
+     * rejected as props before the contour analysis.
+     */
+    public boolean rejectFloatingBlobs = false;
+    /**
+     * If true, the skeleton of a hand is used to find a fingertip when the 
+     * convexity defects do not find any.
+     */
+    public boolean thinningFingertips = false;
+    /**
+     * If true, the display positions of the fingertips are predicted forward
+     * by the measured latency.
+     */
+    public boolean prediction = false;
+    /**
+     * Latency in milliseconds before a frame is acquired, added to the 
+     * measured latency in the prediction.
+     */
+    public int predictionSensorLatency = 0;
+    /**
+     * Maximum time in milliseconds to predict forward.
+     */
+    public int predictionMaxHorizon = 
+        (int) FingertipPredictor.DEFAULT_MAX_HORIZON_MILLIS;
+    /**
+     * Prediction error in display units at which the prediction is halved.
+     */
+    public float predictionDampingDistance = 
+        FingertipPredictor.DEFAULT_DAMPING_DISTANCE;
+
+    /**
+     * Creates a configuration from properties. Missing properties keep their
+     * default values.
+     * 
+     * @param properties can have the keys "pipelined" (true|false), 
+     *    "pipeline-queue-capacity", "pipeline-queue-policy" 
+     *    (block|drop-oldest), "metrics-jmx" (true|false), and 
+     *    "metrics-log-period" (seconds), "roi" (true|false), 
+     *    "roi-full-frame-period" (frames), "roi-margin" (pixels), 
+     *    "background-learning-rate" (0 to 1), "parallel-rows" 
+     *    (true|false), "reject-floating-blobs" (true|false), 
+     *    "thinning-fingertips" (true|false), "prediction" (true|false), 
+     *    "prediction-sensor-latency" (ms), "prediction-max-horizon" (ms) 
+     *    and "prediction-damping-distance" (display units).
+     * @return a new configuration.
+     */
+    public static Config fromProperties(Properties properties) {
+      Config config = new Config();
+      config.pipelined = Boolean.parseBoolean(properties.getProperty(
+          "pipelined", Boolean.toString(config.pipelined)));
+      config.pipelineQueueCapacity = Integer.parseInt(properties.getProperty(
+          "pipeline-queue-capacity", 
+          Integer.toString(config.pipelineQueueCapacity)));
+      String policy = properties.getProperty("pipeline-queue-policy", 
+          "block");
+      config.queuePolicy = QueuePolicy.valueOf(
+          policy.trim().toUpperCase().replace('-', '_'));
+      config.metricsJmx = Boolean.parseBoolean(properties.getProperty(
+          "metrics-jmx", Boolean.toString(config.metricsJmx)));
+      config.metricsLogPeriod = Integer.parseInt(properties.getProperty(
+          "metrics-log-period", Integer.toString(config.metricsLogPeriod)));
+      config.roi = Boolean.parseBoolean(properties.getProperty(
+          "roi", Boolean.toString(config.roi)));
+      config.roiFullFramePeriod = Integer.parseInt(properties.getProperty(
+          "roi-full-frame-period", 
+          Integer.toString(config.roiFullFramePeriod)));
+      config.roiMargin = Integer.parseInt(properties.getProperty(
+          "roi-margin", Integer.toString(config.roiMargin)));
+      config.backgroundLearningRate = Float.parseFloat(properties.getProperty(
+          "background-learning-rate", 
+          Float.toString(config.backgroundLearningRate)));
+      config.parallelRows = Boolean.parseBoolean(properties.getProperty(
+          "parallel-rows", Boolean.toString(config.parallelRows)));
+      config.rejectFloatingBlobs = Boolean.parseBoolean(properties.getProperty(
+          "reject-floating-blobs", 
+          Boolean.toString(config.rejectFloatingBlobs)));
+      config.thinningFingertips = Boolean.parseBoolean(properties.getProperty(
+          "thinning-fingertips", Boolean.toString(config.thinningFingertips)));
+      config.prediction = Boolean.parseBoolean(properties.getProperty(
+          "prediction", Boolean.toString(config.prediction)));
+      config.predictionSensorLatency = Integer.parseInt(
+          properties.getProperty("prediction-sensor-latency", 
+              Integer.toString(config.predictionSensorLatency)));
+      config.predictionMaxHorizon = Integer.parseInt(properties.getProperty(
+          "prediction-max-horizon", 
+          Integer.toString(config.predictionMaxHorizon)));
+      config.predictionDampingDistance = Float.parseFloat(
+          properties.getProperty("prediction-damping-distance", 
+              Float.toString(config.predictionDampingDistance)));
+      return config;
+    }
+  }
+
+  /**
+   * Number of processing stages after acquisition in the pipelined mode.
+   */
+  private static final int PIPELINE_STAGES = 3;
+
   private static Logger logger =
       Logger.getLogger(HandTrackingEngine.class.getName());
 
-  private final OpenNIDevice openni;
+  private final DepthFrameSource source;
   private int depthWidth, depthHeight;
   private int prevDepthFrameID = -1, currentDepthFrameID = -1;
   private HandTracker tracker;
   private ForelimbFeatureDetector featureDetector;
+  private final ProcessPacketPool packetPool;
+  private final PipelineMetrics metrics = new PipelineMetrics();
+  private final DerivedProductStats productStats = new DerivedProductStats();
+  /**
+   * Null if the engine is not in the pipelined mode.
+   */
+  private FramePipeline pipeline;
+  /**
+   * Delivers the events to the asynchronous listeners. Created when the first
+   * asynchronous listener is added.
+   */
+  private ExecutorService eventExecutor;
+  private final Map<IHandEventListener, AsyncHandEventListener> asyncListeners =
+      new HashMap<IHandEventListener, AsyncHandEventListener>();
 
   /**
-   * Creates a new <code>HandTrackingEngine</code>.
+   * Creates a new <code>HandTrackingEngine</code> that processes each frame 
+   * in the calling thread.
    * 
    * @param openniConfigFile
    * @param calibrationFile
@@ -47,15 +231,75 @@ public class HandTrackingEngine {
    */
   public HandTrackingEngine(String openniConfigFile, String calibrationFile)
       throws GeneralException {
+    this(openniConfigFile, calibrationFile, new Config());
+  }
+
+  /**
+   * Creates a new <code>HandTrackingEngine</code> that gets the depth frames
+   * from OpenNI.
+   * 
+   * @param openniConfigFile
+   * @param calibrationFile
+   * @param config engine configuration.
+   * @throws GeneralException
+   */
+  public HandTrackingEngine(String openniConfigFile, String calibrationFile,
+      Config config) throws GeneralException {
+    this(new OpenNIFrameSource(openniConfigFile), calibrationFile, config);
+  }
 
-    openni = new OpenNIDevice(openniConfigFile);
+  /**
+   * Creates a new <code>HandTrackingEngine</code>.
+   * 
+   * @param source the source of the depth frames. It is released with the 
+   *    engine.
+   * @param calibrationFile
+   * @param config engine configuration.
+   */
+  public HandTrackingEngine(DepthFrameSource source, String calibrationFile,
+      Config config) {
+
+    this.source = source;
 
-    depthWidth = openni.getDepthWidth();
-    depthHeight = openni.getDepthHeight();
-    featureDetector =
-        new ForelimbFeatureDetector(depthWidth, depthHeight, openni);
+    depthWidth = source.getDepthWidth();
+    depthHeight = source.getDepthHeight();
+    featureDetector = new ForelimbFeatureDetector(depthWidth, depthHeight, 
+                                                  source.projection());
 
-    tracker = new HandTracker(new CalibModel(calibrationFile), openni);
+    tracker = new HandTracker(
+        new CalibModel(calibrationFile, depthWidth, depthHeight), 
+        source.projection());
+    featureDetector.setMetrics(metrics);
+    featureDetector.background().setParallelRows(config.parallelRows);
+    featureDetector.setBackgroundLearningRate(config.backgroundLearningRate);
+    featureDetector.setRejectFloatingBlobs(config.rejectFloatingBlobs);
+    featureDetector.setThinningFingertips(config.thinningFingertips);
+    if (config.roi) {
+      featureDetector.setRegionOfInterest(new RegionOfInterest(depthWidth, 
+          depthHeight, config.roiFullFramePeriod, config.roiMargin, 
+          RegionOfInterest.DEFAULT_EDGE_BAND));
+    }
+    tracker.setMetrics(metrics);
+    if (config.prediction) {
+      tracker.setPredictor(new FingertipPredictor(
+          TimeUnit.MILLISECONDS.toNanos(config.predictionSensorLatency),
+          TimeUnit.MILLISECONDS.toNanos(config.predictionMaxHorizon),
+          config.predictionDampingDistance, FingertipPredictor.DEFAULT_ALPHA,
+          FingertipPredictor.DEFAULT_BETA));
+    }
+    if (config.metricsJmx)
+      metrics.registerMBean();
+    metrics.startLogging(config.metricsLogPeriod);
+    if (config.pipelined) {
+      int capacity = pipelinePoolCapacity(config.pipelineQueueCapacity);
+      packetPool = new ProcessPacketPool(depthWidth, depthHeight, source,
+                                         capacity, productStats);
+      pipeline = createPipeline(config);
+      pipeline.start();
+    } else {
+      packetPool = new ProcessPacketPool(depthWidth, depthHeight, source, 
+          ProcessPacketPool.DEFAULT_CAPACITY, productStats);
+    }
   }
 
   public int depthWidth() {
@@ -67,61 +311,268 @@ public class HandTrackingEngine {
   }
 
   public void release() {
-    openni.release();
+    if (pipeline != null)
+      pipeline.stop();
+    if (eventExecutor != null) {
+      eventExecutor.shutdown();
+      try {
+        eventExecutor.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      for (AsyncHandEventListener l : asyncListeners.values())
+        logger.info(l.stats());
+    }
+    logger.info(metrics.summary());
+    logger.info(productStats.summary());
+    metrics.release();
+    source.release();
     featureDetector.release();
+    packetPool.release();
   }
 
+  /**
+   * Adds a listener that is called synchronously on the tracking thread.
+   */
   public void addHandEventListener(IHandEventListener l) {
     tracker.addListener(l);
   }
 
-  public void removeListener(IHandEventListener l) {
-    tracker.removeListener(l);
+  /**
+   * Adds a listener that receives the events on a separate thread so that a
+   * slow listener does not stall the tracking.
+   * 
+   * @param l the listener.
+   * @param policy what to do when the events of the listener queue up.
+   * @param capacity maximum number of queued events for the listener.
+   * @return the wrapper that queues the events and has the queue metrics.
+   */
+  public synchronized AsyncHandEventListener addHandEventListener(
+      IHandEventListener l, AsyncHandEventListener.Policy policy, 
+      int capacity) {
+    if (eventExecutor == null) {
+      eventExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "hand-event-dispatch");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    AsyncHandEventListener async = new AsyncHandEventListener(l, 
+        eventExecutor, policy, capacity);
+    asyncListeners.put(l, async);
+    tracker.addListener(async);
+    return async;
+  }
+
+  /**
+   * Removes a listener added either synchronously or asynchronously.
+   */
+  public synchronized void removeListener(IHandEventListener l) {
+    AsyncHandEventListener async = asyncListeners.remove(l);
+    tracker.removeListener(async == null ? l : async);
   }
 
   /**
-   * Checks if all the frames are played.
+   * Checks if all the frames are played, i.e. the source has reached the end
+   * of its stream or a recording has looped back to the beginning.
    * 
    * @return true if all the frames are played.
    */
   public boolean isDone() {
-    return currentDepthFrameID < prevDepthFrameID;
+    if (pipeline != null)
+      return pipeline.isDone();
+    return source.endOfStream() || currentDepthFrameID < prevDepthFrameID;
+  }
+
+  /**
+   * @return true if the stages run on separate threads.
+   */
+  public boolean isPipelined() {
+    return pipeline != null;
   }
 
   /**
-   * Steps one frame.
+   * Steps one frame. In the pipelined mode, waits for the next frame that has
+   * gone through all the stages.
    * 
-   * @return a new {@code ProcessPacket}. The caller should release the memory
-   *         of the returned object when finished using the object.
+   * @return a {@code ProcessPacket} leased from the packet pool. The caller 
+   *         should give it back with {@code returnPacket} when finished using 
+   *         the object. In the pipelined mode, returns null if all the frames
+   *         are played.
+   * @throws HandTrackingEngineException if the frame cannot be processed.
    */
   public ProcessPacket step() {
+    if (pipeline != null) {
+      try {
+        return pipeline.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+
     ProcessPacket packet = null;
     try {
-      openni.waitDepthUpdateAll();
-      // New packet for each frame.
-      packet = new ProcessPacket(depthWidth, depthHeight, openni);
-      openni.getDepthArray(packet.depthRawData);
-      prevDepthFrameID = currentDepthFrameID;
-      packet.depthFrameID = openni.getDepthFrameID();
-      currentDepthFrameID = packet.depthFrameID;
-
+      packet = acquire();
       featureDetector.detect(packet);
 
-      if (interactionSurfaceInitialized())
-        tracker.update(packet.forelimbs, packet.depthFrameID);
+      if (packet.interactionSurface != null)
+        tracker.update(packet);
     } catch (Exception e) {
-      logger.severe(e.getMessage());
-      e.printStackTrace();
-      System.exit(-1);
+      if (packet != null)
+        packetPool.returnPacket(packet);
+      throw new HandTrackingEngineException(e);
     }
     return packet;
   }
 
+  /**
+   * Gives a packet returned by {@code step} back to the packet pool. 
+   * @param packet the packet is cleared and should not be used afterwards.
+   */
+  public void returnPacket(ProcessPacket packet) {
+    packetPool.returnPacket(packet);
+  }
+  
+  /**
+   * @return the pool the processing packets are leased from.
+   */
+  public ProcessPacketPool packetPool() {
+    return packetPool;
+  }
+
+  /**
+   * @return number of frames dropped by the pipeline because a stage queue is
+   *    full. Always 0 if the engine is not pipelined.
+   */
+  public long droppedFrames() {
+    return metrics.getDroppedFrames();
+  }
+
+  /**
+   * @return per-stage latencies and frame counters of this engine.
+   */
+  public PipelineMetrics metrics() {
+    return metrics;
+  }
+
+  /**
+   * @return how often the derived images of the packets are computed.
+   */
+  public DerivedProductStats productStats() {
+    return productStats;
+  }
+
+  /**
+   * @param percentile between 0 and 100.
+   * @return the percentile of the time in milliseconds from the acquisition 
+   *    of a frame to the dispatch of its events.
+   */
+  public double endToEndLatency(double percentile) {
+    return metrics.histogram(Stage.END_TO_END).percentile(percentile) / 1e6;
+  }
+
   public boolean interactionSurfaceInitialized() {
-    return InteractionSurface.instanceInitialized();
+    return featureDetector.interactionSurface() != null;
   }
 
+  /**
+   * @return the model of the interaction surface of this engine, or null if 
+   *    the background is not learned yet.
+   */
   public InteractionSurface interactionSurface() {
-    return InteractionSurface.instance();
+    return featureDetector.interactionSurface();
+  }
+
+  /**
+   * @return the background model of this engine.
+   */
+  public Background background() {
+    return featureDetector.background();
+  }
+
+  /**
+   * Maximum number of packets in flight in the pipelined mode: one held by 
+   * the acquisition thread and by each stage, full queues after the 
+   * acquisition and after each stage, and one held by the caller.
+   * 
+   * @param queueCapacity capacity of each queue between the stages.
+   * @return capacity of the packet pool so that it is never exhausted.
+   */
+  static int pipelinePoolCapacity(int queueCapacity) {
+    return (PIPELINE_STAGES + 1) * (queueCapacity + 1) + 1;
+  }
+
+  /**
+   * Creates the pipeline with the acquisition thread and 
+   * {@code PIPELINE_STAGES} processing stages. Model estimation and tracking 
+   * share one stage so that the listeners are updated in frame order.
+   */
+  private FramePipeline createPipeline(Config config) {
+    FramePipeline.Source packetSource = new FramePipeline.Source() {
+      @Override
+      public ProcessPacket next() throws Exception {
+        if (source.endOfStream())
+          return null;
+        ProcessPacket packet = acquire();
+        if (currentDepthFrameID < prevDepthFrameID) {
+          // The recording has looped back to the beginning.
+          packetPool.returnPacket(packet);
+          return null;
+        }
+        return packet;
+      }
+    };
+    List<FramePipeline.Stage> stages = new ArrayList<FramePipeline.Stage>();
+    stages.add(new FramePipeline.Stage() {
+      @Override
+      public void process(ProcessPacket packet) throws Exception {
+        featureDetector.preprocess(packet);
+      }
+    });
+    stages.add(new FramePipeline.Stage() {
+      @Override
+      public void process(ProcessPacket packet) throws Exception {
+        featureDetector.extractFeatures(packet);
+      }
+    });
+    stages.add(new FramePipeline.Stage() {
+      @Override
+      public void process(ProcessPacket packet) throws Exception {
+        featureDetector.estimateModel(packet);
+        if (packet.interactionSurface != null)
+          tracker.update(packet);
+      }
+    });
+    return new FramePipeline(packetSource, stages, 
+        Arrays.asList("preprocess", "features", "model"), packetPool, 
+        config.pipelineQueueCapacity, config.queuePolicy, metrics);
+  }
+
+  /**
+   * Waits for the next depth frame and copies it into a packet leased from 
+   * the pool. The acquisition latency does not include the waiting.
+   * 
+   * @return a packet with the new depth frame.
+   * @throws DepthFrameSourceException
+   * @throws InterruptedException
+   */
+  private ProcessPacket acquire() throws DepthFrameSourceException, 
+      InterruptedException {
+    source.waitDepthUpdateAll();
+    long t = System.nanoTime();
+    ProcessPacket packet = packetPool.lease();
+    source.getDepthImage(packet.depthImage16U);
+    packet.depthUpdated();
+    packet.acquired(t, source.getDepthTimestamp());
+    prevDepthFrameID = currentDepthFrameID;
+    packet.depthFrameID = source.getDepthFrameID();
+    currentDepthFrameID = packet.depthFrameID;
+    metrics.record(Stage.ACQUISITION, t);
+    metrics.frameAcquired(packet.depthFrameID);
+    return packet;
   }
-}
\ No newline at end of file
+}
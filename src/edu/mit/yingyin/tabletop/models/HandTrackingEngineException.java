@@ -0,0 +1,19 @@
+package edu.mit.yingyin.tabletop.models;
+
+/**
+ * Thrown by <code>HandTrackingEngine.step</code> when a frame cannot be
+ * processed, e.g. because the depth source fails. The cause is the original
+ * exception. It is unchecked so that each application decides whether to
+ * stop, e.g. the interactive application exits while the batch application
+ * fails only the current recording.
+ *
+ * @author yingyin
+ *
+ */
+public class HandTrackingEngineException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public HandTrackingEngineException(Throwable cause) {
+    super(cause.getMessage(), cause);
+  }
+}
@@ -12,8 +12,6 @@ import java.util.logging.Logger;
 import javax.vecmath.Point3f;
 import javax.vecmath.Vector3f;
 
-import org.OpenNI.Point3D;
-import org.OpenNI.StatusException;
 
 import com.googlecode.javacv.cpp.opencv_core.CvMat;
 
@@ -32,7 +30,6 @@ public class InteractionSurface {
   private static final Logger logger = 
       Logger.getLogger(InteractionSurface.class.getName());
   private static final int DIFF_SCALE = 5;
-  private static InteractionSurface instance;
   
   /**
    * Average depth and depth difference in mm.
@@ -47,44 +44,7 @@ public class InteractionSurface {
    * Center of the surface in world coordinates.
    */
   private Point3f center;
-  private OpenNIDevice openni;
-  
-  public static InteractionSurface initInstance(FloatBuffer avg, 
-      FloatBuffer diff, int avgWidthStep, int diffWidthStep, int width, 
-      int height, OpenNIDevice openni) throws StatusException {
-    if (!instanceInitialized()) {
-      instance = new InteractionSurface(avg, diff, avgWidthStep, diffWidthStep,
-          width, height, openni);
-    } else {
-      logger.warning("Instance has already been initialized, and can only be" +
-      		"initialized once.");
-    }
-    return instance;
-  }
-  
-  public static InteractionSurface initInstance(Background background, 
-      OpenNIDevice openni) throws StatusException {
-    if (!instanceInitialized()) {
-      instance = new InteractionSurface(background, openni);
-    } else {
-      logger.warning("Instance has already been initialized, and can only be" +
-          "initialized once.");
-    }
-    return instance;
-  }
-  
-  public static InteractionSurface instance() {
-    if (instance == null) {
-      logger.severe("Instance is not initialized. You need to call " +
-      		"initInstance first.");
-      System.exit(-1);
-    }
-    return instance;
-  }
-  
-  public static boolean instanceInitialized() {
-    return instance != null;
-  }
+  private DepthProjection projection;
   
   /**
    * Initializes the table statistics.
@@ -94,27 +54,33 @@ public class InteractionSurface {
    * @param avgWidthStep
    * @param diffWidthStep
    * @param scale used to scale the depth value.
-   * @throws StatusException 
+   * @param projection projection model of the depth camera. Can be null.
    */
-  private InteractionSurface(FloatBuffer avg, FloatBuffer diff, 
+  public InteractionSurface(FloatBuffer avg, FloatBuffer diff, 
       int avgWidthStep, int diffWidthStep, int width, int height, 
-      OpenNIDevice openni) throws StatusException {
+      DepthProjection projection) {
     this.avg = avg;
     this.diff = diff;
     this.avgWidthStep = avgWidthStep;
     this.diffWidthStep = diffWidthStep;
     this.width = width;
     this.height = height;
-    this.openni = openni;
+    this.projection = projection;
     computeGeometry();
     initialized = true;
   }
 
-  private InteractionSurface(Background background, OpenNIDevice openni) 
-      throws StatusException {
+  /**
+   * Initializes the table statistics from a learned background model.
+   * 
+   * @param background
+   * @param projection projection model of the depth camera. Can be null.
+   */
+  public InteractionSurface(Background background, 
+      DepthProjection projection) {
     this(background.avgBuffer(), background.diffBuffer(),
         background.avgBufferWidthStep(), background.diffBufferWidthStep(),
-        background.width(), background.height(), openni);
+        background.width(), background.height(), projection);
   }
 
   /**
@@ -185,30 +151,24 @@ public class InteractionSurface {
   }
 
   /**
-   * Computes the geometry of the table in the world coordinates. If openni is
-   * null, the geometry cannot be computed.
-   * @throws StatusException
+   * Computes the geometry of the table in the world coordinates. If the 
+   * projection is null, the geometry cannot be computed.
    */
-  private void computeGeometry() throws StatusException {
-    if (openni == null)
+  private void computeGeometry() {
+    if (projection == null)
       return;
     
-    Point3D[] points = new Point3D[width];
-    int h = height / 2;
-    int startIndex = h * avgWidthStep;
-    for (int i = 0; i < width; i++) {
-      float depth = avg.get(startIndex + i);
-      points[i] = new Point3D(i, h, depth);
-    }
-
-    Point3D[] converted = openni.convertProjectiveToRealWorld(points);
     // projective = image coordinate space ((0,0) is top left corner of the
     // image)
+    Point3f world = new Point3f();
+    int h = height / 2;
+    int startIndex = h * avgWidthStep;
     CvMat pointMat = CvMat.create(1, width, CV_32FC3);
-    for (int i = 0; i < converted.length; i++) {
-      pointMat.put(i * 3, converted[i].getX());
-      pointMat.put(i * 3 + 1, converted[i].getY());
-      pointMat.put(i * 3 + 2, converted[i].getZ());
+    for (int i = 0; i < width; i++) {
+      projection.pixelToWorld(i, h, avg.get(startIndex + i), world);
+      pointMat.put(i * 3, world.x);
+      pointMat.put(i * 3 + 1, world.y);
+      pointMat.put(i * 3 + 2, world.z);
     }
 
     // (hline[0], hline[1], hline[2]) is a normalized vector parallel to the
@@ -219,17 +179,12 @@ public class InteractionSurface {
     pointMat.release();
 
     int w = width / 2;
-    points = new Point3D[height];
-    for (int i = 0; i < height; i++) {
-      points[i] = new Point3D(w, i, avg.get(avgWidthStep * i + w));
-    }
-
-    converted = openni.convertProjectiveToRealWorld(points);
     pointMat = CvMat.create(1, height, CV_32FC3);
-    for (int i = 0; i < converted.length; i++) {
-      pointMat.put(i * 3, converted[i].getX());
-      pointMat.put(i * 3 + 1, converted[i].getY());
-      pointMat.put(i * 3 + 2, converted[i].getZ());
+    for (int i = 0; i < height; i++) {
+      projection.pixelToWorld(w, i, avg.get(avgWidthStep * i + w), world);
+      pointMat.put(i * 3, world.x);
+      pointMat.put(i * 3 + 1, world.y);
+      pointMat.put(i * 3 + 2, world.z);
     }
 
     float[] vline = new float[6];
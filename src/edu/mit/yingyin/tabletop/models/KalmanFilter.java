@@ -12,8 +12,6 @@ import static com.googlecode.javacv.cpp.opencv_video.cvKalmanCorrect;
 import static com.googlecode.javacv.cpp.opencv_video.cvKalmanPredict;
 
 import java.nio.FloatBuffer;
-import java.util.ArrayList;
-import java.util.List;
 
 import javax.vecmath.Point2f;
 import javax.vecmath.Point3f;
@@ -22,9 +20,6 @@ import com.googlecode.javacv.cpp.opencv_core.CvMat;
 import com.googlecode.javacv.cpp.opencv_core.CvRNG;
 import com.googlecode.javacv.cpp.opencv_video.CvKalman;
 
-import edu.mit.yingyin.util.ValConfidencePair;
-import edu.mit.yingyin.tabletop.models.ProcessPacket.ForelimbFeatures;
-
 public class KalmanFilter {
   /**
    * Transition matrix describing relationship between model parameters at step
@@ -42,13 +37,12 @@ public class KalmanFilter {
    */
   private CvMat zk = cvCreateMat(2, 1, CV_32FC1);
   private boolean initialized = false;
+  
   /**
-   * Depth image width and height.
+   * Creates a filter for a single point. Each tracked point has its own 
+   * filter.
    */
-  private int height;
-  
-  public KalmanFilter(int width, int height) {
-    this.height = height;
+  public KalmanFilter() {
     kalman = cvCreateKalman(4, 2, 0);
     
     // Initializes initial state with random guess.
@@ -70,31 +64,41 @@ public class KalmanFilter {
     cvSetIdentity(kalman.measurement_noise_cov(), cvRealScalar(1));
   }
   
-  /*
-   * Filters the detected fingertips.
+  /**
+   * Filters the position of the point in the current frame.
+   * @param tip detected position of the point in the image coordinates.
+   * @return a new point with the filtered x and y and the detected z.
    */
-  public List<Point3f> filter(ProcessPacket packet) {
-    List<Point3f> res = new ArrayList<Point3f>();
-    
-    if (packet.forelimbFeatures.isEmpty()) {
-      resetKalman();
-      return null;
-    } else {
-      // Hack(ushadow): assumes one forelimb only.
-      // TODO(ushadow): use multiple Kalman filters for multiple forelimbs.
-      ForelimbFeatures ff = packet.forelimbFeatures.get(0);
-      if (initialized) {
-        Point3f tip = filter(ff);
-        if (tip != null)
-          res.add(tip);
-      } else if (ff.fingertips.size() > 0) {
-        // Finds the best point to initialize Kalman filter.
-        Point3f tip = findBestPoint(ff.fingertips); 
-        initKalman(tip.x, tip.y);
-        res.add(tip);
-      }
+  public Point3f filter(Point3f tip) {
+    if (!initialized) {
+      initKalman(tip.x, tip.y);
+      return new Point3f(tip);
     }
-    return res;
+    cvKalmanPredict(kalman, null);
+    zk.put(tip.x, tip.y);
+    CvMat statePost = cvKalmanCorrect(kalman, zk);
+    return new Point3f((float)statePost.get(0), (float)statePost.get(1), 
+                       tip.z);
+  }
+  
+  /**
+   * Predicts the position of the point in the next frame without changing the
+   * state.
+   * @return null if the filter is not initialized.
+   */
+  public Point2f predict() {
+    if (!initialized)
+      return null;
+    CvMat state = kalman.state_post();
+    float x = (float)state.get(0), y = (float)state.get(1);
+    return new Point2f(x + (float)state.get(2), y + (float)state.get(3));
+  }
+  
+  /**
+   * Resets the filter so that the next point initializes it.
+   */
+  public void reset() {
+    initialized = false;
   }
   
   /**
@@ -111,10 +115,6 @@ public class KalmanFilter {
     return sb.toString();
   }
   
-  private void resetKalman() {
-    initialized = false;
-  }
-  
   private void initKalman(float x, float y) {
     // Initializes dx and dy to 0s.
     kalman.state_post().put(x, y, 0, 0);
@@ -124,63 +124,4 @@ public class KalmanFilter {
     cvSetIdentity(kalman.error_cov_post(), cvRealScalar(1));
     initialized = true;
   }
-
-  /**
-   * Returns a new point filtered from all the fingetips.
-   * @param forelimb the <code>Forelimb</code> that contains the fingertips.
-   * @return a point that is most likely to be the fingertip based on the 
-   *    updated model.
-   */
-  private Point3f filter(ForelimbFeatures ff) {
-    Point3f closest = null;
-    Point3f result = null;
-    float minDistance2 = Float.MAX_VALUE;
-    
-    // Predicted point position.
-    CvMat yk = cvKalmanPredict(kalman, null);
-    float x = (float)yk.get(0);
-    float y = (float)yk.get(1);
-    Point2f p1 = new Point2f(x, y);
-    
-    for (ValConfidencePair<Point3f> vcp : ff.fingertips) {
-      Point3f tip = vcp.value;
-      Point2f p2 = new Point2f(tip.x, tip.y);
-      float distance2 = p1.distanceSquared(p2);
-      if (distance2 < minDistance2) {
-        minDistance2 = distance2;
-        closest = tip;
-      }
-    }
-    
-    if (closest != null) {
-      zk.put(closest.x, closest.y);
-      CvMat statePost = cvKalmanCorrect(kalman, zk);
-      result = new Point3f((float)statePost.get(0), (float)statePost.get(1), 
-                           closest.z);
-    } 
-    return result;
-  }
-  
-  /**
-   * Returns a new point which is the best candidate from all the fingertips in 
-   * the forelimb.
-   * @param forelimb the <code>Forelimb</code> that contains the fingertips.
-   * @return a point that is most likely as the fingertip.
-   */
-  private Point3f findBestPoint(List<ValConfidencePair<Point3f>> fingertips) {
-    // Hack(yingyin): assumes the point that is nearest to the center of the 
-    // of the image as the fintertip. Assumes hand is extended from the bottom 
-    // of the image.
-    // TODO(yingyin): need to consider different hand orientation.
-    float bestY = height;
-    Point3f bestPoint = null;
-    for (ValConfidencePair<Point3f> vcp : fingertips) {
-      Point3f tip = vcp.value;
-      if (tip.y < bestY) {
-        bestY = tip.y;
-        bestPoint = tip;
-      }
-    }
-    return new Point3f(bestPoint);
-  }
 }
@@ -0,0 +1,207 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import javax.vecmath.Point2f;
+
+import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+
+/**
+ * Runs several <code>HandTrackingEngine</code>s in one process, each on its
+ * own thread, e.g. for two sensors over one large table. The calibration of
+ * each engine maps its depth image to its own display coordinates, which are
+ * moved into the shared display space by the offset of the engine.
+ *
+ * The events of all the engines are merged into one stream. The host
+ * listeners receive copies of the events with the display positions in the
+ * shared space and the <code>engineID</code>s set. The listeners are never
+ * called concurrently, but the events of different engines are interleaved
+ * in the order they are generated. Add a <code>HandEventFusion</code> as a
+ * listener if the views of the sensors overlap.
+ *
+ * @author yingyin
+ *
+ */
+public class MultiEngineHost {
+  private static final Logger LOGGER = Logger.getLogger(
+      MultiEngineHost.class.getName());
+
+  /**
+   * Moves the events of one engine into the shared display space and
+   * forwards them to the host listeners.
+   */
+  static class EngineEvents implements IHandEventListener {
+    private final int engineID;
+    private final Point2f offset;
+    private final MultiEngineHost host;
+
+    EngineEvents(MultiEngineHost host, int engineID, Point2f offset) {
+      this.host = host;
+      this.engineID = engineID;
+      this.offset = new Point2f(offset);
+    }
+
+    @Override
+    public void fingerPressed(List<ManipulativeEvent> feList) {
+      List<ManipulativeEvent> merged =
+          new ArrayList<ManipulativeEvent>(feList.size());
+      for (ManipulativeEvent fe : feList) {
+        Point2f posDisplay = null;
+        if (fe.posDisplay != null) {
+          posDisplay = new Point2f(fe.posDisplay);
+          posDisplay.add(offset);
+        }
+        ManipulativeEvent e = new ManipulativeEvent(fe.posImage, posDisplay,
+            fe.frameID, fe.type, fe.forelimbID, fe.fingertipID);
+        e.engineID = engineID;
+        e.acquisitionTime = fe.acquisitionTime;
+        e.sensorTimestamp = fe.sensorTimestamp;
+        e.checkpointTimes = fe.checkpointTimes;
+        merged.add(e);
+      }
+      host.firePressed(merged);
+    }
+
+    @Override
+    public void fingerPointed(DiecticEvent de) {
+      Point2f[] locations = de.pointingLocationsD();
+      Point2f[] moved = new Point2f[locations.length];
+      for (int i = 0; i < locations.length; i++) {
+        moved[i] = new Point2f(locations[i]);
+        moved[i].add(offset);
+      }
+      DiecticEvent e = new DiecticEvent(de.pointingLocationsI(),
+          de.pointingLocationsW(), moved);
+      e.engineID = engineID;
+      e.acquisitionTime = de.acquisitionTime;
+      e.sensorTimestamp = de.sensorTimestamp;
+      e.checkpointTimes = de.checkpointTimes;
+      host.firePointed(e);
+    }
+  }
+
+  private final List<HandTrackingEngine> engines =
+      new ArrayList<HandTrackingEngine>();
+  private final List<Thread> threads = new ArrayList<Thread>();
+  private final List<IHandEventListener> listeners =
+      new CopyOnWriteArrayList<IHandEventListener>();
+  /**
+   * Serializes the delivery of the events from different engines.
+   */
+  private final Object dispatchLock = new Object();
+  private volatile boolean running = false;
+
+  /**
+   * Adds an engine. The host releases the engine when it stops.
+   *
+   * @param engine
+   * @param displayOffset offset of the display coordinates of the engine in
+   *    the shared display space.
+   * @return the ID of the engine in the events.
+   */
+  public synchronized int addEngine(HandTrackingEngine engine,
+                                    Point2f displayOffset) {
+    if (running)
+      throw new IllegalStateException("Cannot add an engine after start.");
+    int id = engines.size();
+    engines.add(engine);
+    engine.addHandEventListener(new EngineEvents(this, id, displayOffset));
+    return id;
+  }
+
+  public synchronized HandTrackingEngine engine(int engineID) {
+    return engines.get(engineID);
+  }
+
+  public synchronized int numEngines() {
+    return engines.size();
+  }
+
+  public void addHandEventListener(IHandEventListener l) {
+    listeners.add(l);
+  }
+
+  public void removeListener(IHandEventListener l) {
+    listeners.remove(l);
+  }
+
+  /**
+   * Starts one thread per engine that steps the engine until it is done, the
+   * host is stopped, or the engine fails.
+   */
+  public synchronized void start() {
+    if (running)
+      return;
+    running = true;
+    for (int i = 0; i < engines.size(); i++) {
+      final HandTrackingEngine engine = engines.get(i);
+      Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (running && !engine.isDone()) {
+              ProcessPacket packet = engine.step();
+              if (packet != null)
+                engine.returnPacket(packet);
+            }
+          } catch (HandTrackingEngineException e) {
+            // The other engines keep running.
+            LOGGER.severe(e.getMessage());
+          }
+        }
+      }, "engine-" + i);
+      threads.add(t);
+      t.start();
+    }
+    LOGGER.info(String.format("Started %d engines.", engines.size()));
+  }
+
+  /**
+   * @return true if all the engines have finished their recordings.
+   */
+  public synchronized boolean isDone() {
+    if (!running)
+      return false;
+    for (Thread t : threads)
+      if (t.isAlive())
+        return false;
+    return true;
+  }
+
+  /**
+   * Stops the engine threads and releases the engines.
+   */
+  public synchronized void stop() {
+    running = false;
+    for (Thread t : threads) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    threads.clear();
+    for (HandTrackingEngine engine : engines)
+      engine.release();
+    engines.clear();
+  }
+
+  void firePressed(List<ManipulativeEvent> feList) {
+    synchronized (dispatchLock) {
+      for (IHandEventListener l : listeners)
+        l.fingerPressed(feList);
+    }
+  }
+
+  void firePointed(DiecticEvent de) {
+    synchronized (dispatchLock) {
+      for (IHandEventListener l : listeners)
+        l.fingerPointed(de);
+    }
+  }
+}
@@ -4,9 +4,12 @@ import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
 import java.util.logging.Logger;
 
+import javax.vecmath.Point3f;
+
 import org.OpenNI.Context;
 import org.OpenNI.DepthGenerator;
 import org.OpenNI.DepthMetaData;
+import org.OpenNI.FieldOfView;
 import org.OpenNI.GeneralException;
 import org.OpenNI.ImageGenerator;
 import org.OpenNI.ImageMetaData;
@@ -20,6 +23,8 @@ import org.OpenNI.Point3D;
 import org.OpenNI.ScriptNode;
 import org.OpenNI.StatusException;
 
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
 import edu.mit.yingyin.util.DirectBufferUtil;
 
 /**
@@ -44,11 +49,17 @@ public class OpenNIDevice {
   private DepthMetaData depthMD;
   private ImageMetaData imageMD;
   private int depthWidth, depthHeight, imageWidth, imageHeight;
+  private DepthProjection projection;
   /**
    * Preallocated buffers for depth and RGB data.
    */
   private ByteBuffer depthBuffer, imageBuffer;
   private int depthByteBufferSize, imageByteBufferSize;
+  /**
+   * One depth row for copying into images with padded rows, created on first
+   * use.
+   */
+  private byte[] depthRow;
   
   /**
    * Creates a player that plays back a recorded file.
@@ -118,6 +129,37 @@ public class OpenNIDevice {
     }
   }
   
+  /**
+   * Copies the current depth frame directly into the memory of an unsigned 
+   * 16-bit image.
+   * 
+   * @param image a 1-channel <code>IPL_DEPTH_16U</code> image with the same 
+   *    size as the depth frame.
+   * @throws StatusException
+   */
+  public void getDepthImage(IplImage image) throws StatusException {
+    ByteBuffer bb = image.getByteBuffer();
+    int rowBytes = depthByteBufferSize / depthHeight;
+    int widthStep = image.widthStep();
+    if (widthStep == rowBytes) {
+      bb.clear();
+      depthMD.getData().copyToBuffer(bb, depthByteBufferSize);
+      return;
+    }
+    // Rows of the image are padded.
+    updateDepthBuffer();
+    if (depthRow == null || depthRow.length != rowBytes)
+      depthRow = new byte[rowBytes];
+    byte[] row = depthRow;
+    for (int h = 0; h < depthHeight; h++) {
+      depthBuffer.position(h * rowBytes);
+      depthBuffer.get(row);
+      bb.position(h * widthStep);
+      bb.put(row);
+    }
+    depthBuffer.rewind();
+  }
+  
   /**
    * Returns the image <code>ByteBuffer</code>.
    * @return
@@ -135,6 +177,8 @@ public class OpenNIDevice {
    * @return current depth frame ID.
    */
   public int getDepthFrameID() { return depthMD.getFrameID(); }
+
+  public long getDepthTimestamp() { return depthMD.getTimestamp(); }
   
   /**
    * Waits for any node to have new data. Once new data is available from any 
@@ -191,13 +235,14 @@ public class OpenNIDevice {
    * flipped so the result coordinates obey the right-hand rule.
    * @param points
    * @return
-   * @throws StatusException
    */
-  public Point3D[] convertProjectiveToRealWorld(Point3D[] points) 
-      throws StatusException {
-    Point3D[] converted = depthGen.convertProjectiveToRealWorld(points);
-    for (Point3D p : converted) {
-      p.setPoint(p.getX(), p.getY(), -p.getZ());
+  public Point3D[] convertProjectiveToRealWorld(Point3D[] points) {
+    Point3D[] converted = new Point3D[points.length];
+    Point3f world = new Point3f();
+    for (int i = 0; i < points.length; i++) {
+      Point3D p = points[i];
+      projection.projectiveToWorld(p.getX(), p.getY(), p.getZ(), world);
+      converted[i] = new Point3D(world.x, world.y, world.z);
     }
     return converted;
   }
@@ -206,24 +251,26 @@ public class OpenNIDevice {
    * The z values are flipped.
    * @param points
    * @return
-   * @throws StatusException
    */
-  public Point3D[] convertRealWorldToProjective(Point3D[] points) 
-      throws StatusException {
-    Point3D[] copy = new Point3D[points.length]; 
-    for (int i = 0; i < points.length; i++) {
-      Point3D p = points[i];
-      copy[i] = new Point3D(p.getX(), p.getY(), -p.getZ());
-    }
-    return depthGen.convertRealWorldToProjective(copy);
+  public Point3D[] convertRealWorldToProjective(Point3D[] points) {
+    Point3D[] converted = new Point3D[points.length]; 
+    for (int i = 0; i < points.length; i++)
+      converted[i] = convertRealWorldToProjective(points[i]);
+    return converted;
   }
   
-  public Point3D convertRealWorldToProjective(Point3D p) 
-      throws StatusException {
-    Point3D worldP = new Point3D(p.getX(), p.getY(), -p.getZ());
-    return depthGen.convertRealWorldToProjective(worldP);
+  public Point3D convertRealWorldToProjective(Point3D p) {
+    Point3f projective = new Point3f();
+    projection.worldToProjective(p.getX(), p.getY(), p.getZ(), projective);
+    return new Point3D(projective.x, projective.y, projective.z);
   }
   
+  /**
+   * @return the projection model of the depth camera, which converts between
+   *    projective and real world coordinates without calling OpenNI.
+   */
+  public DepthProjection projection() { return projection; }
+  
   private void init() throws GeneralException {
     NodeInfoList list = context.enumerateExistingNodes();
     for (NodeInfo node : list) {
@@ -237,6 +284,9 @@ public class OpenNIDevice {
             depthMD.getData().getBytesPerPixel();
         depthBuffer = DirectBufferUtil.allocateByteBuffer(
             depthByteBufferSize);
+        FieldOfView fov = depthGen.getFieldOfView();
+        projection = new DepthProjection(depthWidth, depthHeight, 
+                                         fov.getHFOV(), fov.getVFOV());
       } else if (type.equals(NodeType.PLAYER)) {
         player = (Player)node.getInstance();
       } else if (type.equals(NodeType.IMAGE)) {
@@ -0,0 +1,107 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+import org.OpenNI.GeneralException;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * A <code>DepthFrameSource</code> backed by an <code>OpenNIDevice</code>.
+ * The OpenNI exceptions of the device are rethrown as
+ * <code>DepthFrameSourceException</code>s.
+ *
+ * @author yingyin
+ *
+ */
+public class OpenNIFrameSource implements DepthFrameSource {
+  private final OpenNIDevice openni;
+
+  /**
+   * @param openni the device, which is released with this source.
+   */
+  public OpenNIFrameSource(OpenNIDevice openni) {
+    this.openni = openni;
+  }
+
+  /**
+   * Opens a sensor or a recording.
+   * @param configFile an OpenNI configuration file or an .oni recording.
+   * @throws GeneralException
+   */
+  public OpenNIFrameSource(String configFile) throws GeneralException {
+    this(new OpenNIDevice(configFile));
+  }
+
+  public OpenNIDevice device() { return openni; }
+
+  @Override
+  public int getDepthWidth() { return openni.getDepthWidth(); }
+
+  @Override
+  public int getDepthHeight() { return openni.getDepthHeight(); }
+
+  @Override
+  public DepthProjection projection() { return openni.projection(); }
+
+  @Override
+  public void waitDepthUpdateAll() throws DepthFrameSourceException {
+    try {
+      openni.waitDepthUpdateAll();
+    } catch (GeneralException e) {
+      throw new DepthFrameSourceException(e);
+    }
+  }
+
+  /**
+   * OpenNI recordings loop, so the stream never ends.
+   */
+  @Override
+  public boolean endOfStream() { return false; }
+
+  @Override
+  public int getDepthFrameID() { return openni.getDepthFrameID(); }
+
+  @Override
+  public long getDepthTimestamp() { return openni.getDepthTimestamp(); }
+
+  @Override
+  public ShortBuffer getDepthBuffer() throws DepthFrameSourceException {
+    try {
+      return openni.getDepthBuffer();
+    } catch (GeneralException e) {
+      throw new DepthFrameSourceException(e);
+    }
+  }
+
+  @Override
+  public void getDepthImage(IplImage image) throws DepthFrameSourceException {
+    try {
+      openni.getDepthImage(image);
+    } catch (GeneralException e) {
+      throw new DepthFrameSourceException(e);
+    }
+  }
+
+  @Override
+  public ByteBuffer getImageBuffer() throws DepthFrameSourceException {
+    try {
+      return openni.getImageBuffer();
+    } catch (GeneralException e) {
+      throw new DepthFrameSourceException(e);
+    }
+  }
+
+  @Override
+  public void seekFrameBy(int diff) throws DepthFrameSourceException {
+    try {
+      openni.seekFrameBy(diff);
+    } catch (GeneralException e) {
+      throw new DepthFrameSourceException(e);
+    }
+  }
+
+  @Override
+  public void release() { openni.release(); }
+}
@@ -0,0 +1,258 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import edu.mit.yingyin.util.LatencyHistogram;
+
+/**
+ * Per-stage latency histograms and frame counters of the hand tracking
+ * pipeline. Recording is allocation-free and thread-safe, so the stages can
+ * record from their own threads.
+ *
+ * A typical use in a stage:
+ * <pre>
+ * long t = System.nanoTime();
+ * doBlur();
+ * t = metrics.record(Stage.BLUR, t);
+ * doSobel();
+ * t = metrics.record(Stage.SOBEL, t);
+ * </pre>
+ *
+ * @author yingyin
+ *
+ */
+public class PipelineMetrics implements PipelineMetricsMBean {
+  /**
+   * Instrumented stages of the pipeline in processing order. 
+   * <code>END_TO_END</code> is the time from the acquisition of a frame to 
+   * the return of the listeners of its events, including the waiting between
+   * the stages.
+   */
+  public static enum Stage {
+    ACQUISITION, DEPTH_CONVERSION, BLUR, SOBEL, BACKGROUND_DIFF, 
+    BACKGROUND_UPDATE, MORPHOLOGY, BLOBS, CONTOURS, HAND_REGIONS, HAND_FEATURES, 
+    MODEL_ESTIMATION, TRACKING, DISPATCH, END_TO_END
+  }
+
+  public static final String JMX_DOMAIN = "edu.mit.yingyin.tabletop";
+
+  private static final Logger LOGGER = Logger.getLogger(
+      PipelineMetrics.class.getName());
+  private static final Stage[] STAGES = Stage.values();
+  private static final AtomicInteger instanceCount = new AtomicInteger();
+
+  private final LatencyHistogram[] histograms =
+      new LatencyHistogram[STAGES.length];
+  private final AtomicLong frameCount = new AtomicLong(),
+      droppedFrames = new AtomicLong(), frameIDGaps = new AtomicLong();
+  /**
+   * Only updated by the acquisition thread.
+   */
+  private volatile int lastFrameID = -1;
+  private ObjectName objectName;
+  private ScheduledExecutorService logExecutor;
+
+  public PipelineMetrics() {
+    for (int i = 0; i < histograms.length; i++)
+      histograms[i] = new LatencyHistogram();
+  }
+
+  /**
+   * Records the time since <code>startNanos</code> for a stage.
+   *
+   * @param stage
+   * @param startNanos start time of the stage from
+   *    <code>System.nanoTime</code>.
+   * @return the current time, i.e. the start time of the next stage.
+   */
+  public long record(Stage stage, long startNanos) {
+    long now = System.nanoTime();
+    histograms[stage.ordinal()].record(now - startNanos);
+    return now;
+  }
+
+  /**
+   * Records a stage latency measured by the caller.
+   * 
+   * @param stage
+   * @param nanos latency in nanoseconds.
+   */
+  public void recordDuration(Stage stage, long nanos) {
+    histograms[stage.ordinal()].record(nanos);
+  }
+
+  /**
+   * Counts an acquired frame and the frame IDs skipped since the previous
+   * one. A frame ID smaller than the previous one, e.g. when a recording loops,
+   * is not counted as a gap.
+   *
+   * @param frameID ID of the acquired frame.
+   */
+  public void frameAcquired(int frameID) {
+    frameCount.incrementAndGet();
+    int last = lastFrameID;
+    if (last >= 0 && frameID > last + 1)
+      frameIDGaps.addAndGet(frameID - last - 1);
+    lastFrameID = frameID;
+  }
+
+  /**
+   * Counts a frame dropped inside the pipeline.
+   */
+  public void frameDropped() {
+    droppedFrames.incrementAndGet();
+  }
+
+  public LatencyHistogram histogram(Stage stage) {
+    return histograms[stage.ordinal()];
+  }
+
+  @Override
+  public long getFrameCount() {
+    return frameCount.get();
+  }
+
+  @Override
+  public long getDroppedFrames() {
+    return droppedFrames.get();
+  }
+
+  @Override
+  public long getFrameIDGaps() {
+    return frameIDGaps.get();
+  }
+
+  @Override
+  public String[] getStageNames() {
+    String[] names = new String[STAGES.length];
+    for (int i = 0; i < STAGES.length; i++)
+      names[i] = STAGES[i].name();
+    return names;
+  }
+
+  @Override
+  public double[] getMeanLatencies() {
+    double[] res = new double[STAGES.length];
+    for (int i = 0; i < STAGES.length; i++)
+      res[i] = histograms[i].mean() / 1e6;
+    return res;
+  }
+
+  @Override
+  public double[] getP99Latencies() {
+    double[] res = new double[STAGES.length];
+    for (int i = 0; i < STAGES.length; i++)
+      res[i] = histograms[i].percentile(99) / 1e6;
+    return res;
+  }
+
+  @Override
+  public double[] getEndToEndLatencies() {
+    LatencyHistogram h = histogram(Stage.END_TO_END);
+    return new double[] {h.percentile(50) / 1e6, h.percentile(90) / 1e6, 
+                         h.percentile(99) / 1e6, h.max() / 1e6};
+  }
+
+  @Override
+  public double percentileLatency(String stage, double percentile) {
+    return histogram(Stage.valueOf(stage)).percentile(percentile) / 1e6;
+  }
+
+  @Override
+  public String summary() {
+    String lineSeparator = System.getProperty("line.separator");
+    StringBuffer sb = new StringBuffer();
+    sb.append(String.format("Frames = %d, dropped = %d, frame ID gaps = %d",
+        getFrameCount(), getDroppedFrames(), getFrameIDGaps()));
+    for (Stage s : STAGES) {
+      LatencyHistogram h = histogram(s);
+      if (h.count() == 0)
+        continue;
+      sb.append(lineSeparator);
+      sb.append(String.format("%-16s %s", s, h));
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void reset() {
+    for (LatencyHistogram h : histograms)
+      h.reset();
+    frameCount.set(0);
+    droppedFrames.set(0);
+    frameIDGaps.set(0);
+  }
+
+  /**
+   * Registers this object with the platform MBean server. Each instance gets
+   * a unique name.
+   */
+  public void registerMBean() {
+    if (objectName != null)
+      return;
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(String.format(
+          "%s:type=PipelineMetrics,name=engine%d", JMX_DOMAIN,
+          instanceCount.getAndIncrement()));
+      server.registerMBean(this, name);
+      objectName = name;
+    } catch (JMException e) {
+      LOGGER.warning("Cannot register metrics MBean: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Logs the summary periodically on a daemon thread.
+   *
+   * @param periodSeconds period between the logs.
+   */
+  public synchronized void startLogging(long periodSeconds) {
+    if (logExecutor != null || periodSeconds <= 0)
+      return;
+    logExecutor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "pipeline-metrics-log");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    logExecutor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        LOGGER.info(summary());
+      }
+    }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stops the periodic logging and unregisters the MBean.
+   */
+  public synchronized void release() {
+    if (logExecutor != null) {
+      logExecutor.shutdownNow();
+      logExecutor = null;
+    }
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOGGER.warning(e.getMessage());
+      }
+      objectName = null;
+    }
+  }
+}
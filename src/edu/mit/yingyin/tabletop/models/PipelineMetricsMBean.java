@@ -0,0 +1,51 @@
+package edu.mit.yingyin.tabletop.models;
+
+/**
+ * JMX management interface of <code>PipelineMetrics</code>. Latencies are in
+ * milliseconds.
+ * 
+ * @author yingyin
+ *
+ */
+public interface PipelineMetricsMBean {
+  public long getFrameCount();
+
+  public long getDroppedFrames();
+
+  /**
+   * @return total number of frame IDs skipped between consecutive acquired 
+   *    frames.
+   */
+  public long getFrameIDGaps();
+
+  public String[] getStageNames();
+
+  /**
+   * @return mean latency of each stage in the order of 
+   *    <code>getStageNames</code>.
+   */
+  public double[] getMeanLatencies();
+
+  /**
+   * @return 99th percentile latency of each stage in the order of 
+   *    <code>getStageNames</code>.
+   */
+  public double[] getP99Latencies();
+
+  /**
+   * @return the 50th, 90th and 99th percentiles and the maximum of the time
+   *    from the acquisition of a frame to the dispatch of its events.
+   */
+  public double[] getEndToEndLatencies();
+
+  /**
+   * @param stage name of a stage.
+   * @param percentile between 0 and 100.
+   * @return the percentile latency of the stage.
+   */
+  public double percentileLatency(String stage, double percentile);
+
+  public String summary();
+
+  public void reset();
+}
@@ -0,0 +1,180 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.Arrays;
+
+import javax.vecmath.Point3f;
+
+/**
+ * A reusable point cloud stored as arrays of coordinates. The arrays only grow,
+ * so a point cloud that is cleared and refilled every frame stops allocating
+ * once it reaches the largest size needed.
+ *
+ * Only the first <code>size()</code> elements of <code>x</code>,
+ * <code>y</code> and <code>z</code> are valid.
+ *
+ * @author yingyin
+ *
+ */
+public class PointCloud {
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  public float[] x, y, z;
+  private int size;
+
+  public PointCloud() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public PointCloud(int capacity) {
+    x = new float[capacity];
+    y = new float[capacity];
+    z = new float[capacity];
+  }
+
+  public int size() { return size; }
+
+  public int capacity() { return x.length; }
+
+  /**
+   * Removes all the points without releasing the memory.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  public void add(float px, float py, float pz) {
+    if (size == x.length)
+      ensureCapacity(size * 2 + 1);
+    x[size] = px;
+    y[size] = py;
+    z[size] = pz;
+    size++;
+  }
+
+  /**
+   * Sets the number of valid points, growing the arrays if necessary. The
+   * values of the new points are undefined.
+   * @param size
+   */
+  public void resize(int size) {
+    ensureCapacity(size);
+    this.size = size;
+  }
+
+  public void ensureCapacity(int capacity) {
+    if (capacity <= x.length)
+      return;
+    x = Arrays.copyOf(x, capacity);
+    y = Arrays.copyOf(y, capacity);
+    z = Arrays.copyOf(z, capacity);
+  }
+
+  /**
+   * Copies the i-th point into <code>p</code>.
+   */
+  public void get(int i, Point3f p) {
+    p.set(x[i], y[i], z[i]);
+  }
+
+  /**
+   * Replaces the points with the points in another point cloud.
+   */
+  public void set(PointCloud other) {
+    resize(other.size);
+    System.arraycopy(other.x, 0, x, 0, size);
+    System.arraycopy(other.y, 0, y, 0, size);
+    System.arraycopy(other.z, 0, z, 0, size);
+  }
+
+  public void translate(float dx, float dy, float dz) {
+    for (int i = 0; i < size; i++) {
+      x[i] += dx;
+      y[i] += dy;
+      z[i] += dz;
+    }
+  }
+
+  /**
+   * Computes the centroid.
+   * @param result the centroid. Unchanged if the point cloud is empty.
+   */
+  public void centroid(Point3f result) {
+    if (size == 0)
+      return;
+    double sx = 0, sy = 0, sz = 0;
+    for (int i = 0; i < size; i++) {
+      sx += x[i];
+      sy += y[i];
+      sz += z[i];
+    }
+    result.set((float) (sx / size), (float) (sy / size), (float) (sz / size));
+  }
+
+  /**
+   * Computes the covariance matrix of the points.
+   * @param mean the centroid of the points.
+   * @param cov row-major 3 x 3 matrix of the result.
+   */
+  public void covariance(Point3f mean, double[] cov) {
+    double xx = 0, xy = 0, xz = 0, yy = 0, yz = 0, zz = 0;
+    for (int i = 0; i < size; i++) {
+      double dx = x[i] - mean.x, dy = y[i] - mean.y, dz = z[i] - mean.z;
+      xx += dx * dx;
+      xy += dx * dy;
+      xz += dx * dz;
+      yy += dy * dy;
+      yz += dy * dz;
+      zz += dz * dz;
+    }
+    int n = Math.max(size, 1);
+    cov[0] = xx / n;
+    cov[1] = cov[3] = xy / n;
+    cov[2] = cov[6] = xz / n;
+    cov[4] = yy / n;
+    cov[5] = cov[7] = yz / n;
+    cov[8] = zz / n;
+  }
+
+  /**
+   * Transforms each point p to m * p.
+   * @param m row-major 3 x 3 matrix.
+   */
+  public void transform(double[] m) {
+    for (int i = 0; i < size; i++) {
+      float px = x[i], py = y[i], pz = z[i];
+      x[i] = (float) (m[0] * px + m[1] * py + m[2] * pz);
+      y[i] = (float) (m[3] * px + m[4] * py + m[5] * pz);
+      z[i] = (float) (m[6] * px + m[7] * py + m[8] * pz);
+    }
+  }
+
+  /**
+   * Removes the points whose distance in the x-y plane from (cx, cy) is larger
+   * than <code>radius</code>. The remaining points are compacted in place and
+   * keep their order.
+   * @return the number of points removed.
+   */
+  public int retainWithinXY(float cx, float cy, float radius) {
+    float radius2 = radius * radius;
+    int j = 0;
+    for (int i = 0; i < size; i++) {
+      float dx = x[i] - cx, dy = y[i] - cy;
+      if (dx * dx + dy * dy <= radius2) {
+        x[j] = x[i];
+        y[j] = y[i];
+        z[j] = z[i];
+        j++;
+      }
+    }
+    int removed = size - j;
+    size = j;
+    return removed;
+  }
+
+  public String toString() {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < size; i++)
+      sb.append(String.format("%.3f,%.3f,%.3f,", x[i], y[i], z[i]));
+    return sb.toString();
+  }
+}
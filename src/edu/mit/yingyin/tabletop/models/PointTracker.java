@@ -0,0 +1,224 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Tracks a set of points across frames and assigns each of them a persistent
+ * ID. Detections are associated with the positions predicted by the
+ * per-track <code>DoubleExpFilter</code> greedily, closest pair first, within
+ * a distance gate. A track that is not associated with any detection coasts
+ * for a few frames before it is removed.
+ *
+ * The number of tracks is bounded and their states are preallocated, so an
+ * update only allocates the returned ID array.
+ *
+ * @author yingyin
+ *
+ */
+public class PointTracker {
+  /**
+   * ID of a detection that is not tracked because all the tracks are in use.
+   */
+  public static final int NO_TRACK = -1;
+
+  private static class Track {
+    int id = NO_TRACK;
+    /**
+     * Number of consecutive frames without an associated detection.
+     */
+    int missed;
+    final DoubleExpFilter filter;
+    final Point3f predicted = new Point3f();
+
+    Track(float alpha, float beta) {
+      filter = new DoubleExpFilter(alpha, beta);
+    }
+  }
+
+  private final Track[] tracks;
+  private final float gate2;
+  private final int maxMissed;
+  private final boolean planar;
+  private final AtomicInteger nextID;
+  /**
+   * Squared distances between tracks and detections, indexed by
+   * track * capacity + detection. Grows with the number of detections.
+   */
+  private float[] cost = new float[0];
+  private boolean[] detectionAssigned = new boolean[0];
+  private final boolean[] trackAssigned;
+
+  /**
+   * @param maxTracks maximum number of simultaneous tracks.
+   * @param gate maximum distance between a predicted position and a detection
+   *    to be associated.
+   * @param maxMissed number of frames a track is kept without any associated
+   *    detection.
+   * @param planar if true, only x and y are used for association, e.g. for
+   *    points in the image coordinates whose z is depth.
+   * @param alpha smoothing factor of the track filters.
+   * @param beta trend smoothing factor of the track filters.
+   * @param nextID source of the track IDs. Trackers sharing it assign unique
+   *    IDs among themselves.
+   */
+  public PointTracker(int maxTracks, float gate, int maxMissed, boolean planar,
+      float alpha, float beta, AtomicInteger nextID) {
+    tracks = new Track[maxTracks];
+    for (int i = 0; i < maxTracks; i++)
+      tracks[i] = new Track(alpha, beta);
+    trackAssigned = new boolean[maxTracks];
+    this.gate2 = gate * gate;
+    this.maxMissed = maxMissed;
+    this.planar = planar;
+    this.nextID = nextID;
+  }
+
+  /**
+   * Associates the detections in the current frame with the tracks, updates
+   * the tracks and starts new tracks for the unassociated detections.
+   *
+   * @param detections detected points in the current frame.
+   * @return track IDs in the same order as the detections. An ID is
+   *    <code>NO_TRACK</code> if the detection cannot be tracked.
+   */
+  public int[] update(List<Point3f> detections) {
+    int n = detections.size();
+    int[] ids = new int[n];
+    ensureCapacity(n);
+
+    for (int t = 0; t < tracks.length; t++) {
+      Track track = tracks[t];
+      trackAssigned[t] = false;
+      if (track.id == NO_TRACK)
+        continue;
+      track.filter.predict(track.predicted);
+      for (int d = 0; d < n; d++) {
+        cost[t * detectionAssigned.length + d] = distance2(track.predicted,
+            detections.get(d));
+      }
+    }
+    for (int d = 0; d < n; d++) {
+      detectionAssigned[d] = false;
+      ids[d] = NO_TRACK;
+    }
+
+    // Greedy association: the closest remaining pair within the gate first.
+    for (int k = Math.min(tracks.length, n); k > 0; k--) {
+      int bestT = -1, bestD = -1;
+      float best = gate2;
+      for (int t = 0; t < tracks.length; t++) {
+        if (tracks[t].id == NO_TRACK || trackAssigned[t])
+          continue;
+        for (int d = 0; d < n; d++) {
+          float c = cost[t * detectionAssigned.length + d];
+          if (!detectionAssigned[d] && c <= best) {
+            best = c;
+            bestT = t;
+            bestD = d;
+          }
+        }
+      }
+      if (bestT < 0)
+        break;
+      Track track = tracks[bestT];
+      trackAssigned[bestT] = true;
+      detectionAssigned[bestD] = true;
+      track.missed = 0;
+      track.filter.filter(detections.get(bestD));
+      ids[bestD] = track.id;
+    }
+
+    for (int t = 0; t < tracks.length; t++) {
+      Track track = tracks[t];
+      if (track.id != NO_TRACK && !trackAssigned[t] &&
+          ++track.missed > maxMissed) {
+        track.id = NO_TRACK;
+        track.filter.reset();
+      }
+    }
+
+    for (int d = 0; d < n; d++) {
+      if (detectionAssigned[d])
+        continue;
+      Track track = freeTrack();
+      if (track == null)
+        break;
+      track.id = nextID.getAndIncrement();
+      track.missed = 0;
+      track.filter.filter(detections.get(d));
+      ids[d] = track.id;
+    }
+    return ids;
+  }
+
+  /**
+   * @param id track ID.
+   * @return the smoothed position of the track, or null if the track does not
+   *    exist.
+   */
+  public Point3f position(int id) {
+    Track track = find(id);
+    return track == null ? null : new Point3f(track.filter.state());
+  }
+
+  /**
+   * @param id track ID.
+   * @return true if the track exists.
+   */
+  public boolean isActive(int id) {
+    return find(id) != null;
+  }
+
+  /**
+   * @return number of existing tracks.
+   */
+  public int numTracks() {
+    int count = 0;
+    for (Track track : tracks)
+      if (track.id != NO_TRACK)
+        count++;
+    return count;
+  }
+
+  /**
+   * Removes all the tracks.
+   */
+  public void reset() {
+    for (Track track : tracks) {
+      track.id = NO_TRACK;
+      track.filter.reset();
+    }
+  }
+
+  private Track find(int id) {
+    if (id == NO_TRACK)
+      return null;
+    for (Track track : tracks)
+      if (track.id == id)
+        return track;
+    return null;
+  }
+
+  private Track freeTrack() {
+    for (Track track : tracks)
+      if (track.id == NO_TRACK)
+        return track;
+    return null;
+  }
+
+  private float distance2(Point3f p1, Point3f p2) {
+    float dx = p1.x - p2.x, dy = p1.y - p2.y;
+    float dz = planar ? 0 : p1.z - p2.z;
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  private void ensureCapacity(int numDetections) {
+    if (numDetections <= detectionAssigned.length)
+      return;
+    detectionAssigned = new boolean[numDetections];
+    cost = new float[tracks.length * numDetections];
+  }
+}
@@ -1,20 +1,31 @@
 package edu.mit.yingyin.tabletop.models;
 
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_16U;
 import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_32F;
 import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
 import static com.googlecode.javacv.cpp.opencv_core.cvClearMemStorage;
+import static com.googlecode.javacv.cpp.opencv_core.cvConvertScale;
 import static com.googlecode.javacv.cpp.opencv_core.cvCreateMemStorage;
+import static com.googlecode.javacv.cpp.opencv_core.cvRect;
 import static com.googlecode.javacv.cpp.opencv_core.cvReleaseMat;
 import static com.googlecode.javacv.cpp.opencv_core.cvReleaseMemStorage;
+import static com.googlecode.javacv.cpp.opencv_core.cvResetImageROI;
+import static com.googlecode.javacv.cpp.opencv_core.cvSetImageROI;
+import static com.googlecode.javacv.cpp.opencv_imgproc.CV_GAUSSIAN;
+import static com.googlecode.javacv.cpp.opencv_imgproc.cvSmooth;
+import static com.googlecode.javacv.cpp.opencv_imgproc.cvSobel;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.vecmath.Point3f;
 import javax.vecmath.Tuple3f;
 
-import org.OpenNI.GeneralException;
 import org.OpenNI.Point3D;
 
 import com.googlecode.javacv.cpp.opencv_core.CvMat;
@@ -24,11 +35,18 @@ import com.googlecode.javacv.cpp.opencv_core.CvSeq;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 
 import edu.mit.yingyin.image.ImageConvertUtils;
+import edu.mit.yingyin.tabletop.models.DerivedProductStats.Product;
+import edu.mit.yingyin.util.BitMask;
 import edu.mit.yingyin.util.ValConfidencePair;
 
 
 /**
  * ProcessPacket contains the data related to the current frame.
+ * 
+ * The blurred depth, the derivative, the RGB image and the integer array of 
+ * the raw depth are computed from the depth data only when they are asked 
+ * for, at most once per frame. The requests and computations are counted in
+ * the <code>DerivedProductStats</code> of the packet.
  * @author yingyin
  *
  */
@@ -41,6 +59,10 @@ public class ProcessPacket {
   static public class ForelimbFeatures {
     public CvMat approxPoly, hull;
     public CvRect boundingBox;
+    /**
+     * Connected component of the foreground of the forelimb.
+     */
+    public BlobLabeler.Blob blob;
     public CvSeq convexityDefects;
     public CvRect handRegion, armJointRegion;
     public List<ValConfidencePair<Point3f>> fingertips = 
@@ -55,54 +77,155 @@ public class ProcessPacket {
     }
   }
   
+  /**
+   * Points of the processing of a frame that are timestamped, in processing
+   * order.
+   */
+  public static enum Checkpoint {
+    PREPROCESSED, FEATURES_EXTRACTED, MODEL_ESTIMATED, TRACKED, DISPATCHED
+  }
+  
   static public class HandFeatures {
     public Point3f centroidWorld;
     public Tuple3f rot;
-    public List<Point3f> pointCloud;
+    /**
+     * Hand points in the world coordinates aligned with the principal axes and
+     * centered at the origin. Owned by the packet.
+     */
+    public PointCloud pointCloud;
     public float handPoseWidth;
-    public Point3D[] pointCloudImage;
+    /**
+     * Hand points in the projective coordinates. Owned by the packet.
+     */
+    public PointCloud pointCloudImage;
     public Point3D centroidImage;
   }
   
   /**
-   * Integer array of raw depth values in mm from Kinect.
+   * Unsigned 16-bit raw depth values in mm from Kinect. The sensor data is 
+   * copied directly into this image.
+   */
+  public IplImage depthImage16U;
+  /**
+   * Foreground depth scaled to 8 bits, and the depth scaled to [0, 1]. Both
+   * are written by the background subtraction.
    */
-  public int[] depthRawData;
-  public IplImage depthImage8U, depthImage32F, derivative, morphedImage, 
-         depthImageBlur32F;
-  public IplImage foregroundMask;
+  public IplImage depthImage8U, depthImage32F;
+  /**
+   * Foreground pixels from the background subtraction.
+   */
+  public BitMask foregroundMask;
+  /**
+   * Foreground pixels with depth readings after the morphological opening.
+   */
+  public BitMask morphedMask;
   public CvMemStorage tempMem;
   public List<ForelimbFeatures> forelimbFeatures = 
       new ArrayList<ForelimbFeatures>();
   public List<Forelimb> forelimbs = new ArrayList<Forelimb>();
   public int depthFrameID;
+  /**
+   * <code>System.nanoTime</code> when the depth frame was acquired.
+   */
+  public long acquisitionTime;
+  /**
+   * Timestamp of the depth frame in microseconds from the sensor clock.
+   */
+  public long sensorTimestamp;
+  /**
+   * <code>System.nanoTime</code> when each <code>Checkpoint</code> is 
+   * reached, indexed by the ordinals. 0 if the frame has not reached it.
+   */
+  public final long[] checkpointTimes = new long[Checkpoint.values().length];
   public int width, height;
+  /**
+   * True if the background is subtracted from the depth data in this frame.
+   */
+  public boolean foregroundExtracted;
+  /**
+   * Regions of the frame that are preprocessed, or null if the full frame is
+   * preprocessed. Outside the regions, the foreground images are 0 and the 
+   * other derived images are undefined.
+   */
+  public List<Rectangle> regions;
+  /**
+   * Model of the surface the frame is processed against, owned by the 
+   * <code>ForelimbFeatureDetector</code>. Null until the background is 
+   * learned.
+   */
+  public InteractionSurface interactionSurface;
   
+  private final DerivedProductStats productStats;
+  /**
+   * Depth in mm smoothed by a 5x5 Gaussian, and the second derivative of 
+   * <code>depthImage32F</code>. Only valid after the requests.
+   */
+  private final IplImage depthImageBlur32F, derivativeImage;
+  private boolean blurredDepthValid = false;
+  /**
+   * Regions of the derivative computed in the current frame.
+   */
+  private final List<Rectangle> derivativeRegions = 
+      new ArrayList<Rectangle>();
+  private final Rectangle fullFrame;
   private BufferedImage rgbImage;
-  private OpenNIDevice openni;
+  private boolean rgbImageValid = false;
+  private DepthFrameSource source;
+  /**
+   * View of the pixels of <code>depthImage16U</code>.
+   */
+  private final ShortBuffer depthBuffer;
+  private final int depthWidthStep;
+  /**
+   * Integer array of raw depth values in mm, copied from 
+   * <code>depthImage16U</code> on demand.
+   */
+  private int[] depthRawData;
+  private boolean depthRawDataValid = false;
+  /**
+   * Point clouds reused across frames. The first 
+   * <code>pointCloudsLeased</code> ones are used in the current frame.
+   */
+  private final List<PointCloud> pointClouds = new ArrayList<PointCloud>();
+  private int pointCloudsLeased = 0;
   
   /**
    * Creates a new <code>ProcessPacket</code> and allocates memory.
    * @param width
    * @param height
-   * @param engine the <code>HandTrackingEngine</code> that updates this <code>
-   *    ProcessPacket</code>.
+   * @param source the source the RGB image is taken from. Can be null.
    */
-  public ProcessPacket(int width, int height, OpenNIDevice openni) {
-    
-    depthRawData = new int[width * height];
+  public ProcessPacket(int width, int height, DepthFrameSource source) {
+    this(width, height, source, new DerivedProductStats());
+  }
+  
+  /**
+   * Creates a new <code>ProcessPacket</code> and allocates memory.
+   * @param width
+   * @param height
+   * @param source the source the RGB image is taken from. Can be null.
+   * @param productStats statistics the computations of the derived products
+   *    are counted in.
+   */
+  public ProcessPacket(int width, int height, DepthFrameSource source, 
+                       DerivedProductStats productStats) {
+    depthImage16U = IplImage.create(width, height, IPL_DEPTH_16U, 1);
+    depthBuffer = depthImage16U.getShortBuffer();
+    depthWidthStep = depthImage16U.widthStep() / 2;
     // Creates an unsigned 8-bit integer image.
     depthImage8U = IplImage.create(width, height, IPL_DEPTH_8U, 1);
     depthImage32F = IplImage.create(width, height, IPL_DEPTH_32F, 1);
-    derivative = IplImage.create(width, height, IPL_DEPTH_32F, 1);
+    derivativeImage = IplImage.create(width, height, IPL_DEPTH_32F, 1);
     depthImageBlur32F = IplImage.create(width, height, IPL_DEPTH_32F, 1); 
-    morphedImage = IplImage.create(width, height, IPL_DEPTH_8U, 1);
-    foregroundMask = IplImage.create(width, height, IPL_DEPTH_8U, 1);
+    morphedMask = new BitMask(width, height);
+    foregroundMask = new BitMask(width, height);
     // Allocates a default size of 64kB of memory.
     tempMem = cvCreateMemStorage(0);
     this.width = width;
     this.height = height;
-    this.openni = openni;
+    this.source = source;
+    this.productStats = productStats;
+    fullFrame = new Rectangle(width, height);
   }
   
   /**
@@ -110,11 +233,10 @@ public class ProcessPacket {
    */
   public void release() {
     clear();
+    depthImage16U.release();
     depthImage8U.release();
     depthImage32F.release();
-    derivative.release();
-    morphedImage.release();
-    foregroundMask.release();
+    derivativeImage.release();
     depthImageBlur32F.release();
     cvReleaseMemStorage(tempMem);
   }
@@ -125,12 +247,162 @@ public class ProcessPacket {
   public void clear() {
     // Empty the memory storage. This retrieves the memory from sequences.
     cvClearMemStorage(tempMem);
+    foregroundExtracted = false;
+    regions = null;
+    interactionSurface = null;
+    pointCloudsLeased = 0;
     forelimbs.clear();
     for (ForelimbFeatures ff : forelimbFeatures)
       ff.release();
     forelimbFeatures.clear();
   }
   
+  /**
+   * Sets the time of a checkpoint to the current time.
+   * @param checkpoint
+   * @return the current time.
+   */
+  public long stamp(Checkpoint checkpoint) {
+    long now = System.nanoTime();
+    checkpointTimes[checkpoint.ordinal()] = now;
+    return now;
+  }
+  
+  /**
+   * Sets the acquisition time and the sensor timestamp of a new frame and 
+   * clears the checkpoint times.
+   * @param acquisitionTime
+   * @param sensorTimestamp
+   */
+  public void acquired(long acquisitionTime, long sensorTimestamp) {
+    this.acquisitionTime = acquisitionTime;
+    this.sensorTimestamp = sensorTimestamp;
+    Arrays.fill(checkpointTimes, 0);
+  }
+  
+  /**
+   * Returns an empty point cloud that is valid until the packet is cleared. 
+   * The point clouds are reused across frames, so no memory is allocated once
+   * there are enough of them.
+   * @return
+   */
+  public PointCloud leasePointCloud() {
+    if (pointCloudsLeased == pointClouds.size())
+      pointClouds.add(new PointCloud());
+    PointCloud pc = pointClouds.get(pointCloudsLeased++);
+    pc.clear();
+    return pc;
+  }
+  
+  /**
+   * Marks that new depth data is written into <code>depthImage16U</code>. 
+   * Should be called after each depth update.
+   */
+  public void depthUpdated() {
+    depthRawDataValid = false;
+    blurredDepthValid = false;
+    rgbImageValid = false;
+    derivativeRegions.clear();
+  }
+
+  /**
+   * @return the statistics of the derived products of this packet.
+   */
+  public DerivedProductStats productStats() {
+    return productStats;
+  }
+
+  /**
+   * Returns the depth in mm smoothed by a 5x5 Gaussian. It is computed over
+   * the full frame on the first call for a frame.
+   * 
+   * @return a 32-bit float image. Caller should not modify it.
+   */
+  public IplImage blurredDepth() {
+    productStats.requested(Product.BLURRED_DEPTH);
+    if (!blurredDepthValid) {
+      long t = System.nanoTime();
+      cvConvertScale(depthImage16U, depthImageBlur32F, 1, 0);
+      cvSmooth(depthImageBlur32F, depthImageBlur32F, CV_GAUSSIAN, 5);
+      blurredDepthValid = true;
+      productStats.materialized(Product.BLURRED_DEPTH, width * height, 
+                                System.nanoTime() - t);
+    }
+    return depthImageBlur32F;
+  }
+
+  /**
+   * @return the second derivative of <code>depthImage32F</code> over the 
+   *    full frame. Caller should not modify it.
+   */
+  public IplImage derivative() {
+    return derivative(null);
+  }
+
+  /**
+   * Returns the second derivative in x and y of <code>depthImage32F</code> 
+   * by a 3x3 Sobel operator. It is only computed over the part of the region
+   * that is not computed yet in the current frame.
+   * 
+   * @param region the region needed, or null for the full frame.
+   * @return a 32-bit float image whose values are only valid in the regions 
+   *    requested in the current frame. Caller should not modify it.
+   */
+  public IplImage derivative(Rectangle region) {
+    productStats.requested(Product.DERIVATIVE);
+    Rectangle r = region == null ? fullFrame : 
+        region.intersection(fullFrame);
+    if (r.isEmpty())
+      return derivativeImage;
+    for (Rectangle computed : derivativeRegions) {
+      if (computed.contains(r))
+        return derivativeImage;
+    }
+    long t = System.nanoTime();
+    boolean full = r.equals(fullFrame);
+    if (!full) {
+      cvSetImageROI(depthImage32F, cvRect(r.x, r.y, r.width, r.height));
+      cvSetImageROI(derivativeImage, cvRect(r.x, r.y, r.width, r.height));
+    }
+    cvSobel(depthImage32F, derivativeImage, 2, 2, 3);
+    if (!full) {
+      cvResetImageROI(depthImage32F);
+      cvResetImageROI(derivativeImage);
+    } else {
+      derivativeRegions.clear();
+    }
+    derivativeRegions.add(r);
+    productStats.materialized(Product.DERIVATIVE, r.width * r.height, 
+                              System.nanoTime() - t);
+    return derivativeImage;
+  }
+
+  /**
+   * Returns the raw depth values as an integer array. The array is only 
+   * converted from <code>depthImage16U</code> when this method is called for 
+   * a new frame, so callers that can work on the image should use it instead.
+   * 
+   * @return an array of width * height depth values in mm. Caller should not 
+   *    modify the array.
+   */
+  public int[] depthRawData() {
+    productStats.requested(Product.DEPTH_RAW_ARRAY);
+    if (depthRawData == null)
+      depthRawData = new int[width * height];
+    if (!depthRawDataValid) {
+      long t = System.nanoTime();
+      for (int h = 0; h < height; h++) {
+        int offset = h * depthWidthStep;
+        for (int w = 0; w < width; w++)
+          depthRawData[h * width + w] = depthBuffer.get(offset + w) & 0xffff;
+      }
+      depthRawDataValid = true;
+      productStats.materialized(Product.DEPTH_RAW_ARRAY, width * height, 
+                                System.nanoTime() - t);
+    }
+    return depthRawData;
+  }
+
   /**
    * Gets one row of depth raw values.
    * @param row
@@ -138,7 +410,9 @@ public class ProcessPacket {
    */
   public int[] getDepthRaw(int row) {
     int[] rowData = new int[width];
-    System.arraycopy(depthRawData, width * row, rowData, 0, width);
+    int offset = row * depthWidthStep;
+    for (int w = 0; w < width; w++)
+      rowData[w] = depthBuffer.get(offset + w) & 0xffff;
     return rowData;
   }
   
@@ -150,21 +424,32 @@ public class ProcessPacket {
    */
   public int getDepthRaw(int x, int y) {
     if (x >= width)
-      x = width;
+      x = width - 1;
     if (y >= height)
-      y = height;
-    return depthRawData[y * width + x];
+      y = height - 1;
+    return depthBuffer.get(y * depthWidthStep + x) & 0xffff;
   }
   
   /**
-   * Returns the current updated RGB image.
-   * @throws GeneralException
+   * Returns the current updated RGB image. It is converted from the source on
+   * the first call for a frame.
+   * @return the RGB image, or null if the source has no RGB stream.
+   * @throws DepthFrameSourceException
    */
-  public  BufferedImage rgbImage() throws GeneralException {
+  public  BufferedImage rgbImage() throws DepthFrameSourceException {
+    productStats.requested(Product.RGB);
+    if (rgbImageValid)
+      return rgbImage;
+    ByteBuffer imageBuffer = source == null ? null : source.getImageBuffer();
+    if (imageBuffer == null)
+      return null;
+    long t = System.nanoTime();
     if (rgbImage == null)
       rgbImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-    ImageConvertUtils.byteBuffer2BufferedImage(openni.getImageBuffer(), 
-                                               rgbImage);
+    ImageConvertUtils.byteBuffer2BufferedImage(imageBuffer, rgbImage);
+    rgbImageValid = true;
+    productStats.materialized(Product.RGB, width * height, 
+                              System.nanoTime() - t);
     return rgbImage;
   }
 }
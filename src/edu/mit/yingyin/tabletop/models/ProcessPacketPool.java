@@ -0,0 +1,159 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of preallocated <code>ProcessPacket</code>s so that the
+ * per-frame images and memory storage are reused instead of being allocated
+ * and freed for every frame.
+ *
+ * Packets are leased with <code>lease</code> and must be given back with
+ * <code>returnPacket</code> when the caller is done with them. If all the
+ * pooled packets are leased out, a new packet is allocated and the exhaustion
+ * is counted. The pool never holds more than its capacity of free packets;
+ * extra packets returned to a full pool are released.
+ *
+ * This class is thread-safe.
+ *
+ * @author yingyin
+ *
+ */
+public class ProcessPacketPool {
+  public static final int DEFAULT_CAPACITY = 4;
+
+  private static final Logger LOGGER = Logger.getLogger(
+      ProcessPacketPool.class.getName());
+
+  private final BlockingQueue<ProcessPacket> free;
+  private final int width, height, capacity;
+  private final DepthFrameSource source;
+  private final DerivedProductStats productStats;
+
+  /**
+   * Number of packets allocated, reused from the pool, and number of times the
+   * pool is empty when a packet is requested.
+   */
+  private final AtomicLong allocations = new AtomicLong(),
+      reuses = new AtomicLong(), exhaustions = new AtomicLong();
+  private volatile boolean released = false;
+
+  /**
+   * Creates a pool and preallocates <code>capacity</code> packets.
+   *
+   * @param width width of the depth frame.
+   * @param height height of the depth frame.
+   * @param source the source the packets get the RGB image from. Can be null.
+   * @param capacity maximum number of free packets kept in the pool.
+   */
+  public ProcessPacketPool(int width, int height, DepthFrameSource source,
+                           int capacity) {
+    this(width, height, source, capacity, new DerivedProductStats());
+  }
+
+  /**
+   * Creates a pool and preallocates <code>capacity</code> packets.
+   *
+   * @param width width of the depth frame.
+   * @param height height of the depth frame.
+   * @param source the source the packets get the RGB image from. Can be null.
+   * @param capacity maximum number of free packets kept in the pool.
+   * @param productStats statistics shared by the packets for their derived
+   *    products.
+   */
+  public ProcessPacketPool(int width, int height, DepthFrameSource source,
+                           int capacity, DerivedProductStats productStats) {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("Capacity should be positive.");
+    this.width = width;
+    this.height = height;
+    this.source = source;
+    this.capacity = capacity;
+    this.productStats = productStats;
+    free = new ArrayBlockingQueue<ProcessPacket>(capacity);
+    for (int i = 0; i < capacity; i++)
+      free.offer(allocate());
+  }
+
+  /**
+   * Leases a cleared packet from the pool. A new packet is allocated if there
+   * is no free packet.
+   *
+   * @return a <code>ProcessPacket</code> that should be given back by
+   *    <code>returnPacket</code>.
+   */
+  public ProcessPacket lease() {
+    ProcessPacket packet = free.poll();
+    if (packet != null) {
+      reuses.incrementAndGet();
+      packet.clear();
+      return packet;
+    }
+    exhaustions.incrementAndGet();
+    return allocate();
+  }
+
+  /**
+   * Gives a packet back to the pool. The packet should not be used by the
+   * caller afterwards.
+   *
+   * @param packet a packet leased from this pool. Ignored if null.
+   */
+  public void returnPacket(ProcessPacket packet) {
+    if (packet == null)
+      return;
+    packet.clear();
+    if (released || !free.offer(packet))
+      packet.release();
+  }
+
+  public int capacity() { return capacity; }
+
+  /**
+   * @return number of free packets in the pool.
+   */
+  public int available() { return free.size(); }
+
+  /**
+   * @return total number of packets allocated including the preallocated ones.
+   */
+  public long allocations() { return allocations.get(); }
+
+  /**
+   * @return number of leases served by a pooled packet.
+   */
+  public long reuses() { return reuses.get(); }
+
+  /**
+   * @return number of leases that found the pool empty.
+   */
+  public long exhaustions() { return exhaustions.get(); }
+
+  /**
+   * @return statistics of the pool as a string.
+   */
+  public String stats() {
+    return String.format("Packet pool: capacity = %d, allocations = %d, " +
+        "reuses = %d, exhaustions = %d", capacity, allocations(), reuses(),
+        exhaustions());
+  }
+
+  /**
+   * Releases the memory of all the free packets. Packets returned afterwards
+   * are released immediately.
+   */
+  public void release() {
+    released = true;
+    ProcessPacket packet;
+    while ((packet = free.poll()) != null)
+      packet.release();
+    LOGGER.info(stats());
+  }
+
+  private ProcessPacket allocate() {
+    allocations.incrementAndGet();
+    return new ProcessPacket(width, height, source, productStats);
+  }
+}
@@ -0,0 +1,354 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * Replays raw depth frames without OpenNI. A raw file contains one or more
+ * frames of unsigned 16-bit little-endian depth values in mm, row by row
+ * without padding, like <code>test_data/Depth_0.raw</code>. The source is
+ * either a raw file or a directory of raw files, which are played in the
+ * order of their names with the numbers in the names compared numerically.
+ *
+ * The files are memory-mapped, so <code>getDepthBuffer</code> returns a view
+ * of the mapped file without copying. Frame IDs start from 1. After the last
+ * frame, the playback starts again from the first frame like an OpenNI
+ * recording, unless looping is turned off with <code>setLooping</code>, in
+ * which case the stream ends at the last frame.
+ *
+ * @author yingyin
+ *
+ */
+public class RawDepthFrameSource implements DepthFrameSource {
+  /**
+   * How fast the frames are played.
+   */
+  public static enum PlaybackRate {
+    /** Frames are played at the frame rate of the recording. */
+    REAL_TIME,
+    /** Each frame is available as soon as it is requested. */
+    AS_FAST_AS_POSSIBLE,
+    /** Each frame waits for a call to <code>step</code>. */
+    STEPPED
+  }
+
+  public static final String RAW_SUFFIX = ".raw";
+  public static final float DEFAULT_FPS = 30;
+
+  private static final Logger LOGGER = Logger.getLogger(
+      RawDepthFrameSource.class.getName());
+
+  public static boolean isRawRecording(String path) {
+    return path.endsWith(RAW_SUFFIX) || new File(path).isDirectory();
+  }
+
+  private final int width, height;
+  private final DepthProjection projection;
+  private final PlaybackRate playbackRate;
+  private final long framePeriodNanos;
+  /**
+   * Read-only views of the frames in the mapped files.
+   */
+  private final List<ShortBuffer> frames = new ArrayList<ShortBuffer>();
+  private final Semaphore steps = new Semaphore(0);
+  /**
+   * Index of the current frame, -1 before the first frame.
+   */
+  private volatile int current = -1;
+  /**
+   * Index of the frame to play next after a seek, or -1.
+   */
+  private volatile int seekTarget = -1;
+  private long nextFrameTime;
+  private volatile boolean released = false, looping = true;
+
+  /**
+   * Opens and maps the raw files.
+   *
+   * @param path a raw file or a directory of raw files.
+   * @param projection projection model of the recording, which also gives
+   *    the size of the frames.
+   * @param playbackRate
+   * @param fps frame rate in real-time playback.
+   * @throws IOException if there is no frame or a file does not contain a
+   *    whole number of frames.
+   */
+  public RawDepthFrameSource(String path, DepthProjection projection,
+      PlaybackRate playbackRate, float fps) throws IOException {
+    if (fps <= 0)
+      throw new IllegalArgumentException("Frame rate should be positive.");
+    this.projection = projection;
+    this.playbackRate = playbackRate;
+    width = projection.width();
+    height = projection.height();
+    framePeriodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / fps);
+
+    for (File file : rawFiles(new File(path)))
+      map(file);
+    if (frames.isEmpty())
+      throw new IOException("No depth frame in " + path);
+    LOGGER.info(String.format("Mapped %d depth frames from %s", frames.size(),
+                              path));
+  }
+
+  public RawDepthFrameSource(String path, DepthProjection projection)
+      throws IOException {
+    this(path, projection, PlaybackRate.AS_FAST_AS_POSSIBLE, DEFAULT_FPS);
+  }
+
+  @Override
+  public int getDepthWidth() { return width; }
+
+  @Override
+  public int getDepthHeight() { return height; }
+
+  @Override
+  public DepthProjection projection() { return projection; }
+
+  public PlaybackRate playbackRate() { return playbackRate; }
+
+  public int numFrames() { return frames.size(); }
+
+  /**
+   * @param looping if true, the playback starts again from the first frame
+   *    after the last frame. Otherwise, the stream ends at the last frame. 
+   *    True by default.
+   */
+  public void setLooping(boolean looping) { this.looping = looping; }
+
+  @Override
+  public boolean endOfStream() {
+    return !looping && seekTarget < 0 && current == frames.size() - 1;
+  }
+
+  /**
+   * Advances to the next frame, or to the frame sought. In the real-time
+   * playback, waits until the time of the frame; a late frame is not made up
+   * for. In the stepped playback, waits for a call to <code>step</code>.
+   *
+   * @throws InterruptedException
+   * @throws IllegalStateException if the stream has ended.
+   */
+  @Override
+  public void waitDepthUpdateAll() throws InterruptedException {
+    if (playbackRate == PlaybackRate.STEPPED) {
+      steps.acquire();
+    } else if (playbackRate == PlaybackRate.REAL_TIME) {
+      long now = System.nanoTime();
+      if (current >= 0 && nextFrameTime > now)
+        TimeUnit.NANOSECONDS.sleep(nextFrameTime - now);
+      nextFrameTime = Math.max(now, nextFrameTime) + framePeriodNanos;
+    }
+    if (released)
+      throw new IllegalStateException("The frame source is released.");
+    if (endOfStream())
+      throw new IllegalStateException("No more depth frames.");
+    int target = seekTarget;
+    if (target >= 0) {
+      seekTarget = -1;
+      current = target;
+    } else {
+      current = (current + 1) % frames.size();
+    }
+  }
+
+  /**
+   * Lets the stepped playback advance by one frame.
+   */
+  public void step() {
+    steps.release();
+  }
+
+  @Override
+  public int getDepthFrameID() { return current + 1; }
+
+  /**
+   * The raw frames have no timestamps, so the timestamp is derived from the
+   * frame index and the frame rate.
+   */
+  @Override
+  public long getDepthTimestamp() {
+    return TimeUnit.NANOSECONDS.toMicros(Math.max(current, 0) * 
+                                         framePeriodNanos);
+  }
+
+  /**
+   * @return a read-only view of the current frame in the mapped file.
+   */
+  @Override
+  public ShortBuffer getDepthBuffer() {
+    return currentFrame().duplicate();
+  }
+
+  @Override
+  public void getDepthImage(IplImage image) {
+    ShortBuffer src = currentFrame().duplicate();
+    ShortBuffer dst = image.getShortBuffer();
+    int widthStep = image.widthStep() / 2;
+    if (widthStep == width) {
+      dst.put(src);
+    } else {
+      // Rows of the image are padded.
+      for (int h = 0; h < height; h++) {
+        src.limit((h + 1) * width);
+        src.position(h * width);
+        dst.position(h * widthStep);
+        dst.put(src);
+      }
+    }
+    dst.rewind();
+  }
+
+  /**
+   * Raw recordings have no RGB stream.
+   * @return null.
+   */
+  @Override
+  public ByteBuffer getImageBuffer() { return null; }
+
+  /**
+   * Seeks relative to the current frame. The frame sought is the next frame
+   * played.
+   */
+  @Override
+  public void seekFrameBy(int diff) {
+    seekToFrame(getDepthFrameID() + diff);
+  }
+
+  /**
+   * Makes a frame the next frame played.
+   * @param frameID ID of the frame, wrapped around the number of frames.
+   */
+  public void seekToFrame(int frameID) {
+    int n = frames.size();
+    seekTarget = ((frameID - 1) % n + n) % n;
+  }
+
+  /**
+   * Releases the frames and wakes up a waiting stepped playback. The mapped
+   * memory is freed when the views are garbage collected.
+   */
+  @Override
+  public void release() {
+    released = true;
+    steps.release();
+  }
+
+  private ShortBuffer currentFrame() {
+    if (current < 0)
+      throw new IllegalStateException("No depth frame is played yet.");
+    return frames.get(current);
+  }
+
+  /**
+   * Maps the frames in a file. A file larger than the maximum mapping size is
+   * mapped in several parts of whole frames.
+   */
+  private void map(File file) throws IOException {
+    long frameBytes = (long) width * height * 2;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      if (size == 0 || size % frameBytes != 0) {
+        throw new IOException(String.format(
+            "%s does not contain whole %dx%d depth frames.", file, width,
+            height));
+      }
+      long framesPerMap = Integer.MAX_VALUE / frameBytes;
+      for (long offset = 0; offset < size;
+           offset += framesPerMap * frameBytes) {
+        long length = Math.min(size - offset, framesPerMap * frameBytes);
+        ShortBuffer sb = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+            length).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        int frameSize = width * height;
+        for (int pos = 0; pos < sb.capacity(); pos += frameSize) {
+          sb.limit(pos + frameSize);
+          sb.position(pos);
+          frames.add(sb.slice().asReadOnlyBuffer());
+        }
+      }
+    } finally {
+      // The mappings stay valid after the file is closed.
+      raf.close();
+    }
+  }
+
+  private static File[] rawFiles(File path) throws IOException {
+    if (!path.isDirectory()) {
+      if (!path.isFile())
+        throw new IOException("Depth frames not found: " + path);
+      return new File[] {path};
+    }
+    File[] files = path.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File f) {
+        return f.isFile() && f.getName().endsWith(RAW_SUFFIX);
+      }
+    });
+    if (files == null)
+      throw new IOException("Cannot list " + path);
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        return compareNames(f1.getName(), f2.getName());
+      }
+    });
+    return files;
+  }
+
+  /**
+   * Compares two file names with the digit runs compared as numbers, so that
+   * Depth_2.raw comes before Depth_10.raw.
+   */
+  static int compareNames(String s1, String s2) {
+    int i = 0, j = 0;
+    while (i < s1.length() && j < s2.length()) {
+      char c1 = s1.charAt(i), c2 = s2.charAt(j);
+      if (Character.isDigit(c1) && Character.isDigit(c2)) {
+        int end1 = i, end2 = j;
+        while (end1 < s1.length() && Character.isDigit(s1.charAt(end1)))
+          end1++;
+        while (end2 < s2.length() && Character.isDigit(s2.charAt(end2)))
+          end2++;
+        String n1 = stripZeros(s1.substring(i, end1)),
+               n2 = stripZeros(s2.substring(j, end2));
+        if (n1.length() != n2.length())
+          return n1.length() - n2.length();
+        int c = n1.compareTo(n2);
+        if (c != 0)
+          return c;
+        i = end1;
+        j = end2;
+      } else {
+        if (c1 != c2)
+          return c1 - c2;
+        i++;
+        j++;
+      }
+    }
+    return (s1.length() - i) - (s2.length() - j);
+  }
+
+  private static String stripZeros(String digits) {
+    int i = 0;
+    while (i < digits.length() - 1 && digits.charAt(i) == '0')
+      i++;
+    return digits.substring(i);
+  }
+}
@@ -0,0 +1,184 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.mit.yingyin.tabletop.models.BlobLabeler.Blob;
+
+/**
+ * Decides which parts of a depth frame need to be processed. A full frame is
+ * processed every <code>fullFramePeriod</code> frames and whenever a forelimb
+ * enters the view. In the other frames only the bounding boxes of the
+ * forelimbs found in the previous frames, expanded by a margin, and the bands
+ * along the image edges are processed. A forelimb that enters the view has to
+ * cross an edge band, so it is found in the band and triggers a full frame.
+ * Only a thin part of the forelimb is in the band then, which is too small to
+ * pass the contour filters of the forelimbs, so the blobs touching the image
+ * border are checked instead.
+ *
+ * The methods are synchronized because in the pipelined mode the regions of a
+ * frame are decided while the features of an earlier frame are extracted.
+ *
+ * @author yingyin
+ *
+ */
+public class RegionOfInterest {
+  public static final int DEFAULT_FULL_FRAME_PERIOD = 10;
+  public static final int DEFAULT_MARGIN = 32;
+  public static final int DEFAULT_EDGE_BAND = 8;
+  /**
+   * If the regions cover more than this fraction of the frame, the full frame
+   * is processed instead.
+   */
+  private static final float MAX_COVERAGE = 0.5f;
+
+  private final int width, height;
+  private final int fullFramePeriod, margin;
+  /**
+   * Minimum area of a blob touching the image border to be a new forelimb.
+   * Smaller blobs are left as noise.
+   */
+  private final int minEntryArea;
+  private final List<Rectangle> edgeBands = new ArrayList<Rectangle>();
+  /**
+   * Expanded bounding boxes of the forelimbs in the last updated frame.
+   */
+  private final List<Rectangle> tracked = new ArrayList<Rectangle>();
+  private int framesSinceFullFrame = 0;
+  /**
+   * True if a full frame is needed because a new forelimb may have entered
+   * the view. A full frame is needed before the first update.
+   */
+  private boolean fullFrameRequested = true;
+
+  /**
+   * @param width width of the depth frame.
+   * @param height height of the depth frame.
+   * @param fullFramePeriod a full frame is processed at least once every
+   *    <code>fullFramePeriod</code> frames.
+   * @param margin number of pixels to expand the forelimb bounding boxes on
+   *    each side.
+   * @param edgeBand width of the bands along the image edges that are always
+   *    processed.
+   */
+  public RegionOfInterest(int width, int height, int fullFramePeriod,
+                          int margin, int edgeBand) {
+    this.width = width;
+    this.height = height;
+    this.fullFramePeriod = fullFramePeriod;
+    this.margin = margin;
+    this.minEntryArea = Math.max(1, edgeBand * edgeBand);
+    if (edgeBand > 0) {
+      edgeBands.add(new Rectangle(0, 0, width, edgeBand));
+      edgeBands.add(new Rectangle(0, height - edgeBand, width, edgeBand));
+      edgeBands.add(new Rectangle(0, edgeBand, edgeBand, height - 2 * edgeBand));
+      edgeBands.add(new Rectangle(width - edgeBand, edgeBand, edgeBand,
+                                  height - 2 * edgeBand));
+    }
+  }
+
+  public RegionOfInterest(int width, int height) {
+    this(width, height, DEFAULT_FULL_FRAME_PERIOD, DEFAULT_MARGIN,
+         DEFAULT_EDGE_BAND);
+  }
+
+  /**
+   * Decides the regions to process in the next frame. Should be called once
+   * per frame.
+   *
+   * @return the regions to process, or null if the full frame should be
+   *    processed. The edge bands come before the forelimb regions, so the
+   *    forelimb regions are processed last where they overlap.
+   */
+  public synchronized List<Rectangle> nextRegions() {
+    if (fullFrameRequested || ++framesSinceFullFrame >= fullFramePeriod)
+      return fullFrame();
+
+    List<Rectangle> regions = new ArrayList<Rectangle>(
+        edgeBands.size() + tracked.size());
+    long area = 0;
+    for (Rectangle r : edgeBands) {
+      regions.add(new Rectangle(r));
+      area += (long) r.width * r.height;
+    }
+    for (Rectangle r : tracked) {
+      regions.add(new Rectangle(r));
+      area += (long) r.width * r.height;
+    }
+    if (area > MAX_COVERAGE * width * height)
+      return fullFrame();
+    return regions;
+  }
+
+  /**
+   * Updates the forelimb regions with the forelimbs found in a frame.
+   *
+   * @param boxes bounding boxes of the forelimbs found.
+   * @param fullFrame true if the boxes are found in a full frame. If false, a
+   *    box that does not overlap any forelimb region is a new forelimb and
+   *    requests a full frame.
+   */
+  public synchronized void update(List<Rectangle> boxes, boolean fullFrame) {
+    update(boxes, new ArrayList<Blob>(), fullFrame);
+  }
+
+  /**
+   * Updates the forelimb regions with the forelimbs found in a frame.
+   *
+   * @param boxes bounding boxes of the forelimbs found.
+   * @param blobs all the blobs of the frame, including the ones rejected as
+   *    forelimbs. If the boxes are not found in a full frame, a blob that
+   *    touches the image border, is not smaller than the minimum entry area
+   *    and does not overlap any forelimb region is a forelimb entering the
+   *    view and requests a full frame.
+   * @param fullFrame true if the boxes are found in a full frame. If false, a
+   *    box that does not overlap any forelimb region is a new forelimb and
+   *    requests a full frame.
+   */
+  public synchronized void update(List<Rectangle> boxes, List<Blob> blobs,
+                                  boolean fullFrame) {
+    if (!fullFrame) {
+      for (Rectangle box : boxes) {
+        if (!overlapsTracked(box)) {
+          fullFrameRequested = true;
+          break;
+        }
+      }
+      for (Blob b : blobs) {
+        if (b.edgeContact > 0 && b.area >= minEntryArea && 
+            !overlapsTracked(b.bounds())) {
+          fullFrameRequested = true;
+          break;
+        }
+      }
+    }
+    tracked.clear();
+    for (Rectangle box : boxes) {
+      Rectangle r = new Rectangle(box);
+      r.grow(margin, margin);
+      tracked.add(r.intersection(new Rectangle(0, 0, width, height)));
+    }
+  }
+
+  /**
+   * Requests a full frame next, e.g. after the background changes.
+   */
+  public synchronized void reset() {
+    tracked.clear();
+    fullFrameRequested = true;
+  }
+
+  private List<Rectangle> fullFrame() {
+    fullFrameRequested = false;
+    framesSinceFullFrame = 0;
+    return null;
+  }
+
+  private boolean overlapsTracked(Rectangle box) {
+    for (Rectangle r : tracked)
+      if (r.intersects(box))
+        return true;
+    return false;
+  }
+}
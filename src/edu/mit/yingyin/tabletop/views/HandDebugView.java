@@ -8,13 +8,13 @@ import java.util.Arrays;
 import java.util.List;
 
 import javax.swing.JFrame;
-import javax.vecmath.Point3f;
 
 import org.OpenNI.Point3D;
 
 import edu.mit.yingyin.gui.ImageFrame;
 import edu.mit.yingyin.tabletop.models.FeatureBuilder;
 import edu.mit.yingyin.tabletop.models.Forelimb;
+import edu.mit.yingyin.tabletop.models.PointCloud;
 import edu.mit.yingyin.tabletop.models.ProcessPacket;
 import edu.mit.yingyin.tabletop.models.ProcessPacket.ForelimbFeatures;
 import edu.mit.yingyin.tabletop.views.ProcessPacketView.DebugView;
@@ -66,9 +66,12 @@ public class HandDebugView implements DebugView {
       if (ff.hf != null && ff.hf.pointCloudImage != null) {
         Point3D center = ff.hf.centroidImage;
         int width = (int) (ff.hf.handPoseWidth / 2);
-        for (Point3D p : ff.hf.pointCloudImage) {
-          int x = Math.round(p.getX() - center.getX() + width / 2) + topleft.x;
-          int y = Math.round(p.getY() - center.getY() + width / 2) + topleft.y;
+        PointCloud points = ff.hf.pointCloudImage;
+        for (int i = 0; i < points.size(); i++) {
+          int x = Math.round(points.x[i] - center.getX() + width / 2) + 
+              topleft.x;
+          int y = Math.round(points.y[i] - center.getY() + width / 2) + 
+              topleft.y;
           if (x >= 0 && y >= 0)
             imageArray[y * WIDTH + x] = (byte) 255;
         }
@@ -85,11 +88,12 @@ public class HandDebugView implements DebugView {
     for (ForelimbFeatures ff : featureList) {
       if (ff.hf != null && ff.hf.pointCloud != null) {
         int width = (int) ff.hf.handPoseWidth;
-        for (Point3f p : ff.hf.pointCloud) {
-          p.x += width / 2 + topleft.x;
-          p.y = -p.y + width / 2 + topleft.y;
-          if (p.x >= 0 && p.y >= 0)
-            imageArray[((int) p.y * WIDTH) + (int) p.x] = (byte) 255;
+        PointCloud points = ff.hf.pointCloud;
+        for (int i = 0; i < points.size(); i++) {
+          float x = points.x[i] + width / 2 + topleft.x;
+          float y = -points.y[i] + width / 2 + topleft.y;
+          if (x >= 0 && y >= 0)
+            imageArray[((int) y * WIDTH) + (int) x] = (byte) 255;
         }
         Graphics2D g = (Graphics2D) bi.getGraphics();
         g.drawRect(topleft.x, topleft.y, width, width);
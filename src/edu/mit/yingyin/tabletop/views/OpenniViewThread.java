@@ -10,7 +10,9 @@ import org.OpenNI.StatusException;
 import edu.mit.yingyin.tabletop.controllers.ProcessPacketController;
 import edu.mit.yingyin.tabletop.models.ForelimbFeatureDetector;
 import edu.mit.yingyin.tabletop.models.OpenNIDevice;
+import edu.mit.yingyin.tabletop.models.OpenNIFrameSource;
 import edu.mit.yingyin.tabletop.models.ProcessPacket;
+import edu.mit.yingyin.tabletop.models.ProcessPacketPool;
 
 public class OpenniViewThread extends Thread {
   private static final Logger LOGGER = Logger.getLogger(
@@ -18,6 +20,7 @@ public class OpenniViewThread extends Thread {
   private OpenNIDevice openni;
   private ProcessPacketController packetController;
   private ForelimbFeatureDetector analyzer;
+  private ProcessPacketPool packetPool;
   private boolean running = true;
   private int depthWidth, depthHeight;
   
@@ -27,7 +30,10 @@ public class OpenniViewThread extends Thread {
       depthWidth = openni.getDepthWidth();
       depthHeight = openni.getDepthHeight();
       analyzer = new ForelimbFeatureDetector(depthWidth, depthHeight, openni);
-      packetController = new ProcessPacketController(depthWidth, depthHeight, 
+      // Only one packet is in use at a time.
+      packetPool = new ProcessPacketPool(depthWidth, depthHeight,
+                                         new OpenNIFrameSource(openni), 1);
+      packetController = new ProcessPacketController(depthWidth, depthHeight,
           null);
     } catch (GeneralException e) {
       LOGGER.severe(e.getMessage());
@@ -38,14 +44,15 @@ public class OpenniViewThread extends Thread {
   public void step() {
     try {
       openni.waitDepthUpdateAll();
-      ProcessPacket packet = new ProcessPacket(depthWidth, depthHeight, openni);
-      openni.getDepthArray(packet.depthRawData);
+      ProcessPacket packet = packetPool.lease();
+      openni.getDepthImage(packet.depthImage16U);
+      packet.depthUpdated();
       packet.depthFrameID = openni.getDepthFrameID();
       analyzer.detect(packet);
       synchronized (packetController) {
         packetController.show(packet);
       }
-      packet.release();
+      packetPool.returnPacket(packet);
     } catch (StatusException se) {
       LOGGER.severe(se.getMessage());
       System.exit(-1);
@@ -62,6 +69,7 @@ public class OpenniViewThread extends Thread {
     }
     openni.release();
     analyzer.release();
+    packetPool.release();
     packetController.release();
   }
   
@@ -1,6 +1,7 @@
 package edu.mit.yingyin.tabletop.views;
 
 import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
+import static com.googlecode.javacv.cpp.opencv_core.cvAnd;
 import static com.googlecode.javacv.cpp.opencv_core.cvCircle;
 import static com.googlecode.javacv.cpp.opencv_core.cvRectangle;
 import static com.googlecode.javacv.cpp.opencv_imgproc.CV_GRAY2BGR;
@@ -12,7 +13,6 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.event.KeyListener;
 import java.awt.image.BufferedImage;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -34,9 +34,9 @@ import com.googlecode.javacv.cpp.opencv_core.IplImage;
 import edu.mit.yingyin.tabletop.controllers.ViewImageValueController;
 import edu.mit.yingyin.tabletop.models.EnvConstant;
 import edu.mit.yingyin.tabletop.models.HistogramImageComponent;
-import edu.mit.yingyin.tabletop.models.InteractionSurface;
 import edu.mit.yingyin.tabletop.models.ProcessPacket;
 import edu.mit.yingyin.tabletop.models.ProcessPacket.ForelimbFeatures;
+import edu.mit.yingyin.util.BitMask;
 import edu.mit.yingyin.util.CvUtil;
 import edu.mit.yingyin.util.ValConfidencePair;
 
@@ -70,15 +70,14 @@ public class ProcessPacketView {
     @Override
     public void showDebugImage(ProcessPacket packet) {
       Arrays.fill(debugImage, 0);
-      ByteBuffer maskBuffer = packet.foregroundMask.getByteBuffer();
-      int maskWidthStep = packet.foregroundMask.widthStep();
-      for (int h = 0; h < height; h++)
-        for (int w = 0; w < width; w++) {
-          int pos = h * width + w;
-          if ((maskBuffer.get(h * maskWidthStep + w) & 0xff) == 255) {
-            debugImage[pos] = packet.depthRawData[pos];
-          }
-        }
+      int[] depthRawData = packet.depthRawData();
+      BitMask mask = packet.foregroundMask;
+      for (int h = 0; h < height; h++) {
+        int offset = h * width;
+        for (int w = mask.nextSetBit(h, 0); w >= 0; 
+             w = mask.nextSetBit(h, w + 1))
+          debugImage[offset + w] = depthRawData[offset + w];
+      }
       imageComp.setImage(debugImage);
       imageController.update();
     }
@@ -111,7 +110,7 @@ public class ProcessPacketView {
     
     @Override
     public void showDebugImage(ProcessPacket packet) {
-      imageComp.setImage(packet.depthRawData);
+      imageComp.setImage(packet.depthRawData());
       imageController.update();
       // Draws labeled points.
       if (fingertipLabels != null) {
@@ -160,6 +159,10 @@ public class ProcessPacketView {
       new LinkedHashMap<String, JFrame>();
   
   private final IplImage analysisImage;
+  /**
+   * Foreground depth of the cleaned up foreground.
+   */
+  private final IplImage morphedImage;
   private final DebugView debugView;
   private DepthDebugView depthView;
   private Table3DFrame table3DView;
@@ -173,6 +176,7 @@ public class ProcessPacketView {
     this.width = width;
     this.height = height;
     analysisImage = IplImage.create(width, height, IPL_DEPTH_8U, 3);
+    morphedImage = IplImage.create(width, height, IPL_DEPTH_8U, 1);
     debugImage = new int[width * height];
     
     CanvasFrame cf = new CanvasFrame(ANALYSIS_FRAME_TITLE);
@@ -256,6 +260,7 @@ public class ProcessPacketView {
 
   public void release() {
     analysisImage.release();
+    morphedImage.release();
     LOGGER.info("ProcessPacketView released.");
   }
 
@@ -306,8 +311,8 @@ public class ProcessPacketView {
   private void showTable3DFrame(ProcessPacket packet) {
     if (table3DView != null) {
       if (!table3DView.talbeInitialized() && 
-          InteractionSurface.instanceInitialized()) {
-        table3DView.initTable(InteractionSurface.instance());
+          packet.interactionSurface != null) {
+        table3DView.initTable(packet.interactionSurface);
       }
       
       if (table3DView.talbeInitialized())
@@ -320,9 +325,12 @@ public class ProcessPacketView {
    * {@code ForelimbFeatureDetector}.
    */
   private void showAnalysisImage(ProcessPacket packet) {
-    if (toggleMap.get(Toggles.SHOW_MORPHED))
-      cvCvtColor(packet.morphedImage, analysisImage, CV_GRAY2BGR);
-    else
+    if (toggleMap.get(Toggles.SHOW_MORPHED)) {
+      packet.morphedMask.toBytes(morphedImage.getByteBuffer(), 
+                                 morphedImage.widthStep());
+      cvAnd(morphedImage, packet.depthImage8U, morphedImage, null);
+      cvCvtColor(morphedImage, analysisImage, CV_GRAY2BGR);
+    } else
       cvCvtColor(packet.depthImage8U, analysisImage, CV_GRAY2BGR);
 
     for (ForelimbFeatures ff : packet.forelimbFeatures) {
@@ -0,0 +1,375 @@
+package edu.mit.yingyin.util;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A binary image with 64 pixels per <code>long</code>. The rows are stored
+ * one after another, each starting at a new word, and pixel x of a row is bit
+ * <code>x % 64</code> of word <code>x / 64</code> of the row. The bits past
+ * the width of a row are always 0.
+ *
+ * The morphological operations use the 3 x 3 square structuring element and
+ * work on whole words: a row is shifted by one bit to the left and to the
+ * right and combined with itself, and then combined with the rows above and
+ * below. The pixels outside the image or the region processed are not read:
+ * they are taken as set when eroding and as clear when dilating. So a blob
+ * cut by the border of the region is not eroded from that side, and the
+ * result near the border can differ from processing the whole image.
+ *
+ * Different rows can be written by different threads. The morphological
+ * operations use a scratch buffer of the destination, so they must not run
+ * concurrently with the same destination.
+ *
+ * @author yingyin
+ *
+ */
+public class BitMask {
+  private static final int WORD_BITS = 64;
+  private static final int LOG_WORD_BITS = 6;
+  private static final long ALL = -1L;
+
+  private final int width, height, wordsPerRow;
+  private final long[] words;
+  /**
+   * Result of the horizontal pass of a morphological operation, created on
+   * first use.
+   */
+  private long[] scratch;
+
+  public BitMask(int width, int height) {
+    this.width = width;
+    this.height = height;
+    wordsPerRow = (width + WORD_BITS - 1) >>> LOG_WORD_BITS;
+    words = new long[wordsPerRow * height];
+  }
+
+  public int width() { return width; }
+
+  public int height() { return height; }
+
+  public int wordsPerRow() { return wordsPerRow; }
+
+  /**
+   * @return the words of the mask, row by row.
+   */
+  public long[] words() { return words; }
+
+  public boolean get(int x, int y) {
+    return (words[index(x, y)] & (1L << x)) != 0;
+  }
+
+  public void set(int x, int y) {
+    words[index(x, y)] |= 1L << x;
+  }
+
+  public void clear(int x, int y) {
+    words[index(x, y)] &= ~(1L << x);
+  }
+
+  /**
+   * Clears all the pixels.
+   */
+  public void clear() {
+    Arrays.fill(words, 0);
+  }
+
+  /**
+   * Sets the pixels of part of a row from bytes.
+   *
+   * @param y the row.
+   * @param x0 first column to set.
+   * @param src nonzero bytes are set pixels.
+   * @param len number of pixels to set. The other pixels of the row are not
+   *    changed.
+   */
+  public void setRow(int y, int x0, byte[] src, int len) {
+    int base = y * wordsPerRow;
+    int end = x0 + len;
+    int i = 0;
+    for (int x = x0; x < end; ) {
+      int k = x >>> LOG_WORD_BITS;
+      int lo = x & (WORD_BITS - 1);
+      int hi = Math.min(WORD_BITS, end - (k << LOG_WORD_BITS));
+      long bits = 0;
+      for (int b = lo; b < hi; b++, i++)
+        if (src[i] != 0)
+          bits |= 1L << b;
+      long m = bitRange(lo, hi);
+      words[base + k] = (words[base + k] & ~m) | bits;
+      x = (k << LOG_WORD_BITS) + hi;
+    }
+  }
+
+  /**
+   * Sets the mask from an 8-bit image. Nonzero pixels are set.
+   *
+   * @param src 8-bit image of <code>height</code> rows.
+   * @param widthStep number of bytes per row of <code>src</code>.
+   */
+  public void fromBytes(ByteBuffer src, int widthStep) {
+    ByteBuffer sb = src.duplicate();
+    byte[] row = new byte[width];
+    for (int y = 0; y < height; y++) {
+      sb.position(y * widthStep);
+      sb.get(row, 0, width);
+      setRow(y, 0, row, width);
+    }
+  }
+
+  /**
+   * Writes the mask to an 8-bit image as 0 or 255.
+   *
+   * @param dst 8-bit image of <code>height</code> rows.
+   * @param widthStep number of bytes per row of <code>dst</code>.
+   */
+  public void toBytes(ByteBuffer dst, int widthStep) {
+    ByteBuffer db = dst.duplicate();
+    byte[] row = new byte[width];
+    for (int y = 0; y < height; y++) {
+      Arrays.fill(row, (byte) 0);
+      for (int x = nextSetBit(y, 0); x >= 0; x = nextSetBit(y, x + 1))
+        row[x] = (byte) 255;
+      db.position(y * widthStep);
+      db.put(row, 0, width);
+    }
+  }
+
+  /**
+   * @return the first set pixel in row <code>y</code> at or after
+   *    <code>fromX</code>, or -1 if there is none.
+   */
+  public int nextSetBit(int y, int fromX) {
+    if (fromX >= width)
+      return -1;
+    int base = y * wordsPerRow;
+    int k = fromX >>> LOG_WORD_BITS;
+    long w = words[base + k] & (ALL << fromX);
+    while (w == 0) {
+      if (++k == wordsPerRow)
+        return -1;
+      w = words[base + k];
+    }
+    return (k << LOG_WORD_BITS) + Long.numberOfTrailingZeros(w);
+  }
+
+  /**
+   * @return the first clear pixel in row <code>y</code> at or after
+   *    <code>fromX</code>, or -1 if there is none.
+   */
+  public int nextClearBit(int y, int fromX) {
+    if (fromX >= width)
+      return -1;
+    int base = y * wordsPerRow;
+    int k = fromX >>> LOG_WORD_BITS;
+    long w = ~words[base + k] & (ALL << fromX);
+    while (w == 0) {
+      if (++k == wordsPerRow)
+        return -1;
+      w = ~words[base + k];
+    }
+    int x = (k << LOG_WORD_BITS) + Long.numberOfTrailingZeros(w);
+    return x < width ? x : -1;
+  }
+
+  /**
+   * @return the number of set pixels.
+   */
+  public int count() {
+    int n = 0;
+    for (long w : words)
+      n += Long.bitCount(w);
+    return n;
+  }
+
+  /**
+   * @param region the region, which has to be inside the mask.
+   * @return the number of set pixels in the region.
+   */
+  public int count(Rectangle region) {
+    if (region.width <= 0 || region.height <= 0)
+      return 0;
+    int x1 = region.x + region.width;
+    int k0 = region.x >>> LOG_WORD_BITS, k1 = (x1 - 1) >>> LOG_WORD_BITS;
+    int n = 0;
+    for (int y = region.y; y < region.y + region.height; y++) {
+      int base = y * wordsPerRow;
+      for (int k = k0; k <= k1; k++)
+        n += Long.bitCount(words[base + k] & columnMask(k, region.x, x1));
+    }
+    return n;
+  }
+
+  public void copyFrom(BitMask other) {
+    checkSize(other);
+    System.arraycopy(other.words, 0, words, 0, words.length);
+  }
+
+  /**
+   * Keeps the pixels that are also set in <code>other</code>.
+   */
+  public void and(BitMask other) {
+    checkSize(other);
+    for (int i = 0; i < words.length; i++)
+      words[i] &= other.words[i];
+  }
+
+  /**
+   * Sets the pixels that are set in <code>other</code>.
+   */
+  public void or(BitMask other) {
+    checkSize(other);
+    for (int i = 0; i < words.length; i++)
+      words[i] |= other.words[i];
+  }
+
+  /**
+   * Clears the pixels that are set in <code>other</code>.
+   */
+  public void andNot(BitMask other) {
+    checkSize(other);
+    for (int i = 0; i < words.length; i++)
+      words[i] &= ~other.words[i];
+  }
+
+  /**
+   * Inverts all the pixels.
+   */
+  public void not() {
+    long last = bitRange(0, width - ((wordsPerRow - 1) << LOG_WORD_BITS));
+    for (int y = 0; y < height; y++) {
+      int base = y * wordsPerRow;
+      for (int k = 0; k < wordsPerRow - 1; k++)
+        words[base + k] = ~words[base + k];
+      words[base + wordsPerRow - 1] = ~words[base + wordsPerRow - 1] & last;
+    }
+  }
+
+  /**
+   * Erodes the mask with the 3 x 3 square.
+   *
+   * @param dst destination, which can be this mask.
+   * @param region region to erode, or null for the whole mask. The pixels of
+   *    <code>dst</code> outside the region are not changed.
+   */
+  public void erode(BitMask dst, Rectangle region) {
+    morph(dst, region, true);
+  }
+
+  /**
+   * Dilates the mask with the 3 x 3 square.
+   *
+   * @param dst destination, which can be this mask.
+   * @param region region to dilate, or null for the whole mask. The pixels of
+   *    <code>dst</code> outside the region are not changed.
+   */
+  public void dilate(BitMask dst, Rectangle region) {
+    morph(dst, region, false);
+  }
+
+  /**
+   * Opens the mask, i.e. erodes it <code>iterations</code> times and then
+   * dilates it as many times, which removes the blobs and protrusions thinner
+   * than 2 * <code>iterations</code> + 1 pixels.
+   *
+   * @param dst destination, which can be this mask.
+   * @param region region to open, or null for the whole mask.
+   * @param iterations
+   */
+  public void open(BitMask dst, Rectangle region, int iterations) {
+    BitMask src = this;
+    for (int i = 0; i < iterations; i++) {
+      src.erode(dst, region);
+      src = dst;
+    }
+    for (int i = 0; i < iterations; i++) {
+      src.dilate(dst, region);
+      src = dst;
+    }
+  }
+
+  /**
+   * Applies erosion or dilation in a horizontal pass into the scratch buffer
+   * of <code>dst</code> and a vertical pass into <code>dst</code>. The pixels
+   * outside the region are taken as set for erosion and clear for dilation.
+   */
+  private void morph(BitMask dst, Rectangle region, boolean erode) {
+    checkSize(dst);
+    int x0 = region == null ? 0 : region.x;
+    int y0 = region == null ? 0 : region.y;
+    int x1 = region == null ? width : region.x + region.width;
+    int y1 = region == null ? height : region.y + region.height;
+    if (x1 <= x0 || y1 <= y0)
+      return;
+    if (dst.scratch == null)
+      dst.scratch = new long[words.length];
+    long[] s = dst.scratch;
+    long fill = erode ? ALL : 0;
+    int k0 = x0 >>> LOG_WORD_BITS, k1 = (x1 - 1) >>> LOG_WORD_BITS;
+
+    for (int y = y0; y < y1; y++) {
+      int base = y * wordsPerRow;
+      long prev = fill;
+      long m = columnMask(k0, x0, x1);
+      long cur = (words[base + k0] & m) | (fill & ~m);
+      for (int k = k0; k <= k1; k++) {
+        long next = fill;
+        if (k < k1) {
+          long nm = columnMask(k + 1, x0, x1);
+          next = (words[base + k + 1] & nm) | (fill & ~nm);
+        }
+        // Bit x of left is pixel x - 1, and bit x of right is pixel x + 1.
+        long left = (cur << 1) | (prev >>> (WORD_BITS - 1));
+        long right = (cur >>> 1) | (next << (WORD_BITS - 1));
+        s[base + k] = erode ? cur & left & right : cur | left | right;
+        prev = cur;
+        cur = next;
+      }
+    }
+
+    long[] d = dst.words;
+    for (int y = y0; y < y1; y++) {
+      int base = y * wordsPerRow;
+      int up = base - wordsPerRow, down = base + wordsPerRow;
+      for (int k = k0; k <= k1; k++) {
+        long a = s[base + k];
+        long u = y > y0 ? s[up + k] : fill;
+        long b = y < y1 - 1 ? s[down + k] : fill;
+        long v = erode ? a & u & b : a | u | b;
+        long m = columnMask(k, x0, x1);
+        d[base + k] = (d[base + k] & ~m) | (v & m);
+      }
+    }
+  }
+
+  /**
+   * @return the bits of word <code>k</code> of a row for the columns from
+   *    <code>x0</code> inclusive to <code>x1</code> exclusive.
+   */
+  private static long columnMask(int k, int x0, int x1) {
+    int start = k << LOG_WORD_BITS;
+    int lo = Math.max(x0 - start, 0), hi = Math.min(x1 - start, WORD_BITS);
+    return hi <= lo ? 0 : bitRange(lo, hi);
+  }
+
+  /**
+   * @return the bits from <code>lo</code> inclusive to <code>hi</code>
+   *    exclusive, with 0 <= lo < hi <= 64.
+   */
+  private static long bitRange(int lo, int hi) {
+    long high = hi == WORD_BITS ? ALL : (1L << hi) - 1;
+    return high & (ALL << lo);
+  }
+
+  private int index(int x, int y) {
+    return y * wordsPerRow + (x >>> LOG_WORD_BITS);
+  }
+
+  private void checkSize(BitMask other) {
+    if (other.width != width || other.height != height)
+      throw new IllegalArgumentException(String.format(
+          "Mask size %d x %d does not match %d x %d.", other.width,
+          other.height, width, height));
+  }
+}
@@ -278,6 +278,102 @@ public class Geometry {
     return euler;
   }
 
+  /**
+   * Same as <code>rotMatrixToEuler(CvMat)</code>.
+   * @param rot row-major 3 x 3 rotation matrix.
+   * @return
+   */
+  public static Tuple3f rotMatrixToEuler(double[] rot) {
+    float r31 = (float) rot[6];
+    Tuple3f euler = new Point3f();
+    if (r31 != 1 && r31 != -1) {
+      euler.y = (float) -Math.asin(r31);
+      float cosy = (float) Math.cos(euler.y);
+      euler.x = (float) Math.atan2(rot[7] / cosy, rot[8] / cosy);
+      euler.z = (float) Math.atan2(rot[3] / cosy, rot[0] / cosy);
+    } else {
+      euler.z = 0;
+      euler.x = (float) Math.atan2(rot[1], rot[2]);
+      if (r31 == -1) {
+        euler.y = (float) Math.PI / 2;
+      } else {
+        euler.y = (float) -Math.PI / 2;
+      }
+    }
+    return euler;
+  }
+
+  /**
+   * Computes the eigenvalues and eigenvectors of a symmetric 3 x 3 matrix with
+   * the cyclic Jacobi method. Does not allocate.
+   * 
+   * @param a row-major symmetric matrix. It is overwritten.
+   * @param eigenvals the eigenvalues in decreasing order.
+   * @param eigenvecs row-major 3 x 3 matrix whose rows are the corresponding
+   *    unit eigenvectors.
+   */
+  public static void eigenSymmetric3(double[] a, double[] eigenvals, 
+                                     double[] eigenvecs) {
+    // v holds the eigenvectors in its columns during the iterations.
+    double[] v = eigenvecs;
+    for (int i = 0; i < 9; i++)
+      v[i] = i % 4 == 0 ? 1 : 0;
+    for (int sweep = 0; sweep < 50; sweep++) {
+      double off = Math.abs(a[1]) + Math.abs(a[2]) + Math.abs(a[5]);
+      if (off < EPS * (Math.abs(a[0]) + Math.abs(a[4]) + Math.abs(a[8])) ||
+          off == 0)
+        break;
+      for (int p = 0; p < 2; p++)
+        for (int q = p + 1; q < 3; q++) {
+          double apq = a[p * 3 + q];
+          if (apq == 0)
+            continue;
+          double theta = (a[q * 3 + q] - a[p * 3 + p]) / (2 * apq);
+          double t = Math.signum(theta) / 
+              (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+          if (theta == 0)
+            t = 1;
+          double c = 1 / Math.sqrt(t * t + 1), s = t * c;
+          // A' = J^T A J with the rotation J in the (p, q) plane.
+          for (int k = 0; k < 3; k++) {
+            double akp = a[k * 3 + p], akq = a[k * 3 + q];
+            a[k * 3 + p] = c * akp - s * akq;
+            a[k * 3 + q] = s * akp + c * akq;
+          }
+          for (int k = 0; k < 3; k++) {
+            double apk = a[p * 3 + k], aqk = a[q * 3 + k];
+            a[p * 3 + k] = c * apk - s * aqk;
+            a[q * 3 + k] = s * apk + c * aqk;
+          }
+          for (int k = 0; k < 3; k++) {
+            double vkp = v[k * 3 + p], vkq = v[k * 3 + q];
+            v[k * 3 + p] = c * vkp - s * vkq;
+            v[k * 3 + q] = s * vkp + c * vkq;
+          }
+        }
+    }
+    for (int i = 0; i < 3; i++)
+      eigenvals[i] = a[i * 4];
+    // Transposes so that the rows are the eigenvectors.
+    swap(v, 1, 3);
+    swap(v, 2, 6);
+    swap(v, 5, 7);
+    // Sorts in decreasing order of the eigenvalues.
+    for (int i = 0; i < 2; i++)
+      for (int j = 0; j < 2 - i; j++)
+        if (eigenvals[j] < eigenvals[j + 1]) {
+          swap(eigenvals, j, j + 1);
+          for (int k = 0; k < 3; k++)
+            swap(v, j * 3 + k, (j + 1) * 3 + k);
+        }
+  }
+
+  private static void swap(double[] a, int i, int j) {
+    double t = a[i];
+    a[i] = a[j];
+    a[j] = t;
+  }
+
   /**
    * Singed perpendicular distance of a point to a plane.
    * @param normal
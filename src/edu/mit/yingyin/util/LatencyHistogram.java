@@ -0,0 +1,129 @@
+package edu.mit.yingyin.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of latencies in nanoseconds with log-linear buckets:
+ * each power of 2 is divided into 16 linear sub-buckets, so a recorded value
+ * is reported with at most 1/16 relative error. Values of 2^40 ns (about 18
+ * minutes) or more fall into the last bucket.
+ *
+ * Recording does not allocate and is thread-safe. Reading while recording
+ * gives approximate results.
+ *
+ * @author yingyin
+ *
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /**
+   * Values below this are recorded exactly.
+   */
+  private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+  private static final int MAX_BITS = 40;
+  private static final int NUM_BUCKETS = LINEAR_LIMIT +
+      (MAX_BITS - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong count = new AtomicLong(), sum = new AtomicLong(),
+      max = new AtomicLong();
+
+  /**
+   * Records a latency.
+   * @param nanos latency in nanoseconds. Negative values are recorded as 0.
+   */
+  public void record(long nanos) {
+    if (nanos < 0)
+      nanos = 0;
+    counts.incrementAndGet(bucketIndex(nanos));
+    count.incrementAndGet();
+    sum.addAndGet(nanos);
+    long m;
+    while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos));
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  /**
+   * @return mean latency in nanoseconds, or 0 if nothing is recorded.
+   */
+  public double mean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /**
+   * @return maximum latency in nanoseconds.
+   */
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * Returns the latency below or at which the given percentage of the
+   * recorded latencies fall.
+   *
+   * @param percentile between 0 and 100.
+   * @return the upper bound of the bucket containing the percentile in
+   *    nanoseconds, but not more than the maximum. 0 if nothing is recorded.
+   */
+  public long percentile(double percentile) {
+    long n = count.get();
+    if (n == 0)
+      return 0;
+    long target = (long) Math.ceil(percentile / 100 * n);
+    if (target < 1)
+      target = 1;
+    long cumulative = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      cumulative += counts.get(i);
+      if (cumulative >= target)
+        return Math.min(bucketUpperBound(i), max.get());
+    }
+    return max.get();
+  }
+
+  /**
+   * Clears all the recorded values.
+   */
+  public void reset() {
+    for (int i = 0; i < NUM_BUCKETS; i++)
+      counts.set(i, 0);
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  /**
+   * @return a summary of the histogram in milliseconds.
+   */
+  public String toString() {
+    return String.format("n = %d, mean = %.3f ms, p50 = %.3f ms, " +
+        "p99 = %.3f ms, max = %.3f ms", count(), mean() / 1e6,
+        percentile(50) / 1e6, percentile(99) / 1e6, max() / 1e6);
+  }
+
+  static int bucketIndex(long v) {
+    if (v < LINEAR_LIMIT)
+      return (int) v;
+    int msb = 63 - Long.numberOfLeadingZeros(v);
+    if (msb >= MAX_BITS)
+      return NUM_BUCKETS - 1;
+    // v >>> shift is in [SUB_BUCKETS, 2 * SUB_BUCKETS).
+    int shift = msb - SUB_BUCKET_BITS;
+    return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS +
+        (int) (v >>> shift) - SUB_BUCKETS;
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < LINEAR_LIMIT)
+      return index;
+    int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+    long sub = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+}
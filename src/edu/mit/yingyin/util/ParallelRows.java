@@ -0,0 +1,118 @@
+package edu.mit.yingyin.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs per-pixel image loops in row stripes on a shared
+ * <code>ForkJoinPool</code>. There is no application-wide switch: each
+ * caller keeps its own setting, e.g. the <code>Background</code> of one
+ * engine, and passes it to each run. Images
+ * with fewer than <code>MIN_PIXELS_PER_STRIPE</code> pixels per stripe, e.g.
+ * small regions of interest, are processed in the calling thread.
+ *
+ * A kernel is called once per stripe with the stripe index, so it can keep
+ * preallocated scratch rows per stripe. Stripes write disjoint rows, so
+ * absolute puts into the same image buffer are safe, but buffer positions
+ * must not be shared between stripes.
+ *
+ * @author yingyin
+ *
+ */
+public class ParallelRows {
+  /**
+   * Processes a range of rows.
+   */
+  public static interface RowKernel {
+    /**
+     * @param stripe index of the stripe, between 0 and
+     *    <code>maxStripes() - 1</code>.
+     * @param rowStart first row, inclusive.
+     * @param rowEnd last row, exclusive.
+     */
+    public void run(int stripe, int rowStart, int rowEnd);
+  }
+
+  /**
+   * Minimum number of pixels for a stripe to be worth a task.
+   */
+  public static final int MIN_PIXELS_PER_STRIPE = 32 * 1024;
+
+  private static final int PARALLELISM =
+      Runtime.getRuntime().availableProcessors();
+
+  private static ForkJoinPool pool;
+
+  private static class StripeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final RowKernel kernel;
+    private final int stripeStart, stripeEnd, stripes, rows;
+
+    StripeTask(RowKernel kernel, int stripeStart, int stripeEnd, int stripes,
+               int rows) {
+      this.kernel = kernel;
+      this.stripeStart = stripeStart;
+      this.stripeEnd = stripeEnd;
+      this.stripes = stripes;
+      this.rows = rows;
+    }
+
+    @Override
+    protected void compute() {
+      if (stripeEnd - stripeStart == 1) {
+        kernel.run(stripeStart, firstRow(stripeStart), firstRow(stripeEnd));
+        return;
+      }
+      int mid = (stripeStart + stripeEnd) >>> 1;
+      invokeAll(new StripeTask(kernel, stripeStart, mid, stripes, rows),
+                new StripeTask(kernel, mid, stripeEnd, stripes, rows));
+    }
+
+    private int firstRow(int stripe) {
+      return (int) ((long) rows * stripe / stripes);
+    }
+  }
+
+  /**
+   * @return the maximum number of stripes a kernel is called with.
+   */
+  public static int maxStripes() {
+    return PARALLELISM;
+  }
+
+  /**
+   * Runs a kernel over the rows of an image and returns when all the rows are
+   * processed.
+   *
+   * @param parallel if false, the rows are processed in the calling thread.
+   * @param rows number of rows.
+   * @param rowLength number of pixels per row.
+   * @param kernel
+   */
+  public static void forEachRow(boolean parallel, int rows, int rowLength,
+                                RowKernel kernel) {
+    int stripes = numStripes(parallel, rows, rowLength);
+    if (stripes <= 1) {
+      kernel.run(0, 0, rows);
+      return;
+    }
+    pool().invoke(new StripeTask(kernel, 0, stripes, stripes, rows));
+  }
+
+  /**
+   * @return the number of stripes the rows are split into.
+   */
+  static int numStripes(boolean parallel, int rows, int rowLength) {
+    if (!parallel)
+      return 1;
+    long stripes = (long) rows * rowLength / MIN_PIXELS_PER_STRIPE;
+    return (int) Math.max(1, Math.min(Math.min(stripes, PARALLELISM), rows));
+  }
+
+  private static synchronized ForkJoinPool pool() {
+    if (pool == null)
+      pool = new ForkJoinPool(PARALLELISM);
+    return pool;
+  }
+}
@@ -5,10 +5,13 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 import edu.mit.yingyin.calib.CalibModelTest;
+import edu.mit.yingyin.calib.RemapTableTest;
+import edu.mit.yingyin.image.LutThinningTransformTest;
 import edu.mit.yingyin.tabletop.TabletopTests;
 import edu.mit.yingyin.util.UtilTests;
 
 @RunWith(Suite.class)
-@SuiteClasses({UtilTests.class, TabletopTests.class, CalibModelTest.class})
+@SuiteClasses({UtilTests.class, TabletopTests.class, CalibModelTest.class,
+               RemapTableTest.class, LutThinningTransformTest.class})
 
 public class AllTests {}
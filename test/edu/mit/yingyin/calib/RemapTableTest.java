@@ -0,0 +1,87 @@
+package edu.mit.yingyin.calib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class RemapTableTest {
+  private static final int WIDTH = 8, HEIGHT = 6;
+  private static final float EPS = 1e-4f;
+
+  @Test
+  public void testBilinear() {
+    // Bilinear interpolation is exact for an affine mapping.
+    RemapTable table = affineTable();
+    float[] dst = new float[4];
+    table.lookup(2.25f, 3.5f, dst, 2);
+    assertEquals(affineX(2.25f, 3.5f), dst[2], EPS);
+    assertEquals(affineY(2.25f, 3.5f), dst[3], EPS);
+    // The last row and column.
+    table.lookup(WIDTH - 1, HEIGHT - 1, dst, 0);
+    assertEquals(affineX(WIDTH - 1, HEIGHT - 1), dst[0], EPS);
+    assertEquals(affineY(WIDTH - 1, HEIGHT - 1), dst[1], EPS);
+  }
+
+  @Test
+  public void testNearest() {
+    RemapTable table = affineTable();
+    table.setBilinear(false);
+    float[] dst = new float[2];
+    table.lookup(2.25f, 3.6f, dst, 0);
+    assertEquals(affineX(2, 4), dst[0], EPS);
+    assertEquals(affineY(2, 4), dst[1], EPS);
+  }
+
+  @Test
+  public void testContains() {
+    RemapTable table = affineTable();
+    assertTrue(table.contains(0, 0));
+    assertTrue(table.contains(WIDTH - 1, HEIGHT - 1));
+    assertFalse(table.contains(-0.1f, 0));
+    assertFalse(table.contains(0, HEIGHT - 0.9f));
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    File file = File.createTempFile("calibration",
+                                    CalibModel.REMAP_TABLE_SUFFIX);
+    file.deleteOnExit();
+    affineTable().write(file, 42);
+
+    RemapTable table = RemapTable.read(file, 42, WIDTH, HEIGHT);
+    assertNotNull(table);
+    float[] dst = new float[2];
+    table.lookup(5.5f, 1.25f, dst, 0);
+    assertEquals(affineX(5.5f, 1.25f), dst[0], EPS);
+    assertEquals(affineY(5.5f, 1.25f), dst[1], EPS);
+
+    // A different calibration or image size.
+    assertNull(RemapTable.read(file, 43, WIDTH, HEIGHT));
+    assertNull(RemapTable.read(file, 42, WIDTH + 1, HEIGHT));
+  }
+
+  private static RemapTable affineTable() {
+    float[] table = new float[WIDTH * HEIGHT * 2];
+    for (int y = 0, i = 0; y < HEIGHT; y++)
+      for (int x = 0; x < WIDTH; x++, i += 2) {
+        table[i] = affineX(x, y);
+        table[i + 1] = affineY(x, y);
+      }
+    return new RemapTable(WIDTH, HEIGHT, table);
+  }
+
+  private static float affineX(float x, float y) {
+    return 3 * x - 0.5f * y + 10;
+  }
+
+  private static float affineY(float x, float y) {
+    return 0.25f * x + 2 * y - 4;
+  }
+}
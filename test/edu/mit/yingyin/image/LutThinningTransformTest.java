@@ -0,0 +1,100 @@
+package edu.mit.yingyin.image;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.mit.yingyin.util.Matrix;
+
+public class LutThinningTransformTest {
+  private static final int[] KERNEL_ORTH = {0, 0, 0, 2, 1, 2, 1, 1, 1};
+  private static final int[] KERNEL_DIAG = {2, 0, 0, 1, 1, 0, 2, 1, 2};
+  private static final int W = 24, H = 20;
+
+  /**
+   * Compares with the hash set thinning on random blobs away from the image
+   * borders.
+   */
+  @Test
+  public void testSameAsThinningTransform() {
+    Random random = new Random(1);
+    LutThinningTransform lut = new LutThinningTransform(KERNEL_ORTH,
+                                                        KERNEL_DIAG);
+    for (int trial = 0; trial < 20; trial++) {
+      byte[] pixels = randomBlobs(random);
+      byte[][] pixels2D = new byte[H][W];
+      for (int y = 0; y < H; y++)
+        for (int x = 0; x < W; x++)
+          pixels2D[y][x] = pixels[y * W + x];
+      BinaryFast bf = new BinaryFast(pixels2D, W, H);
+      int[] orth = Arrays.copyOf(KERNEL_ORTH, 9),
+          diag = Arrays.copyOf(KERNEL_DIAG, 9);
+      // 3 rounds of the 2 kernels in 4 rotations.
+      for (int i = 0; i < 12; i++) {
+        ThinningTransform.thinBinaryOnce(bf, orth);
+        ThinningTransform.thinBinaryOnce(bf, diag);
+        Matrix.rot90(orth, 3);
+        Matrix.rot90(diag, 3);
+      }
+
+      lut.thin(pixels, W, H, 3);
+      for (int y = 0; y < H; y++)
+        assertArrayEquals(pixels2D[y], Arrays.copyOfRange(pixels, y * W,
+                                                           (y + 1) * W));
+    }
+  }
+
+  @Test
+  public void testConverges() {
+    LutThinningTransform lut = new LutThinningTransform(KERNEL_ORTH,
+                                                        KERNEL_DIAG);
+    // A 6 pixel wide bar thins to a line.
+    byte[] pixels = new byte[W * H];
+    for (int y = 2; y < H - 2; y++)
+      for (int x = 9; x < 15; x++)
+        pixels[y * W + x] = 1;
+    assertTrue(lut.thin(pixels, W, H, LutThinningTransform.UNTIL_CONVERGED)
+               > 0);
+    for (int y = 5; y < H - 5; y++) {
+      int count = 0;
+      for (int x = 0; x < W; x++)
+        count += pixels[y * W + x];
+      assertEquals(1, count);
+    }
+    assertEquals(0, lut.thin(pixels, W, H,
+                             LutThinningTransform.UNTIL_CONVERGED));
+  }
+
+  @Test
+  public void testImageBorder() {
+    // The pixels outside the image are not background.
+    LutThinningTransform lut = new LutThinningTransform(KERNEL_ORTH,
+                                                        KERNEL_DIAG);
+    byte[] pixels = new byte[W * H];
+    Arrays.fill(pixels, (byte) 1);
+    assertEquals(0, lut.thin(pixels, W, H, 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testKernelWithoutBackground() {
+    new LutThinningTransform(new int[] {2, 2, 2, 2, 1, 2, 2, 2, 2});
+  }
+
+  private static byte[] randomBlobs(Random random) {
+    byte[] pixels = new byte[W * H];
+    for (int i = 0; i < 4; i++) {
+      int x0 = 1 + random.nextInt(W - 8), y0 = 1 + random.nextInt(H - 8);
+      int w = 2 + random.nextInt(6), h = 2 + random.nextInt(6);
+      for (int y = y0; y < y0 + h; y++)
+        for (int x = x0; x < x0 + w; x++)
+          if (random.nextInt(8) != 0)
+            pixels[y * W + x] = BinaryFast.foreground;
+    }
+    return pixels;
+  }
+}
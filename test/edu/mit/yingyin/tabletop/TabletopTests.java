@@ -4,9 +4,25 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
+import edu.mit.yingyin.tabletop.models.AsyncHandEventListenerTest;
 import edu.mit.yingyin.tabletop.models.BackgroundTest;
+import edu.mit.yingyin.tabletop.models.BlobLabelerTest;
 import edu.mit.yingyin.tabletop.models.CalibrationExampleTest;
+import edu.mit.yingyin.tabletop.models.ClickEvaluationTest;
+import edu.mit.yingyin.tabletop.models.DepthProjectionTest;
+import edu.mit.yingyin.tabletop.models.FingertipEvaluationTest;
+import edu.mit.yingyin.tabletop.models.FingertipPredictorTest;
+import edu.mit.yingyin.tabletop.models.ForelimbModelEstimatorTest;
+import edu.mit.yingyin.tabletop.models.FrameRecordTest;
+import edu.mit.yingyin.tabletop.models.HandEventFusionTest;
+import edu.mit.yingyin.tabletop.models.HandTrackerTest;
+import edu.mit.yingyin.tabletop.models.MultiEngineHostTest;
 import edu.mit.yingyin.tabletop.models.OpenNIDeviceTest;
+import edu.mit.yingyin.tabletop.models.PointCloudTest;
+import edu.mit.yingyin.tabletop.models.PointTrackerTest;
+import edu.mit.yingyin.tabletop.models.ProcessPacketPoolTest;
+import edu.mit.yingyin.tabletop.models.RawDepthFrameSourceTest;
+import edu.mit.yingyin.tabletop.models.RegionOfInterestTest;
 import edu.mit.yingyin.tabletop.models.HandTrackingEngineTest;
 import edu.mit.yingyin.tabletop.models.TableTest;
 
@@ -15,7 +31,14 @@ import edu.mit.yingyin.tabletop.models.TableTest;
                TableTest.class, EnvTest.class,
                CvUtilTest.class, BackgroundTest.class, 
                CalibrationExampleTest.class, JavaCVTest.class,
-               HandTrackingEngineTest.class, 
-               TableTest.class})
+               HandTrackingEngineTest.class, ProcessPacketPoolTest.class,
+               AsyncHandEventListenerTest.class, PointTrackerTest.class,
+               PointCloudTest.class, DepthProjectionTest.class,
+               RegionOfInterestTest.class, FrameRecordTest.class,
+               RawDepthFrameSourceTest.class, FingertipEvaluationTest.class,
+               ClickEvaluationTest.class, MultiEngineHostTest.class,
+               HandEventFusionTest.class, FingertipPredictorTest.class,
+               BlobLabelerTest.class, HandTrackerTest.class,
+               ForelimbModelEstimatorTest.class, TableTest.class})
 
 public class TabletopTests {}
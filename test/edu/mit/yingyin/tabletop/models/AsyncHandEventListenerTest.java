@@ -0,0 +1,156 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.vecmath.Point2f;
+
+import org.OpenNI.Point3D;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.yingyin.tabletop.models.AsyncHandEventListener.Policy;
+import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+
+public class AsyncHandEventListenerTest {
+  /**
+   * Records the frame IDs of the finger events and the acquisition times of
+   * the pointing events, and waits for the gate before handling each event.
+   */
+  private static class RecordingListener implements IHandEventListener {
+    final List<Integer> frameIDs = new ArrayList<Integer>();
+    final List<Long> pointingTimes = new ArrayList<Long>();
+    final CountDownLatch gate;
+    final CountDownLatch received;
+
+    RecordingListener(CountDownLatch gate, int expected) {
+      this.gate = gate;
+      received = new CountDownLatch(expected);
+    }
+
+    @Override
+    public void fingerPressed(List<ManipulativeEvent> feList) {
+      try {
+        gate.await();
+      } catch (InterruptedException e) {
+        return;
+      }
+      synchronized (frameIDs) {
+        frameIDs.add(feList.get(0).frameID);
+      }
+      received.countDown();
+    }
+
+    @Override
+    public void fingerPointed(DiecticEvent de) {
+      try {
+        gate.await();
+      } catch (InterruptedException e) {
+        return;
+      }
+      synchronized (frameIDs) {
+        pointingTimes.add(de.acquisitionTime);
+      }
+      received.countDown();
+    }
+  }
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testDeliveryOrder() throws InterruptedException {
+    int n = 100;
+    RecordingListener l = new RecordingListener(new CountDownLatch(0), n);
+    AsyncHandEventListener async = new AsyncHandEventListener(l, executor,
+        Policy.BLOCK, 4);
+    for (int i = 0; i < n; i++)
+      async.fingerPressed(events(i));
+    assertTrue(l.received.await(5, TimeUnit.SECONDS));
+    // Waits for the delivery task to update the counters.
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    for (int i = 0; i < n; i++)
+      assertEquals(i, (int) l.frameIDs.get(i));
+    assertEquals(n, async.deliveredCount());
+    assertEquals(0, async.droppedCount());
+    assertTrue(async.maxQueueDepth() <= 4);
+  }
+
+  @Test
+  public void testDrop() throws InterruptedException {
+    CountDownLatch gate = new CountDownLatch(1);
+    RecordingListener l = new RecordingListener(gate, 2);
+    AsyncHandEventListener async = new AsyncHandEventListener(l, executor,
+        Policy.DROP, 2);
+    for (int i = 0; i < 10; i++)
+      async.fingerPressed(events(i));
+    // At most one event is being delivered and two are queued.
+    assertTrue(async.droppedCount() >= 7);
+    gate.countDown();
+    assertTrue(l.received.await(5, TimeUnit.SECONDS));
+    assertEquals(0, (int) l.frameIDs.get(0));
+  }
+
+  @Test
+  public void testCoalesceLatest() throws InterruptedException {
+    CountDownLatch gate = new CountDownLatch(1);
+    RecordingListener l = new RecordingListener(gate, 5);
+    AsyncHandEventListener async = new AsyncHandEventListener(l, executor,
+        Policy.COALESCE_LATEST, 1);
+    async.fingerPointed(pointing(0));
+    // Waits until the first event is taken by the delivery thread.
+    long start = System.currentTimeMillis();
+    while (async.queueDepth() > 0 && System.currentTimeMillis() - start < 5000)
+      Thread.sleep(1);
+    for (int i = 1; i < 10; i++) {
+      if (i % 3 == 0)
+        async.fingerPressed(events(i));
+      async.fingerPointed(pointing(i));
+    }
+    // The finger events are never coalesced.
+    assertEquals(4, async.queueDepth());
+    gate.countDown();
+    assertTrue(l.received.await(5, TimeUnit.SECONDS));
+    assertEquals(3, l.frameIDs.size());
+    for (int i = 0; i < 3; i++)
+      assertEquals(3 * (i + 1), (int) l.frameIDs.get(i));
+    assertEquals(2, l.pointingTimes.size());
+    assertEquals(0, (long) l.pointingTimes.get(0));
+    assertEquals(9, (long) l.pointingTimes.get(1));
+    assertEquals(8, async.droppedCount());
+  }
+
+  private DiecticEvent pointing(long time) {
+    DiecticEvent de = new DiecticEvent(new Point3D[0], new Point3D[0],
+                                       new Point2f[0]);
+    de.acquisitionTime = time;
+    return de;
+  }
+
+  private List<ManipulativeEvent> events(int frameID) {
+    List<ManipulativeEvent> list = new ArrayList<ManipulativeEvent>();
+    list.add(new ManipulativeEvent(null, null, frameID,
+        ManipulativeEvent.FingerEventType.PRESSED));
+    return list;
+  }
+}
@@ -1,5 +1,7 @@
 package edu.mit.yingyin.tabletop.models;
 
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_16U;
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_32F;
 import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
 import static com.googlecode.javacv.cpp.opencv_core.cvZero;
 import static org.junit.Assert.assertEquals;
@@ -7,6 +9,8 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 import java.util.Arrays;
 
 import org.junit.Test;
@@ -14,6 +18,7 @@ import org.junit.Test;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 
 import edu.mit.yingyin.tabletop.models.Background;
+import edu.mit.yingyin.util.BitMask;
 
 public class BackgroundTest {
   private static final int WIDTH = 10, HEIGHT = 10;
@@ -21,7 +26,7 @@ public class BackgroundTest {
   
   @Test
   public void testBackgroundDiffSimple() {
-    Background bg = Background.initInstance(WIDTH, HEIGHT);
+    Background bg = new Background(WIDTH, HEIGHT);
     int[] depthRawData = new int[WIDTH * HEIGHT];
     Arrays.fill(depthRawData, 1);
     
@@ -53,7 +58,7 @@ public class BackgroundTest {
   
   @Test
   public void testBackgroundDiffVaried() {
-    Background bg = Background.initInstance(WIDTH, HEIGHT);
+    Background bg = new Background(WIDTH, HEIGHT);
     int[] depthRawData = new int[WIDTH * HEIGHT];
     
     for (int i = 0; i < 11; i++) {
@@ -95,9 +100,84 @@ public class BackgroundTest {
       }
   }
   
+  @Test
+  public void testUpdateBackground() {
+    Background bg = new Background(WIDTH, HEIGHT);
+    int[] depthRawData = new int[WIDTH * HEIGHT];
+    Arrays.fill(depthRawData, 100);
+    for (int i = 0; i < 11; i++)
+      bg.accumulateBackground(depthRawData);
+    bg.createModelsFromStats(1, 1);
+    IplImage mask = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_8U, 1);
+
+    // The scene moves to 110 except the first row, which is foreground.
+    Arrays.fill(depthRawData, 110);
+    IplImage depth = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_16U, 1);
+    ShortBuffer sb = depth.getShortBuffer();
+    int depthStep = depth.widthStep() / 2;
+    for (int h = 0; h < HEIGHT; h++)
+      for (int w = 0; w < WIDTH; w++)
+        sb.put(h * depthStep + w, (short) 110);
+    BitMask foreground = new BitMask(WIDTH, HEIGHT);
+    for (int w = 0; w < WIDTH; w++)
+      foreground.set(w, 0);
+    for (int i = 0; i < 200; i++)
+      bg.updateBackground(depth, foreground, 0.1f);
+
+    bg.backgroundDiff(depthRawData, mask);
+    ByteBuffer bb = mask.getByteBuffer();
+    int widthStep = mask.widthStep();
+    for (int h = 0; h < HEIGHT; h++)
+      for (int w = 0; w < WIDTH; w++)
+        assertEquals(h == 0 ? 255 : 0, bb.get(h * widthStep + w) & 0xff);
+    FloatBuffer avg = bg.avgBuffer();
+    assertEquals(100, avg.get(0), EPSILON);
+    assertEquals(110, avg.get(bg.avgBufferWidthStep()), 0.01);
+  }
+
+  @Test
+  public void testSegment() {
+    Background bg = new Background(WIDTH, HEIGHT);
+    int[] depthRawData = new int[WIDTH * HEIGHT];
+    Arrays.fill(depthRawData, 100);
+    for (int i = 0; i < 11; i++)
+      bg.accumulateBackground(depthRawData);
+    bg.createModelsFromStats(1, 1);
+
+    IplImage depth = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_16U, 1);
+    ShortBuffer sb = depth.getShortBuffer();
+    int depthStep = depth.widthStep() / 2;
+    for (int h = 0; h < HEIGHT; h++)
+      for (int w = 0; w < WIDTH; w++)
+        sb.put(h * depthStep + w, (short) (w < WIDTH / 2 ? 100 : 50));
+    IplImage raw = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_32F, 1);
+    IplImage scaled = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_32F, 1);
+    BitMask mask = new BitMask(WIDTH, HEIGHT), 
+        nonzero = new BitMask(WIDTH, HEIGHT);
+    IplImage fg = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_8U, 1);
+    bg.segment(depth, null, raw, scaled, mask, fg, nonzero);
+
+    IplImage expectedMask = IplImage.create(WIDTH, HEIGHT, IPL_DEPTH_8U, 1);
+    bg.backgroundDiff(depth, expectedMask);
+    ByteBuffer eb = expectedMask.getByteBuffer(), fb = fg.getByteBuffer();
+    FloatBuffer rb = raw.getFloatBuffer(), scb = scaled.getFloatBuffer();
+    int widthStep = fg.widthStep(), floatStep = raw.widthStep() / 4;
+    for (int h = 0; h < HEIGHT; h++)
+      for (int w = 0; w < WIDTH; w++) {
+        int i = h * widthStep + w;
+        assertEquals(eb.get(i) != 0, mask.get(w, h));
+        int expected = w < WIDTH / 2 ? 0 : Math.round(50 * 255f / 100);
+        assertEquals(expected, fb.get(i) & 0xff);
+        assertEquals(expected != 0, nonzero.get(w, h));
+        int j = h * floatStep + w;
+        assertEquals(w < WIDTH / 2 ? 100 : 50, rb.get(j), EPSILON);
+        assertEquals(w < WIDTH / 2 ? 1 : 0.5, scb.get(j), EPSILON);
+      }
+  }
+
   @Test
   public void testIsIncenterColumn() {
-    Background bg = Background.initInstance(WIDTH, HEIGHT);
+    Background bg = new Background(WIDTH, HEIGHT);
     assertTrue(bg.isInCenterColumn(4));
     assertTrue(bg.isInCenterColumn(5));
     assertFalse(bg.isInCenterColumn(WIDTH - 1));
@@ -105,7 +185,7 @@ public class BackgroundTest {
   
   @Test
   public void testWidthSteps() {
-    Background bg = Background.initInstance(WIDTH, HEIGHT);
+    Background bg = new Background(WIDTH, HEIGHT);
     assertEquals(WIDTH, bg.avgBufferWidthStep());
     assertEquals(WIDTH, bg.diffBufferWidthStep());
   }
@@ -0,0 +1,124 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.mit.yingyin.tabletop.models.BlobLabeler.Blob;
+import edu.mit.yingyin.util.BitMask;
+
+public class BlobLabelerTest {
+  private static final String[] MASK = {
+      "X.....XX",
+      "XX....X.",
+      ".X..XXX.",
+      "........",
+      "..X....X",
+      "..X...XX"};
+  private static final int WIDTH = 8, HEIGHT = 6, WIDTH_STEP = 10;
+
+  @Test
+  public void testLabels() {
+    BlobLabeler labeler = new BlobLabeler(WIDTH, HEIGHT);
+    List<Blob> blobs = labeler.label(mask(), WIDTH_STEP);
+    assertEquals(4, blobs.size());
+
+    Blob b = blobs.get(0);
+    assertEquals(4, b.area);
+    assertEquals(0, b.minX);
+    assertEquals(1, b.maxX);
+    assertEquals(2, b.maxY);
+    assertEquals(0.5, b.centroidX, 1e-9);
+    assertEquals(1, b.centroidY, 1e-9);
+    assertEquals(2, b.edgeContact);
+    assertEquals(0, b.bottomContact);
+
+    // The U shape is merged into one blob.
+    b = blobs.get(1);
+    assertEquals(6, b.area);
+    assertEquals(4, b.minX);
+    assertEquals(7, b.maxX);
+    assertEquals(labeler.blobIndexAt(4, 2), labeler.blobIndexAt(7, 0));
+
+    b = blobs.get(2);
+    assertEquals(2, b.area);
+    assertEquals(1, b.bottomContact);
+    // A vertical line.
+    assertEquals(0, b.mu20, 1e-9);
+    assertEquals(0.25, b.mu02, 1e-9);
+    assertEquals(Math.PI / 2, Math.abs(b.orientation()), 1e-9);
+
+    b = blobs.get(3);
+    assertEquals(3, b.area);
+    assertEquals(2, b.bottomContact);
+    assertEquals(-1, labeler.blobIndexAt(3, 3));
+  }
+
+  @Test
+  public void testFill() {
+    BlobLabeler labeler = new BlobLabeler(WIDTH, HEIGHT);
+    List<Blob> blobs = labeler.label(mask(), WIDTH_STEP);
+    boolean[] keep = new boolean[blobs.size()];
+    keep[1] = true;
+    ByteBuffer dst = ByteBuffer.allocate(WIDTH_STEP * HEIGHT);
+    labeler.fill(dst, WIDTH_STEP, keep);
+    int count = 0;
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        if (dst.get(y * WIDTH_STEP + x) != 0) {
+          count++;
+          assertEquals(1, labeler.blobIndexAt(x, y));
+        }
+      }
+    }
+    assertEquals(6, count);
+  }
+
+  @Test
+  public void testLabelBits() {
+    BitMask bits = new BitMask(WIDTH, HEIGHT);
+    bits.fromBytes(mask(), WIDTH_STEP);
+    BlobLabeler labeler = new BlobLabeler(WIDTH, HEIGHT);
+    List<Blob> expected = labeler.label(mask(), WIDTH_STEP);
+    List<Blob> blobs = labeler.label(bits);
+    assertEquals(expected.size(), blobs.size());
+    for (int i = 0; i < blobs.size(); i++) {
+      assertEquals(expected.get(i).area, blobs.get(i).area);
+      assertEquals(expected.get(i).bounds(), blobs.get(i).bounds());
+      assertEquals(expected.get(i).mu11, blobs.get(i).mu11, 1e-9);
+    }
+    assertEquals(1, labeler.blobIndexAt(4, 2));
+  }
+
+  @Test
+  public void testManyLabels() {
+    // A checkerboard of isolated pixels needs more provisional labels than
+    // the initial capacity, and diagonal neighbours are connected.
+    int w = 64, h = 64;
+    ByteBuffer bb = ByteBuffer.allocate(w * h);
+    for (int y = 0; y < h; y += 2)
+      for (int x = 0; x < w; x += 2)
+        bb.put(y * w + x, (byte) 255);
+    BlobLabeler labeler = new BlobLabeler(w, h);
+    assertEquals(32 * 32, labeler.label(bb, w).size());
+
+    for (int y = 1; y < h; y += 2)
+      for (int x = 1; x < w; x += 2)
+        bb.put(y * w + x, (byte) 255);
+    List<Blob> blobs = labeler.label(bb, w);
+    assertEquals(1, blobs.size());
+    assertEquals(w * h / 2, blobs.get(0).area);
+  }
+
+  private static ByteBuffer mask() {
+    ByteBuffer bb = ByteBuffer.allocate(WIDTH_STEP * HEIGHT);
+    for (int y = 0; y < HEIGHT; y++)
+      for (int x = 0; x < WIDTH; x++)
+        if (MASK[y].charAt(x) == 'X')
+          bb.put(y * WIDTH_STEP + x, (byte) 255);
+    return bb;
+  }
+}
@@ -0,0 +1,37 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ClickEvaluationTest {
+  private static final double EPS = 1e-6;
+
+  @Test
+  public void testTruePos() {
+    ClickEvaluation.Result result = ClickEvaluation.evaluate(
+        rows(new int[] {2, 0, 0, 0}),
+        rows(new int[] {1, 0, 0}, new int[] {2, 0, 0}, new int[] {3, 0, 0},
+             new int[] {4, 0, 0}));
+    assertEquals(1, result.groundtruthClicks);
+    assertEquals(1, result.truePos);
+    assertEquals(0, result.falsePos);
+  }
+
+  @Test
+  public void testFalseNegDuration() {
+    ClickEvaluation.Result result = ClickEvaluation.evaluate(
+        rows(new int[] {1, 0, 0, 0}, new int[] {2, 0, 0, 0}),
+        rows(new int[] {3, 0, 0}, new int[] {4, 0, 0}));
+    assertEquals(2, result.falseNegDuration, EPS);
+    assertEquals(2, result.falsePos);
+    assertEquals(1, result.falseNeg);
+  }
+
+  private static List<int[]> rows(int[]... rows) {
+    return Arrays.asList(rows);
+  }
+}
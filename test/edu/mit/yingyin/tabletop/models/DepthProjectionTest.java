@@ -0,0 +1,88 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.vecmath.Point3f;
+
+import org.junit.Test;
+
+public class DepthProjectionTest {
+  private static final int WIDTH = 640, HEIGHT = 480;
+  private static final double HFOV = 1.0144686, VFOV = 0.7898493;
+  private static final float EPSILON = 0.001f;
+
+  private final DepthProjection projection = 
+      new DepthProjection(WIDTH, HEIGHT, HFOV, VFOV);
+
+  @Test
+  public void testCenter() {
+    Point3f world = new Point3f();
+    projection.projectiveToWorld(WIDTH / 2, HEIGHT / 2, 1000, world);
+    assertEquals(new Point3f(0, 0, -1000), world);
+  }
+
+  @Test
+  public void testEdge() {
+    Point3f world = new Point3f();
+    // The left edge of the image is at half the horizontal field of view.
+    projection.projectiveToWorld(0, HEIGHT / 2, 1000, world);
+    assertEquals(-Math.tan(HFOV / 2) * 1000, world.x, EPSILON);
+    projection.projectiveToWorld(WIDTH / 2, 0, 1000, world);
+    assertEquals(Math.tan(VFOV / 2) * 1000, world.y, EPSILON);
+  }
+
+  @Test
+  public void testPixelTables() {
+    Point3f expected = new Point3f(), actual = new Point3f();
+    PointCloud pc = new PointCloud();
+    for (int v = 0; v < HEIGHT; v += 37)
+      for (int u = 0; u < WIDTH; u += 29)
+        pc.add(u, v, 500 + u + v);
+    PointCloud world = new PointCloud();
+    projection.pixelsToWorld(pc, world);
+    for (int i = 0; i < pc.size(); i++) {
+      int u = (int) pc.x[i], v = (int) pc.y[i];
+      projection.projectiveToWorld(u, v, pc.z[i], expected);
+      projection.pixelToWorld(u, v, pc.z[i], actual);
+      assertEquals(expected.x, actual.x, EPSILON);
+      assertEquals(expected.y, actual.y, EPSILON);
+      assertEquals(expected.z, actual.z, EPSILON);
+      assertEquals(expected.x, world.x[i], EPSILON);
+      assertEquals(expected.y, world.y[i], EPSILON);
+    }
+  }
+
+  @Test
+  public void testRoundTrip() {
+    PointCloud pc = new PointCloud();
+    pc.add(10.5f, 20.25f, 800);
+    pc.add(600, 400, 1500);
+    PointCloud converted = new PointCloud();
+    projection.projectiveToWorld(pc, converted);
+    Point3f single = new Point3f();
+    projection.worldToProjective(converted.x[0], converted.y[0], 
+                                 converted.z[0], single);
+    assertEquals(new Point3f(10.5f, 20.25f, 800), single);
+    projection.worldToProjective(converted, converted);
+    for (int i = 0; i < pc.size(); i++) {
+      assertEquals(pc.x[i], converted.x[i], EPSILON);
+      assertEquals(pc.y[i], converted.y[i], EPSILON);
+      assertEquals(pc.z[i], converted.z[i], EPSILON);
+    }
+  }
+
+  @Test
+  public void testSaveLoad() throws IOException {
+    File file = File.createTempFile("intrinsics", ".properties");
+    file.deleteOnExit();
+    projection.save(file.getPath());
+    DepthProjection loaded = DepthProjection.load(file.getPath());
+    assertEquals(WIDTH, loaded.width());
+    assertEquals(HEIGHT, loaded.height());
+    assertEquals(HFOV, loaded.hFov(), 1e-9);
+    assertEquals(VFOV, loaded.vFov(), 1e-9);
+  }
+}
@@ -0,0 +1,50 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FingertipEvaluationTest {
+  private static final double EPS = 1e-6;
+
+  @Test
+  public void testOnePoint() {
+    FingertipEvaluation.Result result = FingertipEvaluation.evaluate(
+        rows(new int[] {1, 0, 0}), rows(new int[] {1, 0, 0, 0}));
+    assertEquals(0, result.error, EPS);
+    assertEquals(1, result.truePos);
+  }
+
+  @Test
+  public void testTwoDetected() {
+    FingertipEvaluation.Result result = FingertipEvaluation.evaluate(
+        rows(new int[] {1, 0, 0}), rows(new int[] {1, 0, 0, 0, 1, 1, 1}));
+    assertEquals(0, result.error, EPS);
+    assertEquals(1, result.truePos);
+    assertEquals(1, result.falsePos);
+
+    result = FingertipEvaluation.evaluate(rows(new int[] {1, 1, 1}),
+        rows(new int[] {1, 0, 0, 0, 3, 3, 3}));
+    assertEquals(Math.sqrt(2), result.error, EPS);
+    assertEquals(1, result.xoffset, EPS);
+    assertEquals(1, result.truePos);
+  }
+
+  @Test
+  public void testMultiplePoints() {
+    FingertipEvaluation.Result result = FingertipEvaluation.evaluate(
+        rows(new int[] {1, 0, 0}, new int[] {2, 0, 0}),
+        rows(new int[] {1, 2, 2, 2, 0, 0, 0, 1, 1, 1}, new int[] {3, 0, 0}));
+    assertEquals(0, result.error, EPS);
+    assertEquals(1, result.truePos);
+    assertEquals(1, result.falseNeg);
+    assertEquals(2, result.totalGroundtruth);
+  }
+
+  private static List<int[]> rows(int[]... rows) {
+    return Arrays.asList(rows);
+  }
+}
@@ -0,0 +1,96 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Point2f;
+import javax.vecmath.Point3f;
+
+import org.junit.Test;
+
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent.FingerEventType;
+
+public class FingertipPredictorTest {
+  private static final long FRAME = 33000000;
+
+  @Test
+  public void testConstantVelocityIsPredicted() {
+    // Predicts one frame forward.
+    FingertipPredictor predictor = new FingertipPredictor(0, 
+        10 * FRAME, 15, 0.7f, 0.5f);
+    ManipulativeEvent fe = null;
+    for (int i = 0; i < 20; i++) {
+      predictor.recordLatency(FRAME);
+      fe = event(1, 10 * i, 50, i * FRAME);
+      predictor.predict(Arrays.asList(fe));
+    }
+    assertEquals(200, fe.posDisplay.x, 1);
+    assertEquals(50, fe.posDisplay.y, 1e-3);
+    assertEquals(FRAME, predictor.horizonNanos());
+  }
+
+  @Test
+  public void testNoPredictionDuringWarmUp() {
+    FingertipPredictor predictor = new FingertipPredictor(FRAME, 
+        10 * FRAME, 15, 0.7f, 0.5f);
+    for (int i = 0; i < FingertipPredictor.WARM_UP_FRAMES - 1; i++) {
+      ManipulativeEvent fe = event(1, 10 * i, 50, i * FRAME);
+      predictor.predict(Arrays.asList(fe));
+      assertEquals(new Point2f(10 * i, 50), fe.posDisplay);
+    }
+  }
+
+  @Test
+  public void testErraticMotionIsDamped() {
+    FingertipPredictor steady = new FingertipPredictor(FRAME, 
+        10 * FRAME, 5, 0.7f, 0.5f);
+    FingertipPredictor erratic = new FingertipPredictor(FRAME, 
+        10 * FRAME, 5, 0.7f, 0.5f);
+    float steadyOffset = 0, erraticOffset = 0;
+    for (int i = 0; i < 20; i++) {
+      ManipulativeEvent s = event(1, 10 * i, 0, i * FRAME);
+      steady.predict(Arrays.asList(s));
+      steadyOffset = s.posDisplay.x - 10 * i;
+      // Jumps back and forth while moving at the same average velocity.
+      float x = 10 * i + (i % 2 == 0 ? 20 : -20);
+      ManipulativeEvent e = event(1, x, 0, i * FRAME);
+      erratic.predict(Arrays.asList(e));
+      erraticOffset = Math.abs(e.posDisplay.x - x);
+    }
+    assertEquals(10, steadyOffset, 1e-3);
+    assertTrue(erraticOffset < 1);
+  }
+
+  @Test
+  public void testHorizonIsLimited() {
+    FingertipPredictor predictor = new FingertipPredictor(FRAME, 
+        2 * FRAME, 15, 0.7f, 0.5f);
+    predictor.recordLatency(5 * FRAME);
+    assertEquals(2 * FRAME, predictor.horizonNanos());
+  }
+
+  @Test
+  public void testLostFingertipsAreRemoved() {
+    FingertipPredictor predictor = new FingertipPredictor(FRAME, 
+        10 * FRAME, 15, 0.7f, 0.5f);
+    predictor.predict(Arrays.asList(event(1, 0, 0, 0), event(2, 50, 0, 0)));
+    assertEquals(2, predictor.numFingertips());
+    predictor.predict(Arrays.asList(event(2, 50, 0, FRAME)));
+    assertEquals(1, predictor.numFingertips());
+    predictor.predict(new ArrayList<ManipulativeEvent>());
+    assertEquals(0, predictor.numFingertips());
+  }
+
+  private ManipulativeEvent event(int fingertipID, float x, float y, 
+                                  long time) {
+    ManipulativeEvent fe = new ManipulativeEvent(new Point3f(), 
+        new Point2f(x, y), 1, FingerEventType.PRESSED, 0, fingertipID);
+    fe.acquisitionTime = time;
+    return fe;
+  }
+}
@@ -0,0 +1,38 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.Point;
+
+import org.junit.Test;
+
+import edu.mit.yingyin.image.BinaryFast;
+
+public class ForelimbModelEstimatorTest {
+  private static final int W = 5, H = 10;
+
+  @Test
+  public void testFarthestEndPoint() {
+    // A finger pointing down with a branch to the right at the top.
+    byte[] pixels = new byte[W * H];
+    for (int y = 0; y < H; y++)
+      pixels[y * W + 2] = BinaryFast.foreground;
+    pixels[W + 3] = BinaryFast.foreground;
+    pixels[4] = BinaryFast.foreground;
+
+    // The arm joint is above the hand region for a forelimb entering from the
+    // top.
+    assertEquals(new Point(2, 9), 
+        ForelimbModelEstimator.farthestEndPoint(pixels, W, H, 2, -5));
+    // The arm joint is below the hand region.
+    assertEquals(new Point(4, 0), 
+        ForelimbModelEstimator.farthestEndPoint(pixels, W, H, 2, H + 5));
+  }
+
+  @Test
+  public void testEmptySkeleton() {
+    assertNull(ForelimbModelEstimator.farthestEndPoint(new byte[W * H], W, H,
+                                                       0, 0));
+  }
+}
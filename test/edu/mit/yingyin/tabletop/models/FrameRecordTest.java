@@ -0,0 +1,157 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+
+import javax.vecmath.Point3f;
+
+import org.junit.Test;
+
+import edu.mit.yingyin.tabletop.models.FrameRecordWriter.Compression;
+import edu.mit.yingyin.tabletop.models.FrameRecordWriter.Section;
+import edu.mit.yingyin.util.ValConfidencePair;
+
+public class FrameRecordTest {
+  private static final int WIDTH = 16, HEIGHT = 8, NUM_FRAMES = 20;
+
+  @Test
+  public void testRoundTripDeflate() throws IOException {
+    testRoundTrip(Compression.DEFLATE);
+  }
+
+  @Test
+  public void testRoundTripUncompressed() throws IOException {
+    testRoundTrip(Compression.NONE);
+  }
+
+  @Test
+  public void testSectionsNotRecorded() throws IOException {
+    File file = File.createTempFile("frames", FrameRecordWriter.FILE_SUFFIX);
+    file.deleteOnExit();
+    FrameRecordWriter writer = new FrameRecordWriter(file.getPath(), WIDTH,
+        HEIGHT, EnumSet.of(Section.TRACKS), Compression.DEFLATE);
+    writer.write(createRecord(5));
+    writer.close();
+
+    FrameRecordReader reader = new FrameRecordReader(file.getPath());
+    FrameRecord record = reader.read(5);
+    assertNull(record.depth);
+    assertNull(record.mask);
+    assertNull(record.forelimbRegions);
+    assertEquals(1, record.tracks.size());
+    assertNull(record.gestureFeatures);
+    reader.close();
+  }
+
+  @Test
+  public void testGestureFeaturesWithoutTracks() throws IOException {
+    File file = File.createTempFile("frames", FrameRecordWriter.FILE_SUFFIX);
+    file.deleteOnExit();
+    FrameRecordWriter writer = new FrameRecordWriter(file.getPath(), WIDTH,
+        HEIGHT, EnumSet.of(Section.TRACKS, Section.GESTURE_FEATURES),
+        Compression.NONE);
+    FrameRecord expected = createRecord(4);
+    expected.tracks = null;
+    writer.write(expected);
+    writer.close();
+
+    FrameRecordReader reader = new FrameRecordReader(file.getPath());
+    FrameRecord record = reader.read(4);
+    // No tracks without fingertip IDs are made up for the gesture features.
+    assertNull(record.tracks);
+    assertEquals(1, record.gestureFeatures.size());
+    assertEquals(3, record.gestureFeatures.get(0).forelimbID);
+    assertArrayEquals(expected.gestureFeatures.get(0).features,
+                      record.gestureFeatures.get(0).features, 0);
+    reader.close();
+  }
+
+  private void testRoundTrip(Compression compression) throws IOException {
+    File file = File.createTempFile("frames", FrameRecordWriter.FILE_SUFFIX);
+    file.deleteOnExit();
+    FrameRecordWriter writer = new FrameRecordWriter(file.getPath(), WIDTH,
+        HEIGHT, EnumSet.allOf(Section.class), compression);
+    for (int i = 0; i < NUM_FRAMES; i++)
+      writer.write(createRecord(i * 2));
+    writer.close();
+
+    FrameRecordReader reader = new FrameRecordReader(file.getPath());
+    assertEquals(WIDTH, reader.width());
+    assertEquals(HEIGHT, reader.height());
+    assertEquals(NUM_FRAMES, reader.numFrames());
+    assertFalse(reader.contains(1));
+    assertNull(reader.read(1));
+    // Random access in reverse order.
+    for (int i = NUM_FRAMES - 1; i >= 0; i--) {
+      FrameRecord expected = createRecord(i * 2);
+      FrameRecord actual = reader.read(i * 2);
+      assertEquals(expected.frameID, actual.frameID);
+      assertArrayEquals(expected.depth, actual.depth);
+      assertArrayEquals(expected.mask, actual.mask);
+
+      FrameRecord.ForelimbRegion er = expected.forelimbRegions.get(0),
+          ar = actual.forelimbRegions.get(0);
+      assertArrayEquals(er.boundingBox, ar.boundingBox);
+      assertArrayEquals(er.handRegion, ar.handRegion);
+      assertEquals(er.fingertips.get(0).value, ar.fingertips.get(0).value);
+      assertEquals(er.fingertips.get(0).confidence,
+                   ar.fingertips.get(0).confidence, 0);
+
+      FrameRecord.Track et = expected.tracks.get(0),
+          at = actual.tracks.get(0);
+      assertEquals(et.forelimbID, at.forelimbID);
+      assertArrayEquals(et.fingertipIDs, at.fingertipIDs);
+      assertEquals(et.fingertipsI, at.fingertipsI);
+      assertEquals(et.fingertipsW, at.fingertipsW);
+
+      FrameRecord.GestureFeatures eg = expected.gestureFeatures.get(0),
+          ag = actual.gestureFeatures.get(0);
+      assertEquals(eg.forelimbID, ag.forelimbID);
+      assertArrayEquals(eg.features, ag.features, 0);
+    }
+    reader.close();
+  }
+
+  private FrameRecord createRecord(int frameID) {
+    FrameRecord record = new FrameRecord();
+    record.frameID = frameID;
+    record.depth = new short[WIDTH * HEIGHT];
+    record.mask = new byte[WIDTH * HEIGHT];
+    for (int i = 0; i < record.depth.length; i++) {
+      record.depth[i] = (short) (800 + i + frameID);
+      record.mask[i] = (byte) (i % 3 == 0 ? 255 : 0);
+    }
+
+    FrameRecord.ForelimbRegion region = new FrameRecord.ForelimbRegion();
+    region.boundingBox = new int[] {frameID, 1, 5, 7};
+    region.handRegion = new int[] {frameID, 1, 5, 3};
+    region.fingertips.add(new ValConfidencePair<Point3f>(
+        new Point3f(2, 3, 900), 0.5f));
+    record.forelimbRegions = new ArrayList<FrameRecord.ForelimbRegion>();
+    record.forelimbRegions.add(region);
+
+    FrameRecord.Track track = new FrameRecord.Track();
+    track.forelimbID = 3;
+    track.fingertipIDs = new int[] {7, 8};
+    track.fingertipsI.add(new Point3f(1, 2, 900));
+    track.fingertipsI.add(new Point3f(3, 4, 910));
+    track.fingertipsW.add(new Point3f(-10, 20, -900));
+    track.fingertipsW.add(new Point3f(-30, 40, -910));
+    record.tracks = new ArrayList<FrameRecord.Track>();
+    record.tracks.add(track);
+
+    FrameRecord.GestureFeatures gf = new FrameRecord.GestureFeatures();
+    gf.forelimbID = 3;
+    gf.features = new float[] {frameID, 0.25f, -1};
+    record.gestureFeatures = new ArrayList<FrameRecord.GestureFeatures>();
+    record.gestureFeatures.add(gf);
+    return record;
+  }
+}
@@ -0,0 +1,131 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.vecmath.Point2f;
+import javax.vecmath.Point3f;
+
+import org.OpenNI.Point3D;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent.FingerEventType;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+
+public class HandEventFusionTest {
+  private static final long MS = 1000000;
+
+  private static class Collector implements IHandEventListener {
+    List<ManipulativeEvent> pressed = new ArrayList<ManipulativeEvent>();
+    List<DiecticEvent> pointed = new ArrayList<DiecticEvent>();
+
+    @Override
+    public void fingerPressed(List<ManipulativeEvent> feList) {
+      pressed.addAll(feList);
+    }
+
+    @Override
+    public void fingerPointed(DiecticEvent de) {
+      pointed.add(de);
+    }
+  }
+
+  private HandEventFusion fusion;
+  private Collector collector;
+
+  @Before
+  public void setUp() {
+    fusion = new HandEventFusion(20, 20, TimeUnit.MILLISECONDS);
+    collector = new Collector();
+    fusion.addHandEventListener(collector);
+  }
+
+  @Test
+  public void testOverlappingFingertipsAreMerged() {
+    fusion.fingerPressed(Arrays.asList(event(0, 3, 100, 100, 0)));
+    fusion.fingerPressed(Arrays.asList(event(1, 5, 105, 102, 2 * MS)));
+    fusion.fingerPressed(Arrays.asList(event(2, 9, 98, 99, 3 * MS)));
+
+    assertEquals(1, collector.pressed.size());
+    assertEquals(0, collector.pressed.get(0).engineID);
+    assertEquals(2, fusion.duplicates());
+    assertEquals(1, fusion.numFingertips());
+
+    // A fingertip far away is a different one.
+    fusion.fingerPressed(Arrays.asList(event(3, 5, 500, 100, 4 * MS)));
+    assertEquals(2, collector.pressed.size());
+    assertEquals(3, collector.pressed.get(1).engineID);
+    assertEquals(2, fusion.numFingertips());
+  }
+
+  @Test
+  public void testOwnershipHandsOff() {
+    fusion.fingerPressed(Arrays.asList(event(0, 3, 100, 100, 0)));
+    int fusedID = collector.pressed.get(0).fingertipID;
+    // The fingertip moves out of the view of engine 0.
+    fusion.fingerPressed(Arrays.asList(event(1, 5, 110, 100, 10 * MS)));
+    fusion.fingerPressed(Arrays.asList(event(1, 5, 150, 100, 25 * MS)));
+
+    assertEquals(2, collector.pressed.size());
+    ManipulativeEvent e = collector.pressed.get(1);
+    assertEquals(1, e.engineID);
+    assertEquals(fusedID, e.fingertipID);
+    assertEquals(new Point2f(150, 100), e.posDisplay);
+  }
+
+  @Test
+  public void testLateEngineDoesNotExpireFingertips() {
+    // Engine 0 delivers its events 40ms later than engine 1.
+    fusion.fingerPressed(Arrays.asList(event(1, 5, 300, 100, 100 * MS)));
+    fusion.fingerPressed(Arrays.asList(event(0, 3, 100, 100, 60 * MS)));
+    fusion.fingerPressed(Arrays.asList(event(1, 5, 300, 100, 130 * MS)));
+    fusion.fingerPressed(Arrays.asList(event(0, 3, 100, 100, 75 * MS)));
+
+    assertEquals(2, fusion.numFingertips());
+    int fusedID = collector.pressed.get(1).fingertipID;
+    assertEquals(fusedID, collector.pressed.get(3).fingertipID);
+
+    // Engine 0 does not see the fingertip any more.
+    fusion.fingerPointed(pointing(0, 100 * MS));
+    assertEquals(1, fusion.numFingertips());
+  }
+
+  @Test
+  public void testPointingLocationsAreMerged() {
+    fusion.fingerPointed(pointing(0, 0, new Point2f(10, 10)));
+    fusion.fingerPointed(pointing(1, MS, new Point2f(12, 10),
+                                  new Point2f(300, 10)));
+    assertEquals(2, collector.pointed.size());
+    assertEquals(2, collector.pointed.get(1).pointingLocationsD().length);
+
+    // Pointing events outside the time window are not merged.
+    fusion.fingerPointed(pointing(1, 100 * MS, new Point2f(300, 10)));
+    assertEquals(1, collector.pointed.get(2).pointingLocationsD().length);
+  }
+
+  private ManipulativeEvent event(int engineID, int fingertipID, float x,
+                                  float y, long time) {
+    ManipulativeEvent e = new ManipulativeEvent(new Point3f(x, y, 0),
+        new Point2f(x, y), 1, FingerEventType.PRESSED, 0, fingertipID);
+    e.engineID = engineID;
+    e.acquisitionTime = time;
+    return e;
+  }
+
+  private DiecticEvent pointing(int engineID, long time, Point2f... display) {
+    Point3D[] image = new Point3D[display.length];
+    for (int i = 0; i < display.length; i++)
+      image[i] = new Point3D(display[i].x, display[i].y, 0);
+    DiecticEvent e = new DiecticEvent(image, image, display);
+    e.engineID = engineID;
+    e.acquisitionTime = time;
+    return e;
+  }
+}
@@ -60,4 +60,21 @@ public class HandPoseDescriptorTest {
     assertEquals(0.25, hpd.descriptorValue(2, 7, 2), EPSILON);
     assertEquals(0.25, hpd.descriptorValue(1, 6, 1), EPSILON);
   }
+  
+  @Test
+  public void testDescriptorValuePointCloud() {
+    PointCloud points = new PointCloud();
+    points.add(0, 0, -2);
+    points.add(4, 0, 3);
+    points.add(-2, 0, 0);
+    points.add(0, -1, -1);
+    
+    HandPoseDescriptor hpd = new HandPoseDescriptor(points);
+    assertEquals(4, hpd.radius(), EPSILON);
+    assertEquals(0.25, hpd.descriptorValue(0, 4, 0), EPSILON);
+    assertEquals(0.25, hpd.descriptorValue(4, 4, 4), EPSILON);
+    assertEquals(0.25, hpd.descriptorValue(2, 7, 2), EPSILON);
+    // atan2(-1, 0) + pi = pi / 2 is in sector 2.
+    assertEquals(0.25, hpd.descriptorValue(1, 2, 1), EPSILON);
+  }
 }
@@ -0,0 +1,73 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+import org.junit.Test;
+
+import edu.mit.yingyin.calib.CalibModel;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent.FingerEventType;
+
+public class HandTrackerTest {
+  private static final String CALIB_FILE = "test_data/calibration.txt";
+  private static final int WIDTH = 4, HEIGHT = 4;
+  private static final float TABLE_DEPTH = 1000;
+  private static final int FINGERTIP_ID = 7;
+
+  @Test
+  public void testFingertipMissedForOneFrame() {
+    HandTracker tracker = new HandTracker(new CalibModel(CALIB_FILE), null);
+    InteractionSurface surface = surface();
+    List<Forelimb> touching = Arrays.asList(forelimb());
+    List<Forelimb> none = new ArrayList<Forelimb>();
+
+    int frameID = 0;
+    assertTrue(tracker.filterPressed(touching, frameID++, surface).isEmpty());
+    assertTrue(tracker.filterPressed(touching, frameID++, surface).isEmpty());
+    List<ManipulativeEvent> events = tracker.filterPressed(touching, 
+        frameID++, surface);
+    assertEquals(1, events.size());
+    assertEquals(FingerEventType.PRESSED, events.get(0).type);
+
+    // The fingertip is not detected for one frame and comes back.
+    assertTrue(tracker.filterPressed(none, frameID++, surface).isEmpty());
+    assertTrue(tracker.filterPressed(touching, frameID++, surface).isEmpty());
+
+    // Released after missing for the debounce count.
+    assertTrue(tracker.filterPressed(none, frameID++, surface).isEmpty());
+    assertTrue(tracker.filterPressed(none, frameID++, surface).isEmpty());
+    events = tracker.filterPressed(none, frameID++, surface);
+    assertEquals(1, events.size());
+    assertEquals(FingerEventType.RELEASED, events.get(0).type);
+    assertEquals(FINGERTIP_ID, events.get(0).fingertipID);
+    assertTrue(tracker.filterPressed(none, frameID++, surface).isEmpty());
+  }
+
+  private static InteractionSurface surface() {
+    FloatBuffer avg = FloatBuffer.allocate(WIDTH * HEIGHT);
+    FloatBuffer diff = FloatBuffer.allocate(WIDTH * HEIGHT);
+    for (int i = 0; i < WIDTH * HEIGHT; i++) {
+      avg.put(i, TABLE_DEPTH);
+      diff.put(i, 1);
+    }
+    return new InteractionSurface(avg, diff, WIDTH, WIDTH, WIDTH, HEIGHT, 
+                                  null);
+  }
+
+  /**
+   * @return a forelimb with one fingertip touching the surface.
+   */
+  private static Forelimb forelimb() {
+    Point3f tip = new Point3f(1, 1, TABLE_DEPTH - Hand.FINGER_THICKNESS);
+    return new Forelimb(1, new int[] {FINGERTIP_ID}, Arrays.asList(tip), 
+                        Arrays.asList(new Point3f(tip)), null, null);
+  }
+}
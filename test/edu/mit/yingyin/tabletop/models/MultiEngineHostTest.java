@@ -0,0 +1,68 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Point2f;
+import javax.vecmath.Point3f;
+
+import org.OpenNI.Point3D;
+import org.junit.Test;
+
+import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent.FingerEventType;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+
+public class MultiEngineHostTest {
+  private static class Collector implements IHandEventListener {
+    List<ManipulativeEvent> pressed = new ArrayList<ManipulativeEvent>();
+    List<DiecticEvent> pointed = new ArrayList<DiecticEvent>();
+
+    @Override
+    public void fingerPressed(List<ManipulativeEvent> feList) {
+      pressed.addAll(feList);
+    }
+
+    @Override
+    public void fingerPointed(DiecticEvent de) {
+      pointed.add(de);
+    }
+  }
+
+  @Test
+  public void testEventsInSharedDisplaySpace() {
+    MultiEngineHost host = new MultiEngineHost();
+    Collector collector = new Collector();
+    host.addHandEventListener(collector);
+    MultiEngineHost.EngineEvents left = new MultiEngineHost.EngineEvents(
+        host, 0, new Point2f(0, 0));
+    MultiEngineHost.EngineEvents right = new MultiEngineHost.EngineEvents(
+        host, 1, new Point2f(1920, 0));
+
+    ManipulativeEvent fe = new ManipulativeEvent(new Point3f(1, 2, 3),
+        new Point2f(10, 20), 5, FingerEventType.PRESSED, 7, 8);
+    left.fingerPressed(Arrays.asList(fe));
+    right.fingerPressed(Arrays.asList(fe));
+
+    assertEquals(2, collector.pressed.size());
+    assertEquals(new Point2f(10, 20), collector.pressed.get(0).posDisplay);
+    assertEquals(0, collector.pressed.get(0).engineID);
+    assertEquals(new Point2f(1930, 20), collector.pressed.get(1).posDisplay);
+    assertEquals(1, collector.pressed.get(1).engineID);
+    assertEquals(7, collector.pressed.get(1).forelimbID);
+    // The original event is not changed.
+    assertEquals(new Point2f(10, 20), fe.posDisplay);
+
+    right.fingerPointed(new DiecticEvent(new Point3D[] {new Point3D(1, 2, 3)},
+        new Point3D[] {new Point3D(4, 5, 6)},
+        new Point2f[] {new Point2f(100, 200)}));
+    assertEquals(1, collector.pointed.size());
+    assertEquals(new Point2f(2020, 200),
+                 collector.pointed.get(0).pointingLocationsD()[0]);
+    assertEquals(1, collector.pointed.get(0).engineID);
+  }
+}
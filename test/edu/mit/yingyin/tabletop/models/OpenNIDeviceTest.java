@@ -106,16 +106,12 @@ public class OpenNIDeviceTest {
     Point3D[] points = new Point3D[2];
     points[0] = new Point3D(1, 2, -3);
     points[1] = new Point3D(1, 2, -30);
-    try {
-      Point3D[] converted = openni.convertRealWorldToProjective(points);
-      LOGGER.info(String.format("(%f, %f, %f)", 
-                  converted[0].getX(), converted[0].getY(), 
-                  converted[0].getZ()));
-      LOGGER.info(String.format("(%f, %f, %f)", 
-          converted[1].getX(), converted[1].getY(), 
-          converted[1].getZ()));
-    } catch (StatusException e) {
-      fail();
-    }
+    Point3D[] converted = openni.convertRealWorldToProjective(points);
+    LOGGER.info(String.format("(%f, %f, %f)", 
+                converted[0].getX(), converted[0].getY(), 
+                converted[0].getZ()));
+    LOGGER.info(String.format("(%f, %f, %f)", 
+        converted[1].getX(), converted[1].getY(), 
+        converted[1].getZ()));
   }
 }
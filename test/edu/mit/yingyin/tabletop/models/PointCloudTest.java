@@ -0,0 +1,75 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import javax.vecmath.Point3f;
+
+import org.junit.Test;
+
+public class PointCloudTest {
+  private static final float EPSILON = 0.00001f;
+
+  @Test
+  public void testGrow() {
+    PointCloud pc = new PointCloud(2);
+    for (int i = 0; i < 5; i++)
+      pc.add(i, 2 * i, 3 * i);
+    assertEquals(5, pc.size());
+    Point3f p = new Point3f();
+    pc.get(4, p);
+    assertEquals(new Point3f(4, 8, 12), p);
+
+    // Clearing keeps the memory.
+    float[] x = pc.x;
+    pc.clear();
+    pc.add(1, 1, 1);
+    assertSame(x, pc.x);
+  }
+
+  @Test
+  public void testRetainWithinXY() {
+    PointCloud pc = new PointCloud();
+    pc.add(0, 0, 5);
+    pc.add(10, 0, 0);
+    pc.add(1, 1, 6);
+    pc.add(0, -10, 0);
+    pc.add(-1, 0, 7);
+    assertEquals(2, pc.retainWithinXY(0, 0, 2));
+    assertEquals(3, pc.size());
+    // Order is kept.
+    assertEquals(5, pc.z[0], EPSILON);
+    assertEquals(6, pc.z[1], EPSILON);
+    assertEquals(7, pc.z[2], EPSILON);
+  }
+
+  @Test
+  public void testCentroidCovariance() {
+    PointCloud pc = new PointCloud();
+    pc.add(1, 0, 0);
+    pc.add(-1, 0, 0);
+    pc.add(3, 2, 0);
+    pc.add(1, -2, 0);
+    Point3f mean = new Point3f();
+    pc.centroid(mean);
+    assertEquals(new Point3f(1, 0, 0), mean);
+    double[] cov = new double[9];
+    pc.covariance(mean, cov);
+    assertEquals(2, cov[0], EPSILON);
+    assertEquals(2, cov[4], EPSILON);
+    assertEquals(1, cov[1], EPSILON);
+    assertEquals(cov[1], cov[3], EPSILON);
+    assertEquals(0, cov[8], EPSILON);
+  }
+
+  @Test
+  public void testTransform() {
+    PointCloud pc = new PointCloud();
+    pc.add(1, 2, 3);
+    // Rotation by 90 degrees about the z axis.
+    pc.transform(new double[] {0, -1, 0, 1, 0, 0, 0, 0, 1});
+    assertEquals(-2, pc.x[0], EPSILON);
+    assertEquals(1, pc.y[0], EPSILON);
+    assertEquals(3, pc.z[0], EPSILON);
+  }
+}
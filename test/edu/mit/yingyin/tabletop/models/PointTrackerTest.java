@@ -0,0 +1,113 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.vecmath.Point3f;
+
+import org.junit.Test;
+
+public class PointTrackerTest {
+  private static final float GATE = 10;
+  private static final int MAX_MISSED = 2;
+
+  @Test
+  public void testPersistentIDs() {
+    PointTracker tracker = newTracker(4);
+    int[] ids = tracker.update(points(0, 0, 50, 0));
+    assertEquals(2, ids.length);
+    assertTrue(ids[0] != ids[1]);
+
+    // Detections move and come in a different order.
+    for (int i = 1; i <= 5; i++) {
+      int[] next = tracker.update(points(50 + i, 0, i, 0));
+      assertEquals(ids[1], next[0]);
+      assertEquals(ids[0], next[1]);
+    }
+    assertEquals(2, tracker.numTracks());
+  }
+
+  @Test
+  public void testNewAndLostTracks() {
+    PointTracker tracker = newTracker(4);
+    int id = tracker.update(points(0, 0))[0];
+    int[] ids = tracker.update(points(0, 0, 100, 100));
+    assertEquals(id, ids[0]);
+    assertTrue(ids[1] != id);
+
+    // The track coasts for MAX_MISSED frames.
+    for (int i = 0; i < MAX_MISSED; i++) {
+      tracker.update(points(0, 0));
+      assertTrue(tracker.isActive(ids[1]));
+    }
+    tracker.update(points(0, 0));
+    assertFalse(tracker.isActive(ids[1]));
+    assertEquals(1, tracker.numTracks());
+
+    // A detection outside the gate starts a new track.
+    int[] far = tracker.update(points(0, 0, 100, 100));
+    assertTrue(far[1] != ids[1]);
+  }
+
+  @Test
+  public void testBoundedTracks() {
+    PointTracker tracker = newTracker(2);
+    int[] ids = tracker.update(points(0, 0, 50, 0, 100, 0));
+    assertEquals(PointTracker.NO_TRACK, ids[2]);
+    assertEquals(2, tracker.numTracks());
+  }
+
+  @Test
+  public void testSharedIDs() {
+    AtomicInteger nextID = new AtomicInteger();
+    PointTracker t1 = new PointTracker(2, GATE, MAX_MISSED, true, 0.5f, 0.5f,
+                                       nextID);
+    PointTracker t2 = new PointTracker(2, GATE, MAX_MISSED, true, 0.5f, 0.5f,
+                                       nextID);
+    assertTrue(t1.update(points(0, 0))[0] != t2.update(points(0, 0))[0]);
+  }
+
+  @Test
+  public void testSmoothing() {
+    PointTracker tracker = newTracker(1);
+    int id = tracker.update(points(0, 0))[0];
+    tracker.update(points(1, 0));
+    tracker.update(points(2, 0));
+    tracker.update(points(8, 0));
+    Point3f p = tracker.position(id);
+    // Smoothed towards the predicted position (3, 0).
+    assertTrue(p.x > 3 && p.x < 8);
+    assertNotSame(p, tracker.position(id));
+  }
+
+  @Test
+  public void testDoubleExpFilterTrend() {
+    DoubleExpFilter filter = new DoubleExpFilter(0.5f, 0.5f);
+    Point3f predicted = new Point3f();
+    assertFalse(filter.predict(predicted));
+    for (int i = 0; i < 5; i++)
+      filter.filter(new Point3f(2 * i, 0, 0));
+    assertTrue(filter.predict(predicted));
+    assertEquals(10, predicted.x, 1e-3);
+    filter.reset();
+    assertEquals(null, filter.state());
+  }
+
+  private PointTracker newTracker(int maxTracks) {
+    return new PointTracker(maxTracks, GATE, MAX_MISSED, true, 0.5f, 0.5f,
+                            new AtomicInteger());
+  }
+
+  private List<Point3f> points(float... xy) {
+    List<Point3f> res = new ArrayList<Point3f>();
+    for (int i = 0; i < xy.length; i += 2)
+      res.add(new Point3f(xy[i], xy[i + 1], 0));
+    return res;
+  }
+}
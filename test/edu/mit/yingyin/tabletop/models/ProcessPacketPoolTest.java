@@ -0,0 +1,156 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.mit.yingyin.tabletop.models.DerivedProductStats.Product;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.QueuePolicy;
+
+public class ProcessPacketPoolTest {
+  private static final int WIDTH = 10, HEIGHT = 10;
+
+  @Test
+  public void testReuse() {
+    ProcessPacketPool pool = new ProcessPacketPool(WIDTH, HEIGHT, null, 2);
+    assertEquals(2, pool.allocations());
+    ProcessPacket packet = pool.lease();
+    pool.returnPacket(packet);
+    for (int i = 0; i < 10; i++) {
+      ProcessPacket p = pool.lease();
+      pool.returnPacket(p);
+    }
+    assertEquals(2, pool.allocations());
+    assertEquals(11, pool.reuses());
+    assertEquals(0, pool.exhaustions());
+    assertEquals(2, pool.available());
+    pool.release();
+  }
+
+  @Test
+  public void testExhaustion() {
+    ProcessPacketPool pool = new ProcessPacketPool(WIDTH, HEIGHT, null, 1);
+    ProcessPacket p1 = pool.lease();
+    ProcessPacket p2 = pool.lease();
+    assertNotSame(p1, p2);
+    assertEquals(1, pool.exhaustions());
+    assertEquals(2, pool.allocations());
+    pool.returnPacket(p1);
+    // The pool is full, so p2 is released instead of pooled.
+    pool.returnPacket(p2);
+    assertEquals(1, pool.available());
+    assertSame(p1, pool.lease());
+    pool.release();
+  }
+
+  @Test
+  public void testDerivedProductsComputedOnDemand() {
+    DerivedProductStats stats = new DerivedProductStats();
+    ProcessPacketPool pool = new ProcessPacketPool(WIDTH, HEIGHT, null, 2,
+                                                   stats);
+    ProcessPacket packet = pool.lease();
+    packet.depthUpdated();
+    assertEquals(0, stats.materializations(Product.BLURRED_DEPTH));
+    packet.blurredDepth();
+    packet.blurredDepth();
+    assertEquals(2, stats.requests(Product.BLURRED_DEPTH));
+    assertEquals(1, stats.materializations(Product.BLURRED_DEPTH));
+
+    packet.derivative(new Rectangle(0, 0, 4, 4));
+    // Inside the region already computed.
+    packet.derivative(new Rectangle(1, 1, 2, 2));
+    assertEquals(1, stats.materializations(Product.DERIVATIVE));
+    assertEquals(16, stats.pixels(Product.DERIVATIVE));
+    packet.derivative();
+    assertEquals(2, stats.materializations(Product.DERIVATIVE));
+    packet.derivative(new Rectangle(5, 5, 2, 2));
+    assertEquals(2, stats.materializations(Product.DERIVATIVE));
+
+    // A new frame invalidates the products.
+    packet.depthUpdated();
+    packet.blurredDepth();
+    assertEquals(2, stats.materializations(Product.BLURRED_DEPTH));
+    pool.returnPacket(packet);
+    pool.release();
+  }
+
+  /**
+   * A slow caller fills all the queues of a blocking pipeline, which should
+   * not allocate more packets than the pool capacity.
+   */
+  @Test
+  public void testPipelineDoesNotExhaustPool() throws InterruptedException {
+    final int queueCapacity = 2, numFrames = 60;
+    final ProcessPacketPool pool = new ProcessPacketPool(WIDTH, HEIGHT, null,
+        HandTrackingEngine.pipelinePoolCapacity(queueCapacity));
+    long allocations = pool.allocations();
+    FramePipeline.Source source = new FramePipeline.Source() {
+      private int n = 0;
+      @Override
+      public ProcessPacket next() {
+        return n++ < numFrames ? pool.lease() : null;
+      }
+    };
+    List<FramePipeline.Stage> stages = new ArrayList<FramePipeline.Stage>();
+    for (int i = 0; i < 3; i++) {
+      stages.add(new FramePipeline.Stage() {
+        @Override
+        public void process(ProcessPacket packet) {}
+      });
+    }
+    FramePipeline pipeline = new FramePipeline(source, stages, 
+        Arrays.asList("a", "b", "c"), pool, queueCapacity, QueuePolicy.BLOCK,
+        new PipelineMetrics());
+    pipeline.start();
+    int taken = 0;
+    ProcessPacket packet;
+    while ((packet = pipeline.take()) != null) {
+      Thread.sleep(5);
+      pool.returnPacket(packet);
+      taken++;
+    }
+    pipeline.stop();
+    assertEquals(numFrames, taken);
+    assertEquals(allocations, pool.allocations());
+    assertEquals(0, pool.exhaustions());
+    pool.release();
+  }
+
+  @Test(expected = HandTrackingEngineException.class)
+  public void testPipelineFailure() throws InterruptedException {
+    final ProcessPacketPool pool = new ProcessPacketPool(WIDTH, HEIGHT, null,
+        HandTrackingEngine.pipelinePoolCapacity(2));
+    FramePipeline.Source source = new FramePipeline.Source() {
+      private int n = 0;
+      @Override
+      public ProcessPacket next() throws Exception {
+        if (n++ == 3)
+          throw new Exception("Corrupt frame.");
+        return pool.lease();
+      }
+    };
+    List<FramePipeline.Stage> stages = new ArrayList<FramePipeline.Stage>();
+    stages.add(new FramePipeline.Stage() {
+      @Override
+      public void process(ProcessPacket packet) {}
+    });
+    FramePipeline pipeline = new FramePipeline(source, stages, 
+        Arrays.asList("a"), pool, 2, QueuePolicy.BLOCK, new PipelineMetrics());
+    pipeline.start();
+    try {
+      ProcessPacket packet;
+      while ((packet = pipeline.take()) != null)
+        pool.returnPacket(packet);
+    } finally {
+      pipeline.stop();
+      pool.release();
+    }
+  }
+}
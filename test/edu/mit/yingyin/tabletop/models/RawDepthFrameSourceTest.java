@@ -0,0 +1,163 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import org.junit.Test;
+
+import edu.mit.yingyin.tabletop.models.RawDepthFrameSource.PlaybackRate;
+
+public class RawDepthFrameSourceTest {
+  private static final String DEPTH_RAW_FILE = "test_data/Depth_0.raw";
+  private static final String INTRINSICS_FILE =
+      "config/kinect-depth-intrinsics.properties";
+  private static final int WIDTH = 4, HEIGHT = 2;
+  private static final DepthProjection PROJECTION =
+      new DepthProjection(WIDTH, HEIGHT, 1, 1);
+
+  @Test
+  public void testRawFile() throws IOException, InterruptedException {
+    DepthProjection projection = DepthProjection.load(INTRINSICS_FILE);
+    RawDepthFrameSource source = new RawDepthFrameSource(DEPTH_RAW_FILE,
+                                                         projection);
+    assertEquals(1, source.numFrames());
+    source.waitDepthUpdateAll();
+    assertEquals(1, source.getDepthFrameID());
+
+    int size = projection.width() * projection.height();
+    DataInputStream in = new DataInputStream(
+        new FileInputStream(DEPTH_RAW_FILE));
+    ShortBuffer sb = source.getDepthBuffer();
+    assertEquals(size, sb.remaining());
+    for (int i = 0; i < size; i++)
+      assertEquals(Short.reverseBytes(in.readShort()), sb.get(i));
+    in.close();
+    source.release();
+  }
+
+  @Test
+  public void testEndOfStream() throws IOException, InterruptedException {
+    RawDepthFrameSource source = new RawDepthFrameSource(DEPTH_RAW_FILE,
+        DepthProjection.load(INTRINSICS_FILE));
+    assertFalse(source.endOfStream());
+    source.waitDepthUpdateAll();
+    // A looping source plays the only frame again.
+    assertFalse(source.endOfStream());
+    source.setLooping(false);
+    assertTrue(source.endOfStream());
+    try {
+      source.waitDepthUpdateAll();
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    assertEquals(1, source.getDepthFrameID());
+    source.release();
+  }
+
+  @Test
+  public void testDirectoryOrderAndSeek() throws IOException,
+      InterruptedException {
+    File dir = createTempDir();
+    // Two frames in Depth_10.raw and one in Depth_2.raw.
+    writeFrames(new File(dir, "Depth_10.raw"), 1, 2);
+    writeFrames(new File(dir, "Depth_2.raw"), 0);
+    File notes = new File(dir, "notes.txt");
+    notes.deleteOnExit();
+    notes.createNewFile();
+
+    RawDepthFrameSource source = new RawDepthFrameSource(dir.getPath(),
+                                                         PROJECTION);
+    assertEquals(3, source.numFrames());
+    for (int i = 0; i < 3; i++) {
+      source.waitDepthUpdateAll();
+      assertEquals(i + 1, source.getDepthFrameID());
+      assertEquals(i, source.getDepthBuffer().get(0));
+      // Timestamps in microseconds at the default frame rate.
+      assertEquals(i * 1e6 / RawDepthFrameSource.DEFAULT_FPS, 
+                   source.getDepthTimestamp(), 1);
+    }
+    // Loops back to the first frame.
+    source.waitDepthUpdateAll();
+    assertEquals(1, source.getDepthFrameID());
+
+    source.seekToFrame(3);
+    source.waitDepthUpdateAll();
+    assertEquals(3, source.getDepthFrameID());
+    assertEquals(2, source.getDepthBuffer().get(WIDTH * HEIGHT - 1));
+    source.seekFrameBy(-1);
+    source.waitDepthUpdateAll();
+    assertEquals(2, source.getDepthFrameID());
+    source.release();
+  }
+
+  @Test
+  public void testStepped() throws Exception {
+    File dir = createTempDir();
+    writeFrames(new File(dir, "frames.raw"), 0, 1);
+    final RawDepthFrameSource source = new RawDepthFrameSource(dir.getPath(),
+        PROJECTION, PlaybackRate.STEPPED, RawDepthFrameSource.DEFAULT_FPS);
+    Thread t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          source.waitDepthUpdateAll();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    t.start();
+    t.join(100);
+    assertTrue(t.isAlive());
+    source.step();
+    t.join(1000);
+    assertEquals(1, source.getDepthFrameID());
+    source.release();
+  }
+
+  @Test
+  public void testCompareNames() {
+    assertTrue(RawDepthFrameSource.compareNames("Depth_2.raw",
+                                                "Depth_10.raw") < 0);
+    assertTrue(RawDepthFrameSource.compareNames("Depth_02.raw",
+                                                "Depth_1.raw") > 0);
+    assertTrue(RawDepthFrameSource.compareNames("a.raw", "b.raw") < 0);
+    assertEquals(0, RawDepthFrameSource.compareNames("d_1.raw", "d_1.raw"));
+  }
+
+  private static File createTempDir() throws IOException {
+    File dir = File.createTempFile("depth", "");
+    dir.delete();
+    dir.mkdir();
+    dir.deleteOnExit();
+    return dir;
+  }
+
+  /**
+   * Writes frames whose pixels all have the given values.
+   */
+  private static void writeFrames(File file, int... values)
+      throws IOException {
+    file.deleteOnExit();
+    ByteBuffer bb = ByteBuffer.allocate(values.length * WIDTH * HEIGHT * 2).
+        order(ByteOrder.LITTLE_ENDIAN);
+    for (int v : values)
+      for (int i = 0; i < WIDTH * HEIGHT; i++)
+        bb.putShort((short) v);
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(bb.array());
+    out.close();
+  }
+}
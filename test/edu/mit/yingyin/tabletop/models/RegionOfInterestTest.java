@@ -0,0 +1,139 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.mit.yingyin.tabletop.models.BlobLabeler.Blob;
+import edu.mit.yingyin.util.BitMask;
+
+public class RegionOfInterestTest {
+  private static final int WIDTH = 640, HEIGHT = 480;
+  private static final int PERIOD = 5, MARGIN = 10, EDGE_BAND = 8;
+
+  @Test
+  public void testFullFramePeriod() {
+    RegionOfInterest roi = newRoi();
+    assertNull(roi.nextRegions());
+    roi.update(boxes(new Rectangle(300, 300, 50, 180)), true);
+    for (int i = 1; i < PERIOD; i++)
+      assertNotNull(roi.nextRegions());
+    assertNull(roi.nextRegions());
+    assertNotNull(roi.nextRegions());
+  }
+
+  @Test
+  public void testExpandedRegions() {
+    RegionOfInterest roi = newRoi();
+    roi.nextRegions();
+    roi.update(boxes(new Rectangle(300, 300, 50, 180)), true);
+    List<Rectangle> regions = roi.nextRegions();
+    // Four edge bands followed by the forelimb region.
+    assertEquals(5, regions.size());
+    assertEquals(new Rectangle(0, 0, WIDTH, EDGE_BAND), regions.get(0));
+    // Clipped at the bottom of the image.
+    assertEquals(new Rectangle(290, 290, 70, 190), regions.get(4));
+  }
+
+  @Test
+  public void testEntryRequestsFullFrame() {
+    RegionOfInterest roi = newRoi();
+    roi.nextRegions();
+    roi.update(boxes(new Rectangle(300, 300, 50, 180)), true);
+    assertNotNull(roi.nextRegions());
+    // The same forelimb moves a little.
+    roi.update(boxes(new Rectangle(305, 300, 50, 180)), false);
+    assertNotNull(roi.nextRegions());
+    // A new forelimb in the left edge band.
+    roi.update(boxes(new Rectangle(305, 300, 50, 180), 
+                     new Rectangle(0, 200, 8, 40)), false);
+    assertNull(roi.nextRegions());
+  }
+
+  @Test
+  public void testForelimbEntersBetweenFullFrames() {
+    RegionOfInterest roi = newRoi();
+    roi.nextRegions();
+    Rectangle tracked = new Rectangle(300, 300, 50, 180);
+    roi.update(boxes(tracked), true);
+
+    // A forelimb enters from the left edge while the tracked one stays.
+    BitMask foreground = new BitMask(WIDTH, HEIGHT);
+    fill(foreground, tracked);
+    fill(foreground, new Rectangle(0, 200, 80, 40));
+    List<Rectangle> regions = roi.nextRegions();
+    assertNotNull(regions);
+    BitMask morphed = new BitMask(WIDTH, HEIGHT);
+    for (Rectangle r : regions)
+      foreground.open(morphed, r, 1);
+    BlobLabeler labeler = new BlobLabeler(WIDTH, HEIGHT);
+    List<Blob> blobs = labeler.label(morphed);
+    assertEquals(2, blobs.size());
+
+    // Only the part in the edge band is processed, whose contour is too short
+    // to be a forelimb, so only the tracked forelimb is found.
+    Blob entering = blobs.get(labeler.blobIndexAt(0, 220));
+    assertTrue(2 * (entering.width() + entering.height()) < 
+               (WIDTH + HEIGHT) / ForelimbFeatureDetector.HAND_PERIM_SCALE);
+    roi.update(boxes(tracked), blobs, false);
+    assertNull(roi.nextRegions());
+  }
+
+  @Test
+  public void testNoiseAtEdgeDoesNotRequestFullFrame() {
+    RegionOfInterest roi = newRoi();
+    roi.nextRegions();
+    roi.update(new ArrayList<Rectangle>(), true);
+    BitMask morphed = new BitMask(WIDTH, HEIGHT);
+    fill(morphed, new Rectangle(100, 0, 3, 3));
+    List<Blob> blobs = new BlobLabeler(WIDTH, HEIGHT).label(morphed);
+    assertEquals(1, blobs.size());
+    roi.update(new ArrayList<Rectangle>(), blobs, false);
+    assertNotNull(roi.nextRegions());
+  }
+
+  @Test
+  public void testLargeRegionsUseFullFrame() {
+    RegionOfInterest roi = newRoi();
+    roi.nextRegions();
+    roi.update(boxes(new Rectangle(0, 0, 500, 400)), true);
+    assertNull(roi.nextRegions());
+  }
+
+  @Test
+  public void testNoForelimbs() {
+    RegionOfInterest roi = newRoi();
+    roi.nextRegions();
+    roi.update(new ArrayList<Rectangle>(), true);
+    List<Rectangle> regions = roi.nextRegions();
+    assertEquals(4, regions.size());
+    for (Rectangle r : regions)
+      assertTrue(r.width == EDGE_BAND || r.height == EDGE_BAND);
+    roi.reset();
+    assertNull(roi.nextRegions());
+  }
+
+  private RegionOfInterest newRoi() {
+    return new RegionOfInterest(WIDTH, HEIGHT, PERIOD, MARGIN, EDGE_BAND);
+  }
+
+  private void fill(BitMask mask, Rectangle r) {
+    for (int y = r.y; y < r.y + r.height; y++)
+      for (int x = r.x; x < r.x + r.width; x++)
+        mask.set(x, y);
+  }
+
+  private List<Rectangle> boxes(Rectangle... boxes) {
+    List<Rectangle> res = new ArrayList<Rectangle>();
+    for (Rectangle box : boxes)
+      res.add(box);
+    return res;
+  }
+}
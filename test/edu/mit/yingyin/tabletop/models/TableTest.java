@@ -4,7 +4,6 @@ import static org.junit.Assert.assertTrue;
 
 import java.nio.FloatBuffer;
 
-import org.OpenNI.StatusException;
 import org.junit.Test;
 
 import edu.mit.yingyin.tabletop.models.InteractionSurface;
@@ -25,18 +24,12 @@ public class TableTest {
     while(diff.remaining() > 0)
       diff.put(1);
     
-    InteractionSurface table;
-    try {
-      table = InteractionSurface.initInstance(avg, diff, WIDTH, WIDTH, WIDTH, 
-          HEIGHT, null);
-      assertTrue(table.isInContact(0, 0, 1));
-      assertTrue(table.isInContact(0, 1, (float)1.9));
-      assertTrue(table.isInContact(1, 1, (float)0.1));
-      assertTrue(!table.isInContact(2, 2, (float)6.3));
-      assertTrue(!table.isInContact(3, 3, (float)-6.1));
-    } catch (StatusException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
+    InteractionSurface table = new InteractionSurface(avg, diff, 
+        WIDTH, WIDTH, WIDTH, HEIGHT, null);
+    assertTrue(table.isInContact(0, 0, 1));
+    assertTrue(table.isInContact(0, 1, (float)1.9));
+    assertTrue(table.isInContact(1, 1, (float)0.1));
+    assertTrue(!table.isInContact(2, 2, (float)6.3));
+    assertTrue(!table.isInContact(3, 3, (float)-6.1));
   }
 }
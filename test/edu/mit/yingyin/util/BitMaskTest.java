@@ -0,0 +1,164 @@
+package edu.mit.yingyin.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BitMaskTest {
+  // Rows span two words.
+  private static final int WIDTH = 70, HEIGHT = 9;
+
+  @Test
+  public void testSetAndScan() {
+    BitMask mask = new BitMask(WIDTH, HEIGHT);
+    assertEquals(2, mask.wordsPerRow());
+    mask.set(3, 1);
+    mask.set(63, 1);
+    mask.set(64, 1);
+    mask.set(69, 1);
+    assertTrue(mask.get(63, 1));
+    assertFalse(mask.get(63, 0));
+    assertEquals(3, mask.nextSetBit(1, 0));
+    assertEquals(63, mask.nextSetBit(1, 4));
+    assertEquals(64, mask.nextSetBit(1, 64));
+    assertEquals(69, mask.nextSetBit(1, 65));
+    assertEquals(-1, mask.nextSetBit(1, 70));
+    assertEquals(-1, mask.nextSetBit(0, 0));
+    assertEquals(0, mask.nextClearBit(1, 0));
+    assertEquals(65, mask.nextClearBit(1, 63));
+    assertEquals(-1, mask.nextClearBit(1, 69));
+    assertEquals(4, mask.count());
+    assertEquals(2, mask.count(new Rectangle(60, 0, 5, 2)));
+
+    mask.clear(63, 1);
+    assertEquals(64, mask.nextSetBit(1, 4));
+    mask.not();
+    assertEquals(WIDTH * HEIGHT - 3, mask.count());
+    assertEquals(-1, mask.nextClearBit(0, 0));
+  }
+
+  @Test
+  public void testLogicalOps() {
+    BitMask a = random(new Random(1)), b = random(new Random(2));
+    BitMask and = new BitMask(WIDTH, HEIGHT), or = new BitMask(WIDTH, HEIGHT),
+        andNot = new BitMask(WIDTH, HEIGHT);
+    and.copyFrom(a);
+    and.and(b);
+    or.copyFrom(a);
+    or.or(b);
+    andNot.copyFrom(a);
+    andNot.andNot(b);
+    for (int y = 0; y < HEIGHT; y++)
+      for (int x = 0; x < WIDTH; x++) {
+        assertEquals(a.get(x, y) && b.get(x, y), and.get(x, y));
+        assertEquals(a.get(x, y) || b.get(x, y), or.get(x, y));
+        assertEquals(a.get(x, y) && !b.get(x, y), andNot.get(x, y));
+      }
+  }
+
+  @Test
+  public void testBytes() {
+    int widthStep = 72;
+    ByteBuffer bb = ByteBuffer.allocate(widthStep * HEIGHT);
+    Random random = new Random(3);
+    for (int y = 0; y < HEIGHT; y++)
+      for (int x = 0; x < WIDTH; x++)
+        bb.put(y * widthStep + x, (byte) (random.nextBoolean() ? 0 : 7));
+    BitMask mask = new BitMask(WIDTH, HEIGHT);
+    mask.fromBytes(bb, widthStep);
+    ByteBuffer out = ByteBuffer.allocate(widthStep * HEIGHT);
+    mask.toBytes(out, widthStep);
+    for (int y = 0; y < HEIGHT; y++)
+      for (int x = 0; x < WIDTH; x++) {
+        int i = y * widthStep + x;
+        assertEquals(bb.get(i) != 0, mask.get(x, y));
+        assertEquals(bb.get(i) == 0 ? 0 : 255, out.get(i) & 0xff);
+      }
+  }
+
+  @Test
+  public void testMorphology() {
+    Random random = new Random(4);
+    Rectangle[] regions = {null, new Rectangle(1, 2, 66, 5),
+        new Rectangle(64, 0, 6, HEIGHT)};
+    for (int trial = 0; trial < 20; trial++) {
+      BitMask src = random(random);
+      for (Rectangle region : regions) {
+        BitMask dst = random(random);
+        BitMask expected = new BitMask(WIDTH, HEIGHT);
+        expected.copyFrom(dst);
+        src.erode(dst, region);
+        morph(src, expected, region, true);
+        assertMaskEquals(expected, dst);
+
+        src.dilate(dst, region);
+        morph(src, expected, region, false);
+        assertMaskEquals(expected, dst);
+
+        // In place opening.
+        BitMask opened = new BitMask(WIDTH, HEIGHT);
+        opened.copyFrom(src);
+        opened.open(opened, region, 1);
+        BitMask eroded = new BitMask(WIDTH, HEIGHT);
+        eroded.copyFrom(src);
+        morph(src, eroded, region, true);
+        expected.copyFrom(src);
+        morph(eroded, expected, region, false);
+        assertMaskEquals(expected, opened);
+      }
+    }
+  }
+
+  private static void assertMaskEquals(BitMask expected, BitMask actual) {
+    for (int y = 0; y < HEIGHT; y++)
+      for (int x = 0; x < WIDTH; x++)
+        assertEquals(String.format("(%d, %d)", x, y), expected.get(x, y),
+                     actual.get(x, y));
+  }
+
+  /**
+   * Pixel-by-pixel erosion or dilation ignoring the pixels outside the
+   * region.
+   */
+  private static void morph(BitMask src, BitMask dst, Rectangle region,
+                            boolean erode) {
+    Rectangle r = region == null ? new Rectangle(WIDTH, HEIGHT) : region;
+    boolean[][] res = new boolean[HEIGHT][WIDTH];
+    for (int y = r.y; y < r.y + r.height; y++)
+      for (int x = r.x; x < r.x + r.width; x++) {
+        boolean v = erode;
+        for (int dy = -1; dy <= 1; dy++)
+          for (int dx = -1; dx <= 1; dx++) {
+            if (!r.contains(x + dx, y + dy))
+              continue;
+            if (erode)
+              v &= src.get(x + dx, y + dy);
+            else
+              v |= src.get(x + dx, y + dy);
+          }
+        res[y][x] = v;
+      }
+    for (int y = r.y; y < r.y + r.height; y++)
+      for (int x = r.x; x < r.x + r.width; x++) {
+        if (res[y][x])
+          dst.set(x, y);
+        else
+          dst.clear(x, y);
+      }
+  }
+
+  private static BitMask random(Random random) {
+    BitMask mask = new BitMask(WIDTH, HEIGHT);
+    for (int y = 0; y < HEIGHT; y++)
+      for (int x = 0; x < WIDTH; x++)
+        if (random.nextInt(4) != 0)
+          mask.set(x, y);
+    return mask;
+  }
+}
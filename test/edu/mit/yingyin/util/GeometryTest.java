@@ -116,4 +116,21 @@ public class GeometryTest {
         new Point3f(0, 0, 0), new Point3f(2, 1, 1));
     assertEquals(1, dist, EPS);
   }
+  
+  @Test
+  public void testEigenSymmetric3() {
+    double[] a = {2, 1, 0, 1, 2, 0, 0, 0, 5};
+    double[] eigenvals = new double[3];
+    double[] eigenvecs = new double[9];
+    Geometry.eigenSymmetric3(a, eigenvals, eigenvecs);
+    assertEquals(5, eigenvals[0], EPS);
+    assertEquals(3, eigenvals[1], EPS);
+    assertEquals(1, eigenvals[2], EPS);
+    assertEquals(1, Math.abs(eigenvecs[2]), EPS);
+    double s = Math.sqrt(0.5);
+    assertEquals(s, Math.abs(eigenvecs[3]), EPS);
+    assertEquals(eigenvecs[3], eigenvecs[4], EPS);
+    assertEquals(s, Math.abs(eigenvecs[6]), EPS);
+    assertEquals(-eigenvecs[6], eigenvecs[7], EPS);
+  }
 }
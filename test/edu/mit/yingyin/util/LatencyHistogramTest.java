@@ -0,0 +1,54 @@
+package edu.mit.yingyin.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBuckets() {
+    long prevUpper = -1;
+    for (int i = 0; i < 600; i++) {
+      long upper = LatencyHistogram.bucketUpperBound(i);
+      if (upper >= (1L << 40))
+        break;
+      assertTrue(upper > prevUpper);
+      assertEquals(i, LatencyHistogram.bucketIndex(prevUpper + 1));
+      assertEquals(i, LatencyHistogram.bucketIndex(upper));
+      prevUpper = upper;
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, h.percentile(50));
+    for (int i = 1; i <= 1000; i++)
+      h.record(i * 1000);
+    assertEquals(1000, h.count());
+    assertEquals(1000000, h.max());
+    assertEquals(500500, h.mean(), 1e-6);
+    assertRelativeError(500000, h.percentile(50));
+    assertRelativeError(990000, h.percentile(99));
+    assertEquals(1000000, h.percentile(100));
+    h.reset();
+    assertEquals(0, h.count());
+    assertEquals(0, h.max());
+  }
+
+  @Test
+  public void testSmallValues() {
+    LatencyHistogram h = new LatencyHistogram();
+    h.record(-5);
+    h.record(3);
+    assertEquals(0, h.percentile(50));
+    assertEquals(3, h.percentile(100));
+  }
+
+  private void assertRelativeError(long expected, long actual) {
+    assertTrue(actual >= expected);
+    assertTrue((double) (actual - expected) / expected <= 1.0 / 16);
+  }
+}
@@ -0,0 +1,40 @@
+package edu.mit.yingyin.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+import edu.mit.yingyin.util.ParallelRows.RowKernel;
+
+public class ParallelRowsTest {
+  private static final int WIDTH = 640, HEIGHT = 480;
+
+  @Test
+  public void testEachRowOnce() {
+    final AtomicIntegerArray counts = new AtomicIntegerArray(HEIGHT);
+    ParallelRows.forEachRow(true, HEIGHT, WIDTH, new RowKernel() {
+      @Override
+      public void run(int stripe, int rowStart, int rowEnd) {
+        assertTrue(stripe >= 0 && stripe < ParallelRows.maxStripes());
+        for (int h = rowStart; h < rowEnd; h++)
+          counts.incrementAndGet(h);
+      }
+    });
+    for (int h = 0; h < HEIGHT; h++)
+      assertEquals(1, counts.get(h));
+  }
+
+  @Test
+  public void testNumStripes() {
+    assertEquals(1, ParallelRows.numStripes(false, HEIGHT, WIDTH));
+    // A small region stays serial.
+    assertEquals(1, ParallelRows.numStripes(true, 100, 100));
+    int stripes = ParallelRows.numStripes(true, HEIGHT, WIDTH);
+    assertEquals(Math.min(ParallelRows.maxStripes(), 
+        HEIGHT * WIDTH / ParallelRows.MIN_PIXELS_PER_STRIPE), stripes);
+    assertTrue(ParallelRows.numStripes(true, 2, 1 << 20) <= 2);
+  }
+}
@@ -5,7 +5,9 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
-@SuiteClasses({FileUtilTest.class, GeometryTest.class, MathUtilTest.class})
+@SuiteClasses({BitMaskTest.class, FileUtilTest.class, GeometryTest.class,
+               MathUtilTest.class, LatencyHistogramTest.class,
+               ParallelRowsTest.class})
 
 public class UtilTests {
 